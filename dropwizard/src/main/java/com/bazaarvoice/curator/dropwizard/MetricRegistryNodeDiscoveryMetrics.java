@@ -0,0 +1,80 @@
+package com.bazaarvoice.curator.dropwizard;
+
+import com.bazaarvoice.curator.recipes.NodeDiscovery;
+import com.bazaarvoice.curator.recipes.NodeDiscoveryMetrics;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reports the measurements of a {@link NodeDiscovery} to a {@link MetricRegistry}.  With a name of {@code foo} the
+ * metrics are:
+ * <ul>
+ * <li>{@code foo.events} - a meter of the changes to nodes dispatched.</li>
+ * <li>{@code foo.propagation-lag} - a histogram of the milliseconds between changes being made in ZooKeeper and being
+ * dispatched.</li>
+ * <li>{@code foo.listener-time} - a timer of the calls to listeners.</li>
+ * <li>{@code foo.queue-depth} - a gauge of the ZooKeeper events waiting to be processed, while started.</li>
+ * </ul>
+ * <p/>
+ * Use one instance per {@code NodeDiscovery}:
+ * <pre>
+ * NodeDiscovery.builder(curator, path, parser)
+ *         .withMetrics(new MetricRegistryNodeDiscoveryMetrics(env.metrics(), "discovery.my-service"))
+ *         .build();
+ * </pre>
+ */
+public class MetricRegistryNodeDiscoveryMetrics implements NodeDiscoveryMetrics {
+    private final MetricRegistry _registry;
+    private final String _queueDepthName;
+    private final Meter _events;
+    private final Histogram _propagationLag;
+    private final Timer _listenerTime;
+
+    public MetricRegistryNodeDiscoveryMetrics(MetricRegistry registry, String name) {
+        checkNotNull(registry);
+        checkNotNull(name);
+        checkArgument(!"".equals(name));
+
+        _registry = registry;
+        _queueDepthName = MetricRegistry.name(name, "queue-depth");
+        _events = registry.meter(MetricRegistry.name(name, "events"));
+        _propagationLag = registry.histogram(MetricRegistry.name(name, "propagation-lag"));
+        _listenerTime = registry.timer(MetricRegistry.name(name, "listener-time"));
+    }
+
+    @Override
+    public void onStart(final NodeDiscovery<?> nodeDiscovery) {
+        _registry.register(_queueDepthName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return nodeDiscovery.getQueueDepth();
+            }
+        });
+    }
+
+    @Override
+    public void onClose(NodeDiscovery<?> nodeDiscovery) {
+        _registry.remove(_queueDepthName);
+    }
+
+    @Override
+    public void recordEvent(long propagationLagMillis) {
+        _events.mark();
+        if (propagationLagMillis >= 0) {
+            _propagationLag.update(propagationLagMillis);
+        }
+    }
+
+    @Override
+    public void recordListenerTime(long durationNanos) {
+        _listenerTime.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,133 @@
+package com.bazaarvoice.curator.dropwizard;
+
+import com.bazaarvoice.curator.recipes.EphemeralWriteLimiter;
+import com.bazaarvoice.curator.recipes.PersistentEphemeralNode;
+import com.bazaarvoice.curator.recipes.PersistentEphemeralNodeMetrics;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reports the measurements of a {@link PersistentEphemeralNode} to a {@link MetricRegistry}.  With a name of
+ * {@code foo} the metrics are:
+ * <ul>
+ * <li>{@code foo.state} - a gauge of the node's current {@link PersistentEphemeralNode.State}, while it's open.</li>
+ * <li>{@code foo.present} - a gauge that is 1 while the node is known to be present and 0 otherwise, while it's
+ * open.</li>
+ * <li>{@code foo.transitions.<state>} - a meter of the node entering each state, ex. {@code foo.transitions.recreating}
+ * for each time it went missing.</li>
+ * <li>{@code foo.absence} - a timer of how long the node was missing each time it had to be recreated.</li>
+ * <li>{@code foo.retries.<operation>} - a meter of the retries of each operation, ex. {@code foo.retries.create}.</li>
+ * <li>{@code foo.write-limiter.queue-depth} - a gauge of the writes waiting for the node's
+ * {@link EphemeralWriteLimiter}, while it's open.  Only registered if the node's writes are limited.</li>
+ * <li>{@code foo.write-limiter.recovery-time} - a gauge of the milliseconds it took the node's
+ * {@link EphemeralWriteLimiter} to get through its most recent backlog, while it's open.  Only registered if the
+ * node's writes are limited.</li>
+ * </ul>
+ * <p/>
+ * Use one instance per node:
+ * <pre>
+ * PersistentEphemeralNode.builder(curator, path, data, CreateMode.EPHEMERAL)
+ *         .withMetrics(new MetricRegistryPersistentEphemeralNodeMetrics(env.metrics(), "registration.my-service"))
+ *         .build();
+ * </pre>
+ */
+public class MetricRegistryPersistentEphemeralNodeMetrics implements PersistentEphemeralNodeMetrics {
+    private final MetricRegistry _registry;
+    private final String _stateName;
+    private final String _presentName;
+    private final String _writeQueueDepthName;
+    private final String _writeRecoveryTimeName;
+    private final Map<PersistentEphemeralNode.State, Meter> _transitions =
+            new EnumMap<PersistentEphemeralNode.State, Meter>(PersistentEphemeralNode.State.class);
+    private final Timer _absence;
+    private final Map<PersistentEphemeralNode.Operation, Meter> _retries =
+            new EnumMap<PersistentEphemeralNode.Operation, Meter>(PersistentEphemeralNode.Operation.class);
+
+    public MetricRegistryPersistentEphemeralNodeMetrics(MetricRegistry registry, String name) {
+        checkNotNull(registry);
+        checkNotNull(name);
+        checkArgument(!"".equals(name));
+
+        _registry = registry;
+        _stateName = MetricRegistry.name(name, "state");
+        _presentName = MetricRegistry.name(name, "present");
+        _writeQueueDepthName = MetricRegistry.name(name, "write-limiter", "queue-depth");
+        _writeRecoveryTimeName = MetricRegistry.name(name, "write-limiter", "recovery-time");
+        for (PersistentEphemeralNode.State state : PersistentEphemeralNode.State.values()) {
+            _transitions.put(state, registry.meter(MetricRegistry.name(name, "transitions", lowerCase(state))));
+        }
+        _absence = registry.timer(MetricRegistry.name(name, "absence"));
+        for (PersistentEphemeralNode.Operation operation : PersistentEphemeralNode.Operation.values()) {
+            _retries.put(operation, registry.meter(MetricRegistry.name(name, "retries", lowerCase(operation))));
+        }
+    }
+
+    @Override
+    public void onStart(final PersistentEphemeralNode node) {
+        _registry.register(_stateName, new Gauge<String>() {
+            @Override
+            public String getValue() {
+                return node.getState().name();
+            }
+        });
+        _registry.register(_presentName, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return (node.getState() == PersistentEphemeralNode.State.PRESENT) ? 1 : 0;
+            }
+        });
+
+        final EphemeralWriteLimiter limiter = node.getWriteLimiter();
+        if (limiter != null) {
+            _registry.register(_writeQueueDepthName, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return limiter.getQueueDepth();
+                }
+            });
+            _registry.register(_writeRecoveryTimeName, new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return limiter.getLastRecoveryTime(TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onClose(PersistentEphemeralNode node) {
+        _registry.remove(_stateName);
+        _registry.remove(_presentName);
+        _registry.remove(_writeQueueDepthName);
+        _registry.remove(_writeRecoveryTimeName);
+    }
+
+    @Override
+    public void recordStateChange(PersistentEphemeralNode.State from, PersistentEphemeralNode.State to,
+                                  long timestampMillis) {
+        _transitions.get(to).mark();
+    }
+
+    @Override
+    public void recordAbsence(long durationMillis) {
+        _absence.update(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recordRetry(PersistentEphemeralNode.Operation operation) {
+        _retries.get(operation).mark();
+    }
+
+    private static String lowerCase(Enum<?> value) {
+        return value.name().toLowerCase();
+    }
+}
@@ -0,0 +1,72 @@
+package com.bazaarvoice.curator.dropwizard;
+
+import com.bazaarvoice.curator.recipes.NodeDiscovery;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MetricRegistryNodeDiscoveryMetricsTest {
+    private final MetricRegistry _registry = new MetricRegistry();
+    private final MetricRegistryNodeDiscoveryMetrics _metrics =
+            new MetricRegistryNodeDiscoveryMetrics(_registry, "foo");
+
+    @Test(expected = NullPointerException.class)
+    public void testNullRegistry() {
+        new MetricRegistryNodeDiscoveryMetrics(null, "foo");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullName() {
+        new MetricRegistryNodeDiscoveryMetrics(_registry, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyName() {
+        new MetricRegistryNodeDiscoveryMetrics(_registry, "");
+    }
+
+    @Test
+    public void testRecordEvent() {
+        _metrics.recordEvent(25);
+        _metrics.recordEvent(-1);
+
+        assertEquals(2, _registry.meter("foo.events").getCount());
+        assertEquals(1, _registry.histogram("foo.propagation-lag").getCount());
+        assertEquals(25, _registry.histogram("foo.propagation-lag").getSnapshot().getMax());
+    }
+
+    @Test
+    public void testRecordListenerTime() {
+        _metrics.recordListenerTime(TimeUnit.MILLISECONDS.toNanos(3));
+
+        assertEquals(1, _registry.timer("foo.listener-time").getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(3), _registry.timer("foo.listener-time").getSnapshot().getMax());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testQueueDepthGauge() {
+        NodeDiscovery<?> nodeDiscovery = mock(NodeDiscovery.class);
+        when(nodeDiscovery.getQueueDepth()).thenReturn(7);
+
+        _metrics.onStart(nodeDiscovery);
+        Gauge<Integer> gauge = _registry.getGauges().get("foo.queue-depth");
+        assertEquals(7, (int) gauge.getValue());
+
+        _metrics.onClose(nodeDiscovery);
+        assertFalse(_registry.getGauges().containsKey("foo.queue-depth"));
+    }
+
+    @Test
+    public void testGaugeNotRegisteredUntilStarted() {
+        assertTrue(_registry.getGauges().isEmpty());
+    }
+}
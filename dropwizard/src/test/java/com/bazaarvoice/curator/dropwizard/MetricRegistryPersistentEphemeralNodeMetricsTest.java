@@ -0,0 +1,111 @@
+package com.bazaarvoice.curator.dropwizard;
+
+import com.bazaarvoice.curator.recipes.EphemeralWriteLimiter;
+import com.bazaarvoice.curator.recipes.PersistentEphemeralNode;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MetricRegistryPersistentEphemeralNodeMetricsTest {
+    private final MetricRegistry _registry = new MetricRegistry();
+    private final MetricRegistryPersistentEphemeralNodeMetrics _metrics =
+            new MetricRegistryPersistentEphemeralNodeMetrics(_registry, "foo");
+
+    @Test(expected = NullPointerException.class)
+    public void testNullRegistry() {
+        new MetricRegistryPersistentEphemeralNodeMetrics(null, "foo");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullName() {
+        new MetricRegistryPersistentEphemeralNodeMetrics(_registry, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyName() {
+        new MetricRegistryPersistentEphemeralNodeMetrics(_registry, "");
+    }
+
+    @Test
+    public void testRecordStateChange() {
+        _metrics.recordStateChange(PersistentEphemeralNode.State.PRESENT, PersistentEphemeralNode.State.RECREATING,
+                System.currentTimeMillis());
+
+        assertEquals(1, _registry.meter("foo.transitions.recreating").getCount());
+        assertEquals(0, _registry.meter("foo.transitions.present").getCount());
+    }
+
+    @Test
+    public void testRecordAbsence() {
+        _metrics.recordAbsence(1500);
+
+        assertEquals(1, _registry.timer("foo.absence").getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), _registry.timer("foo.absence").getSnapshot().getMax());
+    }
+
+    @Test
+    public void testRecordRetry() {
+        _metrics.recordRetry(PersistentEphemeralNode.Operation.CREATE);
+        _metrics.recordRetry(PersistentEphemeralNode.Operation.CREATE);
+        _metrics.recordRetry(PersistentEphemeralNode.Operation.WATCH);
+
+        assertEquals(2, _registry.meter("foo.retries.create").getCount());
+        assertEquals(1, _registry.meter("foo.retries.watch").getCount());
+        assertEquals(0, _registry.meter("foo.retries.delete").getCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testStateGauges() {
+        PersistentEphemeralNode node = mock(PersistentEphemeralNode.class);
+        when(node.getState()).thenReturn(PersistentEphemeralNode.State.RECREATING);
+
+        _metrics.onStart(node);
+        Gauge<String> state = _registry.getGauges().get("foo.state");
+        Gauge<Integer> present = _registry.getGauges().get("foo.present");
+        assertEquals("RECREATING", state.getValue());
+        assertEquals(0, (int) present.getValue());
+
+        when(node.getState()).thenReturn(PersistentEphemeralNode.State.PRESENT);
+        assertEquals(1, (int) present.getValue());
+
+        _metrics.onClose(node);
+        assertFalse(_registry.getGauges().containsKey("foo.state"));
+        assertFalse(_registry.getGauges().containsKey("foo.present"));
+        assertFalse(_registry.getGauges().containsKey("foo.write-limiter.queue-depth"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWriteLimiterGauges() {
+        EphemeralWriteLimiter limiter = mock(EphemeralWriteLimiter.class);
+        when(limiter.getQueueDepth()).thenReturn(3);
+        when(limiter.getLastRecoveryTime(TimeUnit.MILLISECONDS)).thenReturn(1500L);
+        PersistentEphemeralNode node = mock(PersistentEphemeralNode.class);
+        when(node.getState()).thenReturn(PersistentEphemeralNode.State.PRESENT);
+        when(node.getWriteLimiter()).thenReturn(limiter);
+
+        _metrics.onStart(node);
+        Gauge<Integer> queueDepth = _registry.getGauges().get("foo.write-limiter.queue-depth");
+        Gauge<Long> recoveryTime = _registry.getGauges().get("foo.write-limiter.recovery-time");
+        assertEquals(3, (int) queueDepth.getValue());
+        assertEquals(1500, (long) recoveryTime.getValue());
+
+        _metrics.onClose(node);
+        assertFalse(_registry.getGauges().containsKey("foo.write-limiter.queue-depth"));
+        assertFalse(_registry.getGauges().containsKey("foo.write-limiter.recovery-time"));
+    }
+
+    @Test
+    public void testGaugesNotRegisteredUntilStarted() {
+        assertTrue(_registry.getGauges().isEmpty());
+    }
+}
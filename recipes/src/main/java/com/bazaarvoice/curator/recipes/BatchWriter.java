@@ -0,0 +1,243 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes many nodes in as few round trips as possible, for the recipes that maintain nodes in bulk.  Operations are
+ * grouped into multi-op transactions; when a transaction conflicts with what is in ZooKeeper (ex. some of the nodes
+ * already exist, or are already gone) its operations are made one by one instead.
+ * <p/>
+ * Also keeps track of the retries of the operations that fail, see {@link Retries}.
+ */
+final class BatchWriter {
+    /** Keep each transaction well below the size of a request that ZooKeeper accepts (jute.maxbuffer). */
+    static final int MAX_OPERATIONS_PER_TRANSACTION = 500;
+
+    private final CuratorFramework _curator;
+    private final ParentPathCache _parentPaths;
+
+    BatchWriter(CuratorFramework curator) {
+        _curator = curator;
+        _parentPaths = ParentPathCache.forCurator(curator);
+    }
+
+    /**
+     * Create the nodes, and their parents if necessary.  A node that already exists counts as created.
+     *
+     * @param nodes    The data of each node, by path.
+     * @param callback Told about each node once it exists.  If this throws, the nodes that the callback hasn't been
+     *                 told about still need to be created.
+     */
+    void create(Map<String, byte[]> nodes, CreateMode mode, CreateCallback callback) throws Exception {
+        for (String path : nodes.keySet()) {
+            _parentPaths.ensure(_curator, ZKPaths.getPathAndNode(path).getPath());
+        }
+
+        for (List<String> batch : partition(nodes.keySet())) {
+            if (batch.size() == 1 || !createInTransaction(batch, nodes, mode)) {
+                createEach(batch, nodes, mode, callback);
+                continue;
+            }
+            for (String path : batch) {
+                callback.onCreated(path);
+            }
+        }
+    }
+
+    /**
+     * Set the data of the nodes.
+     *
+     * @param nodes The data of each node, by path.
+     * @return The paths of the nodes that don't exist.
+     */
+    List<String> setData(Map<String, byte[]> nodes) throws Exception {
+        List<String> missing = Lists.newArrayList();
+        for (List<String> batch : partition(nodes.keySet())) {
+            if (batch.size() > 1) {
+                CuratorTransaction transaction = _curator.inTransaction();
+                CuratorTransactionFinal operations = null;
+                for (String path : batch) {
+                    operations = transaction.setData().forPath(path, nodes.get(path)).and();
+                    transaction = operations;
+                }
+                try {
+                    operations.commit();
+                    continue;
+                } catch (KeeperException.NoNodeException e) {
+                    // Some of the nodes are gone, find out which ones.
+                }
+            }
+            for (String path : batch) {
+                try {
+                    _curator.setData().forPath(path, nodes.get(path));
+                } catch (KeeperException.NoNodeException e) {
+                    missing.add(path);
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Delete the nodes, whatever their version.  Nodes that don't exist are skipped.
+     *
+     * @return The number of nodes deleted.
+     */
+    int delete(Collection<String> paths) throws Exception {
+        Map<String, Integer> versions = Maps.newLinkedHashMap();
+        for (String path : paths) {
+            versions.put(path, -1);
+        }
+        return delete(versions);
+    }
+
+    /**
+     * Delete the nodes whose version is still the given one, ex. to only delete nodes that haven't changed since they
+     * were read.  Nodes that don't exist or whose version doesn't match are skipped.
+     *
+     * @param versions The version of each node, by path, or -1 to delete the node whatever its version.
+     * @return The number of nodes deleted.
+     */
+    int delete(Map<String, Integer> versions) throws Exception {
+        int deleted = 0;
+        for (List<String> batch : partition(versions.keySet())) {
+            if (batch.size() > 1) {
+                CuratorTransaction transaction = _curator.inTransaction();
+                CuratorTransactionFinal operations = null;
+                for (String path : batch) {
+                    operations = transaction.delete().withVersion(versions.get(path)).forPath(path).and();
+                    transaction = operations;
+                }
+                try {
+                    operations.commit();
+                    deleted += batch.size();
+                    continue;
+                } catch (KeeperException.NoNodeException e) {
+                    // Some of the nodes are already gone, delete the rest one by one.
+                } catch (KeeperException.BadVersionException e) {
+                    // Some of the nodes have changed, delete the rest one by one.
+                }
+            }
+            for (String path : batch) {
+                try {
+                    _curator.delete().withVersion(versions.get(path)).forPath(path);
+                    deleted++;
+                } catch (KeeperException.NoNodeException e) {
+                    // The node doesn't exist, we don't care.
+                } catch (KeeperException.BadVersionException e) {
+                    // The node has changed, leave it alone.
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return True if the nodes were created, false if the transaction conflicted and they should be created one by
+     * one instead.
+     */
+    private boolean createInTransaction(List<String> batch, Map<String, byte[]> nodes, CreateMode mode)
+            throws Exception {
+        CuratorTransaction transaction = _curator.inTransaction();
+        CuratorTransactionFinal operations = null;
+        for (String path : batch) {
+            operations = transaction.create().withMode(mode).forPath(path, nodes.get(path)).and();
+            transaction = operations;
+        }
+        try {
+            operations.commit();
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            // Some of the nodes still exist (ex. after a disconnect that didn't expire the session).
+            return false;
+        } catch (KeeperException.NoNodeException e) {
+            // A parent was deleted after we ensured it.
+            for (String path : batch) {
+                _parentPaths.invalidate(_curator, ZKPaths.getPathAndNode(path).getPath());
+            }
+            return false;
+        }
+    }
+
+    private void createEach(List<String> batch, Map<String, byte[]> nodes, CreateMode mode, CreateCallback callback)
+            throws Exception {
+        for (String path : batch) {
+            try {
+                _curator.create().creatingParentsIfNeeded().withMode(mode).forPath(path, nodes.get(path));
+            } catch (KeeperException.NodeExistsException e) {
+                // The node was already present, it may be created by us, maybe by another session.  In either case
+                // the caller keeps maintaining it and recreates it under our session if it goes away.
+            }
+            callback.onCreated(path);
+        }
+    }
+
+    private static List<List<String>> partition(Collection<String> paths) {
+        return Lists.partition(ImmutableList.copyOf(paths), MAX_OPERATIONS_PER_TRANSACTION);
+    }
+
+    /** Told about each node that {@link #create} has made sure exists. */
+    static interface CreateCallback {
+        void onCreated(String path);
+    }
+
+    /**
+     * Keeps track of the retries of failed operations, waiting longer between them according to a
+     * {@link RetrySchedule} while they keep failing.  {@link #delay} and {@link #reset} must only be called by one
+     * thread at a time, ex. from a serial executor; the count and the last error can be read from any thread.
+     */
+    static final class Retries {
+        private final RetrySchedule _schedule;
+        private final AtomicLong _count = new AtomicLong();
+        private volatile Exception _lastError;
+        private int _consecutiveFailures;
+        private long _delayMillis;
+
+        Retries(RetrySchedule schedule) {
+            _schedule = schedule;
+        }
+
+        /**
+         * Record a failed operation and decide how long to wait before retrying it.
+         *
+         * @param e The reason it failed, or null if it didn't fail with an error.
+         * @return How long to wait in milliseconds.
+         */
+        long delay(Exception e) {
+            if (e != null) {
+                _lastError = e;
+            }
+            _count.incrementAndGet();
+            _consecutiveFailures++;
+            _delayMillis = _schedule.getDelayMillis(_consecutiveFailures, _delayMillis);
+            return _delayMillis;
+        }
+
+        /** Record a successful operation, so the next failure is retried quickly again. */
+        void reset() {
+            _consecutiveFailures = 0;
+            _delayMillis = 0;
+        }
+
+        long getCount() {
+            return _count.get();
+        }
+
+        Exception getLastError() {
+            return _lastError;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.curator.utils.ZKPaths;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Describes a hash-bucketed layout for the children of a service path.  Instead of every node living directly under
+ * the service path, nodes are spread across a fixed number of bucket directories, ex. {@code /svc/<bucket>/<node>}.
+ * <p/>
+ * This keeps the size of any single {@code getChildren} response bounded as the number of nodes grows (ZooKeeper
+ * rejects responses larger than {@code jute.maxbuffer}) and means that a membership change only causes watchers to
+ * re-list the one bucket that changed.
+ * <p/>
+ * The same layout (same bucket count) must be used by {@link PersistentEphemeralNode} when registering and by
+ * {@link NodeDiscovery} when watching.
+ */
+public final class BucketLayout {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final int _bucketCount;
+
+    /**
+     * Creates a layout with the given number of buckets.
+     *
+     * @param bucketCount The number of bucket directories to spread nodes across.
+     */
+    public BucketLayout(int bucketCount) {
+        checkArgument(bucketCount > 0, "bucketCount must be positive");
+        _bucketCount = bucketCount;
+    }
+
+    public int getBucketCount() {
+        return _bucketCount;
+    }
+
+    /**
+     * @return The bucket that a node with the given name belongs to.
+     */
+    public int getBucket(String nodeName) {
+        checkNotNull(nodeName);
+        return Hashing.consistentHash(HASH_FUNCTION.hashString(nodeName, Charsets.UTF_8), _bucketCount);
+    }
+
+    /**
+     * @return The path of the given bucket directory under the service path.
+     */
+    public String getBucketPath(String parentPath, int bucket) {
+        checkNotNull(parentPath);
+        checkArgument(bucket >= 0 && bucket < _bucketCount, "bucket out of range: %s", bucket);
+        return ZKPaths.makePath(parentPath, Integer.toString(bucket));
+    }
+
+    /**
+     * @return The paths of all of the bucket directories under the service path, in bucket order.
+     */
+    public List<String> getBucketPaths(String parentPath) {
+        ImmutableList.Builder<String> paths = ImmutableList.builder();
+        for (int bucket = 0; bucket < _bucketCount; bucket++) {
+            paths.add(getBucketPath(parentPath, bucket));
+        }
+        return paths.build();
+    }
+
+    /**
+     * Maps the path a node would have in an unbucketed layout to its path in this layout, choosing the bucket by the
+     * node's name.  For example with 16 buckets {@code /svc/node} might map to {@code /svc/11/node}.
+     * <p/>
+     * Only nodes with distinct names are spread across the buckets this way; use
+     * {@link #getBucketedPath(String, String)} when many nodes share a name.
+     */
+    public String getBucketedPath(String nodePath) {
+        return getBucketedPath(nodePath, ZKPaths.getPathAndNode(checkNotNull(nodePath)).getNode());
+    }
+
+    /**
+     * Maps the path a node would have in an unbucketed layout to its path in the bucket that the given key hashes to.
+     * For example nodes that are all named {@code /svc/instance} are spread across the buckets if each is given a key
+     * of its own, ex. a random UUID.
+     */
+    public String getBucketedPath(String nodePath, String bucketKey) {
+        ZKPaths.PathAndNode pathAndNode = ZKPaths.getPathAndNode(checkNotNull(nodePath));
+        String bucketPath = getBucketPath(pathAndNode.getPath(), getBucket(bucketKey));
+        return ZKPaths.makePath(bucketPath, pathAndNode.getNode());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BucketLayout && _bucketCount == ((BucketLayout) o)._bucketCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return _bucketCount;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("bucketCount", _bucketCount).toString();
+    }
+}
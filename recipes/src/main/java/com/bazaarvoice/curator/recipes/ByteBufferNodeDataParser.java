@@ -0,0 +1,31 @@
+package com.bazaarvoice.curator.recipes;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A strategy to convert the data of a ZooKeeper node to a {@code T}, given a read-only view of the data rather than a
+ * {@code byte[]}.  An alternative to {@link NodeDiscovery.NodeDataParser} for parsers that want to decode the data in
+ * place, skip the parts they don't need, or make use of the node's {@link Stat} (ex. its version).
+ * <p/>
+ * Ready-made implementations for common encodings are in the {@code com.bazaarvoice.curator.recipes.parser} package.
+ *
+ * @param <T> The type that the data is converted to.
+ */
+public interface ByteBufferNodeDataParser<T> {
+    /**
+     * @param path The path of the node.
+     * @param data A read-only view of the node's data, positioned at the start of the data.  The buffer is only valid
+     *             for the duration of the call and must not be retained.
+     * @param stat The node's stat.
+     * @return The parsed node.
+     */
+    T parse(String path, ByteBuffer data, Stat stat) throws Exception;
+
+    /**
+     * @return True if {@link #parse} may be called concurrently from multiple threads, ex. when the parser is shared
+     *         by several {@code NodeDiscovery} instances.  Calls to a parser that isn't stateless are serialized.
+     */
+    boolean isStateless();
+}
@@ -0,0 +1,62 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Exponential backoff with "decorrelated jitter": each delay is chosen at random between the base delay and three
+ * times the previous delay, capped at a maximum.  Delays grow about exponentially while failures continue, and because
+ * each client's delays depend on its own previous random choices, clients that failed at the same moment quickly
+ * drift apart instead of retrying in lockstep.
+ */
+public final class DecorrelatedJitterRetrySchedule implements RetrySchedule {
+    private final long _baseDelayMillis;
+    private final long _maxDelayMillis;
+    private final Random _random;
+
+    /**
+     * @param baseDelay The smallest delay, also used as the basis of the first delay.
+     * @param maxDelay  The largest delay.
+     * @param unit      The unit of the delays.
+     */
+    public DecorrelatedJitterRetrySchedule(long baseDelay, long maxDelay, TimeUnit unit) {
+        this(baseDelay, maxDelay, unit, new Random());
+    }
+
+    @VisibleForTesting
+    DecorrelatedJitterRetrySchedule(long baseDelay, long maxDelay, TimeUnit unit, Random random) {
+        checkNotNull(unit);
+        checkArgument(baseDelay > 0, "baseDelay must be positive");
+        checkArgument(maxDelay >= baseDelay, "maxDelay must be at least baseDelay");
+
+        _baseDelayMillis = Math.max(1, unit.toMillis(baseDelay));
+        _maxDelayMillis = Math.max(_baseDelayMillis, unit.toMillis(maxDelay));
+        _random = checkNotNull(random);
+    }
+
+    @Override
+    public long getDelayMillis(int retryCount, long previousDelayMillis) {
+        long previous = Math.max(_baseDelayMillis, previousDelayMillis);
+        // Don't let the upper bound overflow, it's capped anyway.
+        long upper = (previous > _maxDelayMillis / 3) ? _maxDelayMillis : previous * 3;
+        if (upper <= _baseDelayMillis) {
+            return _baseDelayMillis;
+        }
+        long delay = _baseDelayMillis + (long) (_random.nextDouble() * (upper - _baseDelayMillis + 1));
+        return Math.min(delay, _maxDelayMillis);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("baseDelayMillis", _baseDelayMillis)
+                .add("maxDelayMillis", _maxDelayMillis)
+                .toString();
+    }
+}
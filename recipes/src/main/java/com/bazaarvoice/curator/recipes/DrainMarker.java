@@ -0,0 +1,54 @@
+package com.bazaarvoice.curator.recipes;
+
+/**
+ * Marks the data of a node that is being drained, so that clients stop sending it traffic before it is deleted.
+ * {@link PersistentEphemeralNode#drain} rewrites the node's data with {@link #mark} and {@link NodeDiscovery} hides
+ * nodes whose data {@link #isDraining} from its view, see {@link NodeDiscovery.Builder#withDrainMarker(DrainMarker)}.
+ * <p/>
+ * Both sides must use the same marker.  The built in {@link #HEADER} marker works with any data, a custom marker can
+ * instead mark the data in a way the application understands, ex. by setting a status field of a JSON payload.
+ * Markers see the data before it is encoded with a {@link PayloadCodec} and after it is decoded.
+ */
+public abstract class DrainMarker {
+    private static final byte MAGIC_0 = 0x00;
+    private static final byte MAGIC_1 = 'D';
+
+    /**
+     * Prefixes the data with the 2 byte header {@code 0x00 'D'}.  Like the header of {@link PayloadCodec} this relies
+     * on text payloads never starting with a {@code NUL}.
+     */
+    public static final DrainMarker HEADER = new DrainMarker() {
+        @Override
+        public byte[] mark(byte[] data) {
+            if (isDraining(data)) {
+                return data;
+            }
+            byte[] marked = new byte[data.length + 2];
+            marked[0] = MAGIC_0;
+            marked[1] = MAGIC_1;
+            System.arraycopy(data, 0, marked, 2, data.length);
+            return marked;
+        }
+
+        @Override
+        public boolean isDraining(byte[] data) {
+            return data != null && data.length >= 2 && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+        }
+
+        @Override
+        public String toString() {
+            return "DrainMarker.HEADER";
+        }
+    };
+
+    /**
+     * Returns the data of a draining node, given its current data.
+     */
+    public abstract byte[] mark(byte[] data);
+
+    /**
+     * Returns true if the data is that of a draining node.  Called for every node event when discovery is configured
+     * with the marker, so it must be cheap, and it must accept null data.
+     */
+    public abstract boolean isDraining(byte[] data);
+}
@@ -0,0 +1,460 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Keeps many ephemeral nodes present in ZooKeeper for a single {@code CuratorFramework}, recovering them at the level
+ * of the session rather than node by node.
+ * <p/>
+ * Each {@link PersistentEphemeralNode} keeps an exists watch on its node and re-checks it on every reconnect, so a
+ * process with thousands of nodes has thousands of server-side watches and makes thousands of requests each time it
+ * reconnects.  The manager keeps no watches.  Instead, when the connection is re-established it lists the children of
+ * each parent the nodes are registered under (one {@code getChildren} per parent) and recreates the nodes that are
+ * missing in a single multi-op transaction, creating them one by one if the transaction conflicts.  Nodes that are
+ * registered at about the same time are created together in the same way.
+ * <p/>
+ * Because there are no watches, a node that is deleted by another client while the session stays connected is only
+ * recreated at the next verification: after a reconnect, on {@link #verify()}, or periodically with
+ * {@link Builder#withVerifyInterval}.
+ * <p/>
+ * Nodes are named like the nodes of a {@code PersistentEphemeralNode}, with a unique protected prefix.  Only
+ * {@link CreateMode#EPHEMERAL} nodes are supported, and a registration only has a path and data: there is no
+ * equivalent of {@code PersistentEphemeralNode}'s data updates, draining or state, which rely on its watch.
+ */
+public class EphemeralNodeManager {
+    private static final Logger LOG = LoggerFactory.getLogger(EphemeralNodeManager.class);
+
+    private static final long WAIT_DURATION_IN_MILLIS = 100;
+
+    /** Retry failed operations after 100ms at first, backing off to at most 10s while they keep failing. */
+    private static final RetrySchedule DEFAULT_RETRY_SCHEDULE =
+            new DecorrelatedJitterRetrySchedule(WAIT_DURATION_IN_MILLIS, 10000, TimeUnit.MILLISECONDS);
+
+    private final CuratorFramework _curator;
+    private final ParentPathCache _parentPaths;
+    private final BatchWriter _writer;
+    private final BatchWriter.Retries _retries;
+    private final EphemeralNodeScheduler _ownedScheduler;  // null when using a shared scheduler
+    private final EphemeralNodeScheduler.SerialExecutor _executor;
+    private final ConnectionStateListener _connectionListener = new ConnectionListener();
+    private final AtomicBoolean _closed = new AtomicBoolean();
+
+    // Only accessed by tasks on the executor, which run one at a time.
+    private final Map<String, Registration> _registrations = Maps.newLinkedHashMap();
+    private boolean _createScheduled;
+    private boolean _verifyScheduled;
+    private boolean _closing;
+
+    private EphemeralNodeManager(Builder builder) {
+        _curator = builder._curator;
+        _parentPaths = ParentPathCache.forCurator(_curator);
+        _writer = new BatchWriter(_curator);
+        _retries = new BatchWriter.Retries(builder._retrySchedule);
+        // Without a shared scheduler the manager gets a thread of its own.  Either way its tasks run serially.
+        _ownedScheduler = (builder._scheduler == null) ? new EphemeralNodeScheduler(1) : null;
+        _executor = (builder._scheduler != null)
+                ? builder._scheduler.newSerialExecutor()
+                : _ownedScheduler.newSerialExecutor();
+
+        _curator.getConnectionStateListenable().addListener(_connectionListener);
+        if (builder._verifyIntervalMillis > 0) {
+            scheduleVerify(builder._verifyIntervalMillis);
+        }
+    }
+
+    /**
+     * Returns a builder for a manager of the ephemeral nodes registered using the given curator.
+     */
+    public static Builder builder(CuratorFramework curator) {
+        return new Builder(curator);
+    }
+
+    /**
+     * Register an ephemeral node.  This returns immediately, the node is created in the background.
+     *
+     * @param basePath The path of the node, before the protected prefix is added to its name.
+     * @param data     The node's data.
+     * @return The registration, used to find out the node's path and to remove it.
+     */
+    public Registration register(String basePath, byte[] data) {
+        checkNotNull(basePath);
+        checkNotNull(data);
+        checkState(!_closed.get(), "Manager is closed");
+
+        final Registration registration = new Registration(PersistentEphemeralNodeGroup.protect(basePath), data);
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (_closing) {
+                    registration._created.setException(new IllegalStateException("Manager is closed"));
+                    return;
+                }
+                _registrations.put(registration._path, registration);
+                // Give other registrations made at the same time the chance to join the same transaction.
+                waitThenCreateMissingNodes(WAIT_DURATION_IN_MILLIS);
+            }
+        });
+        return registration;
+    }
+
+    /**
+     * Check that every registered node exists, with one {@code getChildren} per parent, and recreate the ones that
+     * don't.  This returns immediately, the check is done in the background.
+     */
+    public void verify() {
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                verifyNodes();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of times an operation against ZooKeeper has been retried because it failed.
+     */
+    public long getRetryCount() {
+        return _retries.getCount();
+    }
+
+    /**
+     * Returns the most recent error from an operation against ZooKeeper, or null if there hasn't been one.
+     */
+    public Exception getLastError() {
+        return _retries.getLastError();
+    }
+
+    /**
+     * Delete every registered node and stop maintaining them.
+     */
+    public void close(long duration, TimeUnit unit) {
+        if (!_closed.compareAndSet(false, true)) {
+            // Already closed
+            return;
+        }
+
+        _curator.getConnectionStateListenable().removeListener(_connectionListener);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                _closing = true;
+                List<Registration> registrations = Lists.newArrayList(_registrations.values());
+                _registrations.clear();
+                for (Registration registration : registrations) {
+                    registration._created.setException(
+                            new IllegalStateException("Closed before the node was created."));
+                }
+                deleteNodes(registrations, latch);
+            }
+        });
+        await(latch, duration, unit);
+
+        _executor.shutdown();
+        if (_ownedScheduler != null) {
+            _ownedScheduler.close();
+            try {
+                _ownedScheduler.awaitTermination(duration, unit);
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private static void await(CountDownLatch latch, long duration, TimeUnit unit) {
+        try {
+            latch.await(duration, unit);
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * List the children of every parent and mark which nodes exist, then create the missing ones.
+     */
+    private void verifyNodes() {
+        if (_closing || _registrations.isEmpty()) {
+            return;
+        }
+
+        Multimap<String, Registration> byParent = LinkedHashMultimap.create();
+        for (Registration registration : _registrations.values()) {
+            byParent.put(ZKPaths.getPathAndNode(registration._path).getPath(), registration);
+        }
+
+        for (Map.Entry<String, Collection<Registration>> entry : byParent.asMap().entrySet()) {
+            Set<String> children;
+            try {
+                children = ImmutableSet.copyOf(_curator.getChildren().forPath(entry.getKey()));
+            } catch (KeeperException.NoNodeException e) {
+                children = ImmutableSet.of();
+                _parentPaths.invalidate(_curator, entry.getKey());
+            } catch (Exception e) {
+                waitThenVerifyNodes(_retries.delay(e));
+                return;
+            }
+
+            for (Registration registration : entry.getValue()) {
+                registration._exists = children.contains(ZKPaths.getNodeFromPath(registration._path));
+            }
+        }
+
+        createMissingNodes();
+    }
+
+    /**
+     * Create every node that isn't known to exist, in one transaction if possible.
+     */
+    private void createMissingNodes() {
+        if (_closing) {
+            return;
+        }
+
+        Map<String, byte[]> missing = Maps.newLinkedHashMap();
+        for (Registration registration : _registrations.values()) {
+            if (!registration._exists) {
+                missing.put(registration._path, registration._data);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        try {
+            _writer.create(missing, CreateMode.EPHEMERAL, new BatchWriter.CreateCallback() {
+                @Override
+                public void onCreated(String path) {
+                    Registration registration = _registrations.get(path);
+                    registration._exists = true;
+                    // Only the first creation completes the future, it's a no-op after that.
+                    registration._created.set(path);
+                }
+            });
+        } catch (Exception e) {
+            // The rest of the missing nodes are created in the next attempt.
+            waitThenCreateMissingNodes(_retries.delay(e));
+            return;
+        }
+        _retries.reset();
+    }
+
+    /**
+     * Schedule a run of {@link #createMissingNodes}, unless one is already scheduled.  Only the scheduled run clears the
+     * flag, so a direct run (ex. after a verification) doesn't lead to a second run being scheduled on top of it.
+     */
+    private void waitThenCreateMissingNodes(long delayMillis) {
+        if (_createScheduled) {
+            return;
+        }
+        _createScheduled = true;
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                _createScheduled = false;
+                createMissingNodes();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void waitThenVerifyNodes(long delayMillis) {
+        if (_verifyScheduled) {
+            return;
+        }
+        _verifyScheduled = true;
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                _verifyScheduled = false;
+                verifyNodes();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleVerify(final long intervalMillis) {
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                verifyNodes();
+                scheduleVerify(intervalMillis);
+            }
+        }, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void unregister(final Registration registration, CountDownLatch latch) {
+        if (_registrations.remove(registration._path) == null) {
+            latch.countDown();
+            return;
+        }
+        registration._created.setException(new IllegalStateException("Closed before the node was created."));
+        deleteNodes(ImmutableList.of(registration), latch);
+    }
+
+    private void deleteNodes(final List<Registration> registrations, final CountDownLatch latch) {
+        if (registrations.isEmpty()) {
+            latch.countDown();
+            return;
+        }
+
+        List<String> paths = Lists.newArrayList();
+        for (Registration registration : registrations) {
+            paths.add(registration._path);
+        }
+        try {
+            _writer.delete(paths);
+        } catch (Exception e) {
+            LOG.debug("Unable to delete nodes, will retry.", e);
+            _executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    deleteNodes(registrations, latch);
+                }
+            }, _retries.delay(e), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        _retries.reset();
+        latch.countDown();
+    }
+
+    /**
+     * Verifies the nodes whenever the connection is re-established, which is when the session may have expired and
+     * taken the nodes with it.
+     */
+    private class ConnectionListener implements ConnectionStateListener {
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (newState == ConnectionState.RECONNECTED) {
+                verify();
+            }
+        }
+    }
+
+    /**
+     * An ephemeral node registered with the manager.
+     */
+    public final class Registration {
+        private final String _path;
+        private final byte[] _data;
+        private final SettableFuture<String> _created = SettableFuture.create();
+        private boolean _exists;  // only accessed by tasks on the executor
+
+        private Registration(String path, byte[] data) {
+            _path = path;
+            _data = data;
+        }
+
+        /**
+         * Returns the actual path of the node, including its protected prefix.
+         */
+        public String getPath() {
+            return _path;
+        }
+
+        /**
+         * Returns a future of the node's path that completes when the node is first created, or fails if the node is
+         * removed first.
+         */
+        public ListenableFuture<String> getCreationFuture() {
+            return _created;
+        }
+
+        /**
+         * Delete the node and stop maintaining it.
+         */
+        public void close(long duration, TimeUnit unit) {
+            if (_closed.get()) {
+                // The manager already deleted the node when it was closed.
+                return;
+            }
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    unregister(Registration.this, latch);
+                }
+            });
+            await(latch, duration, unit);
+        }
+    }
+
+    /**
+     * Builder for {@code EphemeralNodeManager} instances.
+     */
+    public static final class Builder {
+        private final CuratorFramework _curator;
+        private RetrySchedule _retrySchedule = DEFAULT_RETRY_SCHEDULE;
+        private EphemeralNodeScheduler _scheduler;
+        private long _verifyIntervalMillis;
+
+        private Builder(CuratorFramework curator) {
+            checkNotNull(curator);
+            checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+
+            _curator = curator;
+        }
+
+        /**
+         * Set how long to wait before retrying operations against ZooKeeper that failed.  See
+         * {@link PersistentEphemeralNode.Builder#withRetrySchedule(RetrySchedule)}.
+         */
+        public Builder withRetrySchedule(RetrySchedule retrySchedule) {
+            _retrySchedule = checkNotNull(retrySchedule);
+            return this;
+        }
+
+        /**
+         * Maintain the nodes using the threads of a scheduler that is shared with other managers and nodes, instead of
+         * a thread of its own.  See {@link PersistentEphemeralNode.Builder#withScheduler(EphemeralNodeScheduler)}.  The
+         * scheduler must not be closed before the manager is.
+         */
+        public Builder withScheduler(EphemeralNodeScheduler scheduler) {
+            _scheduler = checkNotNull(scheduler);
+            return this;
+        }
+
+        /**
+         * Also verify the nodes periodically, to recreate nodes that are deleted by other clients while the session
+         * stays connected.  By default the nodes are only verified when the connection is re-established.
+         */
+        public Builder withVerifyInterval(long duration, TimeUnit unit) {
+            checkArgument(duration > 0, "duration must be positive");
+            _verifyIntervalMillis = Math.max(1, unit.toMillis(duration));
+            return this;
+        }
+
+        public EphemeralNodeManager build() {
+            return new EphemeralNodeManager(this);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A pool of threads shared by many {@link PersistentEphemeralNode} instances, for processes that register more nodes
+ * than they want threads (ex. one node per hosted shard).  Without one every node has a thread of its own.
+ * <p/>
+ * Each node's work still runs one task at a time and in the order it was submitted, which is what the node relies
+ * on to avoid any locking, but the tasks of different nodes run concurrently on up to {@code threads} threads.
+ * <p/>
+ * The scheduler must outlive the nodes that use it, so close every node before closing the scheduler.
+ */
+public class EphemeralNodeScheduler implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(EphemeralNodeScheduler.class);
+
+    /** How many tasks a node runs before giving its thread to the next node with work to do. */
+    private static final int MAX_TASKS_PER_TURN = 16;
+
+    private static final AtomicInteger SCHEDULER_NUMBER = new AtomicInteger();
+
+    private final ScheduledThreadPoolExecutor _executor;
+
+    /**
+     * @param threads The number of threads to run the nodes' work on.
+     */
+    public EphemeralNodeScheduler(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(getClass().getSimpleName() + "-" + SCHEDULER_NUMBER.incrementAndGet() + "-%d")
+                .setDaemon(true)
+                .build();
+        _executor = new ScheduledThreadPoolExecutor(threads, threadFactory);
+        _executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Returns an executor whose tasks run one at a time, in order, on this scheduler's threads.
+     */
+    SerialExecutor newSerialExecutor() {
+        return new SerialExecutor();
+    }
+
+    /**
+     * Stop the scheduler's threads.  Nodes that still use the scheduler stop maintaining their node.
+     */
+    @Override
+    public void close() {
+        _executor.shutdown();
+    }
+
+    /**
+     * Wait for the scheduler's threads to finish after it has been closed.
+     *
+     * @return True if the threads finished, false if the timeout elapsed first.
+     */
+    boolean awaitTermination(long duration, TimeUnit unit) throws InterruptedException {
+        return _executor.awaitTermination(duration, unit);
+    }
+
+    /**
+     * The work of a single node.  Tasks are queued and a node is only ever scheduled on one of the shared threads at a
+     * time, so its tasks never run concurrently.  Because a single thread drains the queue, each task sees the effects
+     * of the tasks before it.
+     */
+    final class SerialExecutor {
+        private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean _scheduled = new AtomicBoolean();
+        private volatile boolean _shutdown;
+
+        private final Runnable _drain = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < MAX_TASKS_PER_TURN && !_shutdown; i++) {
+                        Runnable task = _tasks.poll();
+                        if (task == null) {
+                            break;
+                        }
+                        runTask(task);
+                    }
+                } finally {
+                    _scheduled.set(false);
+                    // A task may have been queued after the queue looked empty but before we were unscheduled.
+                    if (!_tasks.isEmpty() && !_shutdown) {
+                        scheduleDrain();
+                    }
+                }
+            }
+        };
+
+        private SerialExecutor() {
+        }
+
+        /**
+         * Run a task after the tasks that were submitted before it.
+         */
+        void submit(Runnable task) {
+            checkNotNull(task);
+            if (_shutdown) {
+                return;
+            }
+            _tasks.add(task);
+            scheduleDrain();
+        }
+
+        /**
+         * Submit a task after a delay.
+         */
+        void schedule(final Runnable task, long delay, TimeUnit unit) {
+            checkNotNull(task);
+            if (_shutdown) {
+                return;
+            }
+            _executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(task);
+                }
+            }, delay, unit);
+        }
+
+        /**
+         * Discard the queued tasks and ignore any further tasks, including ones that were already scheduled.  The
+         * task that is running, if any, is allowed to finish.
+         */
+        void shutdown() {
+            _shutdown = true;
+            _tasks.clear();
+        }
+
+        private void scheduleDrain() {
+            if (_scheduled.compareAndSet(false, true)) {
+                _executor.execute(_drain);
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // Don't let one task stop the rest of the node's tasks (or another node's) from running.
+                LOG.warn("Unexpected exception running a PersistentEphemeralNode task.", t);
+            }
+        }
+    }
+}
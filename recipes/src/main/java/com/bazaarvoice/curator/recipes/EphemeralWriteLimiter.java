@@ -0,0 +1,215 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A process-wide limit on the rate at which {@link PersistentEphemeralNode}s create and delete their nodes.
+ * <p/>
+ * When a session expires every node in the process tries to recreate its node at once, and across a fleet of
+ * processes that is a burst of writes for the quorum leader just as the ensemble is recovering.  Nodes that share a
+ * limiter (see {@link PersistentEphemeralNode.Builder#withWriteLimiter}) queue their writes instead, and the writes are
+ * let through at a steady rate.  After a quiet period a burst of writes (by default a second's worth) may go at once;
+ * a burst of 1 paces every write.  Queued writes of a higher {@link Priority} go first, so that a service's primary
+ * registration is restored before the rest.
+ * <p/>
+ * Reads, such as re-establishing a node's watch, aren't limited.
+ * <p/>
+ * The limiter must outlive the nodes that use it, so close every node before closing the limiter.
+ */
+public class EphemeralWriteLimiter implements Closeable {
+    private static final AtomicInteger LIMITER_NUMBER = new AtomicInteger();
+
+    /**
+     * The order in which queued writes are let through.  Writes of the same priority go in the order they were queued.
+     */
+    public enum Priority {
+        /** For the registrations that matter most, ex. the one that routes traffic to the service. */
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final long _intervalNanos;
+    private final int _maxStoredPermits;
+    private final PriorityBlockingQueue<Write> _queue = new PriorityBlockingQueue<Write>();
+    private final AtomicLong _sequence = new AtomicLong();
+    private final Thread _dispatcher;
+    private volatile boolean _closed;
+
+    // Only written by the dispatcher thread.
+    private volatile Write _waiting;  // the write that is waiting for a permit, null if none
+    private volatile long _backlogStartNanos = -1;  // -1 when there is no backlog
+    private volatile long _lastBacklogNanos;
+    private long _nextPermitNanos = System.nanoTime();  // when the next permit is free, if none are stored
+    private double _storedPermits;  // permits that went unused while idle
+
+    /**
+     * Creates a limiter that lets a burst of up to a second's worth of writes through at once after a quiet period.
+     *
+     * @param writesPerSecond The number of creates and deletes let through per second.
+     */
+    public EphemeralWriteLimiter(double writesPerSecond) {
+        this(writesPerSecond, (int) Math.max(1, Math.round(writesPerSecond)));
+    }
+
+    /**
+     * @param writesPerSecond The number of creates and deletes let through per second.
+     * @param burst           The number of writes that may be let through at once after a quiet period.  With a burst
+     *                        of 1 every write waits its turn, so a backlog of {@code n} writes takes {@code n - 1}
+     *                        intervals to clear however long the limiter was idle.
+     */
+    public EphemeralWriteLimiter(double writesPerSecond, int burst) {
+        checkArgument(writesPerSecond > 0, "writesPerSecond must be positive");
+        checkArgument(burst > 0, "burst must be positive");
+
+        _intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / writesPerSecond));
+        _maxStoredPermits = burst - 1;
+        _dispatcher = new ThreadFactoryBuilder()
+                .setNameFormat(getClass().getSimpleName() + "-" + LIMITER_NUMBER.incrementAndGet())
+                .setDaemon(true)
+                .build()
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+        _dispatcher.start();
+    }
+
+    /**
+     * Returns the number of writes waiting to be let through.
+     */
+    public int getQueueDepth() {
+        return _queue.size() + ((_waiting != null) ? 1 : 0);
+    }
+
+    /**
+     * Returns how long it took to get through the most recent backlog of writes, from when its first write was
+     * queued until its last write was let through, ex. the time to recreate every node after a session expired.
+     * Returns zero if no write has been let through yet.
+     */
+    public long getLastRecoveryTime(TimeUnit unit) {
+        return unit.convert(_lastBacklogNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop limiting.  Writes that are still queued, and any that are queued later, run without waiting.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        _dispatcher.interrupt();
+    }
+
+    /**
+     * Queue a write to run on the given executor once the rate allows it.
+     */
+    void submit(Priority priority, EphemeralNodeScheduler.SerialExecutor executor, Runnable write) {
+        checkNotNull(priority);
+        checkNotNull(executor);
+        checkNotNull(write);
+
+        if (_closed) {
+            executor.submit(write);
+            return;
+        }
+        _queue.add(new Write(priority, _sequence.getAndIncrement(), executor, write));
+        if (_closed) {
+            // Closed concurrently, make sure the write doesn't get stranded in the queue.
+            drain();
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (!_closed) {
+                // Wait for a write before taking a permit, so that an idle limiter doesn't hold on to one.
+                _waiting = _queue.take();
+                acquirePermit();
+                // Let the highest priority write queued by the time the rate allows one go first.
+                _queue.add(_waiting);
+                Write write = _queue.poll();
+                _waiting = null;
+
+                if (_backlogStartNanos < 0) {
+                    _backlogStartNanos = write._queuedNanos;
+                }
+                if (_queue.isEmpty()) {
+                    _lastBacklogNanos = System.nanoTime() - _backlogStartNanos;
+                    _backlogStartNanos = -1;
+                }
+                write._executor.submit(write._write);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+            if (_waiting != null) {
+                _queue.add(_waiting);
+                _waiting = null;
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Wait until the rate allows another write.  Permits that go unused while the limiter is idle are stored, up to
+     * the burst, and used before waiting.
+     */
+    private void acquirePermit() throws InterruptedException {
+        long now = System.nanoTime();
+        if (now > _nextPermitNanos) {
+            _storedPermits = Math.min(_maxStoredPermits,
+                    _storedPermits + (double) (now - _nextPermitNanos) / _intervalNanos);
+            _nextPermitNanos = now;
+        }
+
+        long waitNanos = _nextPermitNanos - now;
+        if (_storedPermits >= 1) {
+            _storedPermits -= 1;
+        } else {
+            _nextPermitNanos += _intervalNanos;
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    private void drain() {
+        Write write;
+        while ((write = _queue.poll()) != null) {
+            write._executor.submit(write._write);
+        }
+    }
+
+    private static class Write implements Comparable<Write> {
+        private final Priority _priority;
+        private final long _sequence;
+        private final EphemeralNodeScheduler.SerialExecutor _executor;
+        private final Runnable _write;
+        private final long _queuedNanos = System.nanoTime();
+
+        private Write(Priority priority, long sequence, EphemeralNodeScheduler.SerialExecutor executor,
+                      Runnable write) {
+            _priority = priority;
+            _sequence = sequence;
+            _executor = executor;
+            _write = write;
+        }
+
+        @Override
+        public int compareTo(Write other) {
+            int result = _priority.compareTo(other._priority);
+            if (result == 0) {
+                result = (_sequence < other._sequence) ? -1 : (_sequence > other._sequence) ? 1 : 0;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the flap penalty of each path for a {@link NodeDiscovery} according to a {@link FlapDampingPolicy}.
+ * <p/>
+ * Not thread safe, {@code NodeDiscovery} only uses it while holding its own lock.
+ */
+class FlapDamper {
+    private final FlapDampingPolicy _policy;
+    private final Ticker _ticker;
+    private final Map<String, PathState> _states = Maps.newHashMap();
+
+    FlapDamper(FlapDampingPolicy policy, Ticker ticker) {
+        _policy = policy;
+        _ticker = ticker;
+    }
+
+    FlapDampingPolicy getPolicy() {
+        return _policy;
+    }
+
+    /**
+     * Record that the node at the given path disappeared.
+     *
+     * @return True if this flap caused the path to become suppressed.
+     */
+    boolean recordFlap(String path) {
+        long now = _ticker.read();
+        PathState state = _states.get(path);
+        if (state == null) {
+            state = new PathState();
+            _states.put(path, state);
+        }
+
+        state.penalty = Math.min(currentPenalty(state, now) + _policy.getPenaltyPerFlap(), _policy.getMaxPenalty());
+        state.updatedNanos = now;
+
+        if (!state.suppressed && state.penalty > _policy.getSuppressThreshold()) {
+            state.suppressed = true;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isSuppressed(String path) {
+        PathState state = _states.get(path);
+        return state != null && state.suppressed;
+    }
+
+    /**
+     * @return How long until the path's penalty decays to the reuse threshold, or zero if it is already there.
+     */
+    long getReuseDelayNanos(String path) {
+        PathState state = _states.get(path);
+        if (state == null) {
+            return 0;
+        }
+        return _policy.getReuseDelayNanos(currentPenalty(state, _ticker.read()));
+    }
+
+    /**
+     * Release the path if its penalty has decayed to the reuse threshold.
+     *
+     * @return True if the path was suppressed and has now been released.
+     */
+    boolean tryRelease(String path) {
+        PathState state = _states.get(path);
+        if (state == null || !state.suppressed || getReuseDelayNanos(path) > 0) {
+            return false;
+        }
+        state.suppressed = false;
+        return true;
+    }
+
+    /** Forget paths that aren't suppressed and whose penalty has decayed to practically nothing. */
+    void forgetStablePaths() {
+        long now = _ticker.read();
+        double negligible = _policy.getPenaltyPerFlap() / 100;
+        for (Iterator<PathState> it = _states.values().iterator(); it.hasNext(); ) {
+            PathState state = it.next();
+            if (!state.suppressed && currentPenalty(state, now) < negligible) {
+                it.remove();
+            }
+        }
+    }
+
+    Set<String> getSuppressedPaths() {
+        ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (Map.Entry<String, PathState> entry : _states.entrySet()) {
+            if (entry.getValue().suppressed) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths.build();
+    }
+
+    /** @return The current penalty of the path, zero if it has never flapped. */
+    double getPenalty(String path) {
+        PathState state = _states.get(path);
+        return (state != null) ? currentPenalty(state, _ticker.read()) : 0;
+    }
+
+    void clear() {
+        _states.clear();
+    }
+
+    private double currentPenalty(PathState state, long now) {
+        return _policy.decay(state.penalty, now - state.updatedNanos);
+    }
+
+    private static final class PathState {
+        private double penalty;
+        private long updatedNanos;
+        private boolean suppressed;
+    }
+}
@@ -0,0 +1,109 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Configures flap damping for a {@link NodeDiscovery}, modeled on BGP route flap damping (RFC 2439).
+ * <p/>
+ * Every time a node disappears its path accrues a penalty that decays exponentially over time.  When the penalty of a
+ * path exceeds the suppress threshold the path is suppressed: it is hidden from {@link NodeDiscovery#getNodes()} and
+ * no events are fired for it.  Once the penalty has decayed below the reuse threshold the path is released and, if
+ * the node exists at that point, it is added back.  A path is never suppressed for longer than the maximum suppress
+ * time after its last flap.
+ * <p/>
+ * Damping is keyed by path, so it is effective for nodes that come back under the same path, such as those created by
+ * {@link PersistentEphemeralNode} with {@link org.apache.zookeeper.CreateMode#EPHEMERAL}.
+ */
+public final class FlapDampingPolicy {
+    private final double _penaltyPerFlap;
+    private final double _suppressThreshold;
+    private final double _reuseThreshold;
+    private final long _halfLifeNanos;
+    private final long _maxSuppressNanos;
+
+    /**
+     * @return A policy that suppresses a path on its third flap in quick succession and releases it once it has been
+     * stable for about a minute.
+     */
+    public static FlapDampingPolicy defaults() {
+        return new FlapDampingPolicy(1000, 2500, 750, 30, TimeUnit.SECONDS, 5, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param penaltyPerFlap    The penalty added each time a node disappears.
+     * @param suppressThreshold The penalty above which a path is suppressed.
+     * @param reuseThreshold    The penalty below which a suppressed path is released.
+     * @param halfLife          The time it takes a penalty to decay by half.
+     * @param halfLifeUnit      The unit of {@code halfLife}.
+     * @param maxSuppress       The longest time a path can stay suppressed after its last flap.
+     * @param maxSuppressUnit   The unit of {@code maxSuppress}.
+     */
+    public FlapDampingPolicy(double penaltyPerFlap, double suppressThreshold, double reuseThreshold,
+                             long halfLife, TimeUnit halfLifeUnit, long maxSuppress, TimeUnit maxSuppressUnit) {
+        checkArgument(penaltyPerFlap > 0, "penaltyPerFlap must be positive");
+        checkArgument(reuseThreshold > 0, "reuseThreshold must be positive");
+        checkArgument(suppressThreshold > reuseThreshold, "suppressThreshold must be greater than reuseThreshold");
+        checkArgument(halfLife > 0, "halfLife must be positive");
+        checkArgument(maxSuppress > 0, "maxSuppress must be positive");
+
+        _penaltyPerFlap = penaltyPerFlap;
+        _suppressThreshold = suppressThreshold;
+        _reuseThreshold = reuseThreshold;
+        _halfLifeNanos = checkNotNull(halfLifeUnit).toNanos(halfLife);
+        _maxSuppressNanos = checkNotNull(maxSuppressUnit).toNanos(maxSuppress);
+    }
+
+    public double getPenaltyPerFlap() {
+        return _penaltyPerFlap;
+    }
+
+    public double getSuppressThreshold() {
+        return _suppressThreshold;
+    }
+
+    public double getReuseThreshold() {
+        return _reuseThreshold;
+    }
+
+    public long getHalfLife(TimeUnit unit) {
+        return unit.convert(_halfLifeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxSuppress(TimeUnit unit) {
+        return unit.convert(_maxSuppressNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** @return The penalty after it has decayed for the given amount of time. */
+    double decay(double penalty, long elapsedNanos) {
+        return penalty * Math.pow(0.5, (double) elapsedNanos / _halfLifeNanos);
+    }
+
+    /** @return The highest penalty a path can have, the one that decays to the reuse threshold in max suppress time. */
+    double getMaxPenalty() {
+        return _reuseThreshold * Math.pow(2, (double) _maxSuppressNanos / _halfLifeNanos);
+    }
+
+    /** @return How long it takes the penalty to decay to the reuse threshold. */
+    long getReuseDelayNanos(double penalty) {
+        if (penalty <= _reuseThreshold) {
+            return 0;
+        }
+        return (long) Math.ceil(_halfLifeNanos * (Math.log(penalty / _reuseThreshold) / Math.log(2)));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("penaltyPerFlap", _penaltyPerFlap)
+                .add("suppressThreshold", _suppressThreshold)
+                .add("reuseThreshold", _reuseThreshold)
+                .add("halfLifeMillis", getHalfLife(TimeUnit.MILLISECONDS))
+                .add("maxSuppressMillis", getMaxSuppress(TimeUnit.MILLISECONDS))
+                .toString();
+    }
+}
@@ -0,0 +1,298 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Registers nodes that are kept alive by renewing a lease rather than by a ZooKeeper session, for huge fleets of
+ * short-lived workers where a session and a {@link PersistentEphemeralNode} (with its watch) per worker cost too much.
+ * <p/>
+ * Each registration is a persistent node whose modification time is its lease timestamp.  The registry renews every
+ * lease it holds by rewriting the nodes' data, batched into multi-op transactions, well within the lease TTL.  A
+ * worker that goes away without closing its lease leaves the node behind until its lease expires.  Expired nodes are
+ * hidden by {@link NodeDiscovery} instances built {@link NodeDiscovery.Builder#withLeaseTtl with the same TTL} and are
+ * deleted in bulk by a {@link LeaseSweeper}, which one process at a time runs under a
+ * {@link com.bazaarvoice.curator.recipes.leader.LeaderService}.
+ * <p/>
+ * Lease timestamps are set by the ZooKeeper servers and compared against the clock of the readers and the sweeper, so
+ * the TTL must be comfortably larger than the clock skew between them.  Nodes are named like the nodes of a
+ * {@code PersistentEphemeralNode}, with a unique protected prefix.
+ */
+public class LeaseRegistry implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseRegistry.class);
+
+    private static final long DEFAULT_TTL_IN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final AtomicInteger REGISTRY_NUMBER = new AtomicInteger();
+
+    private final CuratorFramework _curator;
+    private final ParentPathCache _parentPaths;
+    private final BatchWriter _writer;
+    private final long _ttlMillis;
+    private final ScheduledExecutorService _executor;
+    private final Set<Lease> _leases = Sets.newConcurrentHashSet();
+    private volatile boolean _closed;
+
+    private LeaseRegistry(Builder builder) {
+        _curator = builder._curator;
+        _parentPaths = ParentPathCache.forCurator(_curator);
+        _writer = new BatchWriter(_curator);
+        _ttlMillis = builder._ttlMillis;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat(getClass().getSimpleName() + "-" + REGISTRY_NUMBER.incrementAndGet())
+                .setDaemon(true)
+                .build());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        _executor = executor;
+
+        long renewIntervalMillis = (builder._renewIntervalMillis > 0) ? builder._renewIntervalMillis : _ttlMillis / 3;
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renewAll();
+            }
+        }, renewIntervalMillis, renewIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a builder for a registry of leases on nodes created using the given curator.
+     */
+    public static Builder builder(CuratorFramework curator) {
+        return new Builder(curator);
+    }
+
+    /**
+     * Returns true if a lease last renewed at the given time has expired.
+     *
+     * @param stat      The stat of the lease's node, whose modification time is the lease timestamp.
+     * @param ttlMillis The lease TTL.
+     * @param nowMillis The current time.
+     */
+    static boolean isExpired(Stat stat, long ttlMillis, long nowMillis) {
+        return nowMillis - stat.getMtime() > ttlMillis;
+    }
+
+    /**
+     * Returns the lease TTL in the given unit.
+     */
+    public long getTtl(TimeUnit unit) {
+        return unit.convert(_ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a node and hold a lease on it until the lease is closed.  The node's path gets a unique protected
+     * prefix, ex. {@code /workers/worker-1} becomes {@code /workers/_c_<uuid>-worker-1}.
+     *
+     * @param basePath The path of the node, before the protected prefix is added to its name.
+     * @param data     The node's data.
+     * @return The lease, used to find out the node's path and to release it.
+     */
+    public Lease register(String basePath, byte[] data) throws Exception {
+        checkNotNull(basePath);
+        checkNotNull(data);
+        checkState(!_closed, "Registry is closed");
+
+        Lease lease = new Lease(PersistentEphemeralNodeGroup.protect(basePath), data);
+        lease.create();
+        _leases.add(lease);
+        if (_closed) {
+            // Closed concurrently, after it released the leases it knew about.
+            lease.close();
+            throw new IllegalStateException("Registry is closed");
+        }
+        return lease;
+    }
+
+    /**
+     * Release every lease, deleting their nodes, and stop renewing.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        _executor.shutdown();
+        try {
+            // Let a renewal that is already running finish, so it doesn't race with deleting the nodes.
+            _executor.awaitTermination(_ttlMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Lease lease : ImmutableList.copyOf(_leases)) {
+            try {
+                lease.close();
+            } catch (Exception e) {
+                // The node is left to expire and be swept.
+                LOG.warn("Unable to delete lease node. ZooKeeperPath: {}", lease.getPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Renew every lease, in as few transactions as possible.
+     */
+    private void renewAll() {
+        renew(ImmutableList.copyOf(_leases));
+    }
+
+    /**
+     * Renew the given leases.  Leases that have been closed since the list was made aren't recreated.
+     */
+    @VisibleForTesting
+    void renew(List<Lease> toRenew) {
+        Map<String, Lease> leases = Maps.newLinkedHashMap();
+        Map<String, byte[]> data = Maps.newLinkedHashMap();
+        for (Lease lease : toRenew) {
+            leases.put(lease._path, lease);
+            data.put(lease._path, lease._data);
+        }
+
+        List<String> missing;
+        try {
+            missing = _writer.setData(data);
+        } catch (Exception e) {
+            // Try again in the next round, which is still well within the TTL.
+            LOG.warn("Unable to renew leases, will retry.", e);
+            return;
+        }
+
+        // Some of the nodes have been swept, ex. after we were partitioned for longer than the TTL.
+        for (String path : missing) {
+            try {
+                leases.get(path).recreate();
+            } catch (Exception e) {
+                LOG.warn("Unable to recreate lease node, will retry. ZooKeeperPath: {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * A lease on a node held by the registry.
+     */
+    public final class Lease implements Closeable {
+        private final String _path;
+        private final byte[] _data;
+
+        private Lease(String path, byte[] data) {
+            _path = path;
+            _data = data;
+        }
+
+        /**
+         * Returns the actual path of the node, including its protected prefix.
+         */
+        public String getPath() {
+            return _path;
+        }
+
+        /**
+         * Stop renewing the lease and delete its node.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (!_leases.remove(this)) {
+                return;
+            }
+            try {
+                _curator.delete().forPath(_path);
+            } catch (KeeperException.NoNodeException e) {
+                // Already swept, we don't care.
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void create() throws Exception {
+            String parent = ZKPaths.getPathAndNode(_path).getPath();
+            _parentPaths.ensure(_curator, parent);
+            try {
+                _curator.create().withMode(CreateMode.PERSISTENT).forPath(_path, _data);
+            } catch (KeeperException.NoNodeException e) {
+                // The parent was deleted since it was ensured.
+                _parentPaths.invalidate(_curator, parent);
+                _parentPaths.ensure(_curator, parent);
+                _curator.create().withMode(CreateMode.PERSISTENT).forPath(_path, _data);
+            }
+        }
+
+        /**
+         * Swept while we couldn't renew it, but the lease is still wanted, unless it has been closed since the renewal
+         * started.  Synchronized with {@link #close} so that a closed lease's node is never recreated.
+         */
+        private synchronized void recreate() throws Exception {
+            if (!_leases.contains(this)) {
+                return;
+            }
+            try {
+                create();
+            } catch (KeeperException.NodeExistsException e) {
+                // Created concurrently, the next round renews it.
+            }
+        }
+    }
+
+    /**
+     * Builder for {@code LeaseRegistry} instances.
+     */
+    public static final class Builder {
+        private final CuratorFramework _curator;
+        private long _ttlMillis = DEFAULT_TTL_IN_MILLIS;
+        private long _renewIntervalMillis;
+
+        private Builder(CuratorFramework curator) {
+            checkNotNull(curator);
+            checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+
+            _curator = curator;
+        }
+
+        /**
+         * Set how long a lease lasts without being renewed.  Defaults to 30 seconds.  Readers and the sweeper must use
+         * the same TTL.
+         */
+        public Builder withTtl(long duration, TimeUnit unit) {
+            checkArgument(duration > 0, "duration must be positive");
+            _ttlMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Set how often the leases are renewed.  Defaults to a third of the TTL, so a lease survives a couple of
+         * failed renewals.
+         */
+        public Builder withRenewInterval(long duration, TimeUnit unit) {
+            checkArgument(duration > 0, "duration must be positive");
+            _renewIntervalMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        public LeaseRegistry build() {
+            checkArgument(_renewIntervalMillis < _ttlMillis, "The renew interval must be shorter than the TTL");
+            return new LeaseRegistry(this);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.Service;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Deletes the nodes under a path whose {@link LeaseRegistry lease} has expired, in bulk.  Only one sweeper per path
+ * needs to run, so it is meant to be run under a {@link com.bazaarvoice.curator.recipes.leader.LeaderService}:
+ * <pre>
+ * new LeaderService(curator, "/leader/workers-sweeper", serverId, "workers-sweeper", 1, TimeUnit.MINUTES,
+ *         LeaseSweeper.factory(curator, "/workers", 30, TimeUnit.SECONDS)).start();
+ * </pre>
+ * Every child of the path is treated as a lease, so the path must only hold nodes registered by a
+ * {@code LeaseRegistry} with the same TTL.  A node that is renewed between being found expired and being deleted is
+ * left alone, the delete is conditional on the version that was found expired.
+ */
+public class LeaseSweeper extends AbstractScheduledService {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseSweeper.class);
+
+    private final CuratorFramework _curator;
+    private final BatchWriter _writer;
+    private final String _path;
+    private final long _ttlMillis;
+
+    /**
+     * @param curator A started connection to ZooKeeper.
+     * @param path    The parent path of the leases.
+     * @param ttl     The TTL of the leases, which is also how often they are swept.
+     * @param unit    The unit of the TTL.
+     */
+    public LeaseSweeper(CuratorFramework curator, String path, long ttl, TimeUnit unit) {
+        _curator = checkNotNull(curator, "curator");
+        _writer = new BatchWriter(curator);
+        _path = checkNotNull(path, "path");
+        _ttlMillis = checkNotNull(unit, "unit").toMillis(ttl);
+        checkArgument(_ttlMillis > 0, "ttl must be positive");
+    }
+
+    /**
+     * Returns a factory of sweepers, for a {@link com.bazaarvoice.curator.recipes.leader.LeaderService}.
+     */
+    public static Supplier<Service> factory(final CuratorFramework curator, final String path,
+                                            final long ttl, final TimeUnit unit) {
+        checkNotNull(curator, "curator");
+        checkNotNull(path, "path");
+        checkNotNull(unit, "unit");
+        return new Supplier<Service>() {
+            @Override
+            public Service get() {
+                return new LeaseSweeper(curator, path, ttl, unit);
+            }
+        };
+    }
+
+    @Override
+    protected void runOneIteration() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            // Try again in the next iteration rather than failing the service, which would cost the leadership.
+            LOG.warn("Unable to sweep expired leases, will retry. ZooKeeperPath: {}", _path, e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(0, _ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delete the nodes whose lease has expired.
+     *
+     * @return The number of nodes deleted.
+     */
+    public int sweep() throws Exception {
+        List<String> children;
+        try {
+            children = _curator.getChildren().forPath(_path);
+        } catch (KeeperException.NoNodeException e) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        // Only delete the nodes at the version found expired, so that a lease renewed in the meantime is left alone.
+        Map<String, Integer> expired = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Stat> entry : getStats(children).entrySet()) {
+            if (LeaseRegistry.isExpired(entry.getValue(), _ttlMillis, now)) {
+                expired.put(entry.getKey(), entry.getValue().getVersion());
+            }
+        }
+
+        int deleted = _writer.delete(expired);
+        if (deleted > 0) {
+            LOG.info("Swept expired leases. ZooKeeperPath: {}; Count: {}", _path, deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Read the stats of the children in parallel, rather than one round trip after another.  Children that have been
+     * deleted since they were listed are left out.
+     */
+    private Map<String, Stat> getStats(List<String> children) throws Exception {
+        final ConcurrentMap<String, Stat> stats = Maps.newConcurrentMap();
+        final CountDownLatch done = new CountDownLatch(children.size());
+        for (String child : children) {
+            final String path = ZKPaths.makePath(_path, child);
+            _curator.checkExists().inBackground(new BackgroundCallback() {
+                @Override
+                public void processResult(CuratorFramework client, CuratorEvent event) {
+                    if (event.getStat() != null) {
+                        stats.put(path, event.getStat());
+                    }
+                    done.countDown();
+                }
+            }).forPath(path);
+        }
+        if (!done.await(_ttlMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Timed out reading the stats of leases, sweeping the ones read. ZooKeeperPath: {}", _path);
+        }
+        return stats;
+    }
+}
@@ -4,6 +4,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -13,17 +18,23 @@ import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -44,12 +55,32 @@ public class NodeDiscovery<T> implements Closeable {
     /** How long in milliseconds to wait between attempts to start. */
     private static final long WAIT_DURATION_IN_MILLIS = 100;
 
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
     private final ConcurrentMap<String, Optional<T>> _nodes;
     private final Set<NodeListener<T>> _listeners;
+    private final List<NodeIndex<?, T>> _indexes = Lists.newCopyOnWriteArrayList();
+    private final Set<NodeEventPublisher<T>> _publishers = Sets.newConcurrentHashSet();  // those with subscribers
     private final CuratorFramework _curator;
-    private final PathChildrenCache _pathCache;
-    private final NodeDataParser<T> _nodeDataParser;
-    private final ScheduledExecutorService _executor;
+    private final List<PathChildrenCache> _pathCaches;
+    private final NodeDataParser<T> _nodeDataParser;  // null when parsing from a ByteBuffer
+    private final ByteBufferNodeDataParser<T> _bufferParser;  // null when parsing from a byte[]
+    private final List<PayloadCodec> _payloadCodecs;
+    private final NodeDiscoveryMetrics _metrics;  // null when not instrumented
+    private final ScheduledThreadPoolExecutor _executor;
+    private final FlapDamper _flapDamper;  // null when flap damping is disabled
+    private final Predicate<? super String> _childFilter;  // null when every child is materialized
+    private final DrainMarker _drainMarker;  // null when draining nodes aren't hidden
+    private final long _leaseTtlMillis;  // 0 when expired leases aren't hidden
+    /** Nodes that exist but are hidden because they are draining. */
+    private final Set<String> _drainingPaths = Sets.newConcurrentHashSet();
+    /** Nodes that exist but are hidden because their lease has expired. */
+    private final Set<String> _expiredPaths = Sets.newConcurrentHashSet();
+    /** Children that exist but are only tracked by path because they were rejected by the child filter. */
+    private final Set<String> _filteredPaths = Sets.newConcurrentHashSet();
+    /** Nodes that exist but are hidden because their path is suppressed by flap damping. */
+    private final Map<String, Optional<T>> _suppressedNodes = Maps.newHashMap();
+    private int _startedPathCaches;
     private boolean _closed;
 
     /**
@@ -60,31 +91,88 @@ public class NodeDiscovery<T> implements Closeable {
      * @param parser     The strategy to convert from ZooKeeper {@code byte[]} to {@code T}.
      */
     public NodeDiscovery(CuratorFramework curator, String nodePath, NodeDataParser<T> parser) {
-        checkNotNull(curator);
-        checkNotNull(nodePath);
-        checkNotNull(parser);
-        checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
-        checkArgument(!"".equals(nodePath));
+        this(new Builder<T>(curator, nodePath, parser));
+    }
 
+    private NodeDiscovery(Builder<T> builder) {
         ThreadFactory threadFactory = new ThreadFactoryBuilder()
-                .setNameFormat(getClass().getSimpleName() + "(" + nodePath + ")-%d")
+                .setNameFormat(getClass().getSimpleName() + "(" + builder._nodePath + ")-%d")
                 .setDaemon(true)
                 .build();
 
         _nodes = Maps.newConcurrentMap();
         _listeners = Sets.newSetFromMap(Maps.<NodeListener<T>, Boolean>newConcurrentMap());
-        _curator = curator;
-        _executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
-        _pathCache = new PathChildrenCache(curator, nodePath, true, false, _executor);
-        _nodeDataParser = parser;
+        _curator = builder._curator;
+        _executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        // Don't keep the thread around after close() just to run delayed tasks that will have nothing to do.
+        _executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        _nodeDataParser = builder._parser;
+        _bufferParser = builder._bufferParser;
+        _payloadCodecs = builder._payloadCodecs;
+        _metrics = builder._metrics;
+        _flapDamper = (builder._flapDampingPolicy != null)
+                ? new FlapDamper(builder._flapDampingPolicy, Ticker.systemTicker())
+                : null;
+        _childFilter = builder._childFilter;
+        _drainMarker = builder._drainMarker;
+        _leaseTtlMillis = builder._leaseTtlMillis;
         _closed = false;
+
+        // With a bucketed layout there is one path cache per bucket, all sharing the same executor so that events from
+        // every bucket are still processed (and fired to listeners) one at a time.  With a child filter the path caches
+        // only keep each child's stat and the data of the children that pass the filter is read separately.
+        boolean cacheData = (_childFilter == null);
+        List<String> watchedPaths = (builder._bucketLayout != null)
+                ? builder._bucketLayout.getBucketPaths(builder._nodePath)
+                : ImmutableList.of(builder._nodePath);
+        ImmutableList.Builder<PathChildrenCache> pathCaches = ImmutableList.builder();
+        for (String watchedPath : watchedPaths) {
+            pathCaches.add(new PathChildrenCache(_curator, watchedPath, cacheData, false, _executor));
+        }
+        _pathCaches = pathCaches.build();
+    }
+
+    /**
+     * Returns a builder for a {@code NodeDiscovery} with non-default options.
+     *
+     * @param curator    Curator framework reference.
+     * @param nodePath   The path in ZooKeeper to watch.
+     * @param parser     The strategy to convert from ZooKeeper {@code byte[]} to {@code T}.
+     */
+    public static <T> Builder<T> builder(CuratorFramework curator, String nodePath, NodeDataParser<T> parser) {
+        return new Builder<T>(curator, nodePath, parser);
+    }
+
+    /**
+     * Returns a builder for a {@code NodeDiscovery} that parses node data from a read-only {@code ByteBuffer} view
+     * instead of a {@code byte[]}.
+     *
+     * @param curator    Curator framework reference.
+     * @param nodePath   The path in ZooKeeper to watch.
+     * @param parser     The strategy to convert from ZooKeeper data and {@code Stat} to {@code T}.
+     */
+    public static <T> Builder<T> builder(CuratorFramework curator, String nodePath,
+                                         ByteBufferNodeDataParser<T> parser) {
+        return new Builder<T>(curator, nodePath, parser);
     }
 
     /**
      * Start the NodeDiscovery.
      */
     public void start() {
-        _pathCache.getListenable().addListener(new PathListener());
+        PathListener listener = new PathListener();
+        for (PathChildrenCache pathCache : _pathCaches) {
+            pathCache.getListenable().addListener(listener);
+        }
+        if (_flapDamper != null) {
+            scheduleForgetStablePaths();
+        }
+        if (_leaseTtlMillis > 0) {
+            scheduleHideExpiredLeases();
+        }
+        if (_metrics != null) {
+            _metrics.onStart(this);
+        }
         startThenLoadData();
     }
 
@@ -102,6 +190,59 @@ public class NodeDiscovery<T> implements Closeable {
         });
     }
 
+    /**
+     * Retrieve the paths that are currently suppressed by flap damping.  Nodes at these paths are not returned by
+     * {@link #getNodes()} and no events are fired for them until they are released.
+     *
+     * @return The suppressed paths, empty if flap damping is not enabled.
+     */
+    public synchronized Set<String> getSuppressedPaths() {
+        return (_flapDamper != null) ? _flapDamper.getSuppressedPaths() : Collections.<String>emptySet();
+    }
+
+    /**
+     * Retrieve the paths of the nodes that exist but were rejected by the child filter.  The data of these nodes is
+     * never read or parsed, so they are not returned by {@link #getNodes()} and no events are fired for them.
+     *
+     * @return The filtered paths, empty if no child filter is set.
+     */
+    public Set<String> getFilteredPaths() {
+        return Collections.unmodifiableSet(_filteredPaths);
+    }
+
+    /**
+     * Returns the paths of the nodes that exist but are hidden because they are draining, see
+     * {@link Builder#withDrainMarker(DrainMarker)}.
+     */
+    public Set<String> getDrainingPaths() {
+        return Collections.unmodifiableSet(_drainingPaths);
+    }
+
+    /**
+     * Returns the paths of the nodes that exist but are hidden because their lease has expired, see
+     * {@link Builder#withLeaseTtl(long, TimeUnit)}.
+     */
+    public Set<String> getExpiredPaths() {
+        return Collections.unmodifiableSet(_expiredPaths);
+    }
+
+    /**
+     * Retrieve the number of ZooKeeper events that are waiting to be processed.  A growing queue means that events
+     * are arriving faster than the node discovery (and its listeners) can process them.
+     *
+     * @return The number of tasks that are ready to run on the node discovery's event thread but haven't started yet.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Runnable task : _executor.getQueue()) {
+            // Don't count tasks that are scheduled for later, ex. retries and flap damping releases.
+            if (!(task instanceof Delayed) || ((Delayed) task).getDelay(TimeUnit.NANOSECONDS) <= 0) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
     /**
      * Returns true if the specified node is a member of the iterable returned by {@link #getNodes()}.
      *
@@ -121,6 +262,24 @@ public class NodeDiscovery<T> implements Closeable {
         _listeners.add(listener);
     }
 
+    /**
+     * Add a node listener, optionally notifying it of every node that is already known.  The existing nodes are
+     * delivered as {@code onNodeAdded} calls before any further events, so a listener that maintains its own view
+     * of the nodes sees no gap and no duplicates even when added to a {@code NodeDiscovery} that is already started.
+     *
+     * @param listener            The node listener to add.
+     * @param notifyExistingNodes Whether to call {@code onNodeAdded} on the listener for the nodes that already exist.
+     */
+    public synchronized void addListener(NodeListener<T> listener, boolean notifyExistingNodes) {
+        // Synchronized so no events are fired between replaying the existing nodes and adding the listener.
+        if (notifyExistingNodes) {
+            for (Map.Entry<String, Optional<T>> entry : _nodes.entrySet()) {
+                listener.onNodeAdded(entry.getKey(), entry.getValue().orNull());
+            }
+        }
+        _listeners.add(listener);
+    }
+
     /**
      * Remove a node listener.
      *
@@ -130,14 +289,146 @@ public class NodeDiscovery<T> implements Closeable {
         _listeners.remove(listener);
     }
 
+    /**
+     * Add a secondary index that maps a single attribute of each node (ex. its zone) to the nodes with that attribute.
+     * The index starts out populated with the existing nodes and is kept up to date as nodes are added, removed and
+     * updated.
+     *
+     * @param keyFunction Extracts the index key from a node.  Must be a pure function of the node.
+     * @return The index.
+     */
+    public <K> NodeIndex<K, T> addIndex(final Function<? super T, ? extends K> keyFunction) {
+        checkNotNull(keyFunction);
+        return addMultiIndex(new Function<T, Iterable<K>>() {
+            @Override
+            public Iterable<K> apply(T node) {
+                K key = keyFunction.apply(node);
+                return (key != null) ? ImmutableSet.of(key) : ImmutableSet.<K>of();
+            }
+        });
+    }
+
+    /**
+     * Add a secondary index that maps a multi-valued attribute of each node (ex. its capabilities) to the nodes with
+     * each value.  The index starts out populated with the existing nodes and is kept up to date as nodes are added,
+     * removed and updated.
+     *
+     * @param keysFunction Extracts the index keys from a node.  Must be a pure function of the node.
+     * @return The index.
+     */
+    public synchronized <K> NodeIndex<K, T> addMultiIndex(
+            Function<? super T, ? extends Iterable<? extends K>> keysFunction) {
+        NodeIndex<K, T> index = new NodeIndex<K, T>(checkNotNull(keysFunction));
+        // Synchronized so the index is populated and added without missing any concurrent node changes.
+        for (Map.Entry<String, Optional<T>> entry : _nodes.entrySet()) {
+            index.add(entry.getKey(), entry.getValue().orNull());
+        }
+        _indexes.add(index);
+        return index;
+    }
+
+    /**
+     * Remove a secondary index.  The index will no longer be updated.
+     *
+     * @param index The index to remove.
+     */
+    public void removeIndex(NodeIndex<?, T> index) {
+        _indexes.remove(index);
+    }
+
+    /**
+     * Create a Reactive Streams publisher of the changes to the nodes, for consumers that need flow control.  Each
+     * subscriber receives a snapshot of the current nodes followed by every later change, delivered on the given
+     * executor as the subscriber requests them.  See {@link NodeEventPublisher}.
+     *
+     * @param executor The executor that events are delivered on.
+     * @return The publisher.
+     */
+    public NodeEventPublisher<T> newPublisher(Executor executor) {
+        return newPublisher(executor, NodeEventPublisher.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a Reactive Streams publisher of the changes to the nodes, for consumers that need flow control.  Each
+     * subscriber receives a snapshot of the current nodes followed by every later change, delivered on the given
+     * executor as the subscriber requests them.  See {@link NodeEventPublisher}.
+     *
+     * @param executor   The executor that events are delivered on.
+     * @param bufferSize The number of undelivered events to buffer for a subscriber before conflating them into a
+     *                   snapshot.
+     * @return The publisher.
+     */
+    public synchronized NodeEventPublisher<T> newPublisher(Executor executor, int bufferSize) {
+        checkNotNull(executor);
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+
+        NodeEventPublisher<T> publisher = new NodeEventPublisher<T>(this, executor, bufferSize);
+        if (_closed) {
+            publisher.complete();
+        }
+        return publisher;
+    }
+
+    /**
+     * Keep track of a publisher that has subscribers, so that they are completed when this is closed.
+     *
+     * @return False if this is already closed.
+     */
+    synchronized boolean addPublisher(NodeEventPublisher<T> publisher) {
+        if (_closed) {
+            return false;
+        }
+        _publishers.add(publisher);
+        return true;
+    }
+
+    /**
+     * Forget a publisher whose last subscriber has cancelled.
+     */
+    void removePublisher(NodeEventPublisher<T> publisher) {
+        _publishers.remove(publisher);
+    }
+
+    @VisibleForTesting
+    Set<NodeEventPublisher<T>> getPublishers() {
+        return _publishers;
+    }
+
+    /**
+     * Add a node listener and return the current nodes, without any events being fired in between.
+     */
+    synchronized Map<String, T> addListenerWithSnapshot(NodeListener<T> listener) {
+        _listeners.add(listener);
+        return Maps.newLinkedHashMap(getNodes());
+    }
+
     @Override
     public synchronized void close() throws IOException {
         if (!_closed) {
             _closed = true;
             _executor.shutdown();
             _listeners.clear();
-            _pathCache.close();
+            for (PathChildrenCache pathCache : _pathCaches) {
+                pathCache.close();
+            }
             _nodes.clear();
+            _filteredPaths.clear();
+            _drainingPaths.clear();
+            _expiredPaths.clear();
+            for (NodeIndex<?, T> index : _indexes) {
+                index.clear();
+            }
+            _suppressedNodes.clear();
+            if (_flapDamper != null) {
+                _flapDamper.clear();
+            }
+            for (NodeEventPublisher<T> publisher : _publishers) {
+                publisher.complete();
+            }
+            _publishers.clear();
+            if (_metrics != null) {
+                _metrics.onClose(this);
+            }
         }
     }
 
@@ -155,18 +446,22 @@ public class NodeDiscovery<T> implements Closeable {
      * node discovery set is usable.
      * <p/>
      * If there is a problem starting the path cache then we'll continue attempting to start it in a background thread
-     * until the node discovery is closed.
+     * until the node discovery is closed.  When watching a bucketed layout the path caches are started in order and a
+     * retry resumes with the cache that failed.
      */
     private synchronized void startThenLoadData() {
         if (_closed) {
             return;
         }
 
-        try {
-            _pathCache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
-        } catch (Throwable t) {
-            waitThenStartAgain();
-            return;
+        while (_startedPathCaches < _pathCaches.size()) {
+            try {
+                _pathCaches.get(_startedPathCaches).start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+            } catch (Throwable t) {
+                waitThenStartAgain();
+                return;
+            }
+            _startedPathCaches++;
         }
 
         loadExistingData();
@@ -188,58 +483,365 @@ public class NodeDiscovery<T> implements Closeable {
      * Loads all of the existing data from the underlying path cache.
      */
     private synchronized void loadExistingData() {
-        for (ChildData childData : _pathCache.getCurrentData()) {
-            addNode(childData.getPath(), parseChildData(childData));
+        for (PathChildrenCache pathCache : _pathCaches) {
+            for (ChildData cachedData : pathCache.getCurrentData()) {
+                String path = cachedData.getPath();
+                if (_childFilter == null) {
+                    ChildData childData = decode(cachedData);
+                    if (!hideIfUnavailable(childData)) {
+                        addNode(path, parseChildData(childData));
+                    }
+                } else if (isMaterialized(path)) {
+                    materialize(path);
+                } else {
+                    _filteredPaths.add(path);
+                }
+            }
         }
     }
 
     private synchronized void addNode(String path, T node) {
+        if (hideIfSuppressed(path, node)) {
+            return;
+        }
+
         // synchronize the modification of _nodes and firing of events so listeners always receive events in the
         // order they occur.
-        if (_nodes.put(path, Optional.fromNullable(node)) == null) {
+        Optional<T> oldNode = _nodes.put(path, Optional.fromNullable(node));
+        if (oldNode == null) {
+            addToIndexes(path, node);
             fireAddEvent(path, node);
+        } else if (!Objects.equal(oldNode.orNull(), node)) {
+            // Not an add from the point of view of listeners, but the indexes must still reflect the new value.
+            removeFromIndexes(path, oldNode.orNull());
+            addToIndexes(path, node);
         }
     }
 
     private synchronized void removeNode(String path, T node) {
+        if (_flapDamper != null && (_nodes.containsKey(path) || _suppressedNodes.containsKey(path))) {
+            if (_flapDamper.recordFlap(path)) {
+                LOG.info("Suppressing flapping node. ZooKeeperPath: {}; Policy: {}", path, _flapDamper.getPolicy());
+                waitThenRelease(path);
+            }
+            if (_suppressedNodes.remove(path) != null) {
+                // The node was hidden, so as far as listeners are concerned there's nothing to remove.
+                return;
+            }
+        }
+
         // synchronize the modification of _nodes and firing of events so listeners always receive events in the
         // order they occur.
-        if (_nodes.remove(path) != null) {
+        Optional<T> oldNode = _nodes.remove(path);
+        if (oldNode != null) {
+            removeFromIndexes(path, oldNode.orNull());
             fireRemoveEvent(path, node);
         }
     }
 
     private synchronized void updateNode(String path, T node) {
+        if (hideIfSuppressed(path, node)) {
+            return;
+        }
+
         // synchronize the modification of _nodes and firing of events so listeners always receive events in the
         // order they occur.
         Optional<T> oldNode = _nodes.put(path, Optional.fromNullable(node));
-        if (!Objects.equal(oldNode.orNull(), node)) {
+        if (oldNode == null) {
+            addToIndexes(path, node);
+        } else if (!Objects.equal(oldNode.orNull(), node)) {
+            removeFromIndexes(path, oldNode.orNull());
+            addToIndexes(path, node);
             fireUpdateEvent(path, node);
         }
     }
 
+    /**
+     * If the path is suppressed by flap damping, remember the node's latest value without making it visible.
+     *
+     * @return True if the node was hidden.
+     */
+    private boolean hideIfSuppressed(String path, T node) {
+        if (_flapDamper == null || !_flapDamper.isSuppressed(path)) {
+            return false;
+        }
+        _suppressedNodes.put(path, Optional.fromNullable(node));
+        return true;
+    }
+
+    /**
+     * Wait until the penalty of a suppressed path has decayed to the reuse threshold, then release it.
+     */
+    private void waitThenRelease(final String path) {
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                release(path);
+            }
+        }, _flapDamper.getReuseDelayNanos(path), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void release(String path) {
+        if (_closed) {
+            return;
+        }
+
+        if (!_flapDamper.tryRelease(path)) {
+            // The path flapped again while it was suppressed, so its penalty hasn't decayed enough yet.
+            if (_flapDamper.isSuppressed(path)) {
+                waitThenRelease(path);
+            }
+            return;
+        }
+
+        LOG.info("Releasing suppressed node. ZooKeeperPath: {}", path);
+        Optional<T> node = _suppressedNodes.remove(path);
+        if (node != null) {
+            addNode(path, node.orNull());
+        }
+    }
+
+    /**
+     * Periodically forget the penalties of paths that have been stable long enough for them to decay to nothing, so
+     * that paths that never come back don't accumulate.
+     */
+    private void scheduleForgetStablePaths() {
+        long halfLifeNanos = _flapDamper.getPolicy().getHalfLife(TimeUnit.NANOSECONDS);
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (NodeDiscovery.this) {
+                    _flapDamper.forgetStablePaths();
+                }
+            }
+        }, halfLifeNanos, halfLifeNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return True if the node at the path passes the child filter, or there is no child filter.
+     */
+    private boolean isMaterialized(String path) {
+        return _childFilter == null || _childFilter.apply(ZKPaths.getNodeFromPath(path));
+    }
+
+    /**
+     * With a child filter, read the data of a node that passed the filter and add or update it.  The path caches only
+     * know the node's stat.  If the read fails the node is read again later, until it succeeds or the node is removed.
+     */
+    private synchronized void materialize(String path) {
+        if (_closed) {
+            return;
+        }
+
+        Stat stat = new Stat();
+        byte[] data;
+        try {
+            data = _curator.getData().storingStatIn(stat).forPath(path);
+        } catch (KeeperException.NoNodeException e) {
+            // Removed since the event was raised, the path cache will send a remove event.
+            return;
+        } catch (Exception e) {
+            LOG.warn("Unable to read ZooKeeper data, will retry. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            waitThenMaterialize(path);
+            return;
+        }
+
+        ChildData childData = decode(new ChildData(path, stat, data));
+        if (hideIfUnavailable(childData)) {
+            return;
+        }
+        unhide(path);
+        T node = parseChildData(childData);
+        if (_nodes.containsKey(path)) {
+            updateNode(path, node);
+        } else {
+            addNode(path, node);
+        }
+    }
+
+    /**
+     * Wait a short period of time then try to read the data of a node again.
+     */
+    private void waitThenMaterialize(final String path) {
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                materialize(path);
+            }
+        }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * With a child filter, the path caches don't have the data of removed nodes, so use the last known value.
+     */
+    private synchronized T getLastKnownNode(String path) {
+        Optional<T> node = _nodes.get(path);
+        if (node == null) {
+            node = _suppressedNodes.get(path);
+        }
+        return (node != null) ? node.orNull() : null;
+    }
+
+    /**
+     * Periodically hide the nodes whose lease has expired since their last change.  Nodes whose lease is renewed are
+     * checked again when the renewal's update event arrives.
+     */
+    private void scheduleHideExpiredLeases() {
+        long intervalMillis = Math.max(_leaseTtlMillis / 4, WAIT_DURATION_IN_MILLIS);
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                hideExpiredLeases();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void hideExpiredLeases() {
+        if (_closed) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (PathChildrenCache pathCache : _pathCaches) {
+            for (ChildData childData : pathCache.getCurrentData()) {
+                String path = childData.getPath();
+                if (isMaterialized(path) && !_drainingPaths.contains(path) && !_expiredPaths.contains(path)
+                        && isExpired(childData, now)) {
+                    hide(path, _expiredPaths);
+                }
+            }
+        }
+    }
+
+    /**
+     * If the node is draining or its lease has expired, hide it: remove it from the view, firing a remove event if it
+     * was visible, and only track its path.  A hidden node doesn't count as a flap.
+     *
+     * @return True if the node is hidden.
+     */
+    private synchronized boolean hideIfUnavailable(ChildData childData) {
+        if (_drainMarker != null && isDraining(childData)) {
+            hide(childData.getPath(), _drainingPaths);
+            return true;
+        }
+        if (_leaseTtlMillis > 0 && isExpired(childData, System.currentTimeMillis())) {
+            hide(childData.getPath(), _expiredPaths);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void hide(String path, Set<String> hiddenPaths) {
+        unhide(path);
+        hiddenPaths.add(path);
+        _suppressedNodes.remove(path);
+        Optional<T> oldNode = _nodes.remove(path);
+        if (oldNode != null) {
+            removeFromIndexes(path, oldNode.orNull());
+            fireRemoveEvent(path, oldNode.orNull());
+        }
+    }
+
+    /**
+     * Stop tracking the path as hidden, ex. because the node was removed or is available again.
+     *
+     * @return True if the node was hidden.
+     */
+    private boolean unhide(String path) {
+        // Not short-circuiting, so the path is removed from both.
+        return _drainingPaths.remove(path) | _expiredPaths.remove(path);
+    }
+
+    private boolean isExpired(ChildData childData, long nowMillis) {
+        Stat stat = childData.getStat();
+        return stat != null && LeaseRegistry.isExpired(stat, _leaseTtlMillis, nowMillis);
+    }
+
+    private boolean isDraining(ChildData childData) {
+        try {
+            return _drainMarker.isDraining(childData.getData());
+        } catch (Exception e) {
+            LOG.warn("DrainMarker failed to check ZooKeeper data. ZooKeeperPath: {}; Exception Message: {}",
+                    childData.getPath(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void addToIndexes(String path, T node) {
+        for (NodeIndex<?, T> index : _indexes) {
+            index.add(path, node);
+        }
+    }
+
+    private void removeFromIndexes(String path, T node) {
+        for (NodeIndex<?, T> index : _indexes) {
+            index.remove(path, node);
+        }
+    }
+
     private void fireAddEvent(String path, T node) {
         for (NodeListener<T> listener : _listeners) {
+            long start = System.nanoTime();
             listener.onNodeAdded(path, node);
+            recordListenerTime(start);
         }
     }
 
     private void fireRemoveEvent(String path, T node) {
         for (NodeListener<T> listener : _listeners) {
+            long start = System.nanoTime();
             listener.onNodeRemoved(path, node);
+            recordListenerTime(start);
         }
     }
 
     private void fireUpdateEvent(String path, T node) {
         for (NodeListener<T> listener : _listeners) {
+            long start = System.nanoTime();
             listener.onNodeUpdated(path, node);
+            recordListenerTime(start);
+        }
+    }
+
+    private void recordListenerTime(long start) {
+        if (_metrics != null) {
+            _metrics.recordListenerTime(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record a change to a node being dispatched, along with how long it took to get here since it was made.
+     */
+    private void recordEvent(PathChildrenCacheEvent event) {
+        long lagMillis = -1;
+        Stat stat = event.getData().getStat();
+        if (stat != null) {
+            switch (event.getType()) {
+                case CHILD_ADDED:
+                    lagMillis = Math.max(0, System.currentTimeMillis() - stat.getCtime());
+                    break;
+
+                case CHILD_UPDATED:
+                    lagMillis = Math.max(0, System.currentTimeMillis() - stat.getMtime());
+                    break;
+            }
         }
+        _metrics.recordEvent(lagMillis);
     }
 
     private T parseChildData(ChildData childData) {
+        if (childData instanceof UndecodableData) {
+            return null;
+        }
+
         T value = null;
         try {
-            value = _nodeDataParser.parse(childData.getPath(), childData.getData());
+            if (_bufferParser != null) {
+                value = parseBuffer(childData.getPath(), childData.getData(), childData.getStat());
+            } else {
+                value = _nodeDataParser.parse(childData.getPath(), childData.getData());
+            }
         } catch (Exception e) {
             LOG.warn("NodeDataParser failed to parse ZooKeeper data. ZooKeeperPath: {}; Exception Message: {}",
                     childData.getPath(), e.getMessage());
@@ -249,17 +851,68 @@ public class NodeDiscovery<T> implements Closeable {
         return value;
     }
 
+    /**
+     * Decode the data of a node once, before it is checked for a drain marker and parsed.  Data that can't be decoded
+     * isn't draining, and is parsed as null.
+     */
+    private ChildData decode(ChildData childData) {
+        byte[] data = childData.getData();
+        if (_payloadCodecs.isEmpty() || data == null) {
+            return childData;
+        }
+        try {
+            return new ChildData(childData.getPath(), childData.getStat(), PayloadCodec.decode(data, _payloadCodecs));
+        } catch (Exception e) {
+            LOG.warn("PayloadCodec failed to decode ZooKeeper data. ZooKeeperPath: {}; Exception Message: {}",
+                    childData.getPath(), e.getMessage());
+            return new UndecodableData(childData);
+        }
+    }
+
+    private T parseBuffer(String path, byte[] bytes, Stat stat) throws Exception {
+        // The cached data is shared, so the parser only gets a read-only view of it rather than a copy.
+        ByteBuffer data = (bytes != null) ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : EMPTY_BUFFER.duplicate();
+
+        if (_bufferParser.isStateless()) {
+            return _bufferParser.parse(path, data, stat);
+        }
+        synchronized (_bufferParser) {
+            return _bufferParser.parse(path, data, stat);
+        }
+    }
+
+    /**
+     * The data of a node that a {@link PayloadCodec} failed to decode.
+     */
+    private static final class UndecodableData extends ChildData {
+        private UndecodableData(ChildData childData) {
+            super(childData.getPath(), childData.getStat(), childData.getData());
+        }
+    }
+
     /**
      * A curator <code>PathChildrenCacheListener</code>
      */
     private final class PathListener implements PathChildrenCacheListener {
         @Override
         public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+            if (_childFilter != null && event.getData() != null) {
+                childEventFiltered(event);
+                return;
+            }
+
             String nodePath = null;
             T nodeData = null;
             if (event.getData() != null) {
                 nodePath = event.getData().getPath();
-                nodeData = parseChildData(event.getData());
+                if (_metrics != null) {
+                    recordEvent(event);
+                }
+                ChildData childData = decode(event.getData());
+                if ((_drainMarker != null || _leaseTtlMillis > 0) && isHidden(event.getType(), childData)) {
+                    return;
+                }
+                nodeData = parseChildData(childData);
             }
             switch (event.getType()) {
                 case CHILD_ADDED:
@@ -271,10 +924,175 @@ public class NodeDiscovery<T> implements Closeable {
                     break;
 
                 case CHILD_UPDATED:
-                    updateNode(nodePath, nodeData);
+                    if (unhide(nodePath)) {
+                        // No longer draining or renewed after expiring, so it's new as far as listeners are concerned.
+                        addNode(nodePath, nodeData);
+                    } else {
+                        updateNode(nodePath, nodeData);
+                    }
                     break;
             }
         }
+
+        /**
+         * @return True if the event is for a draining or expired node, which has been dealt with by hiding it.
+         */
+        private boolean isHidden(PathChildrenCacheEvent.Type type, ChildData childData) {
+            switch (type) {
+                case CHILD_ADDED:
+                case CHILD_UPDATED:
+                    return hideIfUnavailable(childData);
+
+                case CHILD_REMOVED:
+                    // A hidden node was already removed from the view.
+                    return unhide(childData.getPath());
+
+                default:
+                    return false;
+            }
+        }
+
+        private void childEventFiltered(PathChildrenCacheEvent event) {
+            String nodePath = event.getData().getPath();
+            if (!isMaterialized(nodePath)) {
+                if (event.getType() == PathChildrenCacheEvent.Type.CHILD_REMOVED) {
+                    _filteredPaths.remove(nodePath);
+                } else {
+                    _filteredPaths.add(nodePath);
+                }
+                return;
+            }
+
+            if (_metrics != null) {
+                recordEvent(event);
+            }
+            switch (event.getType()) {
+                case CHILD_ADDED:
+                case CHILD_UPDATED:
+                    materialize(nodePath);
+                    break;
+
+                case CHILD_REMOVED:
+                    if (!unhide(nodePath)) {
+                        removeNode(nodePath, getLastKnownNode(nodePath));
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Builder for {@code NodeDiscovery} instances that need non-default options.
+     */
+    public static final class Builder<T> {
+        private final CuratorFramework _curator;
+        private final String _nodePath;
+        private final NodeDataParser<T> _parser;
+        private final ByteBufferNodeDataParser<T> _bufferParser;
+        private BucketLayout _bucketLayout;
+        private FlapDampingPolicy _flapDampingPolicy;
+        private List<PayloadCodec> _payloadCodecs = ImmutableList.of();
+        private NodeDiscoveryMetrics _metrics;
+        private Predicate<? super String> _childFilter;
+        private DrainMarker _drainMarker;
+        private long _leaseTtlMillis;
+
+        private Builder(CuratorFramework curator, String nodePath, NodeDataParser<T> parser) {
+            this(curator, nodePath, checkNotNull(parser), null);
+        }
+
+        private Builder(CuratorFramework curator, String nodePath, ByteBufferNodeDataParser<T> parser) {
+            this(curator, nodePath, null, checkNotNull(parser));
+        }
+
+        private Builder(CuratorFramework curator, String nodePath, NodeDataParser<T> parser,
+                        ByteBufferNodeDataParser<T> bufferParser) {
+            checkNotNull(curator);
+            checkNotNull(nodePath);
+            checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+            checkArgument(!"".equals(nodePath));
+
+            _curator = curator;
+            _nodePath = nodePath;
+            _parser = parser;
+            _bufferParser = bufferParser;
+        }
+
+        /**
+         * Watch a hash-bucketed layout ({@code <nodePath>/<bucket>/<node>}) instead of the direct children of the node
+         * path.  Every bucket is watched and the nodes from all buckets are merged into a single view.  Node paths
+         * reported by the resulting {@code NodeDiscovery} include the bucket.
+         */
+        public Builder<T> withBucketLayout(BucketLayout bucketLayout) {
+            _bucketLayout = checkNotNull(bucketLayout);
+            return this;
+        }
+
+        /**
+         * Dampen nodes that repeatedly disappear and reappear.  A path whose flap penalty exceeds the policy's
+         * suppress threshold is hidden from {@link NodeDiscovery#getNodes()} and from events until it has been stable
+         * long enough for the penalty to decay.  See {@link FlapDampingPolicy}.
+         */
+        public Builder<T> withFlapDamping(FlapDampingPolicy policy) {
+            _flapDampingPolicy = checkNotNull(policy);
+            return this;
+        }
+
+        /**
+         * Set the codecs that node data may have been encoded with by
+         * {@link PersistentEphemeralNode.Builder#withPayloadCodec(PayloadCodec)}.  Encoded data is decoded before it is
+         * parsed and data that isn't encoded is parsed as is.  By default no codecs are used and all data is parsed as
+         * is, so that binary data that happens to start with a codec's header isn't mistaken for encoded data.
+         */
+        public Builder<T> withPayloadCodecs(PayloadCodec... codecs) {
+            _payloadCodecs = ImmutableList.copyOf(codecs);
+            return this;
+        }
+
+        /**
+         * Report the propagation lag of changes, listener execution time and event rate to the given metrics.  See
+         * {@link NodeDiscoveryMetrics}.
+         */
+        public Builder<T> withMetrics(NodeDiscoveryMetrics metrics) {
+            _metrics = checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * Only materialize the children whose name (the last segment of their path) matches the filter, ex. the nodes
+         * that own a shard.  The filter is applied before any data is read, so the data of the other children is never
+         * fetched or parsed and they are only tracked by path, see {@link NodeDiscovery#getFilteredPaths()}.  The
+         * filter is called on the event thread for every child event, so it must be cheap.
+         */
+        public Builder<T> withChildFilter(Predicate<? super String> childNameFilter) {
+            _childFilter = checkNotNull(childNameFilter);
+            return this;
+        }
+
+        /**
+         * Hide nodes whose data is marked as draining by the given marker, ex. by
+         * {@link PersistentEphemeralNode#drain}, so that selectors stop picking them before they are deleted.  A
+         * visible node that starts draining is reported as removed.  See {@link NodeDiscovery#getDrainingPaths()}.
+         */
+        public Builder<T> withDrainMarker(DrainMarker drainMarker) {
+            _drainMarker = checkNotNull(drainMarker);
+            return this;
+        }
+
+        /**
+         * Hide nodes registered by a {@link LeaseRegistry} whose lease has expired, ex. because the worker that held
+         * it died, until they are renewed or swept.  Must be the TTL of the registry.  A visible node whose lease
+         * expires is reported as removed within a quarter of the TTL.  See {@link NodeDiscovery#getExpiredPaths()}.
+         */
+        public Builder<T> withLeaseTtl(long duration, TimeUnit unit) {
+            checkArgument(duration > 0, "duration must be positive");
+            _leaseTtlMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        public NodeDiscovery<T> build() {
+            return new NodeDiscovery<T>(this);
+        }
     }
 
     /**
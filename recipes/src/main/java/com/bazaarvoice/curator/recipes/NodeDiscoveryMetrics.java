@@ -0,0 +1,38 @@
+package com.bazaarvoice.curator.recipes;
+
+/**
+ * Receives measurements from a {@link NodeDiscovery}, to show how stale a client's view of the nodes is and how much
+ * work it is doing.  Set with {@link NodeDiscovery.Builder#withMetrics(NodeDiscoveryMetrics)}.
+ * <p/>
+ * The {@code record} methods are called on the thread that processes ZooKeeper events, so implementations should be
+ * cheap and must not block.
+ */
+public interface NodeDiscoveryMetrics {
+    /**
+     * Called when the {@code NodeDiscovery} is started, ex. to register a gauge of
+     * {@link NodeDiscovery#getQueueDepth()}.
+     */
+    void onStart(NodeDiscovery<?> nodeDiscovery);
+
+    /**
+     * Called when the {@code NodeDiscovery} is closed.
+     */
+    void onClose(NodeDiscovery<?> nodeDiscovery);
+
+    /**
+     * Called each time a change to a node is dispatched.
+     *
+     * @param propagationLagMillis The time between the change being made in ZooKeeper (the node's {@code ctime} for an
+     *                             add, {@code mtime} for an update) and it being dispatched locally, or {@code -1} if
+     *                             it isn't known (ex. for a removal).  This is measured against the ZooKeeper server's
+     *                             clock, so clock skew between the two shows up as lag.
+     */
+    void recordEvent(long propagationLagMillis);
+
+    /**
+     * Called after each call to a {@link NodeDiscovery.NodeListener}.
+     *
+     * @param durationNanos How long the listener took.
+     */
+    void recordListenerTime(long durationNanos);
+}
@@ -0,0 +1,93 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Objects;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A change to the nodes of a {@link NodeDiscovery}, as published by a {@link NodeEventPublisher}.
+ * <p/>
+ * A {@link Type#SNAPSHOT} event carries the complete set of nodes and replaces whatever view the subscriber had built
+ * up so far.  The other types are deltas against the most recent snapshot, in the order they occurred.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public final class NodeEvent<T> {
+    /** The kind of change. */
+    public enum Type {
+        /** The complete set of nodes.  Sent first, and again whenever a slow subscriber's events are conflated. */
+        SNAPSHOT,
+        /** A node was added. */
+        ADDED,
+        /** A node was removed. */
+        REMOVED,
+        /** A node's data was updated. */
+        UPDATED
+    }
+
+    private final Type _type;
+    private final String _path;
+    private final T _node;
+    private final Map<String, T> _nodes;
+
+    private NodeEvent(Type type, String path, T node, Map<String, T> nodes) {
+        _type = type;
+        _path = path;
+        _node = node;
+        _nodes = nodes;
+    }
+
+    static <T> NodeEvent<T> snapshot(Map<String, T> nodes) {
+        // Copy into a map that allows null nodes, which is how NodeDiscovery represents data that couldn't be parsed.
+        Map<String, T> copy = Collections.unmodifiableMap(new LinkedHashMap<String, T>(nodes));
+        return new NodeEvent<T>(Type.SNAPSHOT, null, null, copy);
+    }
+
+    static <T> NodeEvent<T> added(String path, T node) {
+        return new NodeEvent<T>(Type.ADDED, checkNotNull(path), node, null);
+    }
+
+    static <T> NodeEvent<T> removed(String path, T node) {
+        return new NodeEvent<T>(Type.REMOVED, checkNotNull(path), node, null);
+    }
+
+    static <T> NodeEvent<T> updated(String path, T node) {
+        return new NodeEvent<T>(Type.UPDATED, checkNotNull(path), node, null);
+    }
+
+    public Type getType() {
+        return _type;
+    }
+
+    /** @return The path of the node that changed, or {@code null} for a snapshot. */
+    public String getPath() {
+        return _path;
+    }
+
+    /** @return The node that changed, or {@code null} for a snapshot or if the node's data couldn't be parsed. */
+    public T getNode() {
+        return _node;
+    }
+
+    /**
+     * @return For a snapshot, all of the nodes by path.  Empty for the other types.
+     */
+    public Map<String, T> getNodes() {
+        return (_nodes != null) ? _nodes : Collections.<String, T>emptyMap();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .omitNullValues()
+                .add("type", _type)
+                .add("path", _path)
+                .add("node", _node)
+                .add("nodes", _nodes)
+                .toString();
+    }
+}
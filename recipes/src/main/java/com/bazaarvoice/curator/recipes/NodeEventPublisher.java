@@ -0,0 +1,243 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Reactive Streams {@link Publisher} of the changes to the nodes of a {@link NodeDiscovery}.  Created by
+ * {@link NodeDiscovery#newPublisher}.
+ * <p/>
+ * Each subscriber first receives a {@link NodeEvent.Type#SNAPSHOT} of the current nodes followed by every later
+ * change, with no gap and no duplicates between the two.  Events are only delivered as the subscriber requests them,
+ * and always on the publisher's executor, never on the thread that processes ZooKeeper events.
+ * <p/>
+ * Each subscriber has a bounded buffer of undelivered events.  When a slow subscriber's buffer fills up its pending
+ * events are conflated into a single new snapshot of the current nodes, so memory use is bounded no matter how far
+ * behind the subscriber falls and it always catches up to the current state.
+ * <p/>
+ * Subscribers are completed when the {@code NodeDiscovery} is closed.  The {@code NodeDiscovery} only keeps track of
+ * a publisher while it has subscribers, so publishers whose subscribers have all cancelled can be garbage collected.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public final class NodeEventPublisher<T> implements Publisher<NodeEvent<T>> {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeEventPublisher.class);
+
+    /** The default number of undelivered events to buffer for each subscriber before conflating them. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final NodeDiscovery<T> _discovery;
+    private final Executor _executor;
+    private final int _bufferSize;
+    private final Set<EventSubscription> _subscriptions =
+            Sets.newSetFromMap(Maps.<EventSubscription, Boolean>newConcurrentMap());
+    private volatile boolean _completed;
+
+    NodeEventPublisher(NodeDiscovery<T> discovery, Executor executor, int bufferSize) {
+        _discovery = discovery;
+        _executor = executor;
+        _bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super NodeEvent<T>> subscriber) {
+        checkNotNull(subscriber);
+
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.register();
+    }
+
+    /** Called by {@link NodeDiscovery#close()} to complete every subscriber. */
+    void complete() {
+        _completed = true;
+        for (EventSubscription subscription : _subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    private final class EventSubscription implements Subscription, NodeDiscovery.NodeListener<T>, Runnable {
+        private final Subscriber<? super NodeEvent<T>> _subscriber;
+        private final Deque<NodeEvent<T>> _queue = new ArrayDeque<NodeEvent<T>>();  // guarded by itself
+        private final AtomicLong _requested = new AtomicLong();
+        /** The number of times the subscription has been signalled since the drain loop last caught up. */
+        private final AtomicInteger _signals = new AtomicInteger();
+        private volatile boolean _cancelled;
+        private volatile boolean _completed;
+        private volatile Throwable _error;
+
+        EventSubscription(Subscriber<? super NodeEvent<T>> subscriber) {
+            _subscriber = subscriber;
+        }
+
+        void register() {
+            _subscriptions.add(this);
+            if (NodeEventPublisher.this._completed || !_discovery.addPublisher(NodeEventPublisher.this)) {
+                complete();
+                return;
+            }
+
+            // Events for changes after the snapshot may be queued before the snapshot itself is, so put it in front.
+            Map<String, T> nodes = _discovery.addListenerWithSnapshot(this);
+            synchronized (_queue) {
+                _queue.addFirst(NodeEvent.snapshot(nodes));
+            }
+
+            // Cancelled while registering, make sure the listener doesn't stay behind.
+            if (_cancelled) {
+                _discovery.removeListener(this);
+            }
+            signal();
+        }
+
+        void complete() {
+            // The nodes are all gone once the NodeDiscovery is closed, so there's no point delivering stale changes.
+            synchronized (_queue) {
+                _queue.clear();
+            }
+            _completed = true;
+            signal();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                _error = new IllegalArgumentException("Requested a non-positive number of events: " + n);
+            } else {
+                long current, next;
+                do {
+                    current = _requested.get();
+                    next = current + n;
+                    if (next < 0) {
+                        next = Long.MAX_VALUE;  // Effectively unbounded, see rule 3.17
+                    }
+                } while (!_requested.compareAndSet(current, next));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            _cancelled = true;
+            _discovery.removeListener(this);
+            _subscriptions.remove(this);
+            if (_subscriptions.isEmpty()) {
+                _discovery.removePublisher(NodeEventPublisher.this);
+                // Subscribed again meanwhile, make sure the new subscriber is still completed on close.
+                if (!_subscriptions.isEmpty()) {
+                    _discovery.addPublisher(NodeEventPublisher.this);
+                }
+            }
+            synchronized (_queue) {
+                _queue.clear();
+            }
+        }
+
+        @Override
+        public void onNodeAdded(String path, T node) {
+            enqueue(NodeEvent.added(path, node));
+        }
+
+        @Override
+        public void onNodeRemoved(String path, T node) {
+            enqueue(NodeEvent.removed(path, node));
+        }
+
+        @Override
+        public void onNodeUpdated(String path, T node) {
+            enqueue(NodeEvent.updated(path, node));
+        }
+
+        private void enqueue(NodeEvent<T> event) {
+            synchronized (_queue) {
+                if (_queue.size() < _bufferSize) {
+                    _queue.add(event);
+                } else {
+                    // Listeners are called while the NodeDiscovery holds its lock, so its current nodes are exactly
+                    // the result of every event up to and including this one.
+                    LOG.debug("Subscriber is falling behind, conflating {} events into a snapshot.", _queue.size() + 1);
+                    _queue.clear();
+                    _queue.add(NodeEvent.snapshot(_discovery.getNodes()));
+                }
+            }
+            signal();
+        }
+
+        private void signal() {
+            if (_signals.getAndIncrement() != 0) {
+                return;  // Already draining, the drain loop will notice the signal.
+            }
+            try {
+                _executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Executor rejected delivery of NodeDiscovery events, cancelling subscription.", e);
+                cancel();
+            }
+        }
+
+        /** Delivers queued events up to the requested amount.  Only ever runs on one thread at a time. */
+        @Override
+        public void run() {
+            int signals = 1;
+            for (;;) {
+                long requested = _requested.get();
+                long delivered = 0;
+                while (delivered != requested && !_cancelled) {
+                    NodeEvent<T> event;
+                    synchronized (_queue) {
+                        event = _queue.poll();
+                    }
+                    if (event == null) {
+                        break;
+                    }
+                    try {
+                        _subscriber.onNext(event);
+                    } catch (Throwable t) {
+                        LOG.warn("Subscriber threw an exception from onNext, cancelling subscription.", t);
+                        cancel();
+                        return;
+                    }
+                    delivered++;
+                }
+                if (delivered != 0 && requested != Long.MAX_VALUE) {
+                    _requested.addAndGet(-delivered);
+                }
+
+                if (_cancelled) {
+                    return;
+                }
+                if (_error != null) {
+                    cancel();
+                    _subscriber.onError(_error);
+                    return;
+                }
+                if (_completed) {
+                    cancel();
+                    _subscriber.onComplete();
+                    return;
+                }
+
+                signals = _signals.addAndGet(-signals);
+                if (signals == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
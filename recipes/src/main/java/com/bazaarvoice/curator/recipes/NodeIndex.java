@@ -0,0 +1,111 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A secondary index over the nodes of a {@link NodeDiscovery}, keyed by an attribute of the parsed node (ex. zone,
+ * version or capability).  Created by {@link NodeDiscovery#addIndex} or {@link NodeDiscovery#addMultiIndex}.
+ * <p/>
+ * The index is updated by the {@code NodeDiscovery} in the same synchronized step that changes its set of nodes and
+ * fires events, so it is always consistent with the event stream.  Lookups don't lock or copy: each key maps to an
+ * immutable map that is replaced whenever a node with that key is added, removed or updated.
+ * <p/>
+ * The key function must be a pure function of the node, since it is called again to find the node's keys when the
+ * node is removed or updated.  Nodes whose data could not be parsed (i.e. are {@code null}) and {@code null} keys are
+ * not indexed.
+ *
+ * @param <K> The type of the index key.
+ * @param <T> The type used to represent a node.
+ */
+public final class NodeIndex<K, T> {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeIndex.class);
+
+    private final Function<? super T, ? extends Iterable<? extends K>> _keysFunction;
+    private final ConcurrentMap<K, ImmutableMap<String, T>> _index = Maps.newConcurrentMap();
+
+    NodeIndex(Function<? super T, ? extends Iterable<? extends K>> keysFunction) {
+        _keysFunction = keysFunction;
+    }
+
+    /**
+     * @return The current nodes (by path) with the given key.  The returned map is an immutable snapshot.
+     */
+    public Map<String, T> get(K key) {
+        Map<String, T> nodes = _index.get(key);
+        return (nodes != null) ? nodes : Collections.<String, T>emptyMap();
+    }
+
+    /** @return Whether any current node has the given key. */
+    public boolean containsKey(K key) {
+        return _index.containsKey(key);
+    }
+
+    /** @return The keys of the current nodes. */
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(_index.keySet());
+    }
+
+    // The methods below are only called by NodeDiscovery while holding its lock, so there is only ever one writer.
+
+    void add(String path, T node) {
+        for (K key : keys(path, node)) {
+            if (key == null) {
+                continue;
+            }
+            ImmutableMap<String, T> nodes = _index.get(key);
+            _index.put(key, ImmutableMap.<String, T>builder()
+                    .putAll((nodes != null) ? Maps.filterKeys(nodes, notEqualTo(path)) : ImmutableMap.<String, T>of())
+                    .put(path, node)
+                    .build());
+        }
+    }
+
+    void remove(String path, T node) {
+        for (K key : keys(path, node)) {
+            ImmutableMap<String, T> nodes = (key != null) ? _index.get(key) : null;
+            if (nodes == null || !nodes.containsKey(path)) {
+                continue;
+            }
+            if (nodes.size() == 1) {
+                _index.remove(key);
+            } else {
+                _index.put(key, ImmutableMap.copyOf(Maps.filterKeys(nodes, notEqualTo(path))));
+            }
+        }
+    }
+
+    void clear() {
+        _index.clear();
+    }
+
+    private Iterable<? extends K> keys(String path, T node) {
+        if (node == null) {
+            return Collections.emptySet();
+        }
+
+        try {
+            Iterable<? extends K> keys = _keysFunction.apply(node);
+            return (keys != null) ? keys : Collections.<K>emptySet();
+        } catch (Exception e) {
+            LOG.warn("NodeIndex failed to compute keys. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            LOG.warn("Exception", e);
+            return Collections.emptySet();
+        }
+    }
+
+    private static Predicate<String> notEqualTo(String path) {
+        return Predicates.not(Predicates.equalTo(path));
+    }
+}
@@ -0,0 +1,91 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.curator.CuratorZookeeperClient;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers which parent paths are known to exist, shared by every ephemeral node recipe that uses the same ZooKeeper
+ * client, so that a process registering hundreds of nodes under the same parent only makes sure the parent exists
+ * once rather than once per node.
+ * <p/>
+ * Paths are cached by their full path including the namespace, so {@code CuratorFramework} instances that share a
+ * client through {@code usingNamespace} share the cache.  Concurrent ensures of the same path are deduplicated, only
+ * one is in flight and the others wait for its outcome.  An ensure that fails isn't cached.  Callers that find a
+ * parent missing after all (ex. a {@code NoNodeException} when creating a child) must {@link #invalidate} it.
+ */
+final class ParentPathCache {
+    private static final LoadingCache<CuratorZookeeperClient, ParentPathCache> CACHES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<CuratorZookeeperClient, ParentPathCache>() {
+                @Override
+                public ParentPathCache load(CuratorZookeeperClient client) {
+                    return new ParentPathCache();
+                }
+            });
+
+    private final ConcurrentMap<String, SettableFuture<Void>> _ensured = Maps.newConcurrentMap();
+
+    private ParentPathCache() {
+    }
+
+    /**
+     * Returns the cache shared by everything that uses the same ZooKeeper client as the given curator.
+     */
+    static ParentPathCache forCurator(CuratorFramework curator) {
+        return CACHES.getUnchecked(curator.getZookeeperClient());
+    }
+
+    /**
+     * Make sure the path and its parents exist, unless they're already known to.
+     *
+     * @param curator The curator to use, whose namespace the path is relative to.
+     * @param path    The path.
+     */
+    void ensure(CuratorFramework curator, String path) throws Exception {
+        String key = ZKPaths.fixForNamespace(curator.getNamespace(), path);
+        SettableFuture<Void> future = SettableFuture.create();
+        SettableFuture<Void> inFlight = _ensured.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // Already ensured, or being ensured by someone else.  Wait for the outcome.
+            try {
+                Uninterruptibles.getUninterruptibly(inFlight);
+                return;
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        try {
+            curator.newNamespaceAwareEnsurePath(path).ensure(curator.getZookeeperClient());
+        } catch (Exception e) {
+            _ensured.remove(key, future);
+            future.setException(e);
+            throw e;
+        }
+        future.set(null);
+    }
+
+    /**
+     * Forget that the path exists, ex. after finding that it has been deleted, so that the next ensure creates it.
+     */
+    void invalidate(CuratorFramework curator, String path) {
+        String key = ZKPaths.fixForNamespace(curator.getNamespace(), path);
+        SettableFuture<Void> future = _ensured.get(key);
+        if (future != null && future.isDone()) {
+            // Leave an ensure that is in flight alone, it's checking the path right now.
+            _ensured.remove(key, future);
+        }
+    }
+}
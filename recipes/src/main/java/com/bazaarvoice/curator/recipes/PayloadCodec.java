@@ -0,0 +1,162 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Objects;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A compression codec for node data.  {@link PersistentEphemeralNode} encodes the data it registers with a codec and
+ * {@link NodeDiscovery} decodes it again before handing it to the parser, which keeps verbose payloads (ex. JSON) small
+ * on the wire without either side's application code knowing about it.
+ * <p/>
+ * Encoded data starts with a 3 byte header: the magic bytes {@code 0x00 'Z'} followed by the id of the codec.  Text
+ * payloads never start with a {@code NUL}, so data without the header is passed through unchanged and nodes registered
+ * before compression was turned on can still be read.  Binary payloads that may start with {@code 0x00 'Z'} should not
+ * be mixed with compressed ones.
+ * <p/>
+ * Codecs are identified by their id, so custom codecs must use an id that isn't used by the built in ones and must be
+ * given to every {@code NodeDiscovery} that reads their data.
+ */
+public abstract class PayloadCodec {
+    private static final byte MAGIC_0 = 0x00;
+    private static final byte MAGIC_1 = 'Z';
+    private static final int HEADER_SIZE = 3;
+
+    /** Compresses with gzip ({@code java.util.zip.GZIPOutputStream}). */
+    public static final PayloadCodec GZIP = new PayloadCodec(1, "gzip") {
+        @Override
+        protected OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+
+        @Override
+        protected InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+    };
+
+    /**
+     * Compresses with zlib deflate ({@code java.util.zip.DeflaterOutputStream}), which has a smaller header and
+     * trailer than gzip.
+     */
+    public static final PayloadCodec DEFLATE = new PayloadCodec(2, "deflate") {
+        @Override
+        protected OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+
+        @Override
+        protected InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in);
+        }
+    };
+
+    private final byte _id;
+    private final String _name;
+
+    /**
+     * @param id   The id written in the header of data encoded by this codec, between 1 and 255.
+     * @param name A name for the codec, used for logging.
+     */
+    protected PayloadCodec(int id, String name) {
+        checkArgument(id >= 1 && id <= 255, "id must be between 1 and 255");
+        _id = (byte) id;
+        _name = checkNotNull(name);
+    }
+
+    public int getId() {
+        return _id & 0xff;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /** Wrap a stream so that data written to it is compressed. */
+    protected abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /** Wrap a stream so that data read from it is decompressed. */
+    protected abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * @return The data compressed with this codec, including the header.
+     */
+    public byte[] encode(byte[] data) {
+        checkNotNull(data);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + data.length / 2);
+            bytes.write(new byte[] {MAGIC_0, MAGIC_1, _id});
+            OutputStream out = compress(bytes);
+            out.write(data);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not possible when writing to memory.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return The original data given encoded data, including the header.
+     * @throws IOException if the data was not encoded by this codec or is corrupt.
+     */
+    public byte[] decode(byte[] data) throws IOException {
+        checkArgument(getCodecId(data) == getId(), "Data was not encoded by the %s codec", _name);
+        InputStream in = decompress(new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE));
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The id of the codec that encoded the data, or {@code 0} if the data doesn't have a codec header.
+     */
+    public static int getCodecId(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+            return 0;
+        }
+        return data[2] & 0xff;
+    }
+
+    /**
+     * Decode data that may or may not have been encoded, using whichever of the codecs encoded it.
+     *
+     * @return The original data, or the data itself if it doesn't have a codec header.
+     * @throws IOException if the data was encoded by a codec that isn't one of the given codecs, or is corrupt.
+     */
+    public static byte[] decode(byte[] data, Iterable<? extends PayloadCodec> codecs) throws IOException {
+        int id = getCodecId(data);
+        if (id == 0) {
+            return data;
+        }
+
+        for (PayloadCodec codec : codecs) {
+            if (codec.getId() == id) {
+                return codec.decode(data);
+            }
+        }
+        throw new IOException("Data was encoded by an unknown codec, id: " + id);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("id", getId())
+                .add("name", _name)
+                .toString();
+    }
+}
@@ -1,71 +1,199 @@
 package com.bazaarvoice.curator.recipes;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.PathAndBytesable;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
-import org.apache.curator.utils.EnsurePath;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.data.Stat;
-
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A persistent ephemeral node is an ephemeral node that attempts to stay present in ZooKeeper, even through connection
  * and session interruptions.
  */
 public class PersistentEphemeralNode {
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentEphemeralNode.class);
+
     private static final long WAIT_DURATION_IN_MILLIS = 100;
 
+    /** Retry failed operations after 100ms at first, backing off to at most 10s while they keep failing. */
+    private static final RetrySchedule DEFAULT_RETRY_SCHEDULE =
+            new DecorrelatedJitterRetrySchedule(WAIT_DURATION_IN_MILLIS, 10000, TimeUnit.MILLISECONDS);
+
     /** How long to wait for the node to be initially created in seconds. */
     private static final long CREATION_WAIT_IN_SECONDS = 10;
 
-    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
-            .setNameFormat(PersistentEphemeralNode.class.getSimpleName() + "Thread-%d")
-            .setDaemon(true)
-            .build();
+    /** By default write the node's data at most once a second, see {@link #setData(byte[])}. */
+    private static final long DEFAULT_DATA_UPDATE_INTERVAL_IN_MILLIS = 1000;
 
     private final Async _async;
-    private final ScheduledExecutorService _executor;
+    private final EphemeralNodeScheduler.SerialExecutor _executor;
+    private final EphemeralNodeScheduler _ownedScheduler;  // null when using a shared scheduler
     private final AtomicBoolean _closed = new AtomicBoolean();
+    private final AtomicBoolean _draining = new AtomicBoolean();
+    private final CountDownLatch _drained = new CountDownLatch(1);  // counted down once a drain has closed the node
+    private final SettableFuture<String> _created = SettableFuture.create();
+    private final Set<PathListener> _pathListeners = Sets.newCopyOnWriteArraySet();
+    private volatile String _actualPath;  // the path the node was last created at, null until it's first created
+    private final BatchWriter.Retries _retries;
+    private final Map<Operation, AtomicLong> _retryCounts = new EnumMap<Operation, AtomicLong>(Operation.class);
+    private volatile State _state = State.CREATING;
+    private final PersistentEphemeralNodeMetrics _metrics;  // null when not instrumented
+    private final PayloadCodec _payloadCodec;  // null when the data isn't encoded
+    private final EphemeralWriteLimiter _writeLimiter;  // null when writes aren't limited
+    private final EphemeralWriteLimiter.Priority _writePriority;
+    private final DrainMarker _drainMarker;  // null when the node can't be drained
+    private final long _drainWindowMillis;
+    private volatile byte[] _latestData;  // the latest data before it's encoded, for marking it when draining
 
     /**
-     * Create the ephemeral node in ZooKeeper.  If the node cannot be created in a timely fashion then an exception will
-     * be thrown.
+     * Create the ephemeral node in ZooKeeper, waiting a short while for it to be initially created.  If the node cannot
+     * be created in a timely fashion this returns anyway and the node keeps trying to create it in the background.
      */
     public PersistentEphemeralNode(CuratorFramework curator, String basePath, byte[] data, CreateMode mode) {
-        checkNotNull(curator);
-        checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
-        checkNotNull(basePath);
+        this(new Builder(curator, basePath, data, mode), true);
+    }
+
+    private PersistentEphemeralNode(Builder builder, boolean waitForCreation) {
+        // The bucket is picked at random rather than by the node's name: every instance of a service typically
+        // registers the same name, and sequential nodes share theirs too, so they would all land in one bucket.
+        String bucketKey = (builder._bucketKeys != null) ? builder._bucketKeys.get() : UUID.randomUUID().toString();
+        String basePath = (builder._bucketLayout != null)
+                ? builder._bucketLayout.getBucketedPath(builder._basePath, bucketKey)
+                : builder._basePath;
+
+        // Without a shared scheduler the node gets a thread of its own.  Either way the Sync methods run serially.
+        _ownedScheduler = (builder._scheduler == null) ? new EphemeralNodeScheduler(1) : null;
+        _executor = (builder._scheduler != null)
+                ? builder._scheduler.newSerialExecutor()
+                : _ownedScheduler.newSerialExecutor();
+        _retries = new BatchWriter.Retries(builder._retrySchedule);
+        _payloadCodec = builder._payloadCodec;
+        _writeLimiter = builder._writeLimiter;
+        _writePriority = builder._writePriority;
+        _drainMarker = builder._drainMarker;
+        _drainWindowMillis = builder._drainWindowMillis;
+        _latestData = builder._data;
+        _metrics = builder._metrics;
+        for (Operation operation : Operation.values()) {
+            _retryCounts.put(operation, new AtomicLong());
+        }
+        Sync sync = new Sync(builder._curator, basePath, encode(builder._data), builder._mode,
+                builder._dataUpdateIntervalNanos);
+        _async = new Async(_executor, _writeLimiter, _writePriority, sync);
+
+        if (_metrics != null) {
+            _metrics.onStart(this);
+        }
+        _async.createNode();
+        if (waitForCreation) {
+            await(_created, CREATION_WAIT_IN_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Returns a builder for a {@code PersistentEphemeralNode} with non-default options.
+     */
+    public static Builder builder(CuratorFramework curator, String basePath, byte[] data, CreateMode mode) {
+        return new Builder(curator, basePath, data, mode);
+    }
+
+    /**
+     * Replace the node's data.  The node is updated in place, so watchers see the data change rather than the node
+     * being removed and added again, and the new data is used if the node has to be recreated, ex. after its session
+     * expires.
+     * <p/>
+     * Writes are limited to one per data update interval (see {@link Builder#withDataUpdateInterval}).  When the data
+     * is set more often than that only the latest data is written, at the end of the interval.  This returns without
+     * waiting for the write.
+     */
+    public void setData(byte[] data) {
         checkNotNull(data);
-        checkNotNull(mode);
-        checkArgument(mode == CreateMode.EPHEMERAL || mode == CreateMode.EPHEMERAL_SEQUENTIAL);
+        checkState(!_closed.get(), "Node is closed");
+        checkState(!_draining.get(), "Node is draining");
+        _latestData = data;
+        _async.setData(encode(data));
+    }
 
-        // TODO: Share this executor across multiple persistent ephemeral nodes in a way that guarantees that it is a
-        // TODO: single thread executor.
-        _executor = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
-        _async = new Async(_executor, new Sync(curator, basePath, data, mode));
+    /**
+     * Gracefully deregister the node.  Rather than deleting the node straight away, which would leave clients with a
+     * stale view sending traffic to a process that is going away, the node's data is first rewritten with the drain
+     * marker (see {@link Builder#withDrainMarker}) so that {@link NodeDiscovery} instances using the same marker stop
+     * showing it.  Once the drain window has passed for that change to propagate the node is deleted as by
+     * {@link #close}.  This blocks for the drain window, plus up to {@code duration} each for the write and the delete.
+     * <p/>
+     * If the thread is interrupted the drain window is cut short, but the node is still deleted; this then returns
+     * with the thread's interrupt status set.  A call made while another is already draining the node waits for that
+     * drain to finish.
+     */
+    public void drain(long duration, TimeUnit unit) {
+        checkState(_drainMarker != null, "Node has no drain marker");
+        if (_closed.get()) {
+            return;
+        }
 
-        CountDownLatch latch = new CountDownLatch(1);
-        _async.createNode(latch);
-        await(latch, CREATION_WAIT_IN_SECONDS, TimeUnit.SECONDS);
+        if (!_draining.compareAndSet(false, true)) {
+            // Let the drain in progress run its course rather than cutting its window short.
+            try {
+                _drained.await(_drainWindowMillis + 2 * unit.toMillis(duration), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            byte[] marked = checkNotNull(_drainMarker.mark(_latestData), "DrainMarker returned null");
+            CountDownLatch written = new CountDownLatch(1);
+            _async.markDraining(encode(marked), written);
+            written.await(duration, unit);
+            Thread.sleep(_drainWindowMillis);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            // Whatever happened the node must not be left registered and marked as draining.
+            try {
+                close(duration, unit);
+            } finally {
+                _drained.countDown();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private byte[] encode(byte[] data) {
+        return (_payloadCodec != null) ? _payloadCodec.encode(data) : data;
     }
 
     public void close(long duration, TimeUnit unit) {
@@ -74,12 +202,66 @@ public class PersistentEphemeralNode {
             return;
         }
 
+        _created.setException(new IllegalStateException("Closed before the node was created."));
+
         CountDownLatch latch = new CountDownLatch(1);
         _async.close(latch);
         await(latch, duration, unit);
 
         _executor.shutdown();
-        await(_executor, duration, unit);
+        if (_ownedScheduler != null) {
+            _ownedScheduler.close();
+            await(_ownedScheduler, duration, unit);
+        }
+        if (_metrics != null) {
+            _metrics.onClose(this);
+        }
+    }
+
+    /**
+     * Returns a future of the actual path of the node, including namespace (if any) and unique ID.  The future
+     * completes when the node is first created, or fails if the node is closed before it could be created.  The node
+     * may be recreated at a different path later, ex. after a session expires with {@code EPHEMERAL_SEQUENTIAL}.
+     */
+    public ListenableFuture<String> getCreationFuture() {
+        return _created;
+    }
+
+    /**
+     * Returns the number of times an operation against ZooKeeper (creating, watching or deleting the node) has been
+     * retried because it failed.
+     */
+    public long getRetryCount() {
+        return _retries.getCount();
+    }
+
+    /**
+     * Returns the number of times operations of the given type have been retried because they failed.
+     */
+    public long getRetryCount(Operation operation) {
+        return _retryCounts.get(checkNotNull(operation)).get();
+    }
+
+    /**
+     * Returns what the node is currently doing, see {@link State}.
+     */
+    public State getState() {
+        return _state;
+    }
+
+    /**
+     * Returns the most recent error from an operation against ZooKeeper, or null if there hasn't been one.
+     */
+    public Exception getLastError() {
+        return _retries.getLastError();
+    }
+
+    /**
+     * Returns the limiter that the node's writes go through, which may be shared with other nodes, or null if its
+     * writes aren't limited.  See {@link Builder#withWriteLimiter}.
+     */
+    public EphemeralWriteLimiter getWriteLimiter() {
+        return _writeLimiter;
     }
 
     @VisibleForTesting
@@ -88,17 +270,65 @@ public class PersistentEphemeralNode {
     }
 
     /**
-     * Gets the actual path, including namespace (if any) and unique ID of the ZooKeeper node backing this object.
-     * </p>
-     * NOTE: This could potentially block forever (if the node never successfully gets created), so this method should
-     * only be called in testing code.
+     * Gets the actual path, including namespace (if any) and unique ID, of the ZooKeeper node backing this object,
+     * waiting for the node to be created if it hasn't been yet.  Once the node has been created this returns the path
+     * it was most recently created at without blocking, even while the node is being recreated.  To find out when the
+     * path changes, ex. when an {@code EPHEMERAL_SEQUENTIAL} node is recreated after its session expired, use
+     * {@link #addPathListener(PathListener)}.
+     *
      * @return The actual path of the ZooKeeper node.
-     * @throws InterruptedException If retrieval of the path is interrupted.
-     * @throws java.util.concurrent.ExecutionException Never.
+     * @throws InterruptedException If interrupted while waiting for the node to be created.
+     * @throws ExecutionException   If the node was closed before it could be created.
      */
-    @VisibleForTesting
-    String getActualPath() throws ExecutionException, InterruptedException {
-        return _async.getActualPath();
+    public String getActualPath() throws ExecutionException, InterruptedException {
+        String path = _actualPath;
+        return (path != null) ? path : _created.get();
+    }
+
+    /**
+     * Add a listener that is told the node's path whenever the node is created at a new path.  If the node has
+     * already been created the listener is told its current path straight away.  Listeners are called on the node's
+     * own thread, so they must not block.
+     */
+    public void addPathListener(final PathListener listener) {
+        checkNotNull(listener);
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // Added on the node's thread, where paths are published, so the listener misses no change.
+                if (_actualPath != null) {
+                    notifyPathListener(listener, _actualPath);
+                }
+                _pathListeners.add(listener);
+            }
+        });
+    }
+
+    /**
+     * Remove a path listener.
+     */
+    public void removePathListener(PathListener listener) {
+        _pathListeners.remove(listener);
+    }
+
+    private void notifyPathListener(PathListener listener, String path) {
+        try {
+            listener.onPathChanged(path);
+        } catch (Exception e) {
+            LOG.warn("PathListener failed. ZooKeeperPath: {}", path, e);
+        }
+    }
+
+    private void await(Future<?> future, long duration, TimeUnit unit) {
+        try {
+            future.get(duration, unit);
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            // Closed while waiting, nothing more to wait for.
+        } catch (TimeoutException e) {
+            // Not created yet, the node will keep trying in the background.
+        }
     }
 
     private void await(CountDownLatch latch, long duration, TimeUnit unit) {
@@ -109,14 +339,157 @@ public class PersistentEphemeralNode {
         }
     }
 
-    private void await(ExecutorService executor, long duration, TimeUnit unit) {
+    private void await(EphemeralNodeScheduler scheduler, long duration, TimeUnit unit) {
         try {
-            executor.awaitTermination(duration, unit);
+            scheduler.awaitTermination(duration, unit);
         } catch (InterruptedException e) {
             throw Throwables.propagate(e);
         }
     }
 
+    /**
+     * Builder for {@code PersistentEphemeralNode} instances that need non-default options.
+     */
+    public static final class Builder {
+        private final CuratorFramework _curator;
+        private final String _basePath;
+        private final byte[] _data;
+        private final CreateMode _mode;
+        private BucketLayout _bucketLayout;
+        private Supplier<String> _bucketKeys;  // null picks a random key
+        private PayloadCodec _payloadCodec;
+        private EphemeralNodeScheduler _scheduler;
+        private RetrySchedule _retrySchedule = DEFAULT_RETRY_SCHEDULE;
+        private long _dataUpdateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DATA_UPDATE_INTERVAL_IN_MILLIS);
+        private EphemeralWriteLimiter _writeLimiter;
+        private EphemeralWriteLimiter.Priority _writePriority;
+        private DrainMarker _drainMarker;
+        private long _drainWindowMillis;
+        private PersistentEphemeralNodeMetrics _metrics;
+
+        private Builder(CuratorFramework curator, String basePath, byte[] data, CreateMode mode) {
+            checkNotNull(curator);
+            checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+            checkNotNull(basePath);
+            checkNotNull(data);
+            checkNotNull(mode);
+            checkArgument(mode == CreateMode.EPHEMERAL || mode == CreateMode.EPHEMERAL_SEQUENTIAL);
+
+            _curator = curator;
+            _basePath = basePath;
+            _data = data;
+            _mode = mode;
+        }
+
+        /**
+         * Register into a hash-bucketed layout.  The node is created under a bucket directory chosen at random for
+         * this registration, ex. {@code /svc/node} is created as {@code /svc/<bucket>/node}, so that many nodes with
+         * the same name are spread across the buckets.  The bucket doesn't change when the node is recreated.  For
+         * {@code EPHEMERAL_SEQUENTIAL} nodes the sequence numbers are only ordered within a bucket.  Use the same
+         * layout with {@link NodeDiscovery.Builder#withBucketLayout(BucketLayout)} to watch the nodes.
+         */
+        public Builder withBucketLayout(BucketLayout bucketLayout) {
+            _bucketLayout = checkNotNull(bucketLayout);
+            return this;
+        }
+
+        /**
+         * Take the key that picks the node's bucket from the given supplier instead of a random UUID, so that tests
+         * can control which bucket the node lands in.
+         */
+        @VisibleForTesting
+        Builder withBucketKeys(Supplier<String> bucketKeys) {
+            _bucketKeys = checkNotNull(bucketKeys);
+            return this;
+        }
+
+        /**
+         * Compress the node's data with the given codec.  Only a {@link NodeDiscovery} built with the same codec
+         * decodes it again before parsing it, see {@link NodeDiscovery.Builder#withPayloadCodecs(PayloadCodec...)}.
+         */
+        public Builder withPayloadCodec(PayloadCodec payloadCodec) {
+            _payloadCodec = checkNotNull(payloadCodec);
+            return this;
+        }
+
+        /**
+         * Maintain the node using the threads of a scheduler that is shared with other nodes, instead of a thread of
+         * its own.  The scheduler must not be closed before the node is.
+         */
+        public Builder withScheduler(EphemeralNodeScheduler scheduler) {
+            _scheduler = checkNotNull(scheduler);
+            return this;
+        }
+
+        /**
+         * Set how long to wait before retrying operations against ZooKeeper that failed.  Defaults to a
+         * {@link DecorrelatedJitterRetrySchedule} from 100ms up to 10s.
+         */
+        public Builder withRetrySchedule(RetrySchedule retrySchedule) {
+            _retrySchedule = checkNotNull(retrySchedule);
+            return this;
+        }
+
+        /**
+         * Set the minimum time between writes of the node's data by {@link PersistentEphemeralNode#setData(byte[])}.
+         * Data that is set more often is coalesced, so only the latest is written.  Defaults to one second.
+         */
+        public Builder withDataUpdateInterval(long duration, TimeUnit unit) {
+            checkArgument(duration >= 0, "duration must not be negative");
+            _dataUpdateIntervalNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Limit the rate at which the node is created, recreated and deleted with a limiter that is shared with other
+         * nodes in the process, ex. so they don't all recreate their nodes at once after a session expires.  The
+         * node's writes wait their turn behind queued writes of a higher priority.  The limiter must not be closed
+         * before the node is.
+         */
+        public Builder withWriteLimiter(EphemeralWriteLimiter writeLimiter, EphemeralWriteLimiter.Priority priority) {
+            _writeLimiter = checkNotNull(writeLimiter);
+            _writePriority = checkNotNull(priority);
+            return this;
+        }
+
+        /**
+         * Allow the node to be drained with {@link PersistentEphemeralNode#drain}, which marks its data with the given
+         * marker and waits for the drain window before deleting it.  The window should be long enough for the change
+         * to reach every {@link NodeDiscovery} and for requests already routed to this node to finish.
+         */
+        public Builder withDrainMarker(DrainMarker drainMarker, long drainWindow, TimeUnit unit) {
+            checkArgument(drainWindow >= 0, "drainWindow must not be negative");
+            _drainMarker = checkNotNull(drainMarker);
+            _drainWindowMillis = unit.toMillis(drainWindow);
+            return this;
+        }
+
+        /**
+         * Report the node's state changes, how long it goes missing and its retries to the given metrics.  See
+         * {@link PersistentEphemeralNodeMetrics}.
+         */
+        public Builder withMetrics(PersistentEphemeralNodeMetrics metrics) {
+            _metrics = checkNotNull(metrics);
+            return this;
+        }
+
+        /**
+         * Create the ephemeral node in ZooKeeper, waiting a short while for it to be initially created.
+         */
+        public PersistentEphemeralNode build() {
+            return new PersistentEphemeralNode(this, true);
+        }
+
+        /**
+         * Start creating the ephemeral node in ZooKeeper without waiting for it to be created, so that many nodes can
+         * be registered in parallel.  Use {@link PersistentEphemeralNode#getCreationFuture()} to find out when the
+         * node has been created.
+         */
+        public PersistentEphemeralNode buildAsync() {
+            return new PersistentEphemeralNode(this, false);
+        }
+    }
+
     /**
      * Watcher events are executed on the ZooKeeper event thread.  Switch over to the thread used by the methods
      * in the Sync class.
@@ -139,131 +512,180 @@ public class PersistentEphemeralNode {
      * operations proxy to the corresponding operation in the contained {@link Sync} object.
      */
     private static class Async {
-        private final ScheduledExecutorService _executor;
+        private final EphemeralNodeScheduler.SerialExecutor _executor;
+        private final EphemeralWriteLimiter _writeLimiter;
+        private final EphemeralWriteLimiter.Priority _writePriority;
         private final Sync _sync;
 
-        private Async(ScheduledExecutorService executor, Sync sync) {
+        private Async(EphemeralNodeScheduler.SerialExecutor executor, EphemeralWriteLimiter writeLimiter,
+                      EphemeralWriteLimiter.Priority writePriority, Sync sync) {
             _executor = executor;
+            _writeLimiter = writeLimiter;
+            _writePriority = writePriority;
             _sync = sync;
         }
 
-        private void createNode(final CountDownLatch latch) {
-            _executor.submit(new Runnable() {
+        private void createNode() {
+            _executor.submit(limited(new Runnable() {
                 @Override
                 public void run() {
-                    _sync.createNode(latch);
+                    _sync.createNode();
                 }
-            });
+            }));
         }
 
-        private void waitThenCreateNode(final CountDownLatch latch) {
-            _executor.schedule(new Runnable() {
+        private void waitThenCreateNode(long delayMillis) {
+            _executor.schedule(limited(new Runnable() {
                 @Override
                 public void run() {
-                    _sync.createNode(latch);
+                    _sync.createNode();
                 }
-            }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+            }), delayMillis, TimeUnit.MILLISECONDS);
         }
 
-        private void waitThenWatchNode() {
+        private void waitThenWatchNode(long delayMillis) {
             _executor.schedule(new Runnable() {
                 @Override
                 public void run() {
                     _sync.watchNode();
                 }
-            }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+            }, delayMillis, TimeUnit.MILLISECONDS);
         }
 
-        private void waitThenDeleteNode(final CountDownLatch latch) {
+        private void deleteNode(final CountDownLatch latch) {
+            waitThenDeleteNode(latch, 0);
+        }
+
+        /** Poll without the write limiter, nothing is written until there is a node to delete. */
+        private void waitThenDeleteCreatedNode(final CountDownLatch latch, long delayMillis) {
             _executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    _sync.deleteCreatedNode(latch);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void waitThenDeleteNode(final CountDownLatch latch, long delayMillis) {
+            _executor.schedule(limited(new Runnable() {
                 @Override
                 public void run() {
                     _sync.deleteNode(latch);
                 }
-            }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+            }), delayMillis, TimeUnit.MILLISECONDS);
         }
 
-        private void onNodeChanged(final AtomicBoolean handled, final WatchedEvent event) {
+        /**
+         * Returns a task that queues the write with the node's write limiter, if it has one, and otherwise runs it.
+         */
+        private Runnable limited(final Runnable write) {
+            if (_writeLimiter == null) {
+                return write;
+            }
+            return new Runnable() {
+                @Override
+                public void run() {
+                    _writeLimiter.submit(_writePriority, _executor, write);
+                }
+            };
+        }
+
+        private void markDraining(final byte[] data, final CountDownLatch written) {
             _executor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    _sync.onNodeChanged(handled, event);
+                    _sync.markDraining(data, written);
                 }
             });
         }
 
-        private void close(final CountDownLatch latch) {
+        private void setData(final byte[] data) {
             _executor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    _sync.close(latch);
+                    _sync.setData(data);
                 }
             });
         }
 
-        private String getActualPath() throws ExecutionException, InterruptedException {
-            String path = _sync._nodePath;
-            if (path != null) {
-                return path;
-            }
-
-            SettableFuture<String> future = SettableFuture.create();
-
-            while (!future.isDone()) {
-                waitThenGetActualPath(future);
-            }
+        private void waitThenWriteData(long delayNanos) {
+            _executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    _sync.writeData();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
 
-            return future.get();
+        private void onNodeChanged(final AtomicBoolean handled, final WatchedEvent event) {
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    _sync.onNodeChanged(handled, event);
+                }
+            });
         }
 
-        private void waitThenGetActualPath(final SettableFuture<String> future) {
-            _executor.schedule(new Runnable() {
+        private void close(final CountDownLatch latch) {
+            _executor.submit(new Runnable() {
                 @Override
                 public void run() {
-                    String path = _sync._nodePath;
-                    if (path != null) {
-                        future.set(path);
-                    }
+                    _sync.close(latch);
                 }
-            }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+            });
         }
     }
 
     /**
-     * Every method in the Sync class is guaranteed to be executed on the same thread.  Because of this within Sync no
-     * explicit synchronization is necessary.
+     * Every method in the Sync class is guaranteed to be executed by the node's serial executor, one at a time and
+     * each seeing the effects of the ones before it.  Because of this within Sync no explicit synchronization is
+     * necessary.
      */
     private class Sync {
         private final CuratorFramework _curator;
         private final String _basePath;
-        private final byte[] _data;
+        private final long _dataUpdateIntervalNanos;
 
         private volatile String _nodePath;  // volatile since it may be read from other threads
         private boolean _closing;
         private boolean _deleted;
-
-        // Store this at the class level because it encodes state that prevents the need for trying to create the path
-        // multiple times.  If we instantiated this on the fly every time we tried to create a node we'd be wasting
-        // effort since we'd know that that node was created already.
-        private final EnsurePath _ensurePath;
+        private long _unconfirmedSinceMillis;  // when the node was last known to be present, 0 while it is
+        private long _absentSinceMillis;  // when the node went missing, 0 unless it's being recreated
+
+        // The latest data, which the node is (re)created with.  Data that is set while the node exists is also kept
+        // as pending until it has been written to the node.
+        private byte[] _data;
+        private byte[] _pendingData;
+        private boolean _writeScheduled;
+        private long _lastWriteNanos;
+        private int _dataVersion = -1;  // the node's data version when we last saw it, -1 if not known
+        private CountDownLatch _drainWritten;  // counted down once the drain marker has been written
+
+        // Which parent directories are known to exist is shared with every other node that uses the same ZooKeeper
+        // client, so that many nodes under the same parent don't each make sure that it exists.
+        private final ParentPathCache _parentPaths;
+        private final String _parentDir;
 
         // Store this at the class level as well because it is a creation with protection so it has a UUID embedded in
         // the node name.  In order to ensure that that UUID remains constant for this ZooKeeperPersistentEphemeralNode
         // instance we need to only create this one time.
         private final PathAndBytesable<String> _createMethod;
 
-        private Sync(CuratorFramework curator, String basePath, byte[] data, CreateMode mode) {
+        private Sync(CuratorFramework curator, String basePath, byte[] data, CreateMode mode,
+                     long dataUpdateIntervalNanos) {
             _curator = curator;
             _basePath = basePath;
             _data = data;
+            _dataUpdateIntervalNanos = dataUpdateIntervalNanos;
+            _lastWriteNanos = System.nanoTime() - dataUpdateIntervalNanos;
 
-            String parentDir = ZKPaths.getPathAndNode(_basePath).getPath();
-            _ensurePath = _curator.newNamespaceAwareEnsurePath(parentDir);
+            _parentPaths = ParentPathCache.forCurator(_curator);
+            _parentDir = ZKPaths.getPathAndNode(_basePath).getPath();
 
             _createMethod = _curator.create().withProtection().withMode(mode);
         }
 
-        private void createNode(CountDownLatch latch) {
+        private void createNode() {
             if (_deleted) {
                 return;
             }
@@ -271,9 +693,9 @@ public class PersistentEphemeralNode {
 
             try {
                 // Ensure the parents are created first...
-                _ensurePath.ensure(_curator.getZookeeperClient());
+                _parentPaths.ensure(_curator, _parentDir);
             } catch (Exception e) {
-                _async.waitThenCreateNode(latch);
+                _async.waitThenCreateNode(retryDelay(Operation.CREATE, e));
                 return;
             }
 
@@ -284,16 +706,27 @@ public class PersistentEphemeralNode {
                 // The node was already present, it may be created by us, maybe by another session.  In either
                 // case we're going to start watching it and if it gets removed we'll recreate it under our session.
                 _nodePath = e.getPath();
+            } catch (KeeperException.NoNodeException e) {
+                // The parent was deleted after it was ensured.  Ensure it again next time.
+                _parentPaths.invalidate(_curator, _parentDir);
+                _async.waitThenCreateNode(retryDelay(Operation.CREATE, e));
+                return;
             } catch (Exception e) {
-                _async.waitThenCreateNode(latch);
+                _async.waitThenCreateNode(retryDelay(Operation.CREATE, e));
                 return;
             }
 
+            if (_absentSinceMillis != 0) {
+                if (_metrics != null) {
+                    _metrics.recordAbsence(System.currentTimeMillis() - _absentSinceMillis);
+                }
+                _absentSinceMillis = 0;
+            }
             watchNode();
+            publishPath(_nodePath);
 
-            if (latch != null) {
-                latch.countDown();
-            }
+            // Only the first creation completes the future, it's a no-op after that.
+            _created.set(_nodePath);
         }
 
         private void watchNode() {
@@ -312,15 +745,20 @@ public class PersistentEphemeralNode {
                         .forPath(_nodePath);
             } catch (Exception e) {
                 cancelWatcher.set(true);
-                _async.waitThenWatchNode();
+                transitionTo(State.WATCHING);
+                _async.waitThenWatchNode(retryDelay(Operation.WATCH, e));
                 return;
             }
 
-            if (stat == null) {
+            if (stat != null) {
+                _dataVersion = stat.getVersion();
+                resetRetryDelay();
+                transitionTo(State.PRESENT);
+            } else {
                 // The node didn't exist -- it needs to be created, but we've already registered a watcher.  Set the
                 // watcher as handled so that when it's called later (when the node is created) it'll ignore that event.
                 cancelWatcher.set(true);
-                createNode(null);
+                recreateNode();
             }
         }
 
@@ -331,20 +769,140 @@ public class PersistentEphemeralNode {
 
             if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
                 // Doesn't exist.  Must recreate it.
-                createNode(null);
+                recreateNode();
             } else if (event.getType() == Watcher.Event.EventType.None) {
-                // Something failed.  Try again in a little while.
-                _async.waitThenWatchNode();
+                // Something failed, ex. the connection was lost.  Try again in a little while.
+                transitionTo(State.WATCHING);
+                _async.waitThenWatchNode(retryDelay(Operation.WATCH, null));
             } else {
                 // Node changed in a way we don't care about.  Re-establish the watch.
                 watchNode();
             }
         }
 
-        private void deleteNode(CountDownLatch latch) {
+        private void publishPath(String path) {
+            if (path.equals(_actualPath)) {
+                return;
+            }
+            _actualPath = path;
+            for (PathListener listener : _pathListeners) {
+                notifyPathListener(listener, path);
+            }
+        }
+
+        private void recreateNode() {
+            transitionTo(State.RECREATING);
+            if (_writeLimiter != null) {
+                // Wait for the limiter to let the create through.
+                _async.createNode();
+            } else {
+                createNode();
+            }
+        }
+
+        private void setData(byte[] data) {
+            if (_closing || (_pendingData == null && Arrays.equals(data, _data))) {
+                return;
+            }
+
+            _data = data;
+            _pendingData = data;
+            if (!_writeScheduled) {
+                // Write now, unless we wrote recently, then write whatever is latest at the end of the interval.
+                _writeScheduled = true;
+                long delayNanos = _lastWriteNanos + _dataUpdateIntervalNanos - System.nanoTime();
+                _async.waitThenWriteData(Math.max(0, delayNanos));
+            }
+        }
+
+        private void markDraining(byte[] data, CountDownLatch written) {
+            if (_closing) {
+                written.countDown();
+                return;
+            }
+
+            // Write straight away, regardless of the data update interval.
+            _data = data;
+            _pendingData = data;
+            _drainWritten = written;
+            writeData();
+        }
+
+        private void writeData() {
+            _writeScheduled = false;
+            if (_closing || _pendingData == null) {
+                return;
+            }
+            if (_nodePath == null) {
+                // The node is being (re)created, and it will be created with the latest data.
+                _pendingData = null;
+                onDataWritten();
+                return;
+            }
+
+            try {
+                if (_dataVersion < 0) {
+                    Stat stat = _curator.checkExists().forPath(_nodePath);
+                    if (stat == null) {
+                        // Deleted, the watcher will recreate it with the latest data.
+                        _pendingData = null;
+                        onDataWritten();
+                        return;
+                    }
+                    _dataVersion = stat.getVersion();
+                }
+
+                // Write against the version we last saw, so if the node changed underneath us (ex. it was recreated)
+                // the write is rejected and we look again rather than writing blindly.
+                Stat stat = _curator.setData().withVersion(_dataVersion).forPath(_nodePath, _pendingData);
+                _dataVersion = stat.getVersion();
+            } catch (KeeperException.NoNodeException e) {
+                // Deleted, the watcher will recreate it with the latest data.
+                _pendingData = null;
+                onDataWritten();
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                // Changed since we last looked, ex. an earlier write whose response was lost.  Look again and retry.
+                _dataVersion = -1;
+                _writeScheduled = true;
+                _async.waitThenWriteData(0);
+                return;
+            } catch (Exception e) {
+                _writeScheduled = true;
+                _async.waitThenWriteData(TimeUnit.MILLISECONDS.toNanos(retryDelay(Operation.WRITE, e)));
+                return;
+            }
+
+            _pendingData = null;
+            _lastWriteNanos = System.nanoTime();
+            resetRetryDelay();
+            onDataWritten();
+        }
+
+        private void onDataWritten() {
+            if (_drainWritten != null) {
+                _drainWritten.countDown();
+                _drainWritten = null;
+            }
+        }
+
+        /**
+         * Delete the node once it has been created, only then waiting for the write limiter to let the delete through.
+         */
+        private void deleteCreatedNode(CountDownLatch latch) {
             if (_nodePath == null) {
                 // The only time _nodePath is null is if we're creating a node.  Wait for it to finish.
-                _async.waitThenDeleteNode(latch);
+                _async.waitThenDeleteCreatedNode(latch, WAIT_DURATION_IN_MILLIS);
+            } else if (_writeLimiter != null) {
+                _async.deleteNode(latch);
+            } else {
+                deleteNode(latch);
+            }
+        }
+
+        private void deleteNode(CountDownLatch latch) {
+            if (_nodePath == null) {
+                deleteCreatedNode(latch);
                 return;
             }
 
@@ -354,11 +912,13 @@ public class PersistentEphemeralNode {
                 // The node doesn't exist, we don't care, we're finished.
             } catch (Exception e) {
                 // Something failed.  Try again in a little while.
-                _async.waitThenDeleteNode(latch);
+                _async.waitThenDeleteNode(latch, retryDelay(Operation.DELETE, e));
                 return;
             }
 
+            resetRetryDelay();
             _deleted = true;
+            transitionTo(State.CLOSED);
 
             if (latch != null) {
                 latch.countDown();
@@ -369,7 +929,76 @@ public class PersistentEphemeralNode {
             if (_closing) return;
 
             _closing = true;
-            deleteNode(latch);
+            transitionTo(State.DELETING);
+            deleteCreatedNode(latch);
+        }
+
+        private void transitionTo(State state) {
+            State from = _state;
+            if (from == state) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (from == State.PRESENT) {
+                _unconfirmedSinceMillis = now;
+            } else if (state == State.PRESENT) {
+                _unconfirmedSinceMillis = 0;
+            }
+            if (state == State.RECREATING && _absentSinceMillis == 0) {
+                // The node may have gone while we couldn't see it, ex. when its session expired while disconnected.
+                _absentSinceMillis = (_unconfirmedSinceMillis != 0) ? _unconfirmedSinceMillis : now;
+            }
+
+            _state = state;
+            if (_metrics != null) {
+                _metrics.recordStateChange(from, state, now);
+            }
         }
+
+        /**
+         * Record a failed operation and decide how long to wait before retrying it.
+         *
+         * @param operation The operation that failed.
+         * @param e         The error, or null if the failure wasn't an exception (ex. a watcher was told of a
+         *                  disconnect).
+         */
+        private long retryDelay(Operation operation, Exception e) {
+            _retryCounts.get(operation).incrementAndGet();
+            if (_metrics != null) {
+                _metrics.recordRetry(operation);
+            }
+            return _retries.delay(e);
+        }
+
+        private void resetRetryDelay() {
+            _retries.reset();
+        }
+    }
+
+    /** What a node is doing. */
+    public static enum State {
+        /** Being created for the first time. */
+        CREATING,
+        /** Known to exist, and watched so that its deletion is noticed. */
+        PRESENT,
+        /** Created, but it isn't known whether it still exists, ex. while disconnected from ZooKeeper. */
+        WATCHING,
+        /** Being created again after it went missing, ex. because its session expired. */
+        RECREATING,
+        /** Being deleted because the node is being closed. */
+        DELETING,
+        /** Deleted and closed. */
+        CLOSED
+    }
+
+    /** The operations against ZooKeeper that are retried when they fail. */
+    public static enum Operation {
+        CREATE, WATCH, WRITE, DELETE
+    }
+
+    /** Listener interface that is notified when the node is created at a new path. */
+    public static interface PathListener {
+        void onPathChanged(String path);
     }
 }
@@ -0,0 +1,469 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A group of ephemeral nodes that, like {@link PersistentEphemeralNode}, attempt to stay present in ZooKeeper even
+ * through connection and session interruptions, but that are created together.  Missing nodes are created in a single
+ * multi-op transaction, so registering the group, or recreating all of it after its session expires, takes one round
+ * trip instead of one per node.  If the transaction conflicts with what is in ZooKeeper (ex. some of the nodes still
+ * exist, or a parent was deleted) the missing nodes are created one by one instead.
+ * <p/>
+ * Nodes are named like the nodes of a {@code PersistentEphemeralNode}, with a unique protected prefix, so the nodes
+ * of several groups (or several processes) with the same base paths don't collide.  Only {@link CreateMode#EPHEMERAL}
+ * nodes are supported, since the names of sequential nodes aren't known until they are created.
+ */
+public class PersistentEphemeralNodeGroup {
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentEphemeralNodeGroup.class);
+
+    private static final long WAIT_DURATION_IN_MILLIS = 100;
+
+    /** Retry failed operations after 100ms at first, backing off to at most 10s while they keep failing. */
+    private static final RetrySchedule DEFAULT_RETRY_SCHEDULE =
+            new DecorrelatedJitterRetrySchedule(WAIT_DURATION_IN_MILLIS, 10000, TimeUnit.MILLISECONDS);
+
+    /** How long to wait for the nodes to be initially created in seconds. */
+    private static final long CREATION_WAIT_IN_SECONDS = 10;
+
+    /** The prefix {@code CreateBuilder.withProtection()} gives node names, followed by a UUID and a dash. */
+    private static final String PROTECTED_PREFIX = "_c_";
+
+    private final CuratorFramework _curator;
+    private final BatchWriter _writer;
+    private final List<Member> _members;
+    private final EphemeralNodeScheduler.SerialExecutor _executor;
+    private final EphemeralNodeScheduler _ownedScheduler;  // null when using a shared scheduler
+    private final AtomicBoolean _closed = new AtomicBoolean();
+    private final SettableFuture<List<String>> _created = SettableFuture.create();
+    private final BatchWriter.Retries _retries;
+
+    // Only accessed by tasks on the executor, which run one at a time.
+    private boolean _createScheduled;
+    private boolean _closing;
+
+    private PersistentEphemeralNodeGroup(Builder builder, boolean waitForCreation) {
+        _curator = builder._curator;
+        _writer = new BatchWriter(_curator);
+        _retries = new BatchWriter.Retries(builder._retrySchedule);
+
+        ImmutableList.Builder<Member> members = ImmutableList.builder();
+        for (int i = 0; i < builder._basePaths.size(); i++) {
+            // Bucket by the protected name, which is unique to this registration, so that nodes with the same name
+            // are spread across the buckets.
+            String protectedPath = protect(builder._basePaths.get(i));
+            String path = protectedPath;
+            if (builder._bucketLayout != null) {
+                path = (builder._bucketKeys != null)
+                        ? builder._bucketLayout.getBucketedPath(protectedPath, builder._bucketKeys.get())
+                        : builder._bucketLayout.getBucketedPath(protectedPath);
+            }
+            byte[] data = (builder._payloadCodec != null)
+                    ? builder._payloadCodec.encode(builder._data.get(i))
+                    : builder._data.get(i);
+            members.add(new Member(path, data));
+        }
+        _members = members.build();
+
+        _ownedScheduler = (builder._scheduler == null) ? new EphemeralNodeScheduler(1) : null;
+        _executor = (builder._scheduler != null)
+                ? builder._scheduler.newSerialExecutor()
+                : _ownedScheduler.newSerialExecutor();
+
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                createMissingNodes();
+            }
+        });
+        if (waitForCreation) {
+            awaitCreation();
+        }
+    }
+
+    /**
+     * Returns a builder for a group of ephemeral nodes that are registered using the given curator.
+     */
+    public static Builder builder(CuratorFramework curator) {
+        return new Builder(curator);
+    }
+
+    /**
+     * Returns the actual paths of the nodes, in the order they were added to the builder.
+     */
+    public List<String> getPaths() {
+        List<String> paths = Lists.newArrayListWithCapacity(_members.size());
+        for (Member member : _members) {
+            paths.add(member._path);
+        }
+        return paths;
+    }
+
+    /**
+     * Returns a future of the actual paths of the nodes that completes when every node has been created, or fails if
+     * the group is closed first.
+     */
+    public ListenableFuture<List<String>> getCreationFuture() {
+        return _created;
+    }
+
+    /**
+     * Returns the number of times an operation against ZooKeeper has been retried because it failed.
+     */
+    public long getRetryCount() {
+        return _retries.getCount();
+    }
+
+    /**
+     * Returns the most recent error from an operation against ZooKeeper, or null if there hasn't been one.
+     */
+    public Exception getLastError() {
+        return _retries.getLastError();
+    }
+
+    public void close(long duration, TimeUnit unit) {
+        if (!_closed.compareAndSet(false, true)) {
+            // Already closed
+            return;
+        }
+
+        _created.setException(new IllegalStateException("Closed before the nodes were created."));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        _executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                _closing = true;
+                deleteNodes(latch);
+            }
+        });
+        try {
+            latch.await(duration, unit);
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+
+        _executor.shutdown();
+        if (_ownedScheduler != null) {
+            _ownedScheduler.close();
+            try {
+                _ownedScheduler.awaitTermination(duration, unit);
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private void awaitCreation() {
+        try {
+            _created.get(CREATION_WAIT_IN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            // Closed while waiting, nothing more to wait for.
+        } catch (TimeoutException e) {
+            // Not created yet, the group will keep trying in the background.
+        }
+    }
+
+    /**
+     * Returns the path of a node named the way {@code CreateBuilder.withProtection()} names it, with a new UUID.
+     */
+    static String protect(String basePath) {
+        ZKPaths.PathAndNode pathAndNode = ZKPaths.getPathAndNode(basePath);
+        String name = PROTECTED_PREFIX + UUID.randomUUID() + "-" + pathAndNode.getNode();
+        return ZKPaths.makePath(pathAndNode.getPath(), name);
+    }
+
+    /**
+     * Create every node that isn't known to exist, in one transaction if possible.
+     */
+    private void createMissingNodes() {
+        _createScheduled = false;
+        if (_closing) {
+            return;
+        }
+
+        final Map<String, Member> missing = Maps.newLinkedHashMap();
+        Map<String, byte[]> data = Maps.newLinkedHashMap();
+        for (Member member : _members) {
+            if (!member._exists) {
+                missing.put(member._path, member);
+                data.put(member._path, member._data);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        try {
+            _writer.create(data, CreateMode.EPHEMERAL, new BatchWriter.CreateCallback() {
+                @Override
+                public void onCreated(String path) {
+                    PersistentEphemeralNodeGroup.this.onCreated(missing.get(path));
+                }
+            });
+        } catch (Exception e) {
+            // The rest of the missing nodes are created in the next attempt.
+            waitThenCreateMissingNodes(_retries.delay(e));
+            return;
+        }
+        _retries.reset();
+    }
+
+    private void onCreated(Member member) {
+        member._exists = true;
+        watchNode(member);
+
+        boolean allCreated = true;
+        for (Member m : _members) {
+            allCreated &= m._exists;
+        }
+        if (allCreated) {
+            // Only the first time completes the future, it's a no-op after that.
+            _created.set(getPaths());
+        }
+    }
+
+    private void watchNode(Member member) {
+        if (_closing) {
+            return;
+        }
+
+        AtomicBoolean cancelWatcher = new AtomicBoolean();
+        Stat stat;
+        try {
+            stat = _curator.checkExists().usingWatcher(new CheckExistsWatcher(member, cancelWatcher))
+                    .forPath(member._path);
+        } catch (Exception e) {
+            // Don't know whether it exists, so treat it as missing.  Creating it will find out.
+            cancelWatcher.set(true);
+            onNodeMissing(member);
+            return;
+        }
+
+        if (stat == null) {
+            cancelWatcher.set(true);
+            onNodeMissing(member);
+        }
+    }
+
+    private void onNodeChanged(Member member, AtomicBoolean watcherCanceled, WatchedEvent event) {
+        if (_closing || !watcherCanceled.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (event.getType() == Watcher.Event.EventType.NodeDeleted
+                || event.getType() == Watcher.Event.EventType.None) {
+            // Deleted, or the connection had a problem and it may have been deleted along with the session.
+            onNodeMissing(member);
+        } else {
+            // Node changed in a way we don't care about.  Re-establish the watch.
+            watchNode(member);
+        }
+    }
+
+    /**
+     * Wait a little before creating a missing node, so that when a session expires every node's watcher has a chance
+     * to fire and the nodes are all recreated in one transaction.
+     */
+    private void onNodeMissing(Member member) {
+        member._exists = false;
+        waitThenCreateMissingNodes(WAIT_DURATION_IN_MILLIS);
+    }
+
+    private void waitThenCreateMissingNodes(long delayMillis) {
+        if (_createScheduled) {
+            return;
+        }
+        _createScheduled = true;
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                createMissingNodes();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void deleteNodes(final CountDownLatch latch) {
+        try {
+            _writer.delete(getPaths());
+        } catch (Exception e) {
+            LOG.debug("Unable to delete nodes, will retry.", e);
+            waitThenDeleteNodes(latch, _retries.delay(e));
+            return;
+        }
+
+        _retries.reset();
+        latch.countDown();
+    }
+
+    private void waitThenDeleteNodes(final CountDownLatch latch, long delayMillis) {
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deleteNodes(latch);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One of the nodes of the group.
+     */
+    private static final class Member {
+        private final String _path;
+        private final byte[] _data;
+        private boolean _exists;  // only accessed by tasks on the executor
+
+        private Member(String path, byte[] data) {
+            _path = path;
+            _data = data;
+        }
+    }
+
+    /**
+     * Watcher events are executed on the ZooKeeper event thread.  Switch over to the group's executor.
+     */
+    private class CheckExistsWatcher implements Watcher {
+        private final Member _member;
+        private final AtomicBoolean _watcherCanceled;
+
+        private CheckExistsWatcher(Member member, AtomicBoolean watcherCanceled) {
+            _member = member;
+            _watcherCanceled = watcherCanceled;
+        }
+
+        @Override
+        public void process(final WatchedEvent event) {
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    onNodeChanged(_member, _watcherCanceled, event);
+                }
+            });
+        }
+    }
+
+    /**
+     * Builder for {@code PersistentEphemeralNodeGroup} instances.
+     */
+    public static final class Builder {
+        private final CuratorFramework _curator;
+        private final List<String> _basePaths = Lists.newArrayList();
+        private final List<byte[]> _data = Lists.newArrayList();
+        private BucketLayout _bucketLayout;
+        private Supplier<String> _bucketKeys;  // null buckets by the protected name
+        private PayloadCodec _payloadCodec;
+        private EphemeralNodeScheduler _scheduler;
+        private RetrySchedule _retrySchedule = DEFAULT_RETRY_SCHEDULE;
+
+        private Builder(CuratorFramework curator) {
+            checkNotNull(curator);
+            checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+
+            _curator = curator;
+        }
+
+        /**
+         * Add an ephemeral node to the group.
+         */
+        public Builder addNode(String basePath, byte[] data) {
+            checkNotNull(basePath);
+            checkNotNull(data);
+
+            _basePaths.add(basePath);
+            _data.add(data);
+            return this;
+        }
+
+        /**
+         * Register the nodes into a hash-bucketed layout.  See
+         * {@link PersistentEphemeralNode.Builder#withBucketLayout(BucketLayout)}.
+         */
+        public Builder withBucketLayout(BucketLayout bucketLayout) {
+            _bucketLayout = checkNotNull(bucketLayout);
+            return this;
+        }
+
+        /**
+         * Take the keys that pick the nodes' buckets from the given supplier, one per node in the order they were
+         * added, instead of the nodes' protected names, so that tests can control which buckets the nodes land in.
+         */
+        @VisibleForTesting
+        Builder withBucketKeys(Supplier<String> bucketKeys) {
+            _bucketKeys = checkNotNull(bucketKeys);
+            return this;
+        }
+
+        /**
+         * Compress the nodes' data with the given codec.  See
+         * {@link PersistentEphemeralNode.Builder#withPayloadCodec(PayloadCodec)}.
+         */
+        public Builder withPayloadCodec(PayloadCodec payloadCodec) {
+            _payloadCodec = checkNotNull(payloadCodec);
+            return this;
+        }
+
+        /**
+         * Maintain the nodes using the threads of a scheduler that is shared with other nodes, instead of a thread of
+         * the group's own.  The scheduler must not be closed before the group is.
+         */
+        public Builder withScheduler(EphemeralNodeScheduler scheduler) {
+            _scheduler = checkNotNull(scheduler);
+            return this;
+        }
+
+        /**
+         * Set how long to wait before retrying operations against ZooKeeper that failed.  See
+         * {@link PersistentEphemeralNode.Builder#withRetrySchedule(RetrySchedule)}.
+         */
+        public Builder withRetrySchedule(RetrySchedule retrySchedule) {
+            _retrySchedule = checkNotNull(retrySchedule);
+            return this;
+        }
+
+        /**
+         * Create the ephemeral nodes in ZooKeeper, waiting a short while for them to be initially created.
+         */
+        public PersistentEphemeralNodeGroup build() {
+            checkArgument(!_basePaths.isEmpty(), "A group must have at least one node");
+            return new PersistentEphemeralNodeGroup(this, true);
+        }
+
+        /**
+         * Start creating the ephemeral nodes in ZooKeeper without waiting for them to be created.  Use
+         * {@link PersistentEphemeralNodeGroup#getCreationFuture()} to find out when they have been created.
+         */
+        public PersistentEphemeralNodeGroup buildAsync() {
+            checkArgument(!_basePaths.isEmpty(), "A group must have at least one node");
+            return new PersistentEphemeralNodeGroup(this, false);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.bazaarvoice.curator.recipes;
+
+/**
+ * Receives measurements from a {@link PersistentEphemeralNode}, to show how long its registration goes missing when
+ * something goes wrong (ex. a session expires) and how hard it has to work to recover.  Set with
+ * {@link PersistentEphemeralNode.Builder#withMetrics(PersistentEphemeralNodeMetrics)}.
+ * <p/>
+ * The {@code record} methods are called on the thread that maintains the node, so implementations should be cheap and
+ * must not block.
+ */
+public interface PersistentEphemeralNodeMetrics {
+    /**
+     * Called when the node is built, ex. to register a gauge of {@link PersistentEphemeralNode#getState()}.
+     */
+    void onStart(PersistentEphemeralNode node);
+
+    /**
+     * Called when the node is closed.
+     */
+    void onClose(PersistentEphemeralNode node);
+
+    /**
+     * Called each time the node changes state.
+     *
+     * @param from            The previous state.
+     * @param to              The new state.
+     * @param timestampMillis When the state changed, in milliseconds since the epoch.
+     */
+    void recordStateChange(PersistentEphemeralNode.State from, PersistentEphemeralNode.State to, long timestampMillis);
+
+    /**
+     * Called when the node has been recreated after it went missing.
+     *
+     * @param durationMillis How long the node was missing, from when it was last known to be present (ex. when the
+     *                       connection was lost before its session expired) until it was created again.
+     */
+    void recordAbsence(long durationMillis);
+
+    /**
+     * Called each time a failed operation against ZooKeeper is retried.
+     */
+    void recordRetry(PersistentEphemeralNode.Operation operation);
+}
@@ -0,0 +1,475 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Watches an entire subtree in ZooKeeper, down to a configurable depth, for registries that are organized
+ * hierarchically (ex. {@code /services/<name>/<zone>/<instance>}).  Where a {@link NodeDiscovery} only watches the
+ * direct children of one path, a single {@code RecursiveNodeDiscovery} on {@code /services} with a max depth of 3 sees
+ * every instance of every service in every zone, including services and zones that are created after it starts.
+ * <p/>
+ * Every node below the root path, up to the max depth, is parsed and reported with its full path.  Nodes with no data,
+ * such as the parent nodes created by {@code creatingParentsIfNeeded()}, are reported with a {@code null} value
+ * without being passed to the parser.  Listeners are notified in the order changes are observed; when a subtree is
+ * removed a remove event is fired for each of its nodes, deepest first.
+ * <p/>
+ * Watches are only set on nodes that exist: the data of each node, and the children of each node above the max depth.
+ * If the root path doesn't exist only its existence is watched.  After a reconnect the whole tree is re-read, so
+ * changes made while disconnected (or with a new session) are picked up.
+ * <p/>
+ * The current state of the tree is available as an immutable, versioned {@link Snapshot}.
+ *
+ * @param <T> The type that will be used to represent a node.
+ */
+public class RecursiveNodeDiscovery<T> implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RecursiveNodeDiscovery.class);
+
+    /** How long in milliseconds to wait before re-reading a part of the tree that couldn't be read. */
+    private static final long WAIT_DURATION_IN_MILLIS = 100;
+
+    private final CuratorFramework _curator;
+    private final String _rootPath;
+    private final int _maxDepth;
+    private final NodeDiscovery.NodeDataParser<T> _nodeDataParser;
+    private final ScheduledThreadPoolExecutor _executor;
+    private final Set<NodeDiscovery.NodeListener<T>> _listeners;
+    private final Watcher _watcher = new TreeWatcher();
+    private final ConnectionStateListener _connectionStateListener = new ReconnectListener();
+
+    /** Every known node below the root, sorted so a subtree is a contiguous range of paths. */
+    private final SortedMap<String, Optional<T>> _nodes = Maps.newTreeMap();
+    /** The known children of the root and of every node above the max depth. */
+    private final Map<String, Set<String>> _children = Maps.newHashMap();
+    private long _version;
+    private boolean _changed;
+    private volatile Snapshot<T> _snapshot;
+    private boolean _started;
+    private boolean _closed;
+
+    /**
+     * Creates an instance of {@code RecursiveNodeDiscovery}.
+     *
+     * @param curator  Curator framework reference.
+     * @param rootPath The path in ZooKeeper of the root of the subtree to watch.  The root itself is not reported.
+     * @param maxDepth How many levels below the root to watch.  A depth of 1 watches the same nodes as a
+     *                 {@link NodeDiscovery}.
+     * @param parser   The strategy to convert from ZooKeeper {@code byte[]} to {@code T}.
+     */
+    public RecursiveNodeDiscovery(CuratorFramework curator, String rootPath, int maxDepth,
+                                  NodeDiscovery.NodeDataParser<T> parser) {
+        checkNotNull(curator);
+        checkNotNull(rootPath);
+        checkNotNull(parser);
+        checkArgument(curator.getState() == CuratorFrameworkState.STARTED);
+        checkArgument(!"".equals(rootPath));
+        checkArgument(maxDepth > 0, "maxDepth must be positive");
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(getClass().getSimpleName() + "(" + rootPath + ")-%d")
+                .setDaemon(true)
+                .build();
+
+        _curator = curator;
+        _rootPath = rootPath;
+        _maxDepth = maxDepth;
+        _nodeDataParser = parser;
+        _executor = new ScheduledThreadPoolExecutor(1, threadFactory);
+        _executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        _listeners = Sets.newSetFromMap(Maps.<NodeDiscovery.NodeListener<T>, Boolean>newConcurrentMap());
+        _snapshot = new Snapshot<T>(0, Collections.unmodifiableSortedMap(Maps.<String, T>newTreeMap()));
+    }
+
+    /**
+     * Start watching the tree.  The part of the tree that exists is read before this returns; if it can't be read
+     * (ex. because ZooKeeper isn't reachable) it will continue to be retried in a background thread until it succeeds
+     * or the discovery is closed.
+     */
+    public synchronized void start() {
+        checkState(!_started, "Already started");
+        _started = true;
+
+        _curator.getConnectionStateListenable().addListener(_connectionStateListener, _executor);
+        refresh(_rootPath, true);
+        publishSnapshot();
+    }
+
+    /**
+     * @return An immutable snapshot of the current state of the tree.
+     */
+    public Snapshot<T> getSnapshot() {
+        return _snapshot;
+    }
+
+    /**
+     * Retrieve the nodes in the tree.
+     *
+     * @return The nodes by full path.
+     */
+    public Map<String, T> getNodes() {
+        return getSnapshot().getNodes();
+    }
+
+    /**
+     * Add a node listener.  Events carry the full path of the node that changed.
+     *
+     * @param listener The node listener to add.
+     */
+    public void addListener(NodeDiscovery.NodeListener<T> listener) {
+        _listeners.add(listener);
+    }
+
+    /**
+     * Remove a node listener.
+     *
+     * @param listener The node listener to remove.
+     */
+    public void removeListener(NodeDiscovery.NodeListener<T> listener) {
+        _listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!_closed) {
+            _closed = true;
+            _curator.getConnectionStateListenable().removeListener(_connectionStateListener);
+            _executor.shutdown();
+            _listeners.clear();
+            _nodes.clear();
+            _children.clear();
+            _snapshot = new Snapshot<T>(++_version, Collections.unmodifiableSortedMap(Maps.<String, T>newTreeMap()));
+        }
+    }
+
+    /**
+     * Read a node and the children of the node from ZooKeeper, setting watches on both.
+     *
+     * @param path     The path of the node to read.
+     * @param subtree  Whether to re-read every child that is already known as well as any new ones.  Otherwise only new
+     *                 children are read and the rest are left to their own watches.
+     */
+    private synchronized void refresh(String path, boolean subtree) {
+        if (_closed) {
+            return;
+        }
+
+        int depth = depthOf(path);
+        try {
+            if (depth == 0) {
+                // Only the existence of the root is watched; it isn't reported.
+                if (_curator.checkExists().usingWatcher(_watcher).forPath(path) == null) {
+                    removeSubtree(path);
+                    return;
+                }
+            } else {
+                byte[] data = _curator.getData().usingWatcher(_watcher).forPath(path);
+                putNode(path, parse(path, data));
+            }
+
+            if (depth < _maxDepth) {
+                readChildren(path, subtree);
+            }
+        } catch (KeeperException.NoNodeException e) {
+            removeSubtree(path);
+        } catch (Exception e) {
+            LOG.warn("Unable to read ZooKeeper node, will retry. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            waitThenRefresh(path);
+        }
+    }
+
+    private synchronized void readChildren(String path, boolean subtree) throws Exception {
+        List<String> names = _curator.getChildren().usingWatcher(_watcher).forPath(path);
+
+        Set<String> children = Sets.newHashSet();
+        for (String name : names) {
+            children.add(ZKPaths.makePath(path, name));
+        }
+        Set<String> previous = _children.put(path, children);
+
+        if (previous != null) {
+            for (String child : Sets.difference(previous, children).immutableCopy()) {
+                removeSubtree(child);
+            }
+        }
+        for (String child : children) {
+            if (subtree || previous == null || !previous.contains(child)) {
+                refresh(child, subtree);
+            }
+        }
+    }
+
+    private synchronized void refreshData(String path) {
+        if (depthOf(path) == 0) {
+            // The watch that was set on the root to see if it exists has fired, it needs to be set again.
+            refresh(path, false);
+            return;
+        }
+        if (_closed || !_nodes.containsKey(path)) {
+            return;
+        }
+
+        try {
+            byte[] data = _curator.getData().usingWatcher(_watcher).forPath(path);
+            putNode(path, parse(path, data));
+        } catch (KeeperException.NoNodeException e) {
+            removeSubtree(path);
+        } catch (Exception e) {
+            LOG.warn("Unable to read ZooKeeper node, will retry. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            waitThenRefresh(path);
+        }
+    }
+
+    private synchronized void refreshChildren(String path) {
+        if (_closed || !_children.containsKey(path)) {
+            return;
+        }
+
+        try {
+            readChildren(path, false);
+        } catch (KeeperException.NoNodeException e) {
+            removeSubtree(path);
+        } catch (Exception e) {
+            LOG.warn("Unable to read ZooKeeper children, will retry. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            waitThenRefresh(path);
+        }
+    }
+
+    private void waitThenRefresh(final String path) {
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(path, true);
+                publishSnapshot();
+            }
+        }, WAIT_DURATION_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void putNode(String path, T node) {
+        // synchronize the modification of _nodes and firing of events so listeners always receive events in the
+        // order they occur.
+        Optional<T> oldNode = _nodes.put(path, Optional.fromNullable(node));
+        if (oldNode == null) {
+            changed();
+            for (NodeDiscovery.NodeListener<T> listener : _listeners) {
+                listener.onNodeAdded(path, node);
+            }
+        } else if (!Objects.equal(oldNode.orNull(), node)) {
+            changed();
+            for (NodeDiscovery.NodeListener<T> listener : _listeners) {
+                listener.onNodeUpdated(path, node);
+            }
+        }
+    }
+
+    /** Remove a node and all of its descendants, deepest first. */
+    private void removeSubtree(String path) {
+        List<String> removed = Lists.newArrayList(descendants(_nodes, path).keySet());
+        if (_nodes.containsKey(path)) {
+            removed.add(path);
+        }
+        Collections.sort(removed, Collections.reverseOrder());
+
+        for (String removedPath : removed) {
+            Optional<T> oldNode = _nodes.remove(removedPath);
+            _children.remove(removedPath);
+            changed();
+            for (NodeDiscovery.NodeListener<T> listener : _listeners) {
+                listener.onNodeRemoved(removedPath, oldNode.orNull());
+            }
+        }
+        _children.remove(path);
+    }
+
+    private void changed() {
+        _version++;
+        _changed = true;
+    }
+
+    /**
+     * Publish a new snapshot if the tree has changed.  This is done once all of the changes caused by a watch (or a
+     * reconnect) have been applied, so a burst of changes costs a single copy of the tree and readers never wait.
+     */
+    private synchronized void publishSnapshot() {
+        if (!_changed || _closed) {
+            return;
+        }
+
+        SortedMap<String, T> nodes = Maps.newTreeMap();
+        nodes.putAll(Maps.transformValues(_nodes, new Function<Optional<T>, T>() {
+            @Override
+            public T apply(Optional<T> input) {
+                return input.orNull();
+            }
+        }));
+        _snapshot = new Snapshot<T>(_version, Collections.unmodifiableSortedMap(nodes));
+        _changed = false;
+    }
+
+    private T parse(String path, byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+
+        T value = null;
+        try {
+            value = _nodeDataParser.parse(path, data);
+        } catch (Exception e) {
+            LOG.warn("NodeDataParser failed to parse ZooKeeper data. ZooKeeperPath: {}; Exception Message: {}",
+                    path, e.getMessage());
+            LOG.warn("Exception", e);
+        }
+
+        return value;
+    }
+
+    /** @return The entries of a map keyed by path whose paths are below the given path. */
+    private static <V> SortedMap<String, V> descendants(SortedMap<String, V> map, String path) {
+        // '0' sorts immediately after '/', so this range holds exactly the paths that start with the prefix.
+        String prefix = path.endsWith("/") ? path : path + "/";
+        return map.subMap(prefix, prefix.substring(0, prefix.length() - 1) + "0");
+    }
+
+    /** @return How many levels below the root the path is. */
+    private int depthOf(String path) {
+        if (path.equals(_rootPath)) {
+            return 0;
+        }
+        String relative = path.substring(_rootPath.equals("/") ? 0 : _rootPath.length());
+        int depth = 0;
+        for (int i = 0; i < relative.length(); i++) {
+            if (relative.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Re-reads the part of the tree that a watch fired for.  Watches fire on the ZooKeeper event thread, so the work is
+     * handed off to the executor.
+     */
+    private final class TreeWatcher implements Watcher {
+        @Override
+        public void process(final WatchedEvent event) {
+            if (event.getType() == Event.EventType.None || event.getPath() == null) {
+                return;
+            }
+
+            try {
+                _executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String path = event.getPath();
+                        switch (event.getType()) {
+                            case NodeCreated:
+                                refresh(path, true);
+                                break;
+
+                            case NodeDataChanged:
+                                refreshData(path);
+                                break;
+
+                            case NodeChildrenChanged:
+                                refreshChildren(path);
+                                break;
+
+                            case NodeDeleted:
+                                // The root is watched for existence, everything else is removed by its parent's
+                                // children watch; either way re-reading the node finds out what happened.
+                                refresh(path, false);
+                                break;
+                        }
+                        publishSnapshot();
+                    }
+                });
+            } catch (Exception e) {
+                // The executor has been shut down because we're closed.
+            }
+        }
+    }
+
+    /**
+     * Re-reads the whole tree after a reconnect.  The watches are gone if the session expired, and in any case changes
+     * may have been missed while disconnected.
+     */
+    private final class ReconnectListener implements ConnectionStateListener {
+        @Override
+        public void stateChanged(CuratorFramework client, ConnectionState newState) {
+            if (newState == ConnectionState.RECONNECTED) {
+                refresh(_rootPath, true);
+                publishSnapshot();
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the nodes in the tree.  Every change to the tree increments the version, so two
+     * snapshots with the same version have the same nodes.
+     */
+    public static final class Snapshot<T> {
+        private final long _version;
+        private final SortedMap<String, T> _nodes;
+
+        private Snapshot(long version, SortedMap<String, T> nodes) {
+            _version = version;
+            _nodes = nodes;
+        }
+
+        public long getVersion() {
+            return _version;
+        }
+
+        /** @return Every node in the tree by full path, sorted by path. */
+        public SortedMap<String, T> getNodes() {
+            return _nodes;
+        }
+
+        /**
+         * @return The nodes below the given path (not including the path itself) by full path, sorted by path.
+         */
+        public SortedMap<String, T> getDescendants(String path) {
+            return descendants(_nodes, checkNotNull(path));
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("version", _version)
+                    .add("nodes", _nodes.size())
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.bazaarvoice.curator.recipes;
+
+/**
+ * Decides how long to wait before retrying an operation against ZooKeeper that failed, ex. when a
+ * {@link PersistentEphemeralNode} can't create its node.  Implementations should spread the retries of many clients
+ * out, so that they don't all retry at the same moment when the ensemble comes back after an outage.
+ *
+ * @see DecorrelatedJitterRetrySchedule
+ */
+public interface RetrySchedule {
+    /**
+     * @param retryCount          The number of consecutive failures so far, starting at 1.
+     * @param previousDelayMillis The delay returned for the previous retry, or {@code 0} for the first retry.
+     * @return How long to wait before retrying, in milliseconds.
+     */
+    long getDelayMillis(int retryCount, long previousDelayMillis);
+}
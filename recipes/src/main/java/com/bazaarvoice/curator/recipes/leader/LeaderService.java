@@ -1,21 +1,35 @@
 package com.bazaarvoice.curator.recipes.leader;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.recipes.leader.LeaderLatch;
 import org.apache.curator.framework.recipes.leader.Participant;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -55,6 +69,15 @@ import static com.google.common.base.Preconditions.checkState;
  * }).start();
  * </pre>
  * </p>
+ * <p>
+ * While running, the service keeps a watch-backed view of the participants, so {@link #getLeader()} and
+ * {@link #getParticipants()} are cheap enough to call per request (ex. to forward writes to the leader), and
+ * {@link LeaderListener}s are told when the leader changes.
+ * </p>
+ * <p>
+ * Services that take long to start can instead implement {@link StandbyService}: followers keep one started as a warm
+ * standby, and a follower that acquires leadership only has to activate it.
+ * </p>
  */
 public class LeaderService extends AbstractExecutionThreadService {
     private static final Logger LOG = LoggerFactory.getLogger(LeaderService.class);
@@ -72,10 +95,16 @@ public class LeaderService extends AbstractExecutionThreadService {
     private final String _leaderPath;
     private final String _instanceId;
     private final String _serviceName;
-    private final Supplier<Service> _serviceFactory;
+    private final Supplier<Service> _serviceFactory;  // null when using standby services
+    private final StandbyService.Factory _standbyFactory;  // null unless using standby services
     private final long _reacquireDelayNanos;
+    private final Set<LeaderListener> _leaderListeners = Sets.newCopyOnWriteArraySet();
     private volatile LeaderLatch _latch;
     private volatile Service _delegate;
+    private StandbyService _standby;  // only used by the service's thread, null unless one is being prepared
+    private volatile PathChildrenCache _participantCache;  // null unless running
+    private volatile List<Participant> _cachedParticipants;  // null until the participant cache is initialized
+    private volatile String _notifiedLeaderId;  // the leader that listeners were last told about, null if none
 
     /**
      * Creates an instance of the service that will create, start and stop a managed delegate service as this
@@ -101,11 +130,42 @@ public class LeaderService extends AbstractExecutionThreadService {
      */
     public LeaderService(CuratorFramework curator, String leaderPath, String instanceId, String serviceName,
                          long reacquireDelay, TimeUnit reacquireDelayUnit, Supplier<Service> serviceFactory) {
+        this(curator, leaderPath, instanceId, serviceName, reacquireDelay, reacquireDelayUnit,
+                checkNotNull(serviceFactory, "serviceFactory"), null);
+    }
+
+    /**
+     * Creates an instance of the service that keeps a warm standby delegate service while this instance is a
+     * follower, and activates it as soon as this instance acquires leadership.  This cuts the time it takes for a
+     * new leader to take over by the time the delegate service takes to start, see {@link StandbyService}.
+     * @param curator A started connection to ZooKeeper.
+     * @param leaderPath The ZooKeeper path under which the leadership election algorithm will create ephemeral
+     *                   ZooKeeper nodes.
+     * @param instanceId An identifier for this instance, included in the information returned by the
+     *                  {@link #getLeader()} and {@link #getParticipants()} instances.
+     * @param serviceName The name of this service.  This will be used to name a Java thread dedicated to the
+     *                    leadership election algorithm for this instance.
+     * @param reacquireDelay The amount of time to wait before attempting to re-acquire leadership after losing
+     *                       leadership.  See the other constructor.
+     * @param reacquireDelayUnit The unit of the <code>reacquireDelay</code> argument.
+     * @param standbyFactory A factory for standby delegate service instances.  A new standby is created and started
+     *                       whenever this instance is trying to acquire leadership and doesn't already have one.
+     */
+    public LeaderService(CuratorFramework curator, String leaderPath, String instanceId, String serviceName,
+                         long reacquireDelay, TimeUnit reacquireDelayUnit, StandbyService.Factory standbyFactory) {
+        this(curator, leaderPath, instanceId, serviceName, reacquireDelay, reacquireDelayUnit, null,
+                checkNotNull(standbyFactory, "standbyFactory"));
+    }
+
+    private LeaderService(CuratorFramework curator, String leaderPath, String instanceId, String serviceName,
+                          long reacquireDelay, TimeUnit reacquireDelayUnit, Supplier<Service> serviceFactory,
+                          StandbyService.Factory standbyFactory) {
         _curator = checkNotNull(curator, "curator");
         _leaderPath = checkNotNull(leaderPath, "leaderPath");
         _instanceId = checkNotNull(instanceId, "instanceId");
         _serviceName = checkNotNull(serviceName, "serviceName");
-        _serviceFactory = checkNotNull(serviceFactory, "serviceFactory");
+        _serviceFactory = serviceFactory;
+        _standbyFactory = standbyFactory;
         _reacquireDelayNanos = checkNotNull(reacquireDelayUnit, "reacquireDelayUnit").toNanos(reacquireDelay);
         checkArgument(_reacquireDelayNanos >= 0, "reacquireDelay must be non-negative");
         initLeaderLatch();
@@ -125,24 +185,45 @@ public class LeaderService extends AbstractExecutionThreadService {
     }
 
     /**
-     * @return The set of current participants in the leader selection.
+     * @return The set of current participants in the leader selection, the leader first.
      * <p>
-     * <B>NOTE</B> - this method polls the ZooKeeper server. Therefore it may return a value that does not match
-     * {@link #hasLeadership()} as hasLeadership returns a cached value.
+     * <B>NOTE</B> - while the service is running this returns a view that is kept up to date by watching ZooKeeper,
+     * without a round trip to the ZooKeeper server.  Otherwise, and until the view has been loaded, this polls the
+     * ZooKeeper server.  Either way it may briefly return a value that does not match {@link #hasLeadership()}.
      */
     public Collection<Participant> getParticipants() throws Exception {
-        return _latch.getParticipants();
+        List<Participant> participants = getCachedParticipants();
+        return (participants != null) ? participants : _latch.getParticipants();
     }
 
     /**
      * @return The id for the current leader. If for some reason there is no current leader, a dummy participant
      * is returned.
      * <p>
-     * <B>NOTE</B> - this method polls the ZooKeeper server. Therefore it may return a value that does not match
-     * {@link #hasLeadership()} as hasLeadership returns a cached value.
+     * <B>NOTE</B> - while the service is running this returns a view that is kept up to date by watching ZooKeeper,
+     * without a round trip to the ZooKeeper server.  Otherwise, and until the view has been loaded, this polls the
+     * ZooKeeper server.  Either way it may briefly return a value that does not match {@link #hasLeadership()}.
      */
     public Participant getLeader() throws Exception {
-        return _latch.getLeader();
+        List<Participant> participants = getCachedParticipants();
+        return (participants != null) ? leaderOf(participants) : _latch.getLeader();
+    }
+
+    /**
+     * Add a listener that is told when the leader changes, ex. so that requests can be routed to the new leader.
+     * Listeners are only told of changes while the service is running, starting with the leader when the view of the
+     * participants is first loaded.  They aren't told when there is briefly no leader.  They are called on a thread
+     * that watches ZooKeeper, so they must not block.
+     */
+    public void addLeaderListener(LeaderListener listener) {
+        _leaderListeners.add(checkNotNull(listener, "listener"));
+    }
+
+    /**
+     * Remove a leader listener.
+     */
+    public void removeLeaderListener(LeaderListener listener) {
+        _leaderListeners.remove(listener);
     }
 
     /** @return True if leadership is currently held by this instance. */
@@ -161,11 +242,14 @@ public class LeaderService extends AbstractExecutionThreadService {
     @Override
     protected void startUp() throws Exception {
         _curator.getConnectionStateListenable().addListener(_listener);
+        startParticipantCache();
     }
 
     @Override
     protected void shutDown() throws Exception {
         _curator.getConnectionStateListenable().removeListener(_listener);
+        closeParticipantCache();
+        discardStandby();
     }
 
     @Override
@@ -182,6 +266,7 @@ public class LeaderService extends AbstractExecutionThreadService {
                 // Start attempting to acquire leadership via the Curator leadership latch.
                 LOG.debug("Attempting to acquire leadership: {}", getId());
                 LeaderLatch latch = startLeaderLatch();
+                prepareStandby();
 
                 // Wait until (a) leadership is acquired or (b) the latch is closed by service shutdown or ZK cxn loss.
                 if (isRunning()) {
@@ -206,6 +291,8 @@ public class LeaderService extends AbstractExecutionThreadService {
             if (isRunning()) {
                 // If we lost or relinquished leadership, wait a while for things to settle before trying to
                 // re-acquire leadership (eg. wait for a network hiccup to the ZooKeeper server to resolve).
+                // Meanwhile, warm up the next standby.
+                prepareStandby();
                 sleep(_reacquireDelayNanos);
             }
         }
@@ -213,9 +300,16 @@ public class LeaderService extends AbstractExecutionThreadService {
 
     private void runAsLeader() throws InterruptedException {
         try {
-            _delegate = listenTo(_serviceFactory.get());
-            _delegate.startAsync().awaitRunning();
+            _delegate = listenTo((_standbyFactory != null) ? takeStandby() : _serviceFactory.get());
+            if (_delegate.state() == State.NEW) {
+                _delegate.startAsync();
+            }
+            _delegate.awaitRunning();
             try {
+                if (_standbyFactory != null) {
+                    LOG.debug("Activating standby service: {}", getId());
+                    ((StandbyService) _delegate).activate();
+                }
                 awaitLeadershipLostOrServicesStopped();
             } finally {
                 _delegate.stopAsync().awaitTerminated();
@@ -230,6 +324,156 @@ public class LeaderService extends AbstractExecutionThreadService {
         }
     }
 
+    /**
+     * When using standby services, make sure a standby is warming up or ready to be activated.
+     */
+    private void prepareStandby() {
+        if (_standbyFactory == null || (_standby != null && isUsable(_standby))) {
+            return;
+        }
+        discardStandby();
+        try {
+            LOG.debug("Preparing standby service: {}", getId());
+            _standby = checkNotNull(_standbyFactory.create(), "standbyFactory returned null");
+            _standby.startAsync();
+        } catch (Throwable t) {
+            // Leave it to the next attempt, or to when leadership is acquired.
+            LOG.error("Exception preparing standby service: {}", getId(), t);
+            _standby = null;
+        }
+    }
+
+    /**
+     * Returns the standby to activate, a new one if the prepared one is missing or has failed.
+     */
+    private StandbyService takeStandby() {
+        prepareStandby();
+        StandbyService standby = _standby;
+        _standby = null;
+        return (standby != null) ? standby : checkNotNull(_standbyFactory.create(), "standbyFactory returned null");
+    }
+
+    private void discardStandby() {
+        StandbyService standby = _standby;
+        _standby = null;
+        if (standby != null) {
+            try {
+                standby.stopAsync().awaitTerminated();
+            } catch (Throwable t) {
+                LOG.error("Exception stopping standby service: {}", getId(), t);
+            }
+        }
+    }
+
+    private static boolean isUsable(Service service) {
+        State state = service.state();
+        return state == State.NEW || state == State.STARTING || state == State.RUNNING;
+    }
+
+    /**
+     * Start watching the participants.  The view is loaded in the background, so this doesn't fail when ZooKeeper
+     * can't be reached and the getters poll until it has been loaded.
+     */
+    private void startParticipantCache() throws Exception {
+        final PathChildrenCache cache = new PathChildrenCache(_curator, _leaderPath, true, new ThreadFactoryBuilder()
+                .setNameFormat(_serviceName + "-participants-%d")
+                .setDaemon(true)
+                .build());
+        cache.getListenable().addListener(new PathChildrenCacheListener() {
+            private boolean _initialized;
+
+            @Override
+            public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) {
+                if (event.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
+                    _initialized = true;
+                }
+                // Ignore the events of a cache that is being closed.
+                if (_initialized && _participantCache == cache) {
+                    updateParticipants(cache.getCurrentData());
+                }
+            }
+        });
+        _participantCache = cache;
+        cache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+    }
+
+    private void closeParticipantCache() throws IOException {
+        PathChildrenCache cache = _participantCache;
+        if (cache != null) {
+            _participantCache = null;
+            cache.close();
+        }
+        _cachedParticipants = null;
+        _notifiedLeaderId = null;
+    }
+
+    /**
+     * Returns the view of the participants kept by watching ZooKeeper, or null if it can't be used.
+     */
+    private List<Participant> getCachedParticipants() {
+        List<Participant> participants = _cachedParticipants;
+        if (participants == null || !isRunning()) {
+            return null;
+        }
+        if (hasLeadership() && !_instanceId.equals(leaderOf(participants).getId())) {
+            // We know we're the leader before the view is told.  Ask ZooKeeper rather than contradict ourselves.
+            return null;
+        }
+        return participants;
+    }
+
+    /**
+     * Called on the participant cache's thread, one change at a time.
+     */
+    private void updateParticipants(List<ChildData> children) {
+        // Like the LeaderLatch, the participant whose node has the lowest sequence number is the leader.
+        List<ChildData> sorted = Lists.newArrayList(children);
+        Collections.sort(sorted, new Comparator<ChildData>() {
+            @Override
+            public int compare(ChildData left, ChildData right) {
+                return sequenceOf(left).compareTo(sequenceOf(right));
+            }
+        });
+        ImmutableList.Builder<Participant> participants = ImmutableList.builder();
+        boolean first = true;
+        for (ChildData child : sorted) {
+            String id = (child.getData() != null) ? new String(child.getData(), Charsets.UTF_8) : "";
+            participants.add(new Participant(id, first));
+            first = false;
+        }
+
+        List<Participant> current = participants.build();
+        _cachedParticipants = current;
+
+        // There are briefly no participants when the only one recreates its node (ex. the LeaderLatch resets itself),
+        // that isn't a change of leader worth telling the listeners about.
+        if (current.isEmpty()) {
+            return;
+        }
+        Participant leader = current.get(0);
+        if (!leader.getId().equals(_notifiedLeaderId)) {
+            _notifiedLeaderId = leader.getId();
+            for (LeaderListener listener : _leaderListeners) {
+                try {
+                    listener.onLeaderChanged(leader);
+                } catch (Exception e) {
+                    LOG.warn("LeaderListener failed: {}", getId(), e);
+                }
+            }
+        }
+    }
+
+    /** The sequence number that the latch appends to the name of each node, zero padded so it sorts as a string. */
+    private static String sequenceOf(ChildData child) {
+        String name = ZKPaths.getNodeFromPath(child.getPath());
+        return name.substring(name.lastIndexOf('-') + 1);
+    }
+
+    /** Returns the leader, or a dummy participant if there are no participants, like {@link LeaderLatch}. */
+    private static Participant leaderOf(List<Participant> participants) {
+        return !participants.isEmpty() ? participants.get(0) : new Participant("", false);
+    }
+
     private LeaderLatch newLeaderLatch() {
         return new LeaderLatch(_curator, _leaderPath, _instanceId);
     }
@@ -318,4 +562,15 @@ public class LeaderService extends AbstractExecutionThreadService {
         }, MoreExecutors.sameThreadExecutor());
         return delegate;
     }
+
+    /** Listener interface that is notified when the leader changes. */
+    public static interface LeaderListener {
+        /**
+         * Only called with a real leader.  A view of the participants without any isn't reported, the listener is
+         * called again once there is a leader and it differs from the one it was last told about.
+         *
+         * @param leader The new leader.
+         */
+        void onLeaderChanged(Participant leader);
+    }
 }
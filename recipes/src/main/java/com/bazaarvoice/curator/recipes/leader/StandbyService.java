@@ -0,0 +1,28 @@
+package com.bazaarvoice.curator.recipes.leader;
+
+import com.google.common.util.concurrent.Service;
+
+/**
+ * A leadership-managed service that is started ahead of time as a warm standby and only activated once leadership is
+ * acquired, for services whose start up is too slow (ex. loading caches, filling connection pools) to wait for when
+ * the leader fails over.  See
+ * {@link LeaderService#LeaderService(org.apache.curator.framework.CuratorFramework, String, String, String, long,
+ * java.util.concurrent.TimeUnit, StandbyService.Factory)}.
+ * <p/>
+ * While a process is a follower, its {@code LeaderService} creates and starts a standby.  Starting it must do the
+ * warm up but nothing that only the leader may do.  When leadership is acquired the standby is {@link #activate}d,
+ * which should be quick, and from then on it acts as the leader until it is stopped, ex. because leadership was lost.
+ * Like any Guava service a standby can't be restarted, so a new one is prepared after each term of leadership.
+ */
+public interface StandbyService extends Service {
+    /**
+     * Start acting as the leader.  Called once, on the {@code LeaderService}'s thread, after the service is running
+     * and leadership has been acquired.  If this throws, the service is stopped and leadership is released.
+     */
+    void activate() throws Exception;
+
+    /** Creates standby services, a new one for each term of leadership. */
+    public static interface Factory {
+        StandbyService create();
+    }
+}
@@ -0,0 +1,48 @@
+package com.bazaarvoice.curator.recipes.parser;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@code InputStream} that reads the remaining bytes of a {@code ByteBuffer}, for decoders that only accept a
+ * stream.  Read-only buffers don't expose their backing array, so this is how their contents are handed over without
+ * copying them first.
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer _buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        _buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!_buffer.hasRemaining()) {
+            return -1;
+        }
+
+        int count = Math.min(length, _buffer.remaining());
+        _buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        int count = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+        _buffer.position(_buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return _buffer.remaining();
+    }
+}
@@ -0,0 +1,94 @@
+package com.bazaarvoice.curator.recipes.parser;
+
+import com.bazaarvoice.curator.recipes.ByteBufferNodeDataParser;
+import com.google.common.base.Charsets;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Base class for parsers of node data that is a sequence of length-prefixed binary fields: each field is a 4-byte
+ * big-endian length followed by that many bytes.
+ * <p/>
+ * Subclasses read the fields they need from a {@link FieldReader}, which hands out read-only slices of the node's data
+ * rather than copies, and can skip the fields they don't need without decoding them.
+ *
+ * @param <T> The type that the data is converted to.
+ */
+public abstract class LengthPrefixedNodeDataParser<T> implements ByteBufferNodeDataParser<T> {
+    @Override
+    public final T parse(String path, ByteBuffer data, Stat stat) throws Exception {
+        return parse(path, new FieldReader(data.duplicate()), stat);
+    }
+
+    /**
+     * @param path   The path of the node.
+     * @param fields The fields of the node's data, in order.
+     * @param stat   The node's stat.
+     * @return The parsed node.
+     */
+    protected abstract T parse(String path, FieldReader fields, Stat stat) throws Exception;
+
+    /** Subclasses are stateless unless they override this. */
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+
+    /**
+     * Reads the length-prefixed fields of a node's data in order.
+     */
+    public static final class FieldReader {
+        private static final int LENGTH_SIZE = 4;
+
+        private final ByteBuffer _data;
+
+        FieldReader(ByteBuffer data) {
+            _data = data;
+        }
+
+        /** @return True if there is another field. */
+        public boolean hasNext() {
+            return _data.hasRemaining();
+        }
+
+        /**
+         * @return A read-only view of the next field.  Like the data it is taken from it must not be retained.
+         * @throws IllegalArgumentException if the data ends part way through the field.
+         */
+        public ByteBuffer next() {
+            int length = nextLength();
+            ByteBuffer field = _data.slice();
+            field.limit(length);
+            _data.position(_data.position() + length);
+            return field.asReadOnlyBuffer();
+        }
+
+        /** @return The next field decoded as UTF-8. */
+        public String nextString() {
+            return Charsets.UTF_8.decode(next()).toString();
+        }
+
+        /** Skip the next field without looking at it. */
+        public void skip() {
+            int length = nextLength();
+            _data.position(_data.position() + length);
+        }
+
+        private int nextLength() {
+            if (!_data.hasRemaining()) {
+                throw new NoSuchElementException();
+            }
+            if (_data.remaining() < LENGTH_SIZE) {
+                throw new IllegalArgumentException("Truncated field length");
+            }
+            int length = _data.getInt();
+            if (length < 0 || length > _data.remaining()) {
+                throw new IllegalArgumentException("Truncated field, length: " + length +
+                        ", remaining: " + _data.remaining());
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.bazaarvoice.curator.recipes.parser;
+
+import com.bazaarvoice.curator.recipes.ByteBufferNodeDataParser;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Base class for parsers of JSON node data that read it with a Jackson streaming {@link JsonParser}.  The parser reads
+ * directly from the node's data, so there is no intermediate {@code String} or tree, and subclasses can skip the
+ * fields and objects they don't need with {@link JsonParser#skipChildren()}.
+ * <p/>
+ * Requires {@code com.fasterxml.jackson.core:jackson-core}, which is an optional dependency of this module.
+ *
+ * @param <T> The type that the data is converted to.
+ */
+public abstract class StreamingJsonNodeDataParser<T> implements ByteBufferNodeDataParser<T> {
+    private static final JsonFactory DEFAULT_JSON_FACTORY = new JsonFactory();
+
+    private final JsonFactory _jsonFactory;
+
+    protected StreamingJsonNodeDataParser() {
+        this(DEFAULT_JSON_FACTORY);
+    }
+
+    /**
+     * @param jsonFactory The factory to create parsers with, ex. to enable non-default parser features.
+     */
+    protected StreamingJsonNodeDataParser(JsonFactory jsonFactory) {
+        _jsonFactory = checkNotNull(jsonFactory);
+    }
+
+    @Override
+    public final T parse(String path, ByteBuffer data, Stat stat) throws Exception {
+        JsonParser json = _jsonFactory.createParser(new ByteBufferInputStream(data.duplicate()));
+        try {
+            return parse(path, json, stat);
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * @param path The path of the node.
+     * @param json A parser positioned before the first token of the node's data.
+     * @param stat The node's stat.
+     * @return The parsed node.
+     */
+    protected abstract T parse(String path, JsonParser json, Stat stat) throws IOException;
+
+    /** Subclasses are stateless unless they override this. */
+    @Override
+    public boolean isStateless() {
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import com.bazaarvoice.curator.recipes.NodeDiscovery;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Base class for selectors that pick one of the nodes found by a {@link NodeDiscovery}.
+ * <p/>
+ * Membership is maintained incrementally from discovery events.  Every add, remove or update publishes a new
+ * immutable {@link NodeSnapshot}, so selection never takes a lock, copies a collection or allocates.  Nodes whose data
+ * could not be parsed (i.e. are {@code null}) are never selected.
+ * <p/>
+ * Selectors should be attached with {@link NodeDiscovery#addListener(NodeDiscovery.NodeListener, boolean)} so that
+ * nodes that existed before the selector was attached are included:
+ * <pre>
+ * RoundRobinSelector&lt;Endpoint&gt; selector = new RoundRobinSelector&lt;Endpoint&gt;();
+ * discovery.addListener(selector, true);
+ * ...
+ * Endpoint endpoint = selector.select();
+ * </pre>
+ *
+ * @param <T> The type used to represent a node.
+ */
+public abstract class AbstractNodeSelector<T> implements NodeDiscovery.NodeListener<T> {
+    /** The position of each member in the current snapshot.  Only accessed while holding the lock on this. */
+    private final Map<String, Integer> _positions = Maps.newHashMap();
+    private volatile NodeSnapshot<T> _snapshot = NodeSnapshot.empty();
+
+    /** @return The current snapshot of the nodes available for selection. */
+    public NodeSnapshot<T> getSnapshot() {
+        return _snapshot;
+    }
+
+    @Override
+    public synchronized void onNodeAdded(String path, T node) {
+        if (node == null) {
+            return;
+        }
+
+        Integer position = _positions.get(path);
+        if (position != null) {
+            replace(position, node);
+        } else {
+            append(path, node);
+        }
+    }
+
+    @Override
+    public synchronized void onNodeRemoved(String path, T node) {
+        Integer position = _positions.remove(path);
+        if (position != null) {
+            remove(position);
+        }
+    }
+
+    @Override
+    public synchronized void onNodeUpdated(String path, T node) {
+        if (node == null) {
+            // An update to data that can't be parsed means that the node can no longer be selected.
+            onNodeRemoved(path, null);
+        } else {
+            onNodeAdded(path, node);
+        }
+    }
+
+    /**
+     * Called, while holding the lock on this selector, each time a new snapshot has been published.  Subclasses that
+     * maintain derived selection state (ex. weights) should rebuild it here.
+     *
+     * @param snapshot The newly published snapshot.
+     */
+    protected void onSnapshotChanged(NodeSnapshot<T> snapshot) {
+    }
+
+    private void append(String path, T node) {
+        NodeSnapshot<T> current = _snapshot;
+        int size = current.size();
+
+        String[] paths = Arrays.copyOf(current.paths(), size + 1);
+        Object[] nodes = Arrays.copyOf(current.nodes(), size + 1);
+        paths[size] = path;
+        nodes[size] = node;
+
+        _positions.put(path, size);
+        publish(new NodeSnapshot<T>(paths, nodes));
+    }
+
+    private void replace(int position, T node) {
+        NodeSnapshot<T> current = _snapshot;
+
+        Object[] nodes = current.nodes().clone();
+        nodes[position] = node;
+
+        publish(new NodeSnapshot<T>(current.paths(), nodes));
+    }
+
+    /** Remove the member at the given position by moving the last member into its place. */
+    private void remove(int position) {
+        NodeSnapshot<T> current = _snapshot;
+        int last = current.size() - 1;
+
+        String[] paths = Arrays.copyOf(current.paths(), last);
+        Object[] nodes = Arrays.copyOf(current.nodes(), last);
+        if (position != last) {
+            paths[position] = current.getPath(last);
+            nodes[position] = current.getNode(last);
+            _positions.put(paths[position], position);
+        }
+
+        publish(new NodeSnapshot<T>(paths, nodes));
+    }
+
+    private void publish(NodeSnapshot<T> snapshot) {
+        _snapshot = snapshot;
+        onSnapshotChanged(snapshot);
+    }
+}
@@ -0,0 +1,353 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An immutable consistent hash ring over a set of members identified by their ZooKeeper path.
+ * <p/>
+ * Each member is placed on the ring at a fixed number of virtual node positions derived from its path, so every client
+ * with the same membership maps a key to the same member.  The ring is held in sorted primitive arrays: a lookup is a
+ * binary search over a {@code long[]} with no boxing or allocation.
+ * <p/>
+ * Membership changes are applied incrementally.  {@link #withNode} and {@link #withoutNode} hash only the member that
+ * changed and merge its virtual nodes into (or out of) the existing sorted arrays, returning a new ring version.  Each
+ * version carries a {@link KeyMovement} describing which part of the key space moved because of the change.
+ *
+ * @param <T> The type used to represent a member.
+ */
+public final class ConsistentHashRing<T> {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final int _virtualNodes;
+    private final long _version;
+
+    /** Virtual node hashes, sorted. */
+    private final long[] _hashes;
+    /** For each virtual node, the index of the member that owns it in {@code _paths} and {@code _nodes}. */
+    private final int[] _owners;
+    private final String[] _paths;
+    private final Object[] _nodes;
+
+    private final KeyMovement _movement;
+
+    private ConsistentHashRing(int virtualNodes, long version, long[] hashes, int[] owners, String[] paths,
+                               Object[] nodes, KeyMovement movement) {
+        _virtualNodes = virtualNodes;
+        _version = version;
+        _hashes = hashes;
+        _owners = owners;
+        _paths = paths;
+        _nodes = nodes;
+        _movement = movement;
+    }
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param virtualNodes The number of positions on the ring for each member.  More positions spread keys more evenly
+     *                     at the cost of memory and slower membership changes.
+     */
+    public static <T> ConsistentHashRing<T> create(int virtualNodes) {
+        checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        return new ConsistentHashRing<T>(virtualNodes, 0, new long[0], new int[0], new String[0], new Object[0],
+                KeyMovement.NONE);
+    }
+
+    /** @return The 64-bit hash used to place a key on the ring. */
+    public static long hash(String key) {
+        return HASH_FUNCTION.hashString(key, Charsets.UTF_8).asLong();
+    }
+
+    /** @return The number of changes applied since the ring was created. */
+    public long getVersion() {
+        return _version;
+    }
+
+    /** @return The key movement caused by the change that produced this version of the ring. */
+    public KeyMovement getMovement() {
+        return _movement;
+    }
+
+    public int getVirtualNodes() {
+        return _virtualNodes;
+    }
+
+    /** @return The number of members. */
+    public int size() {
+        return _paths.length;
+    }
+
+    public boolean isEmpty() {
+        return _paths.length == 0;
+    }
+
+    public boolean contains(String path) {
+        return indexOf(path) >= 0;
+    }
+
+    /** @return The member that owns the key, or {@code null} if the ring is empty. */
+    public T get(String key) {
+        return get(hash(key));
+    }
+
+    /** @return The member that owns the key hash, or {@code null} if the ring is empty. */
+    @SuppressWarnings("unchecked")
+    public T get(long keyHash) {
+        int owner = ownerOf(keyHash);
+        return (owner >= 0) ? (T) _nodes[owner] : null;
+    }
+
+    /** @return The path of the member that owns the key hash, or {@code null} if the ring is empty. */
+    public String getPath(long keyHash) {
+        int owner = ownerOf(keyHash);
+        return (owner >= 0) ? _paths[owner] : null;
+    }
+
+    /**
+     * Returns a ring with the given member added, or with its value replaced if it is already a member.  Replacing a
+     * value does not move any keys.
+     */
+    public ConsistentHashRing<T> withNode(String path, T node) {
+        checkNotNull(path);
+
+        int existing = indexOf(path);
+        if (existing >= 0) {
+            Object[] nodes = _nodes.clone();
+            nodes[existing] = node;
+            return new ConsistentHashRing<T>(_virtualNodes, _version + 1, _hashes, _owners, _paths, nodes,
+                    KeyMovement.NONE);
+        }
+
+        int member = _paths.length;
+        String[] paths = Arrays.copyOf(_paths, member + 1);
+        Object[] nodes = Arrays.copyOf(_nodes, member + 1);
+        paths[member] = path;
+        nodes[member] = node;
+
+        long[] added = virtualNodeHashes(path);
+
+        // Merge the new member's sorted virtual nodes into the existing sorted arrays.
+        int length = _hashes.length + added.length;
+        long[] hashes = new long[length];
+        int[] owners = new int[length];
+        for (int i = 0, j = 0, k = 0; k < length; k++) {
+            if (j == added.length || (i < _hashes.length && _hashes[i] <= added[j])) {
+                hashes[k] = _hashes[i];
+                owners[k] = _owners[i++];
+            } else {
+                hashes[k] = added[j++];
+                owners[k] = member;
+            }
+        }
+
+        // The new member takes over the arcs in front of each of its virtual nodes from whichever existing member owned
+        // the next virtual node clockwise.
+        KeyMovement movement = measureMovement(hashes, owners, member, paths, KeyMovement.Type.ADDED);
+        return new ConsistentHashRing<T>(_virtualNodes, _version + 1, hashes, owners, paths, nodes, movement);
+    }
+
+    /** Returns a ring with the given member removed.  Returns this ring if it is not a member. */
+    public ConsistentHashRing<T> withoutNode(String path) {
+        int member = indexOf(checkNotNull(path));
+        if (member < 0) {
+            return this;
+        }
+
+        // The remaining members take over the arcs in front of each of the removed member's virtual nodes.
+        KeyMovement movement = measureMovement(_hashes, _owners, member, _paths, KeyMovement.Type.REMOVED);
+
+        // Drop the member's virtual nodes and shift down the owner indexes of the members that came after it.
+        int length = _hashes.length - _virtualNodes;
+        long[] hashes = new long[length];
+        int[] owners = new int[length];
+        for (int i = 0, k = 0; i < _hashes.length; i++) {
+            int owner = _owners[i];
+            if (owner != member) {
+                hashes[k] = _hashes[i];
+                owners[k++] = (owner > member) ? owner - 1 : owner;
+            }
+        }
+
+        String[] paths = new String[_paths.length - 1];
+        Object[] nodes = new Object[_nodes.length - 1];
+        System.arraycopy(_paths, 0, paths, 0, member);
+        System.arraycopy(_paths, member + 1, paths, member, paths.length - member);
+        System.arraycopy(_nodes, 0, nodes, 0, member);
+        System.arraycopy(_nodes, member + 1, nodes, member, nodes.length - member);
+
+        return new ConsistentHashRing<T>(_virtualNodes, _version + 1, hashes, owners, paths, nodes, movement);
+    }
+
+    private int ownerOf(long keyHash) {
+        long[] hashes = _hashes;
+        if (hashes.length == 0) {
+            return -1;
+        }
+
+        // The owner is the first virtual node at or after the key, wrapping around to the start of the ring.
+        int index = Arrays.binarySearch(hashes, keyHash);
+        if (index < 0) {
+            index = -(index + 1);
+            if (index == hashes.length) {
+                index = 0;
+            }
+        }
+        return _owners[index];
+    }
+
+    private int indexOf(String path) {
+        for (int i = 0; i < _paths.length; i++) {
+            if (_paths[i].equals(path)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long[] virtualNodeHashes(String path) {
+        long[] hashes = new long[_virtualNodes];
+        for (int i = 0; i < _virtualNodes; i++) {
+            hashes[i] = hash(path + "#" + i);
+        }
+        Arrays.sort(hashes);
+        return hashes;
+    }
+
+    /**
+     * Measures the arcs owned by {@code member} in a ring that contains it, crediting each arc to the next virtual node
+     * clockwise that is owned by some other member.  That other member is who the arc was taken from when
+     * {@code member} was added, or who it is given to when {@code member} is removed.
+     */
+    private static KeyMovement measureMovement(long[] hashes, int[] owners, int member, String[] paths,
+                                               KeyMovement.Type type) {
+        String path = paths[member];
+        int length = hashes.length;
+
+        // Find a virtual node owned by another member to start from.  If there isn't one the member owns everything.
+        int start = -1;
+        for (int i = 0; i < length; i++) {
+            if (owners[i] != member) {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0) {
+            return new KeyMovement(type, path, 1.0, ImmutableMap.<String, Double>of());
+        }
+
+        double moved = 0;
+        double[] byOwner = new double[paths.length];
+        // Walk counter-clockwise from the starting virtual node, remembering the nearest clockwise virtual node owned
+        // by another member.
+        int next = start;
+        for (int step = 1; step <= length; step++) {
+            int i = (start - step + length) % length;
+            if (owners[i] == member) {
+                int previous = (i - 1 + length) % length;
+                double arc = fractionOfRing(hashes[i] - hashes[previous]);
+                moved += arc;
+                byOwner[owners[next]] += arc;
+            } else {
+                next = i;
+            }
+        }
+
+        Map<String, Double> transfers = Maps.newTreeMap();
+        for (int owner = 0; owner < paths.length; owner++) {
+            if (byOwner[owner] > 0) {
+                transfers.put(paths[owner], byOwner[owner]);
+            }
+        }
+        return new KeyMovement(type, path, moved, ImmutableMap.copyOf(transfers));
+    }
+
+    /** Converts the (unsigned, wrapping) distance between two ring positions into a fraction of the ring. */
+    private static double fractionOfRing(long distance) {
+        // A distance of zero between adjacent virtual nodes only happens when a single virtual node is on the ring.
+        if (distance == 0) {
+            return 1.0;
+        }
+        return (distance >>> 11) * 0x1.0p-53;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("version", _version)
+                .add("members", _paths.length)
+                .add("virtualNodes", _virtualNodes)
+                .toString();
+    }
+
+    /**
+     * Describes the part of the key space that moved between members because of a single membership change.
+     */
+    public static final class KeyMovement {
+        static final KeyMovement NONE = new KeyMovement(Type.NONE, null, 0, ImmutableMap.<String, Double>of());
+
+        /** The kind of membership change. */
+        public enum Type {
+            /** A member was added. */
+            ADDED,
+            /** A member was removed. */
+            REMOVED,
+            /** Nothing moved, ex. the ring was created or a member's value was replaced. */
+            NONE
+        }
+
+        private final Type _type;
+        private final String _path;
+        private final double _movedFraction;
+        private final Map<String, Double> _transfers;
+
+        private KeyMovement(Type type, String path, double movedFraction, Map<String, Double> transfers) {
+            _type = type;
+            _path = path;
+            _movedFraction = movedFraction;
+            _transfers = transfers;
+        }
+
+        public Type getType() {
+            return _type;
+        }
+
+        /** @return The path of the member that was added or removed, or {@code null} if nothing moved. */
+        public String getPath() {
+            return _path;
+        }
+
+        /** @return The fraction of the key space, between 0 and 1, that changed owner. */
+        public double getMovedFraction() {
+            return _movedFraction;
+        }
+
+        /**
+         * @return For an addition, the fraction of the key space that each existing member gave up to the new member.
+         * For a removal, the fraction of the key space that each remaining member took over from the removed member.
+         */
+        public Map<String, Double> getTransfers() {
+            return _transfers;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("type", _type)
+                    .add("path", _path)
+                    .add("movedFraction", _movedFraction)
+                    .add("transfers", _transfers)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import com.bazaarvoice.curator.recipes.NodeDiscovery;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Selects the node that owns a key on a {@link ConsistentHashRing}.  Every client maps a key to the same node, and a
+ * membership change only moves the keys owned by the node that joined or left.
+ * <p/>
+ * The ring is updated incrementally from discovery events, each of which publishes a new immutable version of the
+ * ring.  Lookups are a binary search with no locking, boxing or allocation.  Nodes whose data could not be parsed
+ * (i.e. are {@code null}) are never selected.
+ * <p/>
+ * Like the other selectors, attach it with {@link NodeDiscovery#addListener(NodeDiscovery.NodeListener, boolean)}.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public class ConsistentHashSelector<T> implements NodeDiscovery.NodeListener<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(ConsistentHashSelector.class);
+
+    /** The default number of virtual nodes for each node. */
+    public static final int DEFAULT_VIRTUAL_NODES = 100;
+
+    private final Set<RingListener<T>> _listeners =
+            Sets.newSetFromMap(Maps.<RingListener<T>, Boolean>newConcurrentMap());
+    private volatile ConsistentHashRing<T> _ring;
+
+    public ConsistentHashSelector() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes The number of positions on the ring for each node.  More positions spread keys more evenly
+     *                     at the cost of memory and a slower membership change.
+     */
+    public ConsistentHashSelector(int virtualNodes) {
+        checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        _ring = ConsistentHashRing.create(virtualNodes);
+    }
+
+    /**
+     * @return The node that owns the key, or {@code null} if there are no nodes available.
+     */
+    public T select(String key) {
+        return _ring.get(key);
+    }
+
+    /**
+     * @param keyHash A 64-bit hash of the key, see {@link ConsistentHashRing#hash(String)}.
+     * @return The node that owns the key hash, or {@code null} if there are no nodes available.
+     */
+    public T select(long keyHash) {
+        return _ring.get(keyHash);
+    }
+
+    /** @return The current version of the ring. */
+    public ConsistentHashRing<T> getRing() {
+        return _ring;
+    }
+
+    /**
+     * Add a listener that is notified of every new version of the ring, ex. to report or react to key movement.
+     */
+    public void addListener(RingListener<T> listener) {
+        _listeners.add(listener);
+    }
+
+    public void removeListener(RingListener<T> listener) {
+        _listeners.remove(listener);
+    }
+
+    @Override
+    public synchronized void onNodeAdded(String path, T node) {
+        if (node != null) {
+            publish(_ring.withNode(path, node));
+        }
+    }
+
+    @Override
+    public synchronized void onNodeRemoved(String path, T node) {
+        publish(_ring.withoutNode(path));
+    }
+
+    @Override
+    public synchronized void onNodeUpdated(String path, T node) {
+        // An update to data that can't be parsed means that the node can no longer be selected.
+        publish((node != null) ? _ring.withNode(path, node) : _ring.withoutNode(path));
+    }
+
+    private void publish(ConsistentHashRing<T> ring) {
+        if (ring == _ring) {
+            return;
+        }
+
+        _ring = ring;
+        LOG.debug("Consistent hash ring changed: {}", ring.getMovement());
+        for (RingListener<T> listener : _listeners) {
+            listener.onRingChanged(ring);
+        }
+    }
+
+    /** Listener interface that is notified each time a new version of the ring is published. */
+    public static interface RingListener<T> {
+        /**
+         * @param ring The new version of the ring.  {@link ConsistentHashRing#getMovement()} describes the keys that
+         *             moved because of the change.
+         */
+        void onRingChanged(ConsistentHashRing<T> ring);
+    }
+}
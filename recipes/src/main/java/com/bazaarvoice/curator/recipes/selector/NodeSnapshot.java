@@ -0,0 +1,53 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+/**
+ * An immutable, array-backed snapshot of the nodes known to a selector.  Positions are dense ({@code 0} through
+ * {@code size() - 1}) so that a selector can pick a node with a single array access.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public final class NodeSnapshot<T> {
+    private static final NodeSnapshot<Object> EMPTY = new NodeSnapshot<Object>(new String[0], new Object[0]);
+
+    private final String[] _paths;
+    private final Object[] _nodes;
+
+    NodeSnapshot(String[] paths, Object[] nodes) {
+        _paths = paths;
+        _nodes = nodes;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> NodeSnapshot<T> empty() {
+        return (NodeSnapshot<T>) EMPTY;
+    }
+
+    public int size() {
+        return _nodes.length;
+    }
+
+    public boolean isEmpty() {
+        return _nodes.length == 0;
+    }
+
+    /** @return The ZooKeeper path of the node at the given position. */
+    public String getPath(int position) {
+        return _paths[position];
+    }
+
+    /** @return The node at the given position. */
+    @SuppressWarnings("unchecked")
+    public T getNode(int position) {
+        return (T) _nodes[position];
+    }
+
+    // Package-private accessors for AbstractNodeSelector, which builds new snapshots from old ones.
+
+    String[] paths() {
+        return _paths;
+    }
+
+    Object[] nodes() {
+        return _nodes;
+    }
+}
@@ -0,0 +1,56 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Picks two distinct nodes at random and selects the one that reports the lower load ("power of two choices").  This
+ * avoids the herding that comes from always picking the least loaded node while still steering traffic away from
+ * overloaded nodes.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public class PowerOfTwoChoicesSelector<T> extends AbstractNodeSelector<T> {
+    private final LoadSignal<? super T> _loadSignal;
+
+    /**
+     * @param loadSignal Strategy that reports the current load of a node.  Called twice per selection, so it should be
+     *                   cheap (ex. reading a counter of outstanding requests).
+     */
+    public PowerOfTwoChoicesSelector(LoadSignal<? super T> loadSignal) {
+        _loadSignal = checkNotNull(loadSignal);
+    }
+
+    /**
+     * @return The less loaded of two randomly chosen nodes, or {@code null} if there are no nodes available.
+     */
+    public T select() {
+        NodeSnapshot<T> snapshot = getSnapshot();
+        int size = snapshot.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size == 1) {
+            return snapshot.getNode(0);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        // Pick the second from the remaining size - 1 positions so the two choices are always distinct.
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        T firstNode = snapshot.getNode(first);
+        T secondNode = snapshot.getNode(second);
+        return (_loadSignal.getLoad(secondNode) < _loadSignal.getLoad(firstNode)) ? secondNode : firstNode;
+    }
+
+    /** Strategy that reports the current load of a node. */
+    public static interface LoadSignal<T> {
+        /** @return The current load of the node.  Lower is better. */
+        double getLoad(T node);
+    }
+}
@@ -0,0 +1,27 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects nodes in turn.  Selection is a single atomic increment and array access.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public class RoundRobinSelector<T> extends AbstractNodeSelector<T> {
+    private final AtomicInteger _counter = new AtomicInteger();
+
+    /**
+     * @return The next node in turn, or {@code null} if there are no nodes available.
+     */
+    public T select() {
+        NodeSnapshot<T> snapshot = getSnapshot();
+        int size = snapshot.size();
+        if (size == 0) {
+            return null;
+        }
+
+        // Mask off the sign bit so the index stays non-negative when the counter wraps around.
+        int index = (_counter.getAndIncrement() & Integer.MAX_VALUE) % size;
+        return snapshot.getNode(index);
+    }
+}
@@ -0,0 +1,155 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Selects nodes at random with a probability proportional to their weight.
+ * <p/>
+ * Weights are read once per membership change and turned into an alias table (Vose's method), so a selection costs
+ * two random numbers and a few array accesses regardless of how many nodes there are.
+ *
+ * @param <T> The type used to represent a node.
+ */
+public class WeightedRandomSelector<T> extends AbstractNodeSelector<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(WeightedRandomSelector.class);
+
+    private final Weigher<? super T> _weigher;
+    private volatile AliasTable<T> _table = new AliasTable<T>(NodeSnapshot.<T>empty(), new int[0], new double[0],
+            new int[0]);
+
+    /**
+     * @param weigher Strategy that gives the relative weight of a node.  Called only when membership changes.
+     */
+    public WeightedRandomSelector(Weigher<? super T> weigher) {
+        _weigher = checkNotNull(weigher);
+    }
+
+    /**
+     * @return A node chosen at random by weight, or {@code null} if there are no nodes available or none of them
+     * has a positive weight.
+     */
+    public T select() {
+        AliasTable<T> table = _table;
+        int size = table._probabilities.length;
+        if (size == 0) {
+            return null;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int column = random.nextInt(size);
+        int chosen = (random.nextDouble() < table._probabilities[column]) ? column : table._aliases[column];
+        return table._snapshot.getNode(table._positions[chosen]);
+    }
+
+    @Override
+    protected void onSnapshotChanged(NodeSnapshot<T> snapshot) {
+        // Columns are built only for nodes with a positive weight, so a node weighed at zero can't be reached through
+        // the table at all, whatever rounding does to the leftover columns below.
+        int snapshotSize = snapshot.size();
+        int[] positions = new int[snapshotSize];
+        double[] weights = new double[snapshotSize];
+        double total = 0;
+        int size = 0;
+        for (int i = 0; i < snapshotSize; i++) {
+            double weight = getWeight(snapshot, i);
+            if (weight > 0) {
+                positions[size] = i;
+                weights[size] = weight;
+                total += weight;
+                size++;
+            }
+        }
+
+        if (size == 0) {
+            _table = new AliasTable<T>(snapshot, new int[0], new double[0], new int[0]);
+            return;
+        }
+
+        // Vose's alias method: scale the weights so the average is 1, then pair each "small" column with a "large"
+        // column that donates the remainder of its probability.
+        double[] probabilities = new double[size];
+        int[] aliases = new int[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < size; i++) {
+            weights[i] = weights[i] * size / total;
+            if (weights[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probabilities[less] = weights[less];
+            aliases[less] = more;
+            weights[more] = (weights[more] + weights[less]) - 1;
+            if (weights[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Anything left over is (up to rounding error) exactly 1.
+        while (largeCount > 0) {
+            probabilities[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            probabilities[small[--smallCount]] = 1;
+        }
+
+        _table = new AliasTable<T>(snapshot, Arrays.copyOf(positions, size), probabilities, aliases);
+    }
+
+    /**
+     * This runs in the {@code NodeDiscovery} listener callback, so a bad weight mustn't throw: that would leave the
+     * table stale for every node.  The node is logged and never selected instead.
+     */
+    private double getWeight(NodeSnapshot<T> snapshot, int index) {
+        double weight;
+        try {
+            weight = _weigher.getWeight(snapshot.getNode(index));
+        } catch (RuntimeException e) {
+            LOG.warn("Unable to weigh node {}, it will not be selected", snapshot.getPath(index), e);
+            return 0;
+        }
+        if (!(weight >= 0) || Double.isInfinite(weight)) {
+            LOG.warn("Invalid weight {} for node {}, it will not be selected", weight, snapshot.getPath(index));
+            return 0;
+        }
+        return weight;
+    }
+
+    /** Strategy that gives the relative weight of a node. */
+    public static interface Weigher<T> {
+        /**
+         * @return The non-negative weight of the node.  Nodes with a weight of zero are never selected, nor are nodes
+         * whose weight is negative, infinite or {@code NaN}, or whose weigher throws; those are logged.
+         */
+        double getWeight(T node);
+    }
+
+    private static final class AliasTable<T> {
+        private final NodeSnapshot<T> _snapshot;
+        /** Snapshot position of the node behind each column. */
+        private final int[] _positions;
+        private final double[] _probabilities;
+        private final int[] _aliases;
+
+        private AliasTable(NodeSnapshot<T> snapshot, int[] positions, double[] probabilities, int[] aliases) {
+            _snapshot = snapshot;
+            _positions = positions;
+            _probabilities = probabilities;
+            _aliases = aliases;
+        }
+    }
+}
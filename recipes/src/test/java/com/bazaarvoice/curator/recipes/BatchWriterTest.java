@@ -0,0 +1,189 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BatchWriterTest extends ZooKeeperTest {
+    private static final String DIR = "/test";
+    private static final String FOO = ZKPaths.makePath(DIR, "foo");
+    private static final String BAR = ZKPaths.makePath(DIR, "bar");
+    private static final String BAZ = ZKPaths.makePath("/other", "baz");
+    private static final byte[] DATA = "data".getBytes();
+
+    private CuratorFramework _curator;
+    private BatchWriter _writer;
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+        _writer = new BatchWriter(_curator);
+    }
+
+    @Test
+    public void testCreatesNodesInOneTransaction() throws Exception {
+        RecordingCallback callback = new RecordingCallback();
+        _writer.create(nodes(FOO, BAR, BAZ), CreateMode.PERSISTENT, callback);
+
+        assertEquals(ImmutableList.of(FOO, BAR, BAZ), callback._created);
+        // Every operation of a multi-op transaction has the same zxid.
+        Set<Long> czxids = Sets.newHashSet();
+        for (String path : callback._created) {
+            czxids.add(_curator.checkExists().forPath(path).getCzxid());
+        }
+        assertEquals(1, czxids.size());
+        assertArrayEquals(DATA, _curator.getData().forPath(FOO));
+    }
+
+    @Test
+    public void testCreatesEachWhenSomeExist() throws Exception {
+        _curator.create().creatingParentsIfNeeded().forPath(BAR, "other".getBytes());
+
+        RecordingCallback callback = new RecordingCallback();
+        _writer.create(nodes(FOO, BAR, BAZ), CreateMode.PERSISTENT, callback);
+
+        assertEquals(ImmutableList.of(FOO, BAR, BAZ), callback._created);
+        assertNotNull(_curator.checkExists().forPath(FOO));
+        assertNotNull(_curator.checkExists().forPath(BAZ));
+    }
+
+    @Test
+    public void testCreatesEachWhenParentDeleted() throws Exception {
+        _writer.create(nodes(FOO), CreateMode.PERSISTENT, new RecordingCallback());
+        _curator.delete().forPath(FOO);
+        _curator.delete().forPath(DIR);
+
+        RecordingCallback callback = new RecordingCallback();
+        _writer.create(nodes(FOO, BAR), CreateMode.PERSISTENT, callback);
+
+        assertEquals(ImmutableList.of(FOO, BAR), callback._created);
+        assertNotNull(_curator.checkExists().forPath(BAR));
+    }
+
+    @Test
+    public void testCreatesMoreThanOneTransaction() throws Exception {
+        int count = BatchWriter.MAX_OPERATIONS_PER_TRANSACTION + 1;
+        Map<String, byte[]> nodes = Maps.newLinkedHashMap();
+        for (int i = 0; i < count; i++) {
+            nodes.put(ZKPaths.makePath(DIR, "node-" + i), DATA);
+        }
+
+        RecordingCallback callback = new RecordingCallback();
+        _writer.create(nodes, CreateMode.PERSISTENT, callback);
+
+        assertEquals(count, callback._created.size());
+        assertEquals(count, _curator.getChildren().forPath(DIR).size());
+    }
+
+    @Test
+    public void testSetData() throws Exception {
+        _writer.create(nodes(FOO, BAR), CreateMode.PERSISTENT, new RecordingCallback());
+
+        byte[] updated = "updated".getBytes();
+        List<String> missing = _writer.setData(ImmutableMap.of(FOO, updated, BAR, updated));
+
+        assertEquals(Collections.<String>emptyList(), missing);
+        assertArrayEquals(updated, _curator.getData().forPath(FOO));
+        assertArrayEquals(updated, _curator.getData().forPath(BAR));
+    }
+
+    @Test
+    public void testSetDataReturnsMissingNodes() throws Exception {
+        _writer.create(nodes(FOO, BAR), CreateMode.PERSISTENT, new RecordingCallback());
+        _curator.delete().forPath(FOO);
+
+        byte[] updated = "updated".getBytes();
+        List<String> missing = _writer.setData(ImmutableMap.of(FOO, updated, BAR, updated));
+
+        assertEquals(ImmutableList.of(FOO), missing);
+        assertArrayEquals(updated, _curator.getData().forPath(BAR));
+        assertNull(_curator.checkExists().forPath(FOO));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        _writer.create(nodes(FOO, BAR, BAZ), CreateMode.PERSISTENT, new RecordingCallback());
+
+        assertEquals(3, _writer.delete(ImmutableList.of(FOO, BAR, BAZ)));
+        assertNull(_curator.checkExists().forPath(FOO));
+        assertNull(_curator.checkExists().forPath(BAR));
+        assertNull(_curator.checkExists().forPath(BAZ));
+    }
+
+    @Test
+    public void testDeleteSkipsMissingNodes() throws Exception {
+        _writer.create(nodes(FOO, BAR), CreateMode.PERSISTENT, new RecordingCallback());
+        _curator.delete().forPath(FOO);
+
+        assertEquals(1, _writer.delete(ImmutableList.of(FOO, BAR)));
+        assertNull(_curator.checkExists().forPath(BAR));
+    }
+
+    @Test
+    public void testDeleteSkipsChangedNodes() throws Exception {
+        _writer.create(nodes(FOO, BAR), CreateMode.PERSISTENT, new RecordingCallback());
+        Stat foo = _curator.checkExists().forPath(FOO);
+        Stat bar = _curator.checkExists().forPath(BAR);
+        _curator.setData().forPath(FOO, "changed".getBytes());
+
+        assertEquals(1, _writer.delete(ImmutableMap.of(FOO, foo.getVersion(), BAR, bar.getVersion())));
+        assertNotNull(_curator.checkExists().forPath(FOO));
+        assertNull(_curator.checkExists().forPath(BAR));
+    }
+
+    @Test
+    public void testRetriesBackOffUntilReset() {
+        BatchWriter.Retries retries = new BatchWriter.Retries(new RetrySchedule() {
+            @Override
+            public long getDelayMillis(int retryCount, long previousDelayMillis) {
+                return previousDelayMillis + retryCount;
+            }
+        });
+        Exception error = new Exception();
+
+        assertEquals(1, retries.delay(error));
+        assertEquals(3, retries.delay(null));
+        retries.reset();
+        assertEquals(1, retries.delay(null));
+
+        assertEquals(3, retries.getCount());
+        assertSame(error, retries.getLastError());
+    }
+
+    private static Map<String, byte[]> nodes(String... paths) {
+        Map<String, byte[]> nodes = Maps.newLinkedHashMap();
+        for (String path : paths) {
+            nodes.put(path, DATA);
+        }
+        return nodes;
+    }
+
+    private static class RecordingCallback implements BatchWriter.CreateCallback {
+        private final List<String> _created = Lists.newArrayList();
+
+        @Override
+        public void onCreated(String path) {
+            _created.add(path);
+        }
+    }
+}
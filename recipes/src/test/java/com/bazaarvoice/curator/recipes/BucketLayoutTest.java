@@ -0,0 +1,74 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.apache.curator.utils.ZKPaths;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BucketLayoutTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroBuckets() {
+        new BucketLayout(0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullNodeName() {
+        new BucketLayout(4).getBucket(null);
+    }
+
+    @Test
+    public void testBucketInRange() {
+        BucketLayout layout = new BucketLayout(7);
+        for (int i = 0; i < 1000; i++) {
+            int bucket = layout.getBucket("node-" + i);
+            assertTrue(bucket >= 0 && bucket < 7);
+        }
+    }
+
+    @Test
+    public void testBucketIsStable() {
+        assertEquals(new BucketLayout(16).getBucket("node"), new BucketLayout(16).getBucket("node"));
+    }
+
+    @Test
+    public void testSingleBucket() {
+        assertEquals(0, new BucketLayout(1).getBucket("node"));
+    }
+
+    @Test
+    public void testBucketPaths() {
+        assertEquals(ImmutableList.of("/svc/0", "/svc/1", "/svc/2"), new BucketLayout(3).getBucketPaths("/svc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBucketPathOutOfRange() {
+        new BucketLayout(3).getBucketPath("/svc", 3);
+    }
+
+    @Test
+    public void testBucketedPath() {
+        BucketLayout layout = new BucketLayout(16);
+        assertEquals("/svc/" + layout.getBucket("node") + "/node", layout.getBucketedPath("/svc/node"));
+    }
+
+    @Test
+    public void testBucketedPathWithKey() {
+        BucketLayout layout = new BucketLayout(16);
+        assertEquals("/svc/" + layout.getBucket("key") + "/node", layout.getBucketedPath("/svc/node", "key"));
+    }
+
+    @Test
+    public void testKeysSpreadNodesWithSameName() {
+        BucketLayout layout = new BucketLayout(4);
+        Set<String> bucketPaths = Sets.newHashSet();
+        for (int i = 0; i < 100; i++) {
+            bucketPaths.add(ZKPaths.getPathAndNode(layout.getBucketedPath("/svc/node", "key-" + i)).getPath());
+        }
+        assertEquals(Sets.newHashSet(layout.getBucketPaths("/svc")), bucketPaths);
+    }
+}
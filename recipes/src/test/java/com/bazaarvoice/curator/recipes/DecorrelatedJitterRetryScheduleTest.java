@@ -0,0 +1,91 @@
+package com.bazaarvoice.curator.recipes;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecorrelatedJitterRetryScheduleTest {
+    private final RetrySchedule _schedule =
+            new DecorrelatedJitterRetrySchedule(100, 10000, TimeUnit.MILLISECONDS, new Random(42));
+
+    @Test(expected = NullPointerException.class)
+    public void testNullUnit() {
+        new DecorrelatedJitterRetrySchedule(100, 10000, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroBaseDelay() {
+        new DecorrelatedJitterRetrySchedule(0, 10000, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxDelayLessThanBaseDelay() {
+        new DecorrelatedJitterRetrySchedule(100, 99, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testFirstDelay() {
+        for (int i = 0; i < 1000; i++) {
+            long delay = _schedule.getDelayMillis(1, 0);
+            assertTrue(delay >= 100 && delay <= 300);
+        }
+    }
+
+    @Test
+    public void testDelayIsBetweenBaseAndThreeTimesPrevious() {
+        for (int i = 0; i < 1000; i++) {
+            long delay = _schedule.getDelayMillis(3, 1000);
+            assertTrue(delay >= 100 && delay <= 3000);
+        }
+    }
+
+    @Test
+    public void testDelayIsCapped() {
+        long delay = 0;
+        for (int i = 1; i <= 1000; i++) {
+            delay = _schedule.getDelayMillis(i, delay);
+            assertTrue(delay >= 100 && delay <= 10000);
+        }
+        assertTrue(_schedule.getDelayMillis(1, Long.MAX_VALUE) <= 10000);
+    }
+
+    @Test
+    public void testDelaysGrow() {
+        // On average each delay is about 1.5x the previous one, so a run of failures backs off to the cap.
+        long delay = 0;
+        long max = 0;
+        for (int i = 1; i <= 50; i++) {
+            delay = _schedule.getDelayMillis(i, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue(max > 5000);
+    }
+
+    @Test
+    public void testClientsDecorrelate() {
+        // Two clients that fail at the same time don't retry at the same time.
+        RetrySchedule other = new DecorrelatedJitterRetrySchedule(100, 10000, TimeUnit.MILLISECONDS, new Random(7));
+        long delay = 0;
+        long otherDelay = 0;
+        int same = 0;
+        for (int i = 1; i <= 20; i++) {
+            delay = _schedule.getDelayMillis(i, delay);
+            otherDelay = other.getDelayMillis(i, otherDelay);
+            if (delay == otherDelay) {
+                same++;
+            }
+        }
+        assertTrue(same < 5);
+    }
+
+    @Test
+    public void testEqualBaseAndMax() {
+        RetrySchedule fixed = new DecorrelatedJitterRetrySchedule(100, 100, TimeUnit.MILLISECONDS);
+        assertEquals(100, fixed.getDelayMillis(1, 0));
+        assertEquals(100, fixed.getDelayMillis(10, 100));
+    }
+}
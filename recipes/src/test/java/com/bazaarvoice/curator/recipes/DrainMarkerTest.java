@@ -0,0 +1,48 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DrainMarkerTest {
+    private static final byte[] DATA = "{\"host\":\"example.com\"}".getBytes(Charsets.UTF_8);
+
+    @Test
+    public void testHeaderMarksData() {
+        byte[] marked = DrainMarker.HEADER.mark(DATA);
+
+        assertTrue(DrainMarker.HEADER.isDraining(marked));
+        assertArrayEquals(DATA, Arrays.copyOfRange(marked, 2, marked.length));
+    }
+
+    @Test
+    public void testHeaderUnmarkedData() {
+        assertFalse(DrainMarker.HEADER.isDraining(DATA));
+        assertFalse(DrainMarker.HEADER.isDraining(new byte[0]));
+        assertFalse(DrainMarker.HEADER.isDraining(new byte[] {0x00}));
+        assertFalse(DrainMarker.HEADER.isDraining(null));
+    }
+
+    @Test
+    public void testHeaderMarkIsIdempotent() {
+        byte[] marked = DrainMarker.HEADER.mark(DATA);
+        assertArrayEquals(marked, DrainMarker.HEADER.mark(marked));
+    }
+
+    @Test
+    public void testHeaderDistinctFromCodecHeader() {
+        // Compressed data starts with 0x00 'Z', so it isn't mistaken for draining data.
+        assertFalse(DrainMarker.HEADER.isDraining(PayloadCodec.GZIP.encode(DATA)));
+    }
+
+    @Test
+    public void testHeaderOfEncodedData() throws Exception {
+        byte[] encoded = PayloadCodec.GZIP.encode(DrainMarker.HEADER.mark(DATA));
+        assertTrue(DrainMarker.HEADER.isDraining(PayloadCodec.GZIP.decode(encoded)));
+    }
+}
@@ -0,0 +1,286 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EphemeralNodeManagerTest extends ZooKeeperTest {
+    private static final String DIR = "/test";
+    private static final String FOO = ZKPaths.makePath(DIR, "foo");
+    private static final String BAR = ZKPaths.makePath(DIR, "bar");
+    private static final String BAZ = ZKPaths.makePath("/other", "baz");
+    private static final byte[] DATA = "data".getBytes();
+
+    /** This curator instance is used to verify all interaction with ZooKeeper from an external user's perspective. */
+    private CuratorFramework _curator;
+
+    /** Keep track of the managers that were created during this test so that they can be cleaned up at the end. */
+    private final Collection<EphemeralNodeManager> _createdManagers = Lists.newArrayList();
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @After
+    @Override
+    public void teardown() throws Exception {
+        for (EphemeralNodeManager manager : _createdManagers) {
+            manager.close(10, TimeUnit.SECONDS);
+        }
+
+        super.teardown();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullCurator() throws Exception {
+        EphemeralNodeManager.builder(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPath() throws Exception {
+        createManager(newCurator()).register(null, DATA);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullData() throws Exception {
+        createManager(newCurator()).register(FOO, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveVerifyInterval() throws Exception {
+        EphemeralNodeManager.builder(_curator).withVerifyInterval(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterAfterClose() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        manager.close(10, TimeUnit.SECONDS);
+        manager.register(FOO, DATA);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        EphemeralNodeManager.Registration registration = manager.register(FOO, DATA);
+
+        assertEquals(registration.getPath(), registration.getCreationFuture().get(10, TimeUnit.SECONDS));
+        assertEquals(DIR, ZKPaths.getPathAndNode(registration.getPath()).getPath());
+        assertTrue(ZKPaths.getNodeFromPath(registration.getPath()).startsWith("_c_"));
+        assertArrayEquals(DATA, _curator.getData().forPath(registration.getPath()));
+    }
+
+    @Test
+    public void testRegistrationsMadeTogetherAreCreatedInOneTransaction() throws Exception {
+        List<EphemeralNodeManager.Registration> registrations = registerAll(createManager(newCurator()));
+
+        // Every operation of a multi-op transaction has the same zxid.
+        assertEquals(1, czxids(assertNodesExist(registrations)).size());
+    }
+
+    @Test
+    public void testRecreatesNodesInOneTransactionWhenSessionExpires() throws Exception {
+        CuratorFramework curator = newCurator();
+        List<EphemeralNodeManager.Registration> registrations = registerAll(createManager(curator));
+        Set<Long> original = czxids(assertNodesExist(registrations));
+
+        killSession(curator);
+
+        for (EphemeralNodeManager.Registration registration : registrations) {
+            assertTrue(waitUntilExists(registration.getPath()));
+        }
+        Set<Long> recreated = czxids(assertNodesExist(registrations));
+        assertEquals(1, recreated.size());
+        assertFalse(original.equals(recreated));
+    }
+
+    @Test
+    public void testDoesNotWatchNodes() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        EphemeralNodeManager.Registration registration = manager.register(FOO, DATA);
+        registration.getCreationFuture().get(10, TimeUnit.SECONDS);
+
+        // Without a watch the deletion goes unnoticed until the nodes are verified.
+        _curator.delete().forPath(registration.getPath());
+        Thread.sleep(500);
+        assertNull(_curator.checkExists().forPath(registration.getPath()));
+
+        manager.verify();
+        assertTrue(waitUntilExists(registration.getPath()));
+    }
+
+    @Test
+    public void testVerifyRecreatesDeletedParent() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        List<EphemeralNodeManager.Registration> registrations = registerAll(manager);
+
+        _curator.inTransaction()
+                .delete().forPath(registrations.get(0).getPath()).and()
+                .delete().forPath(registrations.get(1).getPath()).and()
+                .delete().forPath(DIR).and()
+                .commit();
+
+        manager.verify();
+        for (EphemeralNodeManager.Registration registration : registrations) {
+            assertTrue(waitUntilExists(registration.getPath()));
+        }
+    }
+
+    @Test
+    public void testVerifiesPeriodically() throws Exception {
+        EphemeralNodeManager manager = EphemeralNodeManager.builder(newCurator())
+                .withVerifyInterval(100, TimeUnit.MILLISECONDS)
+                .build();
+        _createdManagers.add(manager);
+        EphemeralNodeManager.Registration registration = manager.register(FOO, DATA);
+        registration.getCreationFuture().get(10, TimeUnit.SECONDS);
+
+        _curator.delete().forPath(registration.getPath());
+        assertTrue(waitUntilExists(registration.getPath()));
+    }
+
+    @Test
+    public void testCloseRegistration() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        List<EphemeralNodeManager.Registration> registrations = registerAll(manager);
+
+        registrations.get(0).close(10, TimeUnit.SECONDS);
+        assertNull(_curator.checkExists().forPath(registrations.get(0).getPath()));
+        assertNotNull(_curator.checkExists().forPath(registrations.get(1).getPath()));
+
+        // A closed registration is not recreated.
+        manager.verify();
+        Thread.sleep(500);
+        assertNull(_curator.checkExists().forPath(registrations.get(0).getPath()));
+    }
+
+    @Test
+    public void testDeletesNodesWhenClosed() throws Exception {
+        EphemeralNodeManager manager = createManager(newCurator());
+        List<EphemeralNodeManager.Registration> registrations = registerAll(manager);
+
+        manager.close(10, TimeUnit.SECONDS);
+        for (EphemeralNodeManager.Registration registration : registrations) {
+            assertNull(_curator.checkExists().forPath(registration.getPath()));
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullScheduler() throws Exception {
+        EphemeralNodeManager.builder(newCurator()).withScheduler(null);
+    }
+
+    @Test
+    public void testSharedScheduler() throws Exception {
+        EphemeralNodeScheduler scheduler = new EphemeralNodeScheduler(1);
+        CuratorFramework curator = newCurator();
+        try {
+            EphemeralNodeManager manager = EphemeralNodeManager.builder(curator).withScheduler(scheduler).build();
+            PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, BAZ, DATA, CreateMode.EPHEMERAL)
+                    .withScheduler(scheduler)
+                    .build();
+            List<EphemeralNodeManager.Registration> registrations = registerAll(manager);
+            assertNodesExist(registrations);
+
+            // Closing the manager leaves the shared scheduler running for the node.
+            manager.close(10, TimeUnit.SECONDS);
+            String path = node.getActualPath();
+            _curator.delete().forPath(path);
+            assertTrue(waitUntilExists(path));
+            node.close(10, TimeUnit.SECONDS);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testCreationFutureFailsWhenClosed() throws Exception {
+        CuratorFramework curator = newCurator();
+        stopZooKeeper();
+
+        EphemeralNodeManager manager = EphemeralNodeManager.builder(curator).build();
+        EphemeralNodeManager.Registration registration = manager.register(FOO, DATA);
+        manager.close(1, TimeUnit.SECONDS);
+        try {
+            registration.getCreationFuture().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private EphemeralNodeManager createManager(CuratorFramework curator) {
+        EphemeralNodeManager manager = EphemeralNodeManager.builder(curator).build();
+        _createdManagers.add(manager);
+        return manager;
+    }
+
+    private static List<EphemeralNodeManager.Registration> registerAll(EphemeralNodeManager manager)
+            throws Exception {
+        List<EphemeralNodeManager.Registration> registrations = Lists.newArrayList(
+                manager.register(FOO, DATA),
+                manager.register(BAR, DATA),
+                manager.register(BAZ, DATA));
+        for (EphemeralNodeManager.Registration registration : registrations) {
+            registration.getCreationFuture().get(10, TimeUnit.SECONDS);
+        }
+        return registrations;
+    }
+
+    private List<Stat> assertNodesExist(List<EphemeralNodeManager.Registration> registrations) throws Exception {
+        List<Stat> stats = Lists.newArrayList();
+        for (EphemeralNodeManager.Registration registration : registrations) {
+            Stat stat = _curator.checkExists().forPath(registration.getPath());
+            assertNotNull(registration.getPath(), stat);
+            stats.add(stat);
+        }
+        return stats;
+    }
+
+    private static Set<Long> czxids(List<Stat> stats) {
+        Set<Long> czxids = Sets.newHashSet();
+        for (Stat stat : stats) {
+            czxids.add(stat.getCzxid());
+        }
+        return czxids;
+    }
+
+    private boolean waitUntilExists(final String path) throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return _curator.checkExists().forPath(path) != null;
+            }
+        });
+    }
+
+    private static boolean waitUntil(Callable<Boolean> function) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!function.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return function.call();
+    }
+}
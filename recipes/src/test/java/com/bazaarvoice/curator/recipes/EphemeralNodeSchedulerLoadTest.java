@@ -0,0 +1,76 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Registers many {@link PersistentEphemeralNode}s in one JVM on a shared {@link EphemeralNodeScheduler} and checks
+ * that every node exists and that the number of threads stayed bounded.  The build runs it with 2,000 nodes; pass
+ * {@code -Dephemeral.load.nodes=10000} to run it at full scale.
+ */
+public class EphemeralNodeSchedulerLoadTest extends ZooKeeperTest {
+    private static final String DIR = "/load";
+    private static final String PATH = ZKPaths.makePath(DIR, "node");
+    private static final byte[] DATA = "data".getBytes();
+    private static final int NODES = Integer.getInteger("ephemeral.load.nodes", 2000);
+    private static final int SCHEDULER_THREADS = 4;
+
+    /** Threads started by other parts of the JVM while the test runs; nothing that grows with the number of nodes. */
+    private static final int THREAD_SLACK = 8;
+
+    @Test
+    public void testManyNodesOnBoundedThreads() throws Exception {
+        CuratorFramework curator = newCurator();
+        curator.checkExists().forPath("/");  // Connect first, so the client's own threads are already running.
+        EphemeralNodeScheduler scheduler = new EphemeralNodeScheduler(SCHEDULER_THREADS);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threadBean.getThreadCount();
+        threadBean.resetPeakThreadCount();
+
+        List<PersistentEphemeralNode> nodes = Lists.newArrayList();
+        try {
+            // Start every registration without waiting, then wait for them all to be created.
+            List<ListenableFuture<String>> created = Lists.newArrayList();
+            for (int i = 0; i < NODES; i++) {
+                PersistentEphemeralNode node = PersistentEphemeralNode
+                        .builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                        .withScheduler(scheduler)
+                        .buildAsync();
+                nodes.add(node);
+                created.add(node.getCreationFuture());
+            }
+            List<String> paths = Futures.allAsList(created).get(2, TimeUnit.MINUTES);
+
+            Set<String> names = Sets.newHashSet();
+            for (String path : paths) {
+                names.add(ZKPaths.getNodeFromPath(path));
+            }
+            assertEquals(NODES, names.size());
+            assertEquals(names, Sets.newHashSet(curator.getChildren().forPath(DIR)));
+
+            int addedThreads = threadBean.getPeakThreadCount() - threadsBefore;
+            assertTrue("Added " + addedThreads + " threads", addedThreads <= SCHEDULER_THREADS + THREAD_SLACK);
+        } finally {
+            for (PersistentEphemeralNode node : nodes) {
+                node.close(10, TimeUnit.SECONDS);
+            }
+            scheduler.close();
+        }
+    }
+}
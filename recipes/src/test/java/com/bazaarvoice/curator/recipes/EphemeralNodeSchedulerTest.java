@@ -0,0 +1,181 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EphemeralNodeSchedulerTest {
+    private final EphemeralNodeScheduler _scheduler = new EphemeralNodeScheduler(2);
+
+    @After
+    public void teardown() {
+        _scheduler.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroThreads() {
+        new EphemeralNodeScheduler(0);
+    }
+
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        EphemeralNodeScheduler.SerialExecutor executor = _scheduler.newSerialExecutor();
+        final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            final int n = i;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void testTasksOfOneExecutorNeverOverlap() throws Exception {
+        final EphemeralNodeScheduler.SerialExecutor executor = _scheduler.newSerialExecutor();
+        final AtomicBoolean running = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(4 * 500);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (!running.compareAndSet(false, true)) {
+                    overlapped.set(true);
+                }
+                Thread.yield();
+                running.set(false);
+                done.countDown();
+            }
+        };
+
+        // Submit from several threads at once, some tasks delayed, so the executor is drained by different threads.
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(submitter(executor, task, 500)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    public void testExecutorsShareThreads() throws Exception {
+        // More blocked executors than threads: the others must still make progress once the threads are free.
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            _scheduler.newSerialExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSchedule() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        _scheduler.newSerialExecutor().schedule(countDown(done), 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testExceptionDoesNotStopLaterTasks() throws Exception {
+        EphemeralNodeScheduler.SerialExecutor executor = _scheduler.newSerialExecutor();
+        CountDownLatch done = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("Expected");
+            }
+        });
+        executor.submit(countDown(done));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownIgnoresLaterTasks() throws Exception {
+        EphemeralNodeScheduler.SerialExecutor executor = _scheduler.newSerialExecutor();
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        executor.schedule(task, 100, TimeUnit.MILLISECONDS);
+        executor.shutdown();
+        executor.submit(task);
+
+        Thread.sleep(300);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        _scheduler.close();
+        assertTrue(_scheduler.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static Runnable submitter(final EphemeralNodeScheduler.SerialExecutor executor, final Runnable task,
+                                      final int count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    if (i % 50 == 0) {
+                        executor.schedule(task, 1, TimeUnit.MILLISECONDS);
+                    } else {
+                        executor.submit(task);
+                    }
+                }
+            }
+        };
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,170 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EphemeralWriteLimiterTest {
+    private final EphemeralNodeScheduler _scheduler = new EphemeralNodeScheduler(2);
+    private final EphemeralNodeScheduler.SerialExecutor _executor = _scheduler.newSerialExecutor();
+    private final List<EphemeralWriteLimiter> _limiters = Lists.newArrayList();
+
+    @After
+    public void teardown() {
+        for (EphemeralWriteLimiter limiter : _limiters) {
+            limiter.close();
+        }
+        _scheduler.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroRate() {
+        new EphemeralWriteLimiter(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroBurst() {
+        new EphemeralWriteLimiter(10, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPriority() {
+        newLimiter(10).submit(null, _executor, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    @Test
+    public void testLimitsRate() throws Exception {
+        EphemeralWriteLimiter limiter = newLimiter(20);
+        CountDownLatch done = new CountDownLatch(21);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 21; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, countDown(done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The first write goes immediately, the other 20 at 20 per second.
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void testHigherPriorityGoesFirst() throws Exception {
+        EphemeralWriteLimiter limiter = newLimiter(10);
+        List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        CountDownLatch done = new CountDownLatch(6);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.LOW, _executor, record(order, "low-" + i, done));
+        }
+        limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, record(order, "normal", done));
+        for (int i = 0; i < 2; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.HIGH, _executor, record(order, "high-" + i, done));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The first low priority write may already have gone by the time the others were queued.
+        List<String> rest = order.subList(order.indexOf("low-0") == 0 ? 1 : 0, order.size());
+        assertEquals(Lists.newArrayList("high-0", "high-1", "normal"), rest.subList(0, 3));
+        assertEquals("low-2", order.get(5));
+    }
+
+    @Test
+    public void testQueueDepthAndRecoveryTime() throws Exception {
+        EphemeralWriteLimiter limiter = newLimiter(10, 1);
+        assertEquals(0, limiter.getLastRecoveryTime(TimeUnit.MILLISECONDS));
+
+        // Even after the limiter has been idle, a burst of 1 lets only the first write go at once.
+        Thread.sleep(500);
+        CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, countDown(done));
+        }
+        assertTrue(limiter.getQueueDepth() >= 4);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(0, limiter.getQueueDepth());
+        assertTrue(limiter.getLastRecoveryTime(TimeUnit.MILLISECONDS) >= 450);
+    }
+
+    @Test
+    public void testBurstAfterIdle() throws Exception {
+        EphemeralWriteLimiter limiter = newLimiter(2, 4);
+        Thread.sleep(2500);
+
+        CountDownLatch burst = new CountDownLatch(4);
+        CountDownLatch all = new CountDownLatch(5);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, countDown(all, burst));
+        }
+
+        // The first 4 go at once, the 5th waits its turn.
+        assertTrue(burst.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(1, all.getCount());
+        assertTrue(all.await(10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void testCloseRunsQueuedWrites() throws Exception {
+        EphemeralWriteLimiter limiter = newLimiter(0.1);
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, countDown(done));
+        }
+
+        limiter.close();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // Writes after close aren't limited either.
+        CountDownLatch after = new CountDownLatch(1);
+        limiter.submit(EphemeralWriteLimiter.Priority.NORMAL, _executor, countDown(after));
+        assertTrue(after.await(10, TimeUnit.SECONDS));
+    }
+
+    private EphemeralWriteLimiter newLimiter(double writesPerSecond) {
+        EphemeralWriteLimiter limiter = new EphemeralWriteLimiter(writesPerSecond);
+        _limiters.add(limiter);
+        return limiter;
+    }
+
+    private EphemeralWriteLimiter newLimiter(double writesPerSecond, int burst) {
+        EphemeralWriteLimiter limiter = new EphemeralWriteLimiter(writesPerSecond, burst);
+        _limiters.add(limiter);
+        return limiter;
+    }
+
+    private static Runnable countDown(final CountDownLatch... latches) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (CountDownLatch latch : latches) {
+                    latch.countDown();
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlapDamperTest {
+    private static final String PATH = "/path/node";
+
+    /** Suppress on the third flap in quick succession, release once the penalty halves twice. */
+    private static final FlapDampingPolicy POLICY =
+            new FlapDampingPolicy(1000, 2500, 750, 1, TimeUnit.MINUTES, 10, TimeUnit.MINUTES);
+
+    private final FakeTicker _ticker = new FakeTicker();
+    private final FlapDamper _damper = new FlapDamper(POLICY, _ticker);
+
+    @Test
+    public void testNotSuppressedBelowThreshold() {
+        assertFalse(_damper.recordFlap(PATH));
+        assertFalse(_damper.recordFlap(PATH));
+        assertFalse(_damper.isSuppressed(PATH));
+    }
+
+    @Test
+    public void testSuppressedAboveThreshold() {
+        _damper.recordFlap(PATH);
+        _damper.recordFlap(PATH);
+        assertTrue(_damper.recordFlap(PATH));
+        assertTrue(_damper.isSuppressed(PATH));
+        assertEquals(ImmutableSet.of(PATH), _damper.getSuppressedPaths());
+
+        // Only the flap that crosses the threshold reports it.
+        assertFalse(_damper.recordFlap(PATH));
+    }
+
+    @Test
+    public void testPenaltyDecays() {
+        _damper.recordFlap(PATH);
+        _ticker.advance(1, TimeUnit.MINUTES);
+        assertEquals(500, _damper.getPenalty(PATH), 0.001);
+    }
+
+    @Test
+    public void testSlowFlapsNotSuppressed() {
+        for (int i = 0; i < 10; i++) {
+            assertFalse(_damper.recordFlap(PATH));
+            _ticker.advance(2, TimeUnit.MINUTES);
+        }
+    }
+
+    @Test
+    public void testReleasedAfterDecay() {
+        suppress();
+        assertEquals(TimeUnit.MINUTES.toNanos(2), _damper.getReuseDelayNanos(PATH), TimeUnit.SECONDS.toNanos(1));
+        assertFalse(_damper.tryRelease(PATH));
+
+        _ticker.advance(2, TimeUnit.MINUTES);
+        assertTrue(_damper.tryRelease(PATH));
+        assertFalse(_damper.isSuppressed(PATH));
+        assertTrue(_damper.getSuppressedPaths().isEmpty());
+    }
+
+    @Test
+    public void testPenaltyCappedByMaxSuppress() {
+        for (int i = 0; i < 1000; i++) {
+            _damper.recordFlap(PATH);
+        }
+
+        _ticker.advance(10, TimeUnit.MINUTES);
+        assertTrue(_damper.tryRelease(PATH));
+    }
+
+    @Test
+    public void testForgetStablePaths() {
+        _damper.recordFlap(PATH);
+        _damper.forgetStablePaths();
+        assertEquals(1000, _damper.getPenalty(PATH), 0.001);
+
+        _ticker.advance(10, TimeUnit.MINUTES);
+        _damper.forgetStablePaths();
+        assertEquals(0, _damper.getPenalty(PATH), 0.001);
+    }
+
+    @Test
+    public void testSuppressedPathsNotForgotten() {
+        suppress();
+        _ticker.advance(1, TimeUnit.HOURS);
+        _damper.forgetStablePaths();
+        assertTrue(_damper.isSuppressed(PATH));
+    }
+
+    private void suppress() {
+        _damper.recordFlap(PATH);
+        _damper.recordFlap(PATH);
+        _damper.recordFlap(PATH);
+        assertTrue(_damper.isSuppressed(PATH));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long _nanos;
+
+        @Override
+        public long read() {
+            return _nanos;
+        }
+
+        void advance(long duration, TimeUnit unit) {
+            _nanos += unit.toNanos(duration);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaseRegistryTest extends ZooKeeperTest {
+    private static final String DIR = "/test/leases";
+    private static final String PATH = ZKPaths.makePath(DIR, "worker");
+    private static final byte[] DATA = "data".getBytes();
+
+    /** This curator instance is used to verify all interaction with ZooKeeper from an external user's perspective. */
+    private CuratorFramework _curator;
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullCurator() {
+        LeaseRegistry.builder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveTtl() {
+        LeaseRegistry.builder(_curator).withTtl(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRenewIntervalLongerThanTtl() {
+        LeaseRegistry.builder(_curator)
+                .withTtl(1, TimeUnit.SECONDS)
+                .withRenewInterval(2, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPath() throws Exception {
+        newRegistry().register(null, DATA);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRegisterAfterClose() throws Exception {
+        LeaseRegistry registry = newRegistry();
+        registry.close();
+        registry.register(PATH, DATA);
+    }
+
+    @Test
+    public void testRegisterCreatesPersistentNode() throws Exception {
+        LeaseRegistry.Lease lease = newRegistry().register(PATH, DATA);
+
+        assertEquals(DIR, ZKPaths.getPathAndNode(lease.getPath()).getPath());
+        assertTrue(ZKPaths.getNodeFromPath(lease.getPath()).endsWith("-worker"));
+        Stat stat = new Stat();
+        assertArrayEquals(DATA, _curator.getData().storingStatIn(stat).forPath(lease.getPath()));
+        assertEquals(0, stat.getEphemeralOwner());
+    }
+
+    @Test
+    public void testLeasesAreRenewed() throws Exception {
+        LeaseRegistry registry = newRegistry();
+        List<String> paths = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            paths.add(registry.register(PATH, DATA).getPath());
+        }
+
+        for (String path : paths) {
+            assertTrue(waitUntilRenewed(path));
+        }
+    }
+
+    @Test
+    public void testSweptLeaseIsRecreated() throws Exception {
+        LeaseRegistry registry = newRegistry();
+        registry.register(PATH, DATA);
+        String path = registry.register(PATH, DATA).getPath();
+        _curator.delete().forPath(path);
+
+        long start = System.nanoTime();
+        while (_curator.checkExists().forPath(path) == null
+                && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10)) {
+            Thread.sleep(10);
+        }
+        assertNotNull(_curator.checkExists().forPath(path));
+    }
+
+    @Test
+    public void testCloseLeaseDeletesNode() throws Exception {
+        LeaseRegistry.Lease lease = newRegistry().register(PATH, DATA);
+        lease.close();
+        assertNull(_curator.checkExists().forPath(lease.getPath()));
+
+        // Closing again is harmless.
+        lease.close();
+    }
+
+    @Test
+    public void testClosedLeaseIsNotRecreatedByRenewalInProgress() throws Exception {
+        LeaseRegistry registry = newRegistry();
+        LeaseRegistry.Lease lease = registry.register(PATH, DATA);
+        LeaseRegistry.Lease other = registry.register(PATH, DATA);
+        List<LeaseRegistry.Lease> renewing = ImmutableList.of(lease, other);
+
+        // A renewal that listed the lease before it was closed finds its node gone...
+        lease.close();
+        _curator.delete().forPath(other.getPath());
+        registry.renew(renewing);
+
+        // ...and leaves it alone, while a lease that is still held is recreated.
+        assertNull(_curator.checkExists().forPath(lease.getPath()));
+        assertNotNull(_curator.checkExists().forPath(other.getPath()));
+    }
+
+    @Test
+    public void testCloseDeletesAllNodes() throws Exception {
+        LeaseRegistry registry = newRegistry();
+        for (int i = 0; i < 3; i++) {
+            registry.register(PATH, DATA);
+        }
+
+        registry.close();
+        assertTrue(_curator.getChildren().forPath(DIR).isEmpty());
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        assertEquals(1000, newRegistry().getTtl(TimeUnit.MILLISECONDS));
+    }
+
+    /** A registry with a one second TTL, renewed every 100 milliseconds. */
+    private LeaseRegistry newRegistry() throws Exception {
+        return closer().register(LeaseRegistry.builder(newCurator())
+                .withTtl(1, TimeUnit.SECONDS)
+                .withRenewInterval(100, TimeUnit.MILLISECONDS)
+                .build());
+    }
+
+    private boolean waitUntilRenewed(String path) throws Exception {
+        int version = _curator.checkExists().forPath(path).getVersion();
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10)) {
+            if (_curator.checkExists().forPath(path).getVersion() > version) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
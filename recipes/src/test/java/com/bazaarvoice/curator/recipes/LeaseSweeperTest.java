@@ -0,0 +1,94 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.recipes.leader.LeaderService;
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaseSweeperTest extends ZooKeeperTest {
+    private static final String DIR = "/test/leases";
+
+    /** This curator instance is used to verify all interaction with ZooKeeper from an external user's perspective. */
+    private CuratorFramework _curator;
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveTtl() {
+        new LeaseSweeper(_curator, DIR, 0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMissingPath() throws Exception {
+        assertEquals(0, new LeaseSweeper(_curator, DIR, 100, TimeUnit.MILLISECONDS).sweep());
+    }
+
+    @Test
+    public void testSweepsExpiredLeases() throws Exception {
+        createNode("expired");
+        Thread.sleep(300);
+        createNode("live");
+
+        assertEquals(1, new LeaseSweeper(_curator, DIR, 200, TimeUnit.MILLISECONDS).sweep());
+        assertEquals(1, _curator.getChildren().forPath(DIR).size());
+        assertNotNull(_curator.checkExists().forPath(ZKPaths.makePath(DIR, "live")));
+    }
+
+    @Test
+    public void testKeepsRenewedLeases() throws Exception {
+        LeaseRegistry registry = closer().register(LeaseRegistry.builder(newCurator())
+                .withTtl(500, TimeUnit.MILLISECONDS)
+                .withRenewInterval(100, TimeUnit.MILLISECONDS)
+                .build());
+        String path = registry.register(ZKPaths.makePath(DIR, "worker"), new byte[0]).getPath();
+        Thread.sleep(1000);
+
+        assertEquals(0, new LeaseSweeper(_curator, DIR, 500, TimeUnit.MILLISECONDS).sweep());
+        assertNotNull(_curator.checkExists().forPath(path));
+    }
+
+    @Test
+    public void testSweepsInBulk() throws Exception {
+        // More than fit in one transaction.
+        for (int i = 0; i < 600; i++) {
+            createNode("node-" + i);
+        }
+        Thread.sleep(300);
+
+        assertEquals(600, new LeaseSweeper(_curator, DIR, 200, TimeUnit.MILLISECONDS).sweep());
+        assertTrue(_curator.getChildren().forPath(DIR).isEmpty());
+    }
+
+    @Test
+    public void testSweepsUnderLeaderService() throws Exception {
+        createNode("expired");
+        LeaderService leaderService = new LeaderService(newCurator(), "/test/leader", "id", "sweeper",
+                1, TimeUnit.MINUTES, LeaseSweeper.factory(newCurator(), DIR, 200, TimeUnit.MILLISECONDS));
+        leaderService.startAsync();
+        try {
+            long start = System.nanoTime();
+            while (!_curator.getChildren().forPath(DIR).isEmpty()
+                    && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10)) {
+                Thread.sleep(10);
+            }
+            assertTrue(_curator.getChildren().forPath(DIR).isEmpty());
+        } finally {
+            leaderService.stopAsync().awaitTerminated();
+        }
+    }
+
+    private void createNode(String name) throws Exception {
+        _curator.create().creatingParentsIfNeeded().forPath(ZKPaths.makePath(DIR, name));
+    }
+}
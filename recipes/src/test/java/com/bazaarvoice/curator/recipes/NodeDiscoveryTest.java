@@ -1,17 +1,24 @@
 package com.bazaarvoice.curator.recipes;
 
 import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.base.Charsets;
+import com.google.common.base.Functions;
 import com.google.common.base.Objects;
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.data.Stat;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -24,12 +31,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class NodeDiscoveryTest extends ZooKeeperTest {
     private static final Logger LOG = LoggerFactory.getLogger(NodeDiscoveryTest.class);
     private static final String PATH = "/path";
     private static final String FOO = ZKPaths.makePath(PATH, "foo");
+    private static final String MINE = ZKPaths.makePath(PATH, "mine-1");
+    private static final String OTHER = ZKPaths.makePath(PATH, "other-1");
 
     // A node that's not under the path that the node discovery watches
     private static final String UNWATCHED = ZKPaths.makePath("/other-path", "node");
@@ -176,6 +186,50 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         assertTrue(waitUntilSize(discovery.getNodes(), 0));
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Bucketed layout tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testGetNodesMergesBuckets() throws Exception {
+        BucketLayout layout = new BucketLayout(4);
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, PARSER).withBucketLayout(layout).build());
+        discovery.start();
+
+        for (int i = 0; i < 10; i++) {
+            createNode(layout.getBucketedPath(ZKPaths.makePath(PATH, "node-" + i)));
+        }
+        assertTrue(waitUntilSize(discovery.getNodes(), 10));
+
+        deleteNode(layout.getBucketedPath(ZKPaths.makePath(PATH, "node-3")));
+        assertTrue(waitUntilSize(discovery.getNodes(), 9));
+    }
+
+    @Test
+    public void testBucketedNodesReadyAfterStart() throws Exception {
+        BucketLayout layout = new BucketLayout(4);
+        String path = layout.getBucketedPath(FOO);
+        createNode(path, "data".getBytes());
+
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, PARSER).withBucketLayout(layout).build());
+        discovery.start();
+
+        assertEquals("data", discovery.getNodes().get(path));
+    }
+
+    @Test
+    public void testBucketedDiscoveryIgnoresUnbucketedNodes() throws Exception {
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, PARSER).withBucketLayout(new BucketLayout(4)).build());
+        discovery.start();
+
+        createNode(FOO);
+        assertTrue(waitUntilValue(_nodeDiscovery.getNodes(), FOO, ""));
+        assertTrue(discovery.getNodes().isEmpty());
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // contains() tests
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -210,6 +264,530 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         assertFalse(_nodeDiscovery.contains("data"));
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Index tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testIndexAfterAddNode() throws Exception {
+        NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(waitUntilIndexed(index, "zone-a", FOO));
+    }
+
+    @Test
+    public void testIndexAfterUpdateNode() throws Exception {
+        NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(waitUntilIndexed(index, "zone-a", FOO));
+
+        updateNode(FOO, "zone-b".getBytes());
+        assertTrue(waitUntilValue(_nodeDiscovery.getNodes(), FOO, "zone-b"));
+        assertEquals(ImmutableMap.of(FOO, "zone-b"), index.get("zone-b"));
+        assertFalse(index.containsKey("zone-a"));
+    }
+
+    @Test
+    public void testIndexAfterRemoveNode() throws Exception {
+        NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(waitUntilIndexed(index, "zone-a", FOO));
+
+        deleteNode(FOO);
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 0));
+        assertTrue(index.get("zone-a").isEmpty());
+    }
+
+    @Test
+    public void testIndexPopulatedWithExistingNodes() throws Exception {
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+
+        NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+        assertEquals(ImmutableMap.of(FOO, "zone-a"), index.get("zone-a"));
+    }
+
+    @Test
+    public void testIndexConsistentWithListener() throws Exception {
+        final NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+        final AtomicReference<Map<String, String>> indexed = new AtomicReference<Map<String, String>>();
+        AddTrigger<String> trigger = new AddTrigger<String>(FOO) {
+            @Override
+            public void onNodeAdded(String path, String data) {
+                // The index is updated before listeners are called.
+                indexed.set(index.get(data));
+                super.onNodeAdded(path, data);
+            }
+        };
+        _nodeDiscovery.addListener(trigger);
+
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(trigger.firedWithin(10, TimeUnit.SECONDS));
+        assertEquals(ImmutableMap.of(FOO, "zone-a"), indexed.get());
+    }
+
+    @Test
+    public void testRemovedIndexNotUpdated() throws Exception {
+        NodeIndex<String, String> index = _nodeDiscovery.addIndex(Functions.<String>identity());
+        _nodeDiscovery.removeIndex(index);
+
+        createNode(FOO, "zone-a".getBytes());
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertTrue(index.get("zone-a").isEmpty());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // ByteBuffer parser tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test(expected = NullPointerException.class)
+    public void testNullBufferParser() throws Exception {
+        NodeDiscovery.builder(_curator, PATH, (ByteBufferNodeDataParser<String>) null);
+    }
+
+    @Test
+    public void testBufferParser() throws Exception {
+        NodeDiscovery<String> discovery = newBufferDiscovery(new BufferParser(true));
+
+        createNode(FOO, "data".getBytes());
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "data:0:true"));
+
+        _curator.setData().forPath(FOO, "new-data".getBytes());
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "new-data:1:true"));
+    }
+
+    @Test
+    public void testStatefulBufferParser() throws Exception {
+        // Stateful parsers can still be shared, calls to them are serialized.
+        BufferParser parser = new BufferParser(false);
+        NodeDiscovery<String> discovery1 = newBufferDiscovery(parser);
+        NodeDiscovery<String> discovery2 = newBufferDiscovery(parser);
+
+        createNode(FOO, "data".getBytes());
+        assertTrue(waitUntilValue(discovery1.getNodes(), FOO, "data:0:true"));
+        assertTrue(waitUntilValue(discovery2.getNodes(), FOO, "data:0:true"));
+    }
+
+    @Test
+    public void testBufferParserWithEmptyData() throws Exception {
+        NodeDiscovery<String> discovery = newBufferDiscovery(new BufferParser(true));
+
+        createNode(FOO, new byte[0]);
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, ":0:true"));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Payload codec tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testDecodesCompressedData() throws Exception {
+        NodeDiscovery<String> discovery = newCodecDiscovery();
+
+        createNode(FOO, PayloadCodec.GZIP.encode("data".getBytes()));
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "data"));
+    }
+
+    @Test
+    public void testDecodesCompressedDataForBufferParser() throws Exception {
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, new BufferParser(true))
+                        .withPayloadCodecs(PayloadCodec.GZIP, PayloadCodec.DEFLATE)
+                        .build());
+        discovery.start();
+
+        createNode(FOO, PayloadCodec.DEFLATE.encode("data".getBytes()));
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "data:0:true"));
+    }
+
+    @Test
+    public void testUncompressedDataStillParsed() throws Exception {
+        NodeDiscovery<String> discovery = newCodecDiscovery();
+
+        String bar = ZKPaths.makePath(PATH, "bar");
+        createNode(FOO, "data".getBytes());
+        createNode(bar, PayloadCodec.GZIP.encode("data".getBytes()));
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "data"));
+        assertTrue(waitUntilValue(discovery.getNodes(), bar, "data"));
+    }
+
+    @Test
+    public void testUnknownCodecNotParsed() throws Exception {
+        NodeDiscovery<String> discovery = closer().register(NodeDiscovery.builder(newCurator(), PATH, PARSER)
+                .withPayloadCodecs(PayloadCodec.DEFLATE)
+                .build());
+        discovery.start();
+
+        createNode(FOO, PayloadCodec.GZIP.encode("data".getBytes()));
+        assertTrue(waitUntilSize(discovery.getNodes(), 1));
+        assertNull(discovery.getNodes().get(FOO));
+    }
+
+    @Test
+    public void testPayloadCodecsDisabledByDefault() throws Exception {
+        byte[] encoded = PayloadCodec.GZIP.encode("data".getBytes());
+        createNode(FOO, encoded);
+        assertTrue(waitUntilValue(_nodeDiscovery.getNodes(), FOO, new String(encoded)));
+    }
+
+    @Test
+    public void testBinaryDataWithCodecHeaderNotDecodedByDefault() throws Exception {
+        // Starts with the same bytes as data encoded by the GZIP codec, but isn't compressed.
+        byte[] binary = {0x00, 'Z', 1, 'd', 'a', 't', 'a'};
+        createNode(FOO, binary);
+        assertTrue(waitUntilValue(_nodeDiscovery.getNodes(), FOO, new String(binary)));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Child filter tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test(expected = NullPointerException.class)
+    public void testNullChildFilter() throws Exception {
+        NodeDiscovery.builder(_curator, PATH, PARSER).withChildFilter(null);
+    }
+
+    @Test
+    public void testChildFilterOnlyParsesMatchingNodes() throws Exception {
+        RecordingParser parser = new RecordingParser();
+        NodeDiscovery<String> discovery = newFilteredDiscovery(parser);
+
+        createNode(MINE, "mine".getBytes());
+        createNode(OTHER, "other".getBytes());
+        assertTrue(waitUntilSize(discovery.getFilteredPaths(), 1));
+        assertTrue(waitUntilValue(discovery.getNodes(), MINE, "mine"));
+
+        assertEquals(ImmutableMap.of(MINE, "mine"), discovery.getNodes());
+        assertEquals(Collections.singleton(OTHER), discovery.getFilteredPaths());
+        assertEquals(Collections.singletonList(MINE), parser._parsedPaths);
+    }
+
+    @Test
+    public void testChildFilterWithExistingNodes() throws Exception {
+        createNode(MINE, "mine".getBytes());
+        createNode(OTHER, "other".getBytes());
+
+        RecordingParser parser = new RecordingParser();
+        NodeDiscovery<String> discovery = newFilteredDiscovery(parser);
+
+        assertEquals(ImmutableMap.of(MINE, "mine"), discovery.getNodes());
+        assertEquals(Collections.singleton(OTHER), discovery.getFilteredPaths());
+        assertEquals(Collections.singletonList(MINE), parser._parsedPaths);
+    }
+
+    @Test
+    public void testChildFilterUpdateAndRemove() throws Exception {
+        NodeDiscovery<String> discovery = newFilteredDiscovery(new RecordingParser());
+        createNode(MINE, "mine".getBytes());
+        assertTrue(waitUntilValue(discovery.getNodes(), MINE, "mine"));
+
+        UpdateTrigger<String> updated = new UpdateTrigger<String>(MINE);
+        discovery.addListener(updated);
+        _curator.setData().forPath(MINE, "new-data".getBytes());
+        assertTrue(updated.firedWithin(10, TimeUnit.SECONDS));
+        assertEquals("new-data", discovery.getNodes().get(MINE));
+
+        final AtomicReference<String> removedNode = new AtomicReference<String>();
+        RemoveTrigger<String> removed = new RemoveTrigger<String>(MINE) {
+            @Override
+            public void onNodeRemoved(String path, String node) {
+                removedNode.set(node);
+                super.onNodeRemoved(path, node);
+            }
+        };
+        discovery.addListener(removed);
+        deleteNode(MINE);
+        assertTrue(removed.firedWithin(10, TimeUnit.SECONDS));
+
+        // The removed node is reported with its last known value even though the path cache doesn't hold the data.
+        assertEquals("new-data", removedNode.get());
+        assertTrue(discovery.getNodes().isEmpty());
+    }
+
+    @Test
+    public void testChildFilterRemovesFilteredPath() throws Exception {
+        NodeDiscovery<String> discovery = newFilteredDiscovery(new RecordingParser());
+        createNode(OTHER);
+        assertTrue(waitUntilSize(discovery.getFilteredPaths(), 1));
+
+        deleteNode(OTHER);
+        assertTrue(waitUntilSize(discovery.getFilteredPaths(), 0));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Drain tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test(expected = NullPointerException.class)
+    public void testNullDrainMarker() throws Exception {
+        NodeDiscovery.builder(_curator, PATH, PARSER).withDrainMarker(null);
+    }
+
+    @Test
+    public void testDrainingNodeIsHidden() throws Exception {
+        NodeDiscovery<String> discovery = newDrainAwareDiscovery(null);
+        createNode(FOO, DrainMarker.HEADER.mark("foo".getBytes()));
+        assertTrue(waitUntilSize(discovery.getDrainingPaths(), 1));
+
+        assertTrue(discovery.getNodes().isEmpty());
+        assertEquals(Collections.singleton(FOO), discovery.getDrainingPaths());
+    }
+
+    @Test
+    public void testExistingDrainingNodeIsHidden() throws Exception {
+        createNode(FOO, DrainMarker.HEADER.mark("foo".getBytes()));
+        NodeDiscovery<String> discovery = newDrainAwareDiscovery(null);
+
+        assertTrue(discovery.getNodes().isEmpty());
+        assertEquals(Collections.singleton(FOO), discovery.getDrainingPaths());
+    }
+
+    @Test
+    public void testNodeThatStartsDrainingIsRemoved() throws Exception {
+        NodeDiscovery<String> discovery = newDrainAwareDiscovery(null);
+        createNode(FOO, "foo".getBytes());
+        assertTrue(waitUntilValue(discovery.getNodes(), FOO, "foo"));
+
+        RemoveTrigger<String> removed = new RemoveTrigger<String>(FOO);
+        discovery.addListener(removed);
+        updateNode(FOO, DrainMarker.HEADER.mark("foo".getBytes()));
+        assertTrue(removed.firedWithin(10, TimeUnit.SECONDS));
+        assertTrue(discovery.getNodes().isEmpty());
+
+        // Deleting the draining node isn't reported again.
+        RemoveTrigger<String> removedAgain = new RemoveTrigger<String>(FOO);
+        discovery.addListener(removedAgain);
+        deleteNode(FOO);
+        assertTrue(waitUntilSize(discovery.getDrainingPaths(), 0));
+        assertFalse(removedAgain.hasFired());
+    }
+
+    @Test
+    public void testNodeThatStopsDrainingIsAdded() throws Exception {
+        NodeDiscovery<String> discovery = newDrainAwareDiscovery(null);
+        createNode(FOO, DrainMarker.HEADER.mark("foo".getBytes()));
+        assertTrue(waitUntilSize(discovery.getDrainingPaths(), 1));
+
+        AddTrigger<String> added = new AddTrigger<String>(FOO);
+        discovery.addListener(added);
+        updateNode(FOO, "foo".getBytes());
+        assertTrue(added.firedWithin(10, TimeUnit.SECONDS));
+        assertEquals("foo", discovery.getNodes().get(FOO));
+        assertTrue(discovery.getDrainingPaths().isEmpty());
+    }
+
+    @Test
+    public void testDrainingNodeVisibleWithoutMarker() throws Exception {
+        createNode(FOO, DrainMarker.HEADER.mark("foo".getBytes()));
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertTrue(_nodeDiscovery.getDrainingPaths().isEmpty());
+    }
+
+    @Test
+    public void testDrainingNodeIsHiddenWithChildFilter() throws Exception {
+        Predicate<String> filter = new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                return name.startsWith("mine");
+            }
+        };
+        NodeDiscovery<String> discovery = newDrainAwareDiscovery(filter);
+        createNode(MINE, "mine".getBytes());
+        assertTrue(waitUntilValue(discovery.getNodes(), MINE, "mine"));
+
+        updateNode(MINE, DrainMarker.HEADER.mark("mine".getBytes()));
+        assertTrue(waitUntilSize(discovery.getDrainingPaths(), 1));
+        assertTrue(discovery.getNodes().isEmpty());
+
+        deleteNode(MINE);
+        assertTrue(waitUntilSize(discovery.getDrainingPaths(), 0));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Lease tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveLeaseTtl() throws Exception {
+        NodeDiscovery.builder(_curator, PATH, PARSER).withLeaseTtl(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testNodeWhoseLeaseExpiresIsRemoved() throws Exception {
+        NodeDiscovery<String> discovery = newLeaseAwareDiscovery(500);
+        RemoveTrigger<String> removed = new RemoveTrigger<String>(FOO);
+        discovery.addListener(removed);
+
+        createNode(FOO, "foo".getBytes());
+        assertTrue(removed.firedWithin(10, TimeUnit.SECONDS));
+        assertTrue(discovery.getNodes().isEmpty());
+        assertEquals(Collections.singleton(FOO), discovery.getExpiredPaths());
+    }
+
+    @Test
+    public void testExistingExpiredNodeIsHidden() throws Exception {
+        createNode(FOO, "foo".getBytes());
+        Thread.sleep(600);
+        NodeDiscovery<String> discovery = newLeaseAwareDiscovery(500);
+
+        assertTrue(discovery.getNodes().isEmpty());
+        assertEquals(Collections.singleton(FOO), discovery.getExpiredPaths());
+    }
+
+    @Test
+    public void testRenewedNodeIsAdded() throws Exception {
+        NodeDiscovery<String> discovery = newLeaseAwareDiscovery(500);
+        createNode(FOO, "foo".getBytes());
+        assertTrue(waitUntilSize(discovery.getExpiredPaths(), 1));
+
+        AddTrigger<String> added = new AddTrigger<String>(FOO);
+        discovery.addListener(added);
+        updateNode(FOO, "foo".getBytes());
+        assertTrue(added.firedWithin(10, TimeUnit.SECONDS));
+        assertEquals("foo", discovery.getNodes().get(FOO));
+        assertTrue(discovery.getExpiredPaths().isEmpty());
+    }
+
+    @Test
+    public void testDeletingExpiredNodeIsNotReported() throws Exception {
+        NodeDiscovery<String> discovery = newLeaseAwareDiscovery(500);
+        createNode(FOO, "foo".getBytes());
+        assertTrue(waitUntilSize(discovery.getExpiredPaths(), 1));
+
+        RemoveTrigger<String> removed = new RemoveTrigger<String>(FOO);
+        discovery.addListener(removed);
+        deleteNode(FOO);
+        assertTrue(waitUntilSize(discovery.getExpiredPaths(), 0));
+        assertFalse(removed.hasFired());
+    }
+
+    @Test
+    public void testRenewedLeaseStaysVisible() throws Exception {
+        LeaseRegistry registry = closer().register(LeaseRegistry.builder(newCurator())
+                .withTtl(1, TimeUnit.SECONDS)
+                .withRenewInterval(100, TimeUnit.MILLISECONDS)
+                .build());
+        String path = registry.register(FOO, "foo".getBytes()).getPath();
+        NodeDiscovery<String> discovery = newLeaseAwareDiscovery(1000);
+        assertEquals("foo", discovery.getNodes().get(path));
+
+        Thread.sleep(2500);
+        assertEquals("foo", discovery.getNodes().get(path));
+        assertTrue(discovery.getExpiredPaths().isEmpty());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Metrics tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testMetricsStartedAndClosed() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        NodeDiscovery<String> discovery = NodeDiscovery.builder(newCurator(), PATH, PARSER)
+                .withMetrics(metrics)
+                .build();
+        assertNull(metrics._started);
+
+        discovery.start();
+        assertSame(discovery, metrics._started);
+
+        discovery.close();
+        assertSame(discovery, metrics._closed);
+    }
+
+    @Test
+    public void testMetricsRecordEvents() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        NodeDiscovery<String> discovery = newInstrumentedDiscovery(metrics);
+        discovery.addListener(new AddTrigger<String>(FOO));
+
+        createNode(FOO);
+        assertTrue(waitUntilSize(metrics._lags, 1));
+        _curator.setData().forPath(FOO, "new-data".getBytes());
+        assertTrue(waitUntilSize(metrics._lags, 2));
+        deleteNode(FOO);
+        assertTrue(waitUntilSize(metrics._lags, 3));
+
+        // Adds and updates have a lag, which can't be much more than the time the test took.  Removes don't.
+        assertTrue(metrics._lags.get(0) >= 0 && metrics._lags.get(0) < TimeUnit.SECONDS.toMillis(10));
+        assertTrue(metrics._lags.get(1) >= 0 && metrics._lags.get(1) < TimeUnit.SECONDS.toMillis(10));
+        assertEquals(-1, (long) metrics._lags.get(2));
+
+        // One listener, called for the add, update and remove.
+        assertTrue(waitUntilSize(metrics._listenerTimes, 3));
+    }
+
+    @Test
+    public void testQueueDepthWhenIdle() throws Exception {
+        createNode(FOO);
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return _nodeDiscovery.getQueueDepth() == 0;
+            }
+        }));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // Flap damping tests
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testFlappingNodeSuppressed() throws Exception {
+        NodeDiscovery<String> discovery = newDampedDiscovery();
+
+        flap(discovery, FOO);
+        flap(discovery, FOO);
+        assertTrue(discovery.getSuppressedPaths().contains(FOO));
+
+        // While suppressed the node isn't visible even though it exists.
+        AddTrigger<String> trigger = new AddTrigger<String>(FOO);
+        discovery.addListener(trigger);
+        createNode(FOO);
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertFalse(trigger.firedWithin(100, TimeUnit.MILLISECONDS));
+        assertTrue(discovery.getNodes().isEmpty());
+    }
+
+    @Test
+    public void testSuppressedNodeReleased() throws Exception {
+        NodeDiscovery<String> discovery = newDampedDiscovery();
+
+        flap(discovery, FOO);
+        flap(discovery, FOO);
+
+        AddTrigger<String> trigger = new AddTrigger<String>(FOO);
+        discovery.addListener(trigger);
+        createNode(FOO);
+
+        // Once stable the node is added back, with an event.
+        assertTrue(trigger.firedWithin(10, TimeUnit.SECONDS));
+        assertTrue(waitUntilSize(discovery.getNodes(), 1));
+        assertTrue(discovery.getSuppressedPaths().isEmpty());
+    }
+
+    @Test
+    public void testSingleFlapNotSuppressed() throws Exception {
+        NodeDiscovery<String> discovery = newDampedDiscovery();
+
+        flap(discovery, FOO);
+        createNode(FOO);
+        assertTrue(waitUntilSize(discovery.getNodes(), 1));
+        assertTrue(discovery.getSuppressedPaths().isEmpty());
+    }
+
+    @Test
+    public void testNoSuppressedPathsWithoutDamping() throws Exception {
+        flap(_nodeDiscovery, FOO);
+        flap(_nodeDiscovery, FOO);
+        flap(_nodeDiscovery, FOO);
+        assertTrue(_nodeDiscovery.getSuppressedPaths().isEmpty());
+    }
+
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     // Listener tests
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -261,6 +839,28 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         assertTrue(trigger.firedWithin(10, TimeUnit.SECONDS));
     }
 
+    @Test
+    public void testListenerNotifiedOfExistingNodes() throws Exception {
+        createNode(FOO);
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+
+        AddTrigger<String> trigger = new AddTrigger<String>(FOO);
+        _nodeDiscovery.addListener(trigger, true);
+
+        // The existing node is replayed synchronously.
+        assertTrue(trigger.hasFired());
+    }
+
+    @Test
+    public void testListenerNotNotifiedOfExistingNodes() throws Exception {
+        createNode(FOO);
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+
+        AddTrigger<String> trigger = new AddTrigger<String>(FOO);
+        _nodeDiscovery.addListener(trigger, false);
+        assertFalse(trigger.hasFired());
+    }
+
     @Test
     public void testRemovedListenerNotCalledWhenAddNode() throws Exception {
         AddTrigger<String> trigger = new AddTrigger<String>(FOO);
@@ -606,6 +1206,83 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         return closer().register(new NodeDiscovery<T>(newCurator(), path, parser));
     }
 
+    private NodeDiscovery<String> newCodecDiscovery() throws Exception {
+        NodeDiscovery<String> discovery = closer().register(NodeDiscovery.builder(newCurator(), PATH, PARSER)
+                .withPayloadCodecs(PayloadCodec.GZIP, PayloadCodec.DEFLATE)
+                .build());
+        discovery.start();
+        return discovery;
+    }
+
+    private NodeDiscovery<String> newBufferDiscovery(ByteBufferNodeDataParser<String> parser) throws Exception {
+        NodeDiscovery<String> discovery = closer().register(NodeDiscovery.builder(newCurator(), PATH, parser).build());
+        discovery.start();
+        return discovery;
+    }
+
+    /** Only materializes the children whose name starts with {@code mine}. */
+    private NodeDiscovery<String> newFilteredDiscovery(NodeDiscovery.NodeDataParser<String> parser) throws Exception {
+        Predicate<String> filter = new Predicate<String>() {
+            @Override
+            public boolean apply(String name) {
+                return name.startsWith("mine");
+            }
+        };
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, parser).withChildFilter(filter).build());
+        discovery.start();
+        return discovery;
+    }
+
+    /** Hides nodes marked with {@link DrainMarker#HEADER}, optionally with a child filter. */
+    private NodeDiscovery<String> newDrainAwareDiscovery(Predicate<String> childFilter) throws Exception {
+        NodeDiscovery.Builder<String> builder = NodeDiscovery.builder(newCurator(), PATH, PARSER)
+                .withDrainMarker(DrainMarker.HEADER);
+        if (childFilter != null) {
+            builder.withChildFilter(childFilter);
+        }
+        NodeDiscovery<String> discovery = closer().register(builder.build());
+        discovery.start();
+        return discovery;
+    }
+
+    /** Hides nodes whose lease, with the given TTL, has expired. */
+    private NodeDiscovery<String> newLeaseAwareDiscovery(long ttlMillis) throws Exception {
+        NodeDiscovery<String> discovery = closer().register(NodeDiscovery.builder(newCurator(), PATH, PARSER)
+                .withLeaseTtl(ttlMillis, TimeUnit.MILLISECONDS)
+                .build());
+        discovery.start();
+        return discovery;
+    }
+
+    private NodeDiscovery<String> newInstrumentedDiscovery(NodeDiscoveryMetrics metrics) throws Exception {
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, PARSER).withMetrics(metrics).build());
+        discovery.start();
+        return discovery;
+    }
+
+    /** Suppresses a path on its second flap in quick succession and releases it about a second later. */
+    private NodeDiscovery<String> newDampedDiscovery() throws Exception {
+        FlapDampingPolicy policy =
+                new FlapDampingPolicy(1000, 1500, 500, 500, TimeUnit.MILLISECONDS, 5, TimeUnit.SECONDS);
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), PATH, PARSER).withFlapDamping(policy).build());
+        discovery.start();
+        return discovery;
+    }
+
+    /** Create a node then delete it, waiting for the node discovery to see both. */
+    private void flap(NodeDiscovery<String> discovery, String path) throws Exception {
+        RemoveTrigger<String> removed = new RemoveTrigger<String>(path);
+        discovery.addListener(removed);
+        createNode(path);
+        assertTrue(waitUntilSize(discovery.getNodes(), 1));
+        deleteNode(path);
+        assertTrue(removed.firedWithin(10, TimeUnit.SECONDS));
+        discovery.removeListener(removed);
+    }
+
     /** Create a node. */
     private void createNode(String path) throws Exception {
         createNode(path, new byte[0]);
@@ -639,6 +1316,16 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         return false;
     }
 
+    private static <K> boolean waitUntilIndexed(final NodeIndex<K, ?> index, final K key, final String path)
+            throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return index.get(key).containsKey(path);
+            }
+        });
+    }
+
     private static <K, T> boolean waitUntilSize(Map<K, T> map, int size) {
         long start = System.nanoTime();
         while (System.nanoTime() - start <= TimeUnit.SECONDS.toNanos((long) 10)) {
@@ -652,6 +1339,19 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         return false;
     }
 
+    private static boolean waitUntilSize(Collection<?> collection, int size) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start <= TimeUnit.SECONDS.toNanos((long) 10)) {
+            if (collection.size() == size) {
+                return true;
+            }
+
+            Thread.yield();
+        }
+
+        return false;
+    }
+
     private static <K, T> boolean waitUntilValue(Map<K, T> map, K key, T value) {
         long start = System.nanoTime();
         while (System.nanoTime() - start <= TimeUnit.SECONDS.toNanos((long) 10)) {
@@ -665,6 +1365,62 @@ public class NodeDiscoveryTest extends ZooKeeperTest {
         return false;
     }
 
+    private static class RecordingMetrics implements NodeDiscoveryMetrics {
+        private final List<Long> _lags = Collections.synchronizedList(Lists.<Long>newArrayList());
+        private final List<Long> _listenerTimes = Collections.synchronizedList(Lists.<Long>newArrayList());
+        private volatile NodeDiscovery<?> _started;
+        private volatile NodeDiscovery<?> _closed;
+
+        @Override
+        public void onStart(NodeDiscovery<?> nodeDiscovery) {
+            _started = nodeDiscovery;
+        }
+
+        @Override
+        public void onClose(NodeDiscovery<?> nodeDiscovery) {
+            _closed = nodeDiscovery;
+        }
+
+        @Override
+        public void recordEvent(long propagationLagMillis) {
+            _lags.add(propagationLagMillis);
+        }
+
+        @Override
+        public void recordListenerTime(long durationNanos) {
+            _listenerTimes.add(durationNanos);
+        }
+    }
+
+    private static class RecordingParser implements NodeDiscovery.NodeDataParser<String> {
+        private final List<String> _parsedPaths = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        @Override
+        public String parse(String path, byte[] nodeData) {
+            _parsedPaths.add(path);
+            return new String(nodeData);
+        }
+    }
+
+    /** Parses to {@code <data>:<version>:<read-only>}. */
+    private static class BufferParser implements ByteBufferNodeDataParser<String> {
+        private final boolean _stateless;
+
+        BufferParser(boolean stateless) {
+            _stateless = stateless;
+        }
+
+        @Override
+        public String parse(String path, ByteBuffer data, Stat stat) {
+            return Charsets.UTF_8.decode(data.duplicate()) + ":" + stat.getVersion() + ":" + data.isReadOnly();
+        }
+
+        @Override
+        public boolean isStateless() {
+            return _stateless;
+        }
+    }
+
     private static class AbstractTrigger<T> extends Trigger implements NodeDiscovery.NodeListener<T> {
         @Override
         public void onNodeAdded(String path, T node) {
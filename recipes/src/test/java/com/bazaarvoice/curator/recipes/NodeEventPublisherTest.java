@@ -0,0 +1,291 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NodeEventPublisherTest extends ZooKeeperTest {
+    private static final String PATH = "/path";
+    private static final String FOO = ZKPaths.makePath(PATH, "foo");
+
+    private static final NodeDiscovery.NodeDataParser<String> PARSER = new NodeDiscovery.NodeDataParser<String>() {
+        @Override
+        public String parse(String path, byte[] data) {
+            return new String(data);
+        }
+    };
+
+    private NodeDiscovery<String> _nodeDiscovery;
+    private CuratorFramework _curator;
+
+    @Before
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+
+        _curator = newCurator();
+        _nodeDiscovery = closer().register(new NodeDiscovery<String>(newCurator(), PATH, PARSER));
+        _nodeDiscovery.start();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSubscriber() {
+        newPublisher().subscribe(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveBufferSize() {
+        _nodeDiscovery.newPublisher(MoreExecutors.sameThreadExecutor(), 0);
+    }
+
+    @Test
+    public void testSnapshotFirst() throws Exception {
+        createNode(FOO, "data");
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        subscriber.request(Long.MAX_VALUE);
+
+        NodeEvent<String> event = subscriber.next();
+        assertEquals(NodeEvent.Type.SNAPSHOT, event.getType());
+        assertEquals(ImmutableMap.of(FOO, "data"), event.getNodes());
+    }
+
+    @Test
+    public void testDeltasAfterSnapshot() throws Exception {
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        subscriber.request(Long.MAX_VALUE);
+        assertEquals(NodeEvent.Type.SNAPSHOT, subscriber.next().getType());
+
+        createNode(FOO, "data");
+        assertEvent(subscriber.next(), NodeEvent.Type.ADDED, FOO, "data");
+
+        _curator.setData().forPath(FOO, "new-data".getBytes());
+        assertEvent(subscriber.next(), NodeEvent.Type.UPDATED, FOO, "new-data");
+
+        _curator.delete().forPath(FOO);
+        assertEvent(subscriber.next(), NodeEvent.Type.REMOVED, FOO, "new-data");
+    }
+
+    @Test
+    public void testNoEventsWithoutDemand() throws Exception {
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        createNode(FOO, "data");
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertNull(subscriber.poll(100, TimeUnit.MILLISECONDS));
+
+        subscriber.request(1);
+        assertEquals(NodeEvent.Type.SNAPSHOT, subscriber.next().getType());
+        assertNull(subscriber.poll(100, TimeUnit.MILLISECONDS));
+
+        subscriber.request(1);
+        assertEvent(subscriber.next(), NodeEvent.Type.ADDED, FOO, "data");
+    }
+
+    @Test
+    public void testSlowSubscriberConflated() throws Exception {
+        RecordingSubscriber subscriber = subscribe(_nodeDiscovery.newPublisher(MoreExecutors.sameThreadExecutor(), 2));
+
+        Map<String, String> expected = Maps.newHashMap();
+        for (int i = 0; i < 10; i++) {
+            String path = ZKPaths.makePath(PATH, "node" + i);
+            createNode(path, "data" + i);
+            expected.put(path, "data" + i);
+        }
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 10));
+
+        // Ten adds don't fit in the buffer, so they must have been conflated into a snapshot.
+        subscriber.request(Long.MAX_VALUE);
+        NodeEvent<String> first = subscriber.next();
+        assertEquals(NodeEvent.Type.SNAPSHOT, first.getType());
+
+        // Applying whatever was delivered gives the current nodes.
+        Map<String, String> view = Maps.newHashMap(first.getNodes());
+        for (NodeEvent<String> event = subscriber.poll(100, TimeUnit.MILLISECONDS); event != null;
+             event = subscriber.poll(100, TimeUnit.MILLISECONDS)) {
+            apply(view, event);
+        }
+        assertEquals(expected, view);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        subscriber.request(Long.MAX_VALUE);
+        assertEquals(NodeEvent.Type.SNAPSHOT, subscriber.next().getType());
+
+        subscriber.cancel();
+        createNode(FOO, "data");
+        assertTrue(waitUntilSize(_nodeDiscovery.getNodes(), 1));
+        assertNull(subscriber.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCancelledPublishersNotKept() throws Exception {
+        NodeEventPublisher<String> publisher = newPublisher();
+        assertTrue(_nodeDiscovery.getPublishers().isEmpty());
+
+        RecordingSubscriber first = subscribe(publisher);
+        RecordingSubscriber second = subscribe(publisher);
+        assertEquals(ImmutableSet.of(publisher), _nodeDiscovery.getPublishers());
+
+        // Kept until its last subscriber cancels.
+        first.cancel();
+        assertEquals(ImmutableSet.of(publisher), _nodeDiscovery.getPublishers());
+        second.cancel();
+        assertTrue(_nodeDiscovery.getPublishers().isEmpty());
+
+        // Cancelled subscribers aren't told about the close either.
+        _nodeDiscovery.close();
+        assertFalse(first._completed.hasFired());
+        assertFalse(second._completed.hasFired());
+    }
+
+    @Test
+    public void testResubscribeAfterCancel() throws Exception {
+        NodeEventPublisher<String> publisher = newPublisher();
+        subscribe(publisher).cancel();
+
+        RecordingSubscriber subscriber = subscribe(publisher);
+        assertEquals(ImmutableSet.of(publisher), _nodeDiscovery.getPublishers());
+        _nodeDiscovery.close();
+        assertTrue(subscriber._completed.firedWithin(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCompletedOnClose() throws Exception {
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        _nodeDiscovery.close();
+        assertTrue(subscriber._completed.firedWithin(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSubscribeAfterClose() throws Exception {
+        NodeEventPublisher<String> publisher = newPublisher();
+        _nodeDiscovery.close();
+
+        RecordingSubscriber subscriber = subscribe(publisher);
+        assertTrue(subscriber._completed.firedWithin(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNonPositiveRequest() throws Exception {
+        RecordingSubscriber subscriber = subscribe(newPublisher());
+        subscriber.request(0);
+        assertTrue(subscriber._failed.firedWithin(10, TimeUnit.SECONDS));
+        assertTrue(subscriber._error instanceof IllegalArgumentException);
+    }
+
+    private NodeEventPublisher<String> newPublisher() {
+        return _nodeDiscovery.newPublisher(MoreExecutors.sameThreadExecutor());
+    }
+
+    private RecordingSubscriber subscribe(NodeEventPublisher<String> publisher) {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        return subscriber;
+    }
+
+    private void createNode(String path, String data) throws Exception {
+        _curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path, data.getBytes());
+    }
+
+    private static void assertEvent(NodeEvent<String> event, NodeEvent.Type type, String path, String node) {
+        assertEquals(type, event.getType());
+        assertEquals(path, event.getPath());
+        assertEquals(node, event.getNode());
+    }
+
+    private static void apply(Map<String, String> view, NodeEvent<String> event) {
+        switch (event.getType()) {
+            case SNAPSHOT:
+                view.clear();
+                view.putAll(event.getNodes());
+                break;
+
+            case ADDED:
+            case UPDATED:
+                view.put(event.getPath(), event.getNode());
+                break;
+
+            case REMOVED:
+                view.remove(event.getPath());
+                break;
+        }
+    }
+
+    private static <K, V> boolean waitUntilSize(Map<K, V> map, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (map.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return map.size() == size;
+    }
+
+    private static class RecordingSubscriber implements Subscriber<NodeEvent<String>> {
+        private final BlockingQueue<NodeEvent<String>> _events = new LinkedBlockingQueue<NodeEvent<String>>();
+        private final Trigger _completed = new Trigger();
+        private final Trigger _failed = new Trigger();
+        private volatile Subscription _subscription;
+        private volatile Throwable _error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            _subscription = subscription;
+        }
+
+        @Override
+        public void onNext(NodeEvent<String> event) {
+            _events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            _error = t;
+            _failed.fire();
+        }
+
+        @Override
+        public void onComplete() {
+            _completed.fire();
+        }
+
+        void request(long n) {
+            _subscription.request(n);
+        }
+
+        void cancel() {
+            _subscription.cancel();
+        }
+
+        NodeEvent<String> next() throws InterruptedException {
+            NodeEvent<String> event = poll(10, TimeUnit.SECONDS);
+            assertNotNull(event);
+            return event;
+        }
+
+        NodeEvent<String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return _events.poll(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeIndexTest {
+    /** Nodes are comma separated lists of keys. */
+    private final NodeIndex<String, String> _index = new NodeIndex<String, String>(
+            new Function<String, Iterable<String>>() {
+                @Override
+                public Iterable<String> apply(String node) {
+                    if (node.equals("throw")) {
+                        throw new RuntimeException();
+                    }
+                    return Splitter.on(',').omitEmptyStrings().split(node);
+                }
+            });
+
+    @Test
+    public void testEmpty() {
+        assertTrue(_index.get("a").isEmpty());
+        assertFalse(_index.containsKey("a"));
+        assertTrue(_index.keySet().isEmpty());
+    }
+
+    @Test
+    public void testAdd() {
+        _index.add("/1", "a,b");
+        _index.add("/2", "b");
+
+        assertEquals(ImmutableMap.of("/1", "a,b"), _index.get("a"));
+        assertEquals(ImmutableMap.of("/1", "a,b", "/2", "b"), _index.get("b"));
+        assertEquals(ImmutableSet.of("a", "b"), _index.keySet());
+    }
+
+    @Test
+    public void testRemove() {
+        _index.add("/1", "a,b");
+        _index.add("/2", "b");
+        _index.remove("/1", "a,b");
+
+        assertFalse(_index.containsKey("a"));
+        assertEquals(ImmutableMap.of("/2", "b"), _index.get("b"));
+    }
+
+    @Test
+    public void testRemoveUnknownNode() {
+        _index.add("/1", "a");
+        _index.remove("/2", "a");
+        assertEquals(ImmutableMap.of("/1", "a"), _index.get("a"));
+    }
+
+    @Test
+    public void testNullNodeNotIndexed() {
+        _index.add("/1", null);
+        assertTrue(_index.keySet().isEmpty());
+    }
+
+    @Test
+    public void testKeyFunctionExceptionNotIndexed() {
+        _index.add("/1", "throw");
+        assertTrue(_index.keySet().isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        _index.add("/1", "a");
+        _index.clear();
+        assertTrue(_index.keySet().isEmpty());
+    }
+}
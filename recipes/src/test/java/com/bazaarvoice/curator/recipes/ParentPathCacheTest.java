@@ -0,0 +1,141 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.Lists;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParentPathCacheTest extends ZooKeeperTest {
+    private static final String PATH = "/test/parent";
+
+    /** This curator instance is used to verify all interaction with ZooKeeper from an external user's perspective. */
+    private CuratorFramework _curator;
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @Test
+    public void testEnsureCreatesPath() throws Exception {
+        CuratorFramework curator = newCurator();
+        ParentPathCache.forCurator(curator).ensure(curator, PATH);
+
+        assertNotNull(_curator.checkExists().forPath(PATH));
+    }
+
+    @Test
+    public void testEnsureIsCached() throws Exception {
+        CuratorFramework curator = newCurator();
+        ParentPathCache cache = ParentPathCache.forCurator(curator);
+        cache.ensure(curator, PATH);
+        _curator.delete().forPath(PATH);
+
+        // Known to exist, so not checked again...
+        cache.ensure(curator, PATH);
+        assertNull(_curator.checkExists().forPath(PATH));
+
+        // ...until invalidated.
+        cache.invalidate(curator, PATH);
+        cache.ensure(curator, PATH);
+        assertNotNull(_curator.checkExists().forPath(PATH));
+    }
+
+    @Test
+    public void testSharedByNamespacesOfSameClient() throws Exception {
+        CuratorFramework curator = newCurator();
+        CuratorFramework namespaced = curator.usingNamespace("ns");
+        assertSame(ParentPathCache.forCurator(curator), ParentPathCache.forCurator(namespaced));
+    }
+
+    @Test
+    public void testNotSharedBetweenClients() throws Exception {
+        CuratorFramework curator = newCurator();
+        ParentPathCache.forCurator(curator).ensure(curator, PATH);
+        _curator.delete().forPath(PATH);
+
+        CuratorFramework other = newCurator();
+        ParentPathCache.forCurator(other).ensure(other, PATH);
+        assertNotNull(_curator.checkExists().forPath(PATH));
+    }
+
+    @Test
+    public void testPathsAreCachedPerNamespace() throws Exception {
+        CuratorFramework curator = newCurator();
+        ParentPathCache cache = ParentPathCache.forCurator(curator);
+        cache.ensure(curator, PATH);
+
+        CuratorFramework namespaced = curator.usingNamespace("ns");
+        cache.ensure(namespaced, PATH);
+        assertNotNull(_curator.checkExists().forPath("/ns" + PATH));
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws Exception {
+        CuratorFramework curator = newCurator(CuratorFrameworkFactory.builder()
+                .retryPolicy(new RetryNTimes(0, 0))
+                .connectionTimeoutMs(100));
+        ParentPathCache cache = ParentPathCache.forCurator(curator);
+        curator.checkExists().forPath("/");  // Connect, so that we can tell when it has reconnected
+        ConnectionTrigger reconnected = ConnectionTrigger.reconnectedTrigger();
+        curator.getConnectionStateListenable().addListener(reconnected);
+        stopZooKeeper();
+        try {
+            cache.ensure(curator, PATH);
+            fail();
+        } catch (Exception e) {
+            // Expected
+        }
+
+        startZooKeeper();
+        assertTrue(reconnected.firedWithin(10, TimeUnit.SECONDS));
+        cache.ensure(curator, PATH);
+        assertNotNull(_curator.checkExists().forPath(PATH));
+    }
+
+    @Test
+    public void testConcurrentEnsures() throws Exception {
+        final CuratorFramework curator = newCurator();
+        final ParentPathCache cache = ParentPathCache.forCurator(curator);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(8);
+        final List<Exception> errors = Collections.synchronizedList(Lists.<Exception>newArrayList());
+        for (int i = 0; i < 8; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        cache.ensure(curator, PATH);
+                        // Every caller returns only once the path exists, whether it ensured it or waited.
+                        if (_curator.checkExists().forPath(PATH) == null) {
+                            errors.add(new IllegalStateException("Returned before the path existed"));
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+}
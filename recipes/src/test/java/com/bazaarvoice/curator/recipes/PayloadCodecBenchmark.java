@@ -0,0 +1,83 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the size on the wire and the decode + parse time of a typical JSON registration payload with each of the
+ * built in {@link PayloadCodec}s.  Not run as part of the build; run {@code main} by hand.
+ * <p/>
+ * Bytes on the wire are per node, so a {@code NodeDiscovery} downloads {@code size * nodes} bytes on every (re)start.
+ */
+public class PayloadCodecBenchmark {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static void main(String[] args) throws Exception {
+        byte[] payload = samplePayload().getBytes(Charsets.UTF_8);
+
+        System.out.printf("%-10s %8s %8s %14s%n", "codec", "bytes", "ratio", "parse (us/op)");
+        report("none", payload, payload, ImmutableList.<PayloadCodec>of());
+        for (PayloadCodec codec : ImmutableList.of(PayloadCodec.GZIP, PayloadCodec.DEFLATE)) {
+            report(codec.getName(), payload, codec.encode(payload), ImmutableList.of(codec));
+        }
+    }
+
+    private static void report(String name, byte[] payload, byte[] encoded, List<PayloadCodec> codecs)
+            throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeAndParse(encoded, codecs);
+        }
+
+        long start = System.nanoTime();
+        long tokens = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            tokens += decodeAndParse(encoded, codecs);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double micros = (double) TimeUnit.NANOSECONDS.toMicros(elapsed) / ITERATIONS;
+        System.out.printf("%-10s %8d %8.2f %14.2f  (%d tokens)%n",
+                name, encoded.length, (double) encoded.length / payload.length, micros, tokens / ITERATIONS);
+    }
+
+    /** Decodes the payload the way NodeDiscovery does, then walks every JSON token. */
+    private static int decodeAndParse(byte[] encoded, List<PayloadCodec> codecs) throws IOException {
+        byte[] data = PayloadCodec.decode(encoded, codecs);
+        JsonParser json = JSON_FACTORY.createParser(data);
+        int tokens = 0;
+        try {
+            while (json.nextToken() != null) {
+                tokens++;
+            }
+        } finally {
+            json.close();
+        }
+        return tokens;
+    }
+
+    /** A registration payload shaped like the ones services publish: endpoints, metadata and a list of capabilities. */
+    private static String samplePayload() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"id\":\"ip-10-0-12-34.ec2.internal:8080\",\"serviceName\":\"example-service\",")
+                .append("\"zone\":\"us-east-1a\",\"version\":\"2.14.7\",\"buildTime\":\"2014-09-01T12:34:56Z\",")
+                .append("\"serviceUrl\":\"http://ip-10-0-12-34.ec2.internal:8080/example/1\",")
+                .append("\"adminUrl\":\"http://ip-10-0-12-34.ec2.internal:8081\",")
+                .append("\"metadata\":{");
+        for (int i = 0; i < 20; i++) {
+            json.append(i > 0 ? "," : "").append("\"property").append(i).append("\":\"value-").append(i).append("\"");
+        }
+        json.append("},\"capabilities\":[");
+        for (int i = 0; i < 30; i++) {
+            json.append(i > 0 ? "," : "").append("\"capability-").append(i).append("\"");
+        }
+        return json.append("]}").toString();
+    }
+}
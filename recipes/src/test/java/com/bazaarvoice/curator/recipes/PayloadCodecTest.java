@@ -0,0 +1,111 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCodecTest {
+    private static final byte[] DATA =
+            ("{\"host\":\"example.com\",\"tags\":\"" + Strings.repeat("x", 500) + "\"}").getBytes(Charsets.UTF_8);
+
+    /** Stores the data as is, to test custom codecs. */
+    private static final PayloadCodec IDENTITY = new PayloadCodec(100, "identity") {
+        @Override
+        protected OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        protected InputStream decompress(InputStream in) {
+            return in;
+        }
+    };
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroId() {
+        new PayloadCodec(0, "zero") {
+            @Override
+            protected OutputStream compress(OutputStream out) {
+                return out;
+            }
+
+            @Override
+            protected InputStream decompress(InputStream in) {
+                return in;
+            }
+        };
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws Exception {
+        byte[] encoded = PayloadCodec.GZIP.encode(DATA);
+        assertTrue(encoded.length < DATA.length);
+        assertEquals(PayloadCodec.GZIP.getId(), PayloadCodec.getCodecId(encoded));
+        assertArrayEquals(DATA, PayloadCodec.GZIP.decode(encoded));
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+        byte[] encoded = PayloadCodec.DEFLATE.encode(DATA);
+        assertTrue(encoded.length < DATA.length);
+        assertEquals(PayloadCodec.DEFLATE.getId(), PayloadCodec.getCodecId(encoded));
+        assertArrayEquals(DATA, PayloadCodec.DEFLATE.decode(encoded));
+    }
+
+    @Test
+    public void testEmptyData() throws Exception {
+        byte[] encoded = PayloadCodec.GZIP.encode(new byte[0]);
+        assertArrayEquals(new byte[0], PayloadCodec.decode(encoded, ImmutableList.of(PayloadCodec.GZIP)));
+    }
+
+    @Test
+    public void testDecodeWithMatchingCodec() throws Exception {
+        ImmutableList<PayloadCodec> codecs = ImmutableList.of(PayloadCodec.GZIP, PayloadCodec.DEFLATE, IDENTITY);
+        assertArrayEquals(DATA, PayloadCodec.decode(PayloadCodec.GZIP.encode(DATA), codecs));
+        assertArrayEquals(DATA, PayloadCodec.decode(PayloadCodec.DEFLATE.encode(DATA), codecs));
+        assertArrayEquals(DATA, PayloadCodec.decode(IDENTITY.encode(DATA), codecs));
+    }
+
+    @Test
+    public void testUnencodedDataPassedThrough() throws Exception {
+        assertSame(DATA, PayloadCodec.decode(DATA, ImmutableList.of(PayloadCodec.GZIP)));
+        assertEquals(0, PayloadCodec.getCodecId(DATA));
+        assertEquals(0, PayloadCodec.getCodecId(new byte[] {0}));
+        assertEquals(0, PayloadCodec.getCodecId(null));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownCodec() throws Exception {
+        PayloadCodec.decode(IDENTITY.encode(DATA), ImmutableList.of(PayloadCodec.GZIP));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeWithWrongCodec() throws Exception {
+        PayloadCodec.DEFLATE.decode(PayloadCodec.GZIP.encode(DATA));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptData() throws Exception {
+        byte[] encoded = PayloadCodec.GZIP.encode(DATA);
+        PayloadCodec.GZIP.decode(Arrays.copyOf(encoded, encoded.length / 2));
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        byte[] encoded = IDENTITY.encode(DATA);
+        assertEquals(DATA.length + 3, encoded.length);
+        assertArrayEquals(new byte[] {0x00, 'Z', 100}, Arrays.copyOf(encoded, 3));
+        assertArrayEquals(DATA, Arrays.copyOfRange(encoded, 3, encoded.length));
+    }
+}
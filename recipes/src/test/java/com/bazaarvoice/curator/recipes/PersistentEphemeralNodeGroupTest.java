@@ -0,0 +1,272 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.data.Stat;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PersistentEphemeralNodeGroupTest extends ZooKeeperTest {
+    private static final String DIR = "/test";
+    private static final String FOO = ZKPaths.makePath(DIR, "foo");
+    private static final String BAR = ZKPaths.makePath(DIR, "bar");
+    private static final String BAZ = ZKPaths.makePath("/other", "baz");
+    private static final byte[] DATA = "data".getBytes();
+
+    /** This curator instance is used to verify all interaction with ZooKeeper from an external user's perspective. */
+    private CuratorFramework _curator;
+
+    /** Keep track of the groups that were created during this test so that they can be cleaned up at the end. */
+    private final Collection<PersistentEphemeralNodeGroup> _createdGroups = Lists.newArrayList();
+
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @After
+    @Override
+    public void teardown() throws Exception {
+        for (PersistentEphemeralNodeGroup group : _createdGroups) {
+            group.close(10, TimeUnit.SECONDS);
+        }
+
+        super.teardown();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullCurator() throws Exception {
+        PersistentEphemeralNodeGroup.builder(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPath() throws Exception {
+        PersistentEphemeralNodeGroup.builder(_curator).addNode(null, DATA);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullData() throws Exception {
+        PersistentEphemeralNodeGroup.builder(_curator).addNode(FOO, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyGroup() throws Exception {
+        PersistentEphemeralNodeGroup.builder(_curator).build();
+    }
+
+    @Test
+    public void testCreatesNodesInOneTransaction() throws Exception {
+        PersistentEphemeralNodeGroup group = createGroup(newCurator());
+
+        List<Stat> stats = assertNodesExist(group);
+        // Every operation of a multi-op transaction has the same zxid.
+        assertEquals(1, czxids(stats).size());
+        assertArrayEquals(DATA, _curator.getData().forPath(group.getPaths().get(0)));
+    }
+
+    @Test
+    public void testSpreadsNodesWithSameNameAcrossBuckets() throws Exception {
+        BucketLayout layout = new BucketLayout(4);
+        List<String> keys = bucketKeys(layout, 10);
+        final Iterator<String> nextKey = keys.iterator();
+        PersistentEphemeralNodeGroup.Builder builder = PersistentEphemeralNodeGroup.builder(newCurator())
+                .withBucketLayout(layout)
+                .withBucketKeys(new Supplier<String>() {
+                    @Override
+                    public String get() {
+                        return nextKey.next();
+                    }
+                });
+        for (int i = 0; i < keys.size(); i++) {
+            builder.addNode(FOO, DATA);
+        }
+        PersistentEphemeralNodeGroup group = builder.build();
+        _createdGroups.add(group);
+
+        assertNodesExist(group);
+        for (String bucketPath : layout.getBucketPaths(DIR)) {
+            assertEquals(10, _curator.getChildren().forPath(bucketPath).size());
+        }
+    }
+
+    @Test
+    public void testPathsAreProtected() throws Exception {
+        PersistentEphemeralNodeGroup group = createGroup(newCurator());
+        List<String> paths = group.getPaths();
+
+        assertEquals(DIR, ZKPaths.getPathAndNode(paths.get(0)).getPath());
+        assertTrue(ZKPaths.getNodeFromPath(paths.get(0)).startsWith("_c_"));
+        assertTrue(ZKPaths.getNodeFromPath(paths.get(0)).endsWith("-foo"));
+
+        // Two groups with the same base paths don't collide.
+        PersistentEphemeralNodeGroup other = createGroup(newCurator());
+        assertTrue(Sets.intersection(Sets.newHashSet(paths), Sets.newHashSet(other.getPaths())).isEmpty());
+    }
+
+    @Test
+    public void testCreationFuture() throws Exception {
+        PersistentEphemeralNodeGroup group = PersistentEphemeralNodeGroup.builder(newCurator())
+                .addNode(FOO, DATA)
+                .addNode(BAR, DATA)
+                .buildAsync();
+        _createdGroups.add(group);
+
+        assertEquals(group.getPaths(), group.getCreationFuture().get(10, TimeUnit.SECONDS));
+        assertNodesExist(group);
+    }
+
+    @Test
+    public void testCreationFutureFailsWhenClosed() throws Exception {
+        CuratorFramework curator = newCurator();
+        stopZooKeeper();
+
+        PersistentEphemeralNodeGroup group = PersistentEphemeralNodeGroup.builder(curator)
+                .addNode(FOO, DATA)
+                .buildAsync();
+        group.close(1, TimeUnit.SECONDS);
+        try {
+            group.getCreationFuture().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testDeletesNodesWhenClosed() throws Exception {
+        PersistentEphemeralNodeGroup group = createGroup(newCurator());
+        assertNodesExist(group);
+
+        group.close(10, TimeUnit.SECONDS);
+        for (String path : group.getPaths()) {
+            assertNull(_curator.checkExists().forPath(path));
+        }
+    }
+
+    @Test
+    public void testRecreatesNodeWhenItGetsDeleted() throws Exception {
+        PersistentEphemeralNodeGroup group = createGroup(newCurator());
+        String path = group.getPaths().get(1);
+
+        _curator.delete().forPath(path);
+        assertTrue(waitUntilExists(path));
+    }
+
+    @Test
+    public void testRecreatesNodesInOneTransactionWhenSessionExpires() throws Exception {
+        CuratorFramework curator = newCurator();
+        PersistentEphemeralNodeGroup group = createGroup(curator);
+        Set<Long> original = czxids(assertNodesExist(group));
+
+        killSession(curator);
+
+        for (String path : group.getPaths()) {
+            assertTrue(waitUntilExists(path));
+        }
+        Set<Long> recreated = czxids(assertNodesExist(group));
+        assertEquals(1, recreated.size());
+        assertFalse(original.equals(recreated));
+    }
+
+    @Test
+    public void testFallsBackToCreatingEachNodeOnConflict() throws Exception {
+        PersistentEphemeralNodeGroup group = PersistentEphemeralNodeGroup.builder(newCurator())
+                .addNode(FOO, DATA)
+                .addNode(BAR, DATA)
+                .build();
+        _createdGroups.add(group);
+        List<String> paths = group.getPaths();
+
+        // Delete the nodes and their parent at once, so the transaction that recreates them fails.
+        _curator.inTransaction()
+                .delete().forPath(paths.get(0)).and()
+                .delete().forPath(paths.get(1)).and()
+                .delete().forPath(DIR).and()
+                .commit();
+
+        for (String path : paths) {
+            assertTrue(waitUntilExists(path));
+        }
+    }
+
+    private PersistentEphemeralNodeGroup createGroup(CuratorFramework curator) {
+        PersistentEphemeralNodeGroup group = PersistentEphemeralNodeGroup.builder(curator)
+                .addNode(FOO, DATA)
+                .addNode(BAR, DATA)
+                .addNode(BAZ, DATA)
+                .build();
+        _createdGroups.add(group);
+        return group;
+    }
+
+    private List<Stat> assertNodesExist(PersistentEphemeralNodeGroup group) throws Exception {
+        List<Stat> stats = Lists.newArrayList();
+        for (String path : group.getPaths()) {
+            Stat stat = _curator.checkExists().forPath(path);
+            assertNotNull(path, stat);
+            stats.add(stat);
+        }
+        return stats;
+    }
+
+    private static Set<Long> czxids(List<Stat> stats) {
+        Set<Long> czxids = Sets.newHashSet();
+        for (Stat stat : stats) {
+            czxids.add(stat.getCzxid());
+        }
+        return czxids;
+    }
+
+    /** Returns keys that put the given number of nodes in each of the layout's buckets. */
+    private static List<String> bucketKeys(BucketLayout layout, int nodesPerBucket) {
+        int[] counts = new int[layout.getBucketCount()];
+        List<String> keys = Lists.newArrayList();
+        for (int i = 0; keys.size() < nodesPerBucket * counts.length; i++) {
+            String key = "key-" + i;
+            int bucket = layout.getBucket(key);
+            if (counts[bucket] < nodesPerBucket) {
+                counts[bucket]++;
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private boolean waitUntilExists(final String path) throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return _curator.checkExists().forPath(path) != null;
+            }
+        });
+    }
+
+    private static boolean waitUntil(Callable<Boolean> function) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!function.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return function.call();
+    }
+}
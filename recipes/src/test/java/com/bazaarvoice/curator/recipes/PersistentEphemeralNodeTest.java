@@ -1,21 +1,37 @@
 package com.bazaarvoice.curator.recipes;
 
 import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
 import org.apache.curator.utils.ZKPaths;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.data.Stat;
 import org.junit.After;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PersistentEphemeralNodeTest extends ZooKeeperTest {
     private static final String DIR = "/test";
@@ -196,6 +212,646 @@ public class PersistentEphemeralNodeTest extends ZooKeeperTest {
         assertArrayEquals(bytes, DATA);
     }
 
+    @Test
+    public void testCreatesNodeInBucket() throws Exception {
+        BucketLayout layout = new BucketLayout(8);
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withBucketLayout(layout)
+                .build();
+        _createdNodes.add(node);
+
+        String path = node.getActualPath();
+        assertNodeExists(_curator, path);
+        assertTrue(layout.getBucketPaths(DIR).contains(ZKPaths.getPathAndNode(path).getPath()));
+    }
+
+    @Test
+    public void testSpreadsNodesWithSameNameAcrossBuckets() throws Exception {
+        assertSpreadAcrossBuckets(CreateMode.EPHEMERAL);
+    }
+
+    @Test
+    public void testSpreadsSequentialNodesAcrossBuckets() throws Exception {
+        assertSpreadAcrossBuckets(CreateMode.EPHEMERAL_SEQUENTIAL);
+    }
+
+    private void assertSpreadAcrossBuckets(CreateMode mode) throws Exception {
+        BucketLayout layout = new BucketLayout(4);
+        CuratorFramework curator = newCurator();
+        EphemeralNodeScheduler scheduler = new EphemeralNodeScheduler(2);
+        try {
+            List<ListenableFuture<String>> created = Lists.newArrayList();
+            for (String key : bucketKeys(layout, 10)) {
+                PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, mode)
+                        .withBucketLayout(layout)
+                        .withBucketKeys(Suppliers.ofInstance(key))
+                        .withScheduler(scheduler)
+                        .buildAsync();
+                _createdNodes.add(node);
+                created.add(node.getCreationFuture());
+            }
+            Futures.allAsList(created).get(10, TimeUnit.SECONDS);
+
+            for (String bucketPath : layout.getBucketPaths(DIR)) {
+                assertEquals(10, _curator.getChildren().forPath(bucketPath).size());
+            }
+        } finally {
+            for (PersistentEphemeralNode node : _createdNodes) {
+                node.close(10, TimeUnit.SECONDS);
+            }
+            _createdNodes.clear();
+            scheduler.close();
+        }
+    }
+
+    /** Returns keys that put the given number of nodes in each of the layout's buckets. */
+    private static List<String> bucketKeys(BucketLayout layout, int nodesPerBucket) {
+        int[] counts = new int[layout.getBucketCount()];
+        List<String> keys = Lists.newArrayList();
+        for (int i = 0; keys.size() < nodesPerBucket * counts.length; i++) {
+            String key = "key-" + i;
+            int bucket = layout.getBucket(key);
+            if (counts[bucket] < nodesPerBucket) {
+                counts[bucket]++;
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testEncodesDataWithPayloadCodec() throws Exception {
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withPayloadCodec(PayloadCodec.GZIP)
+                .build();
+        _createdNodes.add(node);
+
+        byte[] bytes = _curator.getData().forPath(node.getActualPath());
+        assertEquals(PayloadCodec.GZIP.getId(), PayloadCodec.getCodecId(bytes));
+        assertArrayEquals(DATA, PayloadCodec.GZIP.decode(bytes));
+    }
+
+    @Test
+    public void testSharedScheduler() throws Exception {
+        EphemeralNodeScheduler scheduler = new EphemeralNodeScheduler(2);
+        CuratorFramework curator = newCurator();
+        try {
+            List<PersistentEphemeralNode> nodes = Lists.newArrayList();
+            for (int i = 0; i < 20; i++) {
+                PersistentEphemeralNode node =
+                        PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                                .withScheduler(scheduler)
+                                .build();
+                _createdNodes.add(node);
+                nodes.add(node);
+            }
+            for (PersistentEphemeralNode node : nodes) {
+                assertNodeExists(_curator, node.getActualPath());
+            }
+
+            // Each node is still maintained independently.
+            String path = nodes.get(0).getActualPath();
+            _curator.delete().forPath(path);
+            WatchTrigger createdWatchTrigger = WatchTrigger.creationTrigger();
+            Stat stat = _curator.checkExists().usingWatcher(createdWatchTrigger).forPath(path);
+            assertTrue(stat != null || createdWatchTrigger.firedWithin(10, TimeUnit.SECONDS));
+
+            String closedPath = nodes.get(1).getActualPath();
+            nodes.get(1).close(10, TimeUnit.SECONDS);
+            assertNodeDoesNotExist(_curator, closedPath);
+            assertNodeExists(_curator, nodes.get(2).getActualPath());
+        } finally {
+            for (PersistentEphemeralNode node : _createdNodes) {
+                node.close(10, TimeUnit.SECONDS);
+            }
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testWriteLimiter() throws Exception {
+        EphemeralWriteLimiter limiter = new EphemeralWriteLimiter(10);
+        CuratorFramework curator = newCurator();
+        try {
+            List<PersistentEphemeralNode> nodes = Lists.newArrayList();
+            for (int i = 0; i < 5; i++) {
+                PersistentEphemeralNode node =
+                        PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                                .withWriteLimiter(limiter, EphemeralWriteLimiter.Priority.NORMAL)
+                                .buildAsync();
+                _createdNodes.add(node);
+                nodes.add(node);
+            }
+            final long sessionId = curator.getZookeeperClient().getZooKeeper().getSessionId();
+            for (PersistentEphemeralNode node : nodes) {
+                assertNodeExists(_curator, node.getCreationFuture().get(10, TimeUnit.SECONDS));
+            }
+
+            // After the session expires the nodes are recreated through the limiter as well.
+            killSession(curator);
+            for (final PersistentEphemeralNode node : nodes) {
+                final String path = node.getActualPath();
+                assertTrue(waitUntil(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Stat stat = _curator.checkExists().forPath(path);
+                        return stat != null && stat.getEphemeralOwner() != sessionId;
+                    }
+                }));
+            }
+            assertEquals(0, limiter.getQueueDepth());
+
+            String closedPath = nodes.get(0).getActualPath();
+            nodes.get(0).close(10, TimeUnit.SECONDS);
+            assertNodeDoesNotExist(_curator, closedPath);
+        } finally {
+            for (PersistentEphemeralNode node : _createdNodes) {
+                node.close(10, TimeUnit.SECONDS);
+            }
+            limiter.close();
+        }
+    }
+
+    @Test
+    public void testClosingDuringCreationDoesNotUseWritePermits() throws Exception {
+        CountingWriteLimiter limiter = new CountingWriteLimiter();
+        EphemeralNodeScheduler scheduler = new EphemeralNodeScheduler(1);
+        CuratorFramework curator = newCurator(CuratorFrameworkFactory.builder()
+                .retryPolicy(new RetryNTimes(0, 0))
+                .connectionTimeoutMs(100));
+        stopZooKeeper();
+        try {
+            // The creation fails and isn't retried for a while, so the node is being created while it is closed.
+            final PersistentEphemeralNode node =
+                    PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                            .withScheduler(scheduler)
+                            .withWriteLimiter(limiter, EphemeralWriteLimiter.Priority.NORMAL)
+                            .withRetrySchedule(new RetrySchedule() {
+                                @Override
+                                public long getDelayMillis(int retryCount, long previousDelayMillis) {
+                                    return TimeUnit.MINUTES.toMillis(1);
+                                }
+                            })
+                            .buildAsync();
+            assertTrue(waitUntil(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return node.getRetryCount() >= 1;
+                }
+            }));
+
+            // Waiting for the creation to finish doesn't write anything, so it doesn't take a permit either.
+            node.close(1, TimeUnit.SECONDS);
+            assertEquals(1, limiter._submitted.get());
+        } finally {
+            scheduler.close();
+            limiter.close();
+        }
+    }
+
+    @Test
+    public void testGetActualPathWaitsForCreation() throws Exception {
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .buildAsync();
+        _createdNodes.add(node);
+
+        String path = node.getActualPath();
+        assertEquals(node.getCreationFuture().get(), path);
+        assertNodeExists(_curator, path);
+    }
+
+    @Test
+    public void testGetActualPathFailsWhenClosedBeforeCreation() throws Exception {
+        CuratorFramework curator = newCurator();
+        stopZooKeeper();
+
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                .buildAsync();
+        node.close(1, TimeUnit.SECONDS);
+        try {
+            node.getActualPath();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testPathListenerToldCurrentPath() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        RecordingPathListener listener = new RecordingPathListener();
+        node.addPathListener(listener);
+
+        assertTrue(waitUntilSize(listener._paths, 1));
+        assertEquals(node.getActualPath(), listener._paths.get(0));
+    }
+
+    @Test
+    public void testPathListenerToldNewPathAfterRecreation() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH, CreateMode.EPHEMERAL_SEQUENTIAL);
+        String originalPath = node.getActualPath();
+        RecordingPathListener listener = new RecordingPathListener();
+        node.addPathListener(listener);
+        assertTrue(waitUntilSize(listener._paths, 1));
+
+        killSession(node.getCurator());
+
+        // A sequential node gets a new sequence number when it's recreated.
+        assertTrue(waitUntilSize(listener._paths, 2));
+        String newPath = listener._paths.get(1);
+        assertFalse(originalPath.equals(newPath));
+        assertEquals(newPath, node.getActualPath());
+        assertNodeExists(_curator, newPath);
+    }
+
+    @Test
+    public void testRemovedPathListenerNotTold() throws Exception {
+        final PersistentEphemeralNode node = createNode(PATH, CreateMode.EPHEMERAL_SEQUENTIAL);
+        RecordingPathListener listener = new RecordingPathListener();
+        node.addPathListener(listener);
+        assertTrue(waitUntilSize(listener._paths, 1));
+        node.removePathListener(listener);
+
+        final String originalPath = node.getActualPath();
+        killSession(node.getCurator());
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !originalPath.equals(node.getActualPath());
+            }
+        }));
+        assertEquals(1, listener._paths.size());
+    }
+
+    @Test
+    public void testRecreatesNodeWhenParentIsDeleted() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        String path = node.getActualPath();
+
+        // Delete the node and its parent at once, so the parent has to be created again too.
+        _curator.inTransaction()
+                .delete().forPath(path).and()
+                .delete().forPath(DIR).and()
+                .commit();
+
+        WatchTrigger createdWatchTrigger = WatchTrigger.creationTrigger();
+        Stat stat = _curator.checkExists().usingWatcher(createdWatchTrigger).forPath(path);
+        assertTrue(stat != null || createdWatchTrigger.firedWithin(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDrainWithoutMarker() throws Exception {
+        createNode(PATH).drain(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDrainMarksNodeBeforeDeletingIt() throws Exception {
+        final PersistentEphemeralNode node =
+                PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                        .withPayloadCodec(PayloadCodec.GZIP)
+                        .withDrainMarker(DrainMarker.HEADER, 1, TimeUnit.SECONDS)
+                        .build();
+        _createdNodes.add(node);
+        final String path = node.getActualPath();
+
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                node.drain(10, TimeUnit.SECONDS);
+            }
+        });
+        drainer.start();
+
+        // First the data is marked, while the node still exists...
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                byte[] data = PayloadCodec.GZIP.decode(_curator.getData().forPath(path));
+                return DrainMarker.HEADER.isDraining(data);
+            }
+        }));
+        assertNodeExists(_curator, path);
+
+        // ...then once the drain window has passed the node is deleted.
+        drainer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(drainer.isAlive());
+        assertNodeDoesNotExist(_curator, path);
+    }
+
+    @Test
+    public void testInterruptedDrainStillDeletesNode() throws Exception {
+        final PersistentEphemeralNode node =
+                PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                        .withDrainMarker(DrainMarker.HEADER, 1, TimeUnit.MINUTES)
+                        .build();
+        _createdNodes.add(node);
+        final String path = node.getActualPath();
+
+        final AtomicBoolean interruptedAfter = new AtomicBoolean();
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                node.drain(10, TimeUnit.SECONDS);
+                interruptedAfter.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        drainer.start();
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return DrainMarker.HEADER.isDraining(_curator.getData().forPath(path));
+            }
+        }));
+
+        drainer.interrupt();
+        drainer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(drainer.isAlive());
+        assertTrue(interruptedAfter.get());
+        assertNodeDoesNotExist(_curator, path);
+    }
+
+    @Test
+    public void testConcurrentDrainWaitsForDrainInProgress() throws Exception {
+        final PersistentEphemeralNode node =
+                PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                        .withDrainMarker(DrainMarker.HEADER, 1, TimeUnit.SECONDS)
+                        .build();
+        _createdNodes.add(node);
+        final String path = node.getActualPath();
+
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                node.drain(10, TimeUnit.SECONDS);
+            }
+        });
+        long start = System.nanoTime();
+        drainer.start();
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return DrainMarker.HEADER.isDraining(_curator.getData().forPath(path));
+            }
+        }));
+
+        // The second drain doesn't cut the first one's window short, it returns once the first is done.
+        node.drain(10, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertNodeDoesNotExist(_curator, path);
+        drainer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(drainer.isAlive());
+    }
+
+    @Test
+    public void testDrainHidesNodeFromDiscovery() throws Exception {
+        NodeDiscovery<String> discovery = closer().register(
+                NodeDiscovery.builder(newCurator(), DIR, new NodeDiscovery.NodeDataParser<String>() {
+                    @Override
+                    public String parse(String path, byte[] nodeData) {
+                        return new String(nodeData);
+                    }
+                }).withDrainMarker(DrainMarker.HEADER).build());
+        discovery.start();
+
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withDrainMarker(DrainMarker.HEADER, 500, TimeUnit.MILLISECONDS)
+                .build();
+        _createdNodes.add(node);
+        String path = node.getActualPath();
+        assertTrue(waitUntilSize(discovery.getNodes().keySet(), 1));
+
+        final List<Boolean> existedWhenRemoved = Collections.synchronizedList(Lists.<Boolean>newArrayList());
+        discovery.addListener(new NodeDiscovery.NodeListener<String>() {
+            @Override
+            public void onNodeAdded(String path, String node) {
+            }
+
+            @Override
+            public void onNodeRemoved(String path, String node) {
+                try {
+                    existedWhenRemoved.add(_curator.checkExists().forPath(path) != null);
+                } catch (Exception e) {
+                    existedWhenRemoved.add(false);
+                }
+            }
+
+            @Override
+            public void onNodeUpdated(String path, String node) {
+            }
+        });
+
+        node.drain(10, TimeUnit.SECONDS);
+        assertNodeDoesNotExist(_curator, path);
+
+        // Discovery stopped showing the node while it still existed, and didn't report it removed again after.
+        assertTrue(discovery.getNodes().isEmpty());
+        assertEquals(Collections.singletonList(true), existedWhenRemoved);
+    }
+
+    @Test
+    public void testBuildAsync() throws Exception {
+        CuratorFramework curator = newCurator();
+        List<ListenableFuture<String>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                    .buildAsync();
+            _createdNodes.add(node);
+            futures.add(node.getCreationFuture());
+        }
+
+        List<String> paths = Futures.allAsList(futures).get(10, TimeUnit.SECONDS);
+        for (String path : paths) {
+            assertNodeExists(_curator, path);
+        }
+        assertEquals(10, Sets.newHashSet(paths).size());
+    }
+
+    @Test
+    public void testCreationFutureOfBlockingBuild() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        assertTrue(node.getCreationFuture().isDone());
+        assertEquals(node.getActualPath(), node.getCreationFuture().get());
+    }
+
+    @Test
+    public void testCreationFutureFailsWhenClosed() throws Exception {
+        CuratorFramework curator = newCurator();
+        stopZooKeeper();
+
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                .buildAsync();
+        assertFalse(node.getCreationFuture().isDone());
+
+        node.close(1, TimeUnit.SECONDS);
+        try {
+            node.getCreationFuture().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testRetryCountAndLastError() throws Exception {
+        CuratorFramework curator = newCurator(CuratorFrameworkFactory.builder()
+                .retryPolicy(new RetryNTimes(0, 0))
+                .connectionTimeoutMs(100));
+        stopZooKeeper();
+
+        RetrySchedule retrySchedule = new DecorrelatedJitterRetrySchedule(10, 10, TimeUnit.MILLISECONDS);
+        final PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                .withRetrySchedule(retrySchedule)
+                .buildAsync();
+        _createdNodes.add(node);
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return node.getRetryCount() >= 2;
+            }
+        }));
+        assertNotNull(node.getLastError());
+
+        startZooKeeper();
+        assertNodeExists(_curator, node.getCreationFuture().get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRetryCountPerOperation() throws Exception {
+        CuratorFramework curator = newCurator(CuratorFrameworkFactory.builder()
+                .retryPolicy(new RetryNTimes(0, 0))
+                .connectionTimeoutMs(100));
+        stopZooKeeper();
+
+        RetrySchedule retrySchedule = new DecorrelatedJitterRetrySchedule(10, 10, TimeUnit.MILLISECONDS);
+        final PersistentEphemeralNode node = PersistentEphemeralNode.builder(curator, PATH, DATA, CreateMode.EPHEMERAL)
+                .withRetrySchedule(retrySchedule)
+                .buildAsync();
+        _createdNodes.add(node);
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return node.getRetryCount(PersistentEphemeralNode.Operation.CREATE) >= 2;
+            }
+        }));
+        assertEquals(0, node.getRetryCount(PersistentEphemeralNode.Operation.DELETE));
+        assertEquals(PersistentEphemeralNode.State.CREATING, node.getState());
+
+        startZooKeeper();
+        node.getCreationFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(waitUntilState(node, PersistentEphemeralNode.State.PRESENT));
+    }
+
+    @Test
+    public void testStates() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        assertEquals(PersistentEphemeralNode.State.PRESENT, node.getState());
+
+        node.close(10, TimeUnit.SECONDS);
+        assertEquals(PersistentEphemeralNode.State.CLOSED, node.getState());
+    }
+
+    @Test
+    public void testMetricsRecordRecoveryFromSessionExpiry() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withMetrics(metrics)
+                .build();
+        _createdNodes.add(node);
+        assertSame(node, metrics._started);
+        assertEquals(Collections.singletonList("CREATING->PRESENT"), metrics._transitions);
+
+        killSession(node.getCurator());
+        assertTrue(waitUntilSize(metrics._absences, 1));
+        assertTrue(waitUntilState(node, PersistentEphemeralNode.State.PRESENT));
+        assertTrue(metrics._transitions.contains("RECREATING->PRESENT"));
+        assertTrue(metrics._absences.get(0) >= 0 && metrics._absences.get(0) < TimeUnit.SECONDS.toMillis(10));
+
+        node.close(10, TimeUnit.SECONDS);
+        assertSame(node, metrics._closed);
+        assertEquals("DELETING->CLOSED", metrics._transitions.get(metrics._transitions.size() - 1));
+    }
+
+    @Test
+    public void testMetricsRecordAbsenceWhenDeleted() throws Exception {
+        RecordingMetrics metrics = new RecordingMetrics();
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withMetrics(metrics)
+                .build();
+        _createdNodes.add(node);
+
+        _curator.delete().forPath(node.getActualPath());
+        assertTrue(waitUntilSize(metrics._absences, 1));
+        assertTrue(metrics._transitions.contains("PRESENT->RECREATING"));
+        assertTrue(metrics._retries.isEmpty());
+    }
+
+    @Test
+    public void testSetDataUpdatesNodeInPlace() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        final String path = node.getActualPath();
+        long czxid = _curator.checkExists().forPath(path).getCzxid();
+
+        node.setData("new-data".getBytes());
+        assertTrue(waitUntilData(path, "new-data"));
+        assertEquals(czxid, _curator.checkExists().forPath(path).getCzxid());
+    }
+
+    @Test
+    public void testSetDataCoalescesRapidUpdates() throws Exception {
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withDataUpdateInterval(500, TimeUnit.MILLISECONDS)
+                .build();
+        _createdNodes.add(node);
+        String path = node.getActualPath();
+
+        for (int i = 1; i <= 50; i++) {
+            node.setData(("data-" + i).getBytes());
+        }
+        assertTrue(waitUntilData(path, "data-50"));
+
+        // The first update is written right away, the rest are coalesced into a single write.
+        assertTrue(_curator.checkExists().forPath(path).getVersion() <= 2);
+    }
+
+    @Test
+    public void testSetDataUsedWhenRecreated() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        String path = node.getActualPath();
+        node.setData("new-data".getBytes());
+        assertTrue(waitUntilData(path, "new-data"));
+
+        _curator.delete().forPath(path);
+        WatchTrigger createdWatchTrigger = WatchTrigger.creationTrigger();
+        Stat stat = _curator.checkExists().usingWatcher(createdWatchTrigger).forPath(path);
+        assertTrue(stat != null || createdWatchTrigger.firedWithin(10, TimeUnit.SECONDS));
+        assertTrue(waitUntilData(path, "new-data"));
+    }
+
+    @Test
+    public void testSetDataEncodesWithPayloadCodec() throws Exception {
+        PersistentEphemeralNode node = PersistentEphemeralNode.builder(newCurator(), PATH, DATA, CreateMode.EPHEMERAL)
+                .withPayloadCodec(PayloadCodec.GZIP)
+                .build();
+        _createdNodes.add(node);
+        final String path = node.getActualPath();
+
+        node.setData("new-data".getBytes());
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                byte[] bytes = _curator.getData().forPath(path);
+                return Arrays.equals("new-data".getBytes(), PayloadCodec.GZIP.decode(bytes));
+            }
+        }));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSetDataAfterClose() throws Exception {
+        PersistentEphemeralNode node = createNode(PATH);
+        node.close(10, TimeUnit.SECONDS);
+        node.setData("new-data".getBytes());
+    }
+
     private PersistentEphemeralNode createNode(String path) throws Exception {
         return createNode(path, CreateMode.EPHEMERAL);
     }
@@ -206,6 +862,42 @@ public class PersistentEphemeralNodeTest extends ZooKeeperTest {
         return node;
     }
 
+    private static boolean waitUntilState(final PersistentEphemeralNode node, final PersistentEphemeralNode.State state)
+            throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return node.getState() == state;
+            }
+        });
+    }
+
+    private boolean waitUntilData(final String path, final String data) throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return data.equals(new String(_curator.getData().forPath(path)));
+            }
+        });
+    }
+
+    private static boolean waitUntilSize(final Collection<?> collection, final int size) throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return collection.size() >= size;
+            }
+        });
+    }
+
+    private static boolean waitUntil(Callable<Boolean> function) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!function.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return function.call();
+    }
+
     private void assertNodeExists(CuratorFramework curator, String path) throws Exception {
         assertNotNull(path);
         assertTrue(curator.checkExists().forPath(path) != null);
@@ -214,4 +906,63 @@ public class PersistentEphemeralNodeTest extends ZooKeeperTest {
     private void assertNodeDoesNotExist(CuratorFramework curator, String path) throws Exception {
         assertTrue(curator.checkExists().forPath(path) == null);
     }
+
+    /** Counts the writes that were queued for a permit. */
+    private static class CountingWriteLimiter extends EphemeralWriteLimiter {
+        private final AtomicInteger _submitted = new AtomicInteger();
+
+        private CountingWriteLimiter() {
+            super(1000);
+        }
+
+        @Override
+        void submit(Priority priority, EphemeralNodeScheduler.SerialExecutor executor, Runnable write) {
+            _submitted.incrementAndGet();
+            super.submit(priority, executor, write);
+        }
+    }
+
+    private static class RecordingPathListener implements PersistentEphemeralNode.PathListener {
+        private final List<String> _paths = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        @Override
+        public void onPathChanged(String path) {
+            _paths.add(path);
+        }
+    }
+
+    private static class RecordingMetrics implements PersistentEphemeralNodeMetrics {
+        private final List<String> _transitions = Collections.synchronizedList(Lists.<String>newArrayList());
+        private final List<Long> _absences = Collections.synchronizedList(Lists.<Long>newArrayList());
+        private final List<PersistentEphemeralNode.Operation> _retries =
+                Collections.synchronizedList(Lists.<PersistentEphemeralNode.Operation>newArrayList());
+        private volatile PersistentEphemeralNode _started;
+        private volatile PersistentEphemeralNode _closed;
+
+        @Override
+        public void onStart(PersistentEphemeralNode node) {
+            _started = node;
+        }
+
+        @Override
+        public void onClose(PersistentEphemeralNode node) {
+            _closed = node;
+        }
+
+        @Override
+        public void recordStateChange(PersistentEphemeralNode.State from, PersistentEphemeralNode.State to,
+                                      long timestampMillis) {
+            _transitions.add(from + "->" + to);
+        }
+
+        @Override
+        public void recordAbsence(long durationMillis) {
+            _absences.add(durationMillis);
+        }
+
+        @Override
+        public void recordRetry(PersistentEphemeralNode.Operation operation) {
+            _retries.add(operation);
+        }
+    }
 }
@@ -0,0 +1,254 @@
+package com.bazaarvoice.curator.recipes;
+
+import com.bazaarvoice.curator.test.ZooKeeperTest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.zookeeper.CreateMode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecursiveNodeDiscoveryTest extends ZooKeeperTest {
+    private static final String ROOT = "/services";
+    private static final String SERVICE = ROOT + "/foo";
+    private static final String ZONE = SERVICE + "/us-east";
+    private static final String INSTANCE = ZONE + "/instance-1";
+
+    private static final NodeDiscovery.NodeDataParser<String> PARSER = new NodeDiscovery.NodeDataParser<String>() {
+        @Override
+        public String parse(String path, byte[] data) {
+            return new String(data);
+        }
+    };
+
+    private CuratorFramework _curator;
+
+    @Before
+    @Override
+    public void setup() throws Exception {
+        super.setup();
+        _curator = newCurator();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullCurator() {
+        new RecursiveNodeDiscovery<String>(null, ROOT, 3, PARSER);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPath() {
+        new RecursiveNodeDiscovery<String>(_curator, null, 3, PARSER);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullParser() {
+        new RecursiveNodeDiscovery<String>(_curator, ROOT, 3, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroDepth() {
+        new RecursiveNodeDiscovery<String>(_curator, ROOT, 0, PARSER);
+    }
+
+    @Test
+    public void testExistingTree() throws Exception {
+        createNode(INSTANCE, "data");
+
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        Map<String, String> nodes = discovery.getNodes();
+        assertEquals(ImmutableList.of(SERVICE, ZONE, INSTANCE), Lists.newArrayList(nodes.keySet()));
+        assertEquals("data", nodes.get(INSTANCE));
+
+        // Parent nodes created without data aren't parsed.
+        assertTrue(nodes.containsKey(ZONE));
+        assertNull(nodes.get(ZONE));
+    }
+
+    @Test
+    public void testNewSubtree() throws Exception {
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        RecordingListener listener = new RecordingListener();
+        discovery.addListener(listener);
+
+        createNode(INSTANCE, "data");
+        assertTrue(waitUntilContains(discovery, INSTANCE));
+        assertEquals(ImmutableList.of("added " + SERVICE, "added " + ZONE, "added " + INSTANCE), listener.events());
+    }
+
+    @Test
+    public void testRootCreatedLater() throws Exception {
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        assertTrue(discovery.getNodes().isEmpty());
+
+        createNode(INSTANCE, "data");
+        assertTrue(waitUntilContains(discovery, INSTANCE));
+    }
+
+    @Test
+    public void testDepthLimit() throws Exception {
+        createNode(INSTANCE, "data");
+
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(2);
+        assertEquals(ImmutableList.of(SERVICE, ZONE), Lists.newArrayList(discovery.getNodes().keySet()));
+
+        createNode(ZONE + "/instance-2", "data");
+        createNode(SERVICE + "/us-west", "");
+        assertTrue(waitUntilContains(discovery, SERVICE + "/us-west"));
+        assertFalse(discovery.getNodes().containsKey(ZONE + "/instance-2"));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        createNode(INSTANCE, "data");
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        final RecordingListener listener = new RecordingListener();
+        discovery.addListener(listener);
+
+        _curator.setData().forPath(INSTANCE, "new-data".getBytes());
+        assertTrue(waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !listener.events().isEmpty();
+            }
+        }));
+        assertEquals(ImmutableList.of("updated " + INSTANCE), listener.events());
+        assertEquals("new-data", discovery.getNodes().get(INSTANCE));
+    }
+
+    @Test
+    public void testSubtreeRemoved() throws Exception {
+        createNode(INSTANCE, "data");
+        createNode(ZONE + "/instance-2", "data");
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        RecordingListener listener = new RecordingListener();
+        discovery.addListener(listener);
+
+        _curator.delete().forPath(INSTANCE);
+        _curator.delete().forPath(ZONE + "/instance-2");
+        _curator.delete().forPath(ZONE);
+        assertTrue(waitUntilSize(discovery, 1));
+
+        // Every node in the removed subtree is reported, children before their parents.
+        List<String> events = listener.events();
+        assertEquals(3, events.size());
+        assertEquals("removed " + ZONE, events.get(2));
+    }
+
+    @Test
+    public void testSnapshotVersion() throws Exception {
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        RecursiveNodeDiscovery.Snapshot<String> before = discovery.getSnapshot();
+
+        createNode(INSTANCE, "data");
+        assertTrue(waitUntilContains(discovery, INSTANCE));
+
+        RecursiveNodeDiscovery.Snapshot<String> after = discovery.getSnapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+        assertTrue(before.getNodes().isEmpty());
+        assertEquals(Collections.singletonList(INSTANCE), Lists.newArrayList(after.getDescendants(ZONE).keySet()));
+    }
+
+    @Test
+    public void testDescendantsExcludeSiblingsWithSamePrefix() throws Exception {
+        createNode(INSTANCE, "data");
+        createNode(SERVICE + "-bar/us-east", "");
+
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        assertEquals(ImmutableList.of(ZONE, INSTANCE),
+                Lists.newArrayList(discovery.getSnapshot().getDescendants(SERVICE).keySet()));
+    }
+
+    @Test
+    public void testChangesSeenAfterSessionExpires() throws Exception {
+        CuratorFramework curator = newCurator();
+        RecursiveNodeDiscovery<String> discovery = closer().register(
+                new RecursiveNodeDiscovery<String>(curator, ROOT, 3, PARSER));
+        discovery.start();
+
+        killSession(curator);
+        createNode(INSTANCE, "data");
+        assertTrue(waitUntilContains(discovery, INSTANCE));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        createNode(INSTANCE, "data");
+        RecursiveNodeDiscovery<String> discovery = newDiscovery(3);
+        discovery.close();
+        assertTrue(discovery.getNodes().isEmpty());
+    }
+
+    private RecursiveNodeDiscovery<String> newDiscovery(int maxDepth) throws Exception {
+        RecursiveNodeDiscovery<String> discovery = closer().register(
+                new RecursiveNodeDiscovery<String>(newCurator(), ROOT, maxDepth, PARSER));
+        discovery.start();
+        return discovery;
+    }
+
+    private void createNode(String path, String data) throws Exception {
+        _curator.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).forPath(path, data.getBytes());
+    }
+
+    private static boolean waitUntilContains(final RecursiveNodeDiscovery<?> discovery, final String path)
+            throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return discovery.getNodes().containsKey(path);
+            }
+        });
+    }
+
+    private static boolean waitUntilSize(final RecursiveNodeDiscovery<?> discovery, final int size) throws Exception {
+        return waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return discovery.getNodes().size() == size;
+            }
+        });
+    }
+
+    private static boolean waitUntil(Callable<Boolean> function) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!function.call() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return function.call();
+    }
+
+    private static class RecordingListener implements NodeDiscovery.NodeListener<String> {
+        private final List<String> _events = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        @Override
+        public void onNodeAdded(String path, String node) {
+            _events.add("added " + path);
+        }
+
+        @Override
+        public void onNodeRemoved(String path, String node) {
+            _events.add("removed " + path);
+        }
+
+        @Override
+        public void onNodeUpdated(String path, String node) {
+            _events.add("updated " + path);
+        }
+
+        List<String> events() {
+            synchronized (_events) {
+                return ImmutableList.copyOf(_events);
+            }
+        }
+    }
+}
@@ -14,22 +14,29 @@ import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.SettableFuture;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.leader.Participant;
+import org.apache.curator.utils.ZKPaths;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LeaderServiceTest extends ZooKeeperTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaderServiceTest.class);
     private static final String PATH = "/path/leader";
 
     private CuratorFramework _curator;
@@ -324,6 +331,142 @@ public class LeaderServiceTest extends ZooKeeperTest {
         assertEquals(expectedThreadName, actualThreadName.get(1, TimeUnit.MINUTES));
     }
 
+    /** Verify that the leader and participants are read from a watch-backed view rather than from ZooKeeper. */
+    @Test
+    public void testCachedParticipants() throws Exception {
+        ServiceTriggers triggers = new ServiceTriggers();
+        LeaderService leader = newLeaderService("a", supply(triggers.listenTo(new NopService())));
+        leader.startAsync();
+        assertTrue(triggers.getRunning().firedWithin(1, TimeUnit.MINUTES));
+
+        LeaderService follower = newLeaderService("b", supply(new NopService()));
+        follower.startAsync().awaitRunning();
+        assertTrue(waitUntilParticipants(follower, 2));
+        assertEquals(ImmutableList.of(new Participant("a", true), new Participant("b", false)),
+                ImmutableList.copyOf(follower.getParticipants()));
+
+        // Reads don't go to ZooKeeper, so they still work without it.
+        stopZooKeeper();
+        assertEquals("a", follower.getLeader().getId());
+    }
+
+    /** Verify that leader listeners are told about the leader and about changes of leader. */
+    @Test
+    public void testLeaderListener() throws Exception {
+        ServiceTriggers triggers = new ServiceTriggers();
+        LeaderService leader = newLeaderService("a", supply(triggers.listenTo(new NopService())));
+        leader.startAsync();
+        assertTrue(triggers.getRunning().firedWithin(1, TimeUnit.MINUTES));
+
+        final BlockingQueue<String> leaders = new LinkedBlockingQueue<String>();
+        LeaderService follower = newLeaderService("b", supply(new NopService()));
+        follower.addLeaderListener(new LeaderService.LeaderListener() {
+            @Override
+            public void onLeaderChanged(Participant leader) {
+                leaders.add(leader.getId());
+            }
+        });
+        follower.startAsync();
+        assertEquals("a", leaders.poll(1, TimeUnit.MINUTES));
+
+        leader.stopAsync();
+        assertEquals("b", leaders.poll(1, TimeUnit.MINUTES));
+        assertTrue(follower.hasLeadership() || waitUntilParticipants(follower, 1));
+        assertNull(leaders.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /** Verify that leader listeners aren't told about a view of the participants without a leader. */
+    @Test
+    public void testLeaderListenerIgnoresNoLeader() throws Exception {
+        final BlockingQueue<String> leaders = new LinkedBlockingQueue<String>();
+        LeaderService leader = newLeaderService("a", supply(new NopService()));
+        leader.addLeaderListener(new LeaderService.LeaderListener() {
+            @Override
+            public void onLeaderChanged(Participant leader) {
+                leaders.add(leader.getId());
+            }
+        });
+        leader.startAsync();
+        assertEquals("a", leaders.poll(1, TimeUnit.MINUTES));
+
+        // The latch doesn't watch its own node while it is the leader, so the view stays empty.
+        for (String child : _curator.getChildren().forPath(PATH)) {
+            _curator.delete().forPath(ZKPaths.makePath(PATH, child));
+        }
+        assertTrue(waitUntilParticipants(leader, 0));
+        assertNull(leaders.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /** Verify that a follower's warm standby takes over without waiting for it to start. */
+    @Test
+    public void testStandbyFailoverLatency() throws Exception {
+        long warmUpMillis = 2000;
+        StandbyFactory leaderStandbys = new StandbyFactory(warmUpMillis, false);
+        LeaderService leader = newStandbyLeaderService("a", 1, TimeUnit.HOURS, leaderStandbys);
+        leader.startAsync();
+        assertTrue(leaderStandbys.get(0)._activated.firedWithin(1, TimeUnit.MINUTES));
+
+        StandbyFactory followerStandbys = new StandbyFactory(warmUpMillis, false);
+        newStandbyLeaderService("b", 1, TimeUnit.HOURS, followerStandbys).startAsync();
+        WarmStandby standby = followerStandbys.get(0);
+        standby.awaitRunning(1, TimeUnit.MINUTES);
+        assertFalse(standby._activated.hasFired());
+
+        long failoverStart = System.nanoTime();
+        leader.stopAsync();
+        assertTrue(standby._activated.firedWithin(1, TimeUnit.MINUTES));
+        long failoverMillis = TimeUnit.NANOSECONDS.toMillis(standby._activatedAt - failoverStart);
+        LOG.info("Failover with a warm standby took {} ms, starting the service takes {} ms",
+                failoverMillis, warmUpMillis);
+        assertTrue("Failover took " + failoverMillis + " ms", failoverMillis < warmUpMillis);
+        assertEquals(1, followerStandbys.size());
+    }
+
+    /** Verify that a standby that fails to activate is stopped, releasing leadership, and replaced. */
+    @Test
+    public void testStandbyActivationFailed() throws Exception {
+        StandbyFactory standbys = new StandbyFactory(0, true);
+        newStandbyLeaderService("a", 10, TimeUnit.MILLISECONDS, standbys).startAsync();
+
+        assertTrue(standbys.get(0)._activated.firedWithin(1, TimeUnit.MINUTES));
+        standbys.get(0).awaitTerminated(1, TimeUnit.MINUTES);
+        assertTrue(standbys.get(1)._activated.firedWithin(1, TimeUnit.MINUTES));
+    }
+
+    /** Verify that a follower's standby is stopped, never activated, when the LeaderService stops. */
+    @Test
+    public void testStandbyStoppedWithService() throws Exception {
+        ServiceTriggers triggers = new ServiceTriggers();
+        newLeaderService("a", supply(triggers.listenTo(new NopService()))).startAsync();
+        assertTrue(triggers.getRunning().firedWithin(1, TimeUnit.MINUTES));
+
+        StandbyFactory standbys = new StandbyFactory(0, false);
+        LeaderService follower = newStandbyLeaderService("b", 1, TimeUnit.HOURS, standbys);
+        follower.startAsync();
+        standbys.get(0).awaitRunning(1, TimeUnit.MINUTES);
+
+        follower.stopAsync().awaitTerminated(1, TimeUnit.MINUTES);
+        assertEquals(Service.State.TERMINATED, standbys.get(0).state());
+        assertFalse(standbys.get(0)._activated.hasFired());
+    }
+
+    private LeaderService newStandbyLeaderService(String id, long reacquireDelay, TimeUnit unit,
+                                                  StandbyService.Factory standbys) {
+        return register(new LeaderService(_curator, PATH, id, "LeaderService-" + id, reacquireDelay, unit, standbys));
+    }
+
+    private LeaderService newLeaderService(String id, Supplier<Service> services) {
+        return register(new LeaderService(_curator, PATH, id, "LeaderService-" + id, 1, TimeUnit.HOURS, services));
+    }
+
+    private static boolean waitUntilParticipants(LeaderService service, int count) throws Exception {
+        long start = System.nanoTime();
+        while (service.getParticipants().size() != count && System.nanoTime() - start < TimeUnit.MINUTES.toNanos(1)) {
+            Thread.sleep(10);
+        }
+        return service.getParticipants().size() == count;
+    }
+
     private static Service trackEvents(String id, List<Event> events, Service service) {
         service.addListener(new EventListener(id, events), MoreExecutors.sameThreadExecutor());
         return service;
@@ -339,6 +482,68 @@ public class LeaderServiceTest extends ZooKeeperTest {
         };
     }
 
+    /** Creates standbys and keeps track of them, in order. */
+    private static class StandbyFactory implements StandbyService.Factory {
+        private final List<WarmStandby> _created = Collections.synchronizedList(Lists.<WarmStandby>newArrayList());
+        private final long _warmUpMillis;
+        private final boolean _failFirstActivation;
+
+        private StandbyFactory(long warmUpMillis, boolean failFirstActivation) {
+            _warmUpMillis = warmUpMillis;
+            _failFirstActivation = failFirstActivation;
+        }
+
+        @Override
+        public StandbyService create() {
+            WarmStandby standby = new WarmStandby(_warmUpMillis, _failFirstActivation && _created.isEmpty());
+            _created.add(standby);
+            return standby;
+        }
+
+        /** Wait for the standby with the given index to be created. */
+        private WarmStandby get(int index) throws InterruptedException {
+            long start = System.nanoTime();
+            while (_created.size() <= index && System.nanoTime() - start < TimeUnit.MINUTES.toNanos(1)) {
+                Thread.sleep(10);
+            }
+            return _created.get(index);
+        }
+
+        private int size() {
+            return _created.size();
+        }
+    }
+
+    /** A standby that takes a while to start, like a service that loads caches. */
+    private static class WarmStandby extends AbstractIdleService implements StandbyService {
+        private final Trigger _activated = new Trigger();
+        private final long _warmUpMillis;
+        private final boolean _failActivation;
+        private volatile long _activatedAt;
+
+        private WarmStandby(long warmUpMillis, boolean failActivation) {
+            _warmUpMillis = warmUpMillis;
+            _failActivation = failActivation;
+        }
+
+        @Override
+        protected void startUp() throws Exception {
+            Thread.sleep(_warmUpMillis);
+        }
+
+        @Override
+        protected void shutDown() throws Exception {}
+
+        @Override
+        public void activate() throws Exception {
+            _activatedAt = System.nanoTime();
+            _activated.fire();
+            if (_failActivation) {
+                throw new Exception("Activation failed");
+            }
+        }
+    }
+
     private static class NopService extends AbstractIdleService {
         @Override
         protected void startUp() throws Exception {}
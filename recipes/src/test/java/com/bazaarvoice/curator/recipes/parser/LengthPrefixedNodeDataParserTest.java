@@ -0,0 +1,101 @@
+package com.bazaarvoice.curator.recipes.parser;
+
+import com.google.common.base.Charsets;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LengthPrefixedNodeDataParserTest {
+    private static final String PATH = "/path/node";
+    private static final Stat STAT = new Stat();
+
+    /** Returns the first and third fields, skipping the second. */
+    private static final LengthPrefixedNodeDataParser<String> PARSER = new LengthPrefixedNodeDataParser<String>() {
+        @Override
+        protected String parse(String path, FieldReader fields, Stat stat) {
+            String first = fields.nextString();
+            fields.skip();
+            return first + ":" + fields.nextString();
+        }
+    };
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals("host:8080", PARSER.parse(PATH, encode("host", "ignored", "8080"), STAT));
+    }
+
+    @Test
+    public void testStateless() {
+        assertTrue(PARSER.isStateless());
+    }
+
+    @Test
+    public void testDoesNotMoveCallersBuffer() throws Exception {
+        ByteBuffer data = encode("host", "ignored", "8080");
+        PARSER.parse(PATH, data, STAT);
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testFieldsAreReadOnlyViews() {
+        ByteBuffer field = fields(encode("abc")).next();
+        assertTrue(field.isReadOnly());
+        assertEquals(3, field.remaining());
+        assertEquals('a', field.get(0));
+    }
+
+    @Test
+    public void testEmptyField() {
+        LengthPrefixedNodeDataParser.FieldReader fields = fields(encode("", "x"));
+        assertEquals("", fields.nextString());
+        assertEquals("x", fields.nextString());
+        assertFalse(fields.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testNoMoreFields() throws Exception {
+        PARSER.parse(PATH, encode("abc"), STAT);
+    }
+
+    @Test
+    public void testTruncatedField() {
+        ByteBuffer data = encode("abcdef");
+        data.limit(data.limit() - 1);
+        try {
+            fields(data).next();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedLength() {
+        fields(ByteBuffer.wrap(new byte[] {0, 0})).next();
+    }
+
+    private static LengthPrefixedNodeDataParser.FieldReader fields(ByteBuffer data) {
+        return new LengthPrefixedNodeDataParser.FieldReader(data);
+    }
+
+    private static ByteBuffer encode(String... fields) {
+        int length = 0;
+        for (String field : fields) {
+            length += 4 + field.getBytes(Charsets.UTF_8).length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(Charsets.UTF_8);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+}
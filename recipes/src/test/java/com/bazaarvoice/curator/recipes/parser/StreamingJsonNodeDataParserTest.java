@@ -0,0 +1,84 @@
+package com.bazaarvoice.curator.recipes.parser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJsonNodeDataParserTest {
+    private static final String PATH = "/path/node";
+
+    /** Returns the "host" field, skipping everything else. */
+    private static final StreamingJsonNodeDataParser<String> PARSER = new StreamingJsonNodeDataParser<String>() {
+        @Override
+        protected String parse(String path, JsonParser json, Stat stat) throws IOException {
+            String host = null;
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected an object");
+            }
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                json.nextToken();
+                if ("host".equals(field)) {
+                    host = json.getText();
+                } else {
+                    json.skipChildren();
+                }
+            }
+            return host;
+        }
+    };
+
+    @Test
+    public void testParse() throws Exception {
+        String data = "{\"metadata\":{\"tags\":[1,2,{\"a\":\"b\"}]},\"host\":\"example.com\",\"port\":8080}";
+        assertEquals("example.com", PARSER.parse(PATH, encode(data), new Stat()));
+    }
+
+    @Test
+    public void testMissingField() throws Exception {
+        assertNull(PARSER.parse(PATH, encode("{\"port\":8080}"), new Stat()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformed() throws Exception {
+        PARSER.parse(PATH, encode("[]"), new Stat());
+    }
+
+    @Test
+    public void testDoesNotMoveCallersBuffer() throws Exception {
+        ByteBuffer data = encode("{\"host\":\"example.com\"}");
+        PARSER.parse(PATH, data, new Stat());
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void testStat() throws Exception {
+        StreamingJsonNodeDataParser<Integer> parser = new StreamingJsonNodeDataParser<Integer>() {
+            @Override
+            protected Integer parse(String path, JsonParser json, Stat stat) {
+                return stat.getVersion();
+            }
+        };
+        Stat stat = new Stat();
+        stat.setVersion(7);
+        assertEquals(7, (int) parser.parse(PATH, encode("{}"), stat));
+    }
+
+    @Test
+    public void testStateless() {
+        assertTrue(PARSER.isStateless());
+    }
+
+    private static ByteBuffer encode(String json) {
+        return ByteBuffer.wrap(json.getBytes(Charsets.UTF_8)).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,151 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+    private static final double EPSILON = 1e-9;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroVirtualNodes() {
+        ConsistentHashRing.create(0);
+    }
+
+    @Test
+    public void testEmpty() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.create(10);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.get("key"));
+        assertNull(ring.getPath(0));
+        assertEquals(0, ring.getVersion());
+    }
+
+    @Test
+    public void testSingleMemberOwnsEverything() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.<String>create(10).withNode("/a", "a");
+        for (int i = 0; i < 100; i++) {
+            assertEquals("a", ring.get("key-" + i));
+        }
+        assertEquals(ConsistentHashRing.KeyMovement.Type.ADDED, ring.getMovement().getType());
+        assertEquals(1.0, ring.getMovement().getMovedFraction(), EPSILON);
+    }
+
+    @Test
+    public void testVersionIncrementsOnEachChange() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.<String>create(10)
+                .withNode("/a", "a")
+                .withNode("/b", "b")
+                .withoutNode("/a");
+        assertEquals(3, ring.getVersion());
+    }
+
+    @Test
+    public void testLayoutIndependentOfOrder() {
+        ConsistentHashRing<String> forward = ConsistentHashRing.create(50);
+        ConsistentHashRing<String> backward = ConsistentHashRing.create(50);
+        for (int i = 0; i < 10; i++) {
+            forward = forward.withNode("/" + i, "" + i);
+            backward = backward.withNode("/" + (9 - i), "" + (9 - i));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(forward.get("key-" + i), backward.get("key-" + i));
+        }
+    }
+
+    @Test
+    public void testIncrementalRemoveMatchesFreshRing() {
+        ConsistentHashRing<String> incremental = ConsistentHashRing.create(50);
+        ConsistentHashRing<String> fresh = ConsistentHashRing.create(50);
+        for (int i = 0; i < 10; i++) {
+            incremental = incremental.withNode("/" + i, "" + i);
+            if (i != 3 && i != 7) {
+                fresh = fresh.withNode("/" + i, "" + i);
+            }
+        }
+        incremental = incremental.withoutNode("/3").withoutNode("/7");
+
+        assertEquals(8, incremental.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(fresh.get("key-" + i), incremental.get("key-" + i));
+        }
+    }
+
+    @Test
+    public void testAddMovementMatchesObservedMovement() {
+        ConsistentHashRing<String> before = ConsistentHashRing.create(100);
+        for (int i = 0; i < 5; i++) {
+            before = before.withNode("/" + i, "" + i);
+        }
+        ConsistentHashRing<String> after = before.withNode("/new", "new");
+
+        ConsistentHashRing.KeyMovement movement = after.getMovement();
+        assertEquals(ConsistentHashRing.KeyMovement.Type.ADDED, movement.getType());
+        assertEquals("/new", movement.getPath());
+
+        // Only keys that moved to the new member changed owner, and the fraction reported is close to what's observed.
+        int keys = 100000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String owner = after.get("key-" + i);
+            if (!owner.equals(before.get("key-" + i))) {
+                assertEquals("new", owner);
+                moved++;
+            }
+        }
+        assertEquals(movement.getMovedFraction(), (double) moved / keys, 0.01);
+
+        double transferred = 0;
+        for (double fraction : movement.getTransfers().values()) {
+            transferred += fraction;
+        }
+        assertEquals(movement.getMovedFraction(), transferred, EPSILON);
+        assertFalse(movement.getTransfers().containsKey("/new"));
+    }
+
+    @Test
+    public void testRemoveMovementMatchesAddMovement() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.create(100);
+        for (int i = 0; i < 5; i++) {
+            ring = ring.withNode("/" + i, "" + i);
+        }
+        ConsistentHashRing<String> added = ring.withNode("/new", "new");
+        ConsistentHashRing<String> removed = added.withoutNode("/new");
+
+        assertEquals(ConsistentHashRing.KeyMovement.Type.REMOVED, removed.getMovement().getType());
+        assertEquals(added.getMovement().getMovedFraction(), removed.getMovement().getMovedFraction(), EPSILON);
+        assertEquals(added.getMovement().getTransfers(), removed.getMovement().getTransfers());
+    }
+
+    @Test
+    public void testReplaceValueMovesNothing() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.<String>create(10).withNode("/a", "a").withNode("/b", "b");
+        ConsistentHashRing<String> replaced = ring.withNode("/a", "a2");
+
+        assertEquals(ConsistentHashRing.KeyMovement.Type.NONE, replaced.getMovement().getType());
+        assertEquals(0, replaced.getMovement().getMovedFraction(), EPSILON);
+        for (int i = 0; i < 100; i++) {
+            String before = ring.get("key-" + i);
+            assertEquals(before.equals("a") ? "a2" : before, replaced.get("key-" + i));
+        }
+    }
+
+    @Test
+    public void testRemoveUnknownMember() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.<String>create(10).withNode("/a", "a");
+        assertSame(ring, ring.withoutNode("/b"));
+    }
+
+    @Test
+    public void testRemoveLastMember() {
+        ConsistentHashRing<String> ring = ConsistentHashRing.<String>create(10).withNode("/a", "a").withoutNode("/a");
+        assertTrue(ring.isEmpty());
+        assertNull(ring.get("key"));
+        assertEquals(1.0, ring.getMovement().getMovedFraction(), EPSILON);
+    }
+}
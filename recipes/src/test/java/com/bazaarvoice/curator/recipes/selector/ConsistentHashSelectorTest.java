@@ -0,0 +1,119 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashSelectorTest {
+    private final ConsistentHashSelector<String> _selector = new ConsistentHashSelector<String>();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroVirtualNodes() {
+        new ConsistentHashSelector<String>(0);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(_selector.select("key"));
+    }
+
+    @Test
+    public void testSameKeySameNode() {
+        addNodes(5);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(_selector.select("key-" + i), _selector.select("key-" + i));
+        }
+    }
+
+    @Test
+    public void testSameLayoutAcrossSelectors() {
+        addNodes(5);
+        ConsistentHashSelector<String> other = new ConsistentHashSelector<String>();
+        // Add in a different order, the layout depends only on the paths.
+        for (int i = 4; i >= 0; i--) {
+            other.onNodeAdded("/node-" + i, "node-" + i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(_selector.select("key-" + i), other.select("key-" + i));
+        }
+    }
+
+    @Test
+    public void testRemovingNodeOnlyMovesItsKeys() {
+        addNodes(5);
+        Map<String, String> before = assignments(1000);
+
+        _selector.onNodeRemoved("/node-2", "node-2");
+        Map<String, String> after = assignments(1000);
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!entry.getValue().equals("node-2")) {
+                assertEquals(entry.getValue(), after.get(entry.getKey()));
+            }
+        }
+        assertTrue(!after.containsValue("node-2"));
+    }
+
+    @Test
+    public void testAllNodesOwnKeys() {
+        addNodes(5);
+        Map<String, String> assignments = assignments(1000);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(assignments.containsValue("node-" + i));
+        }
+    }
+
+    @Test
+    public void testNullNodeNotSelected() {
+        _selector.onNodeAdded("/a", null);
+        assertNull(_selector.select("key"));
+    }
+
+    @Test
+    public void testUpdateToNullRemovesNode() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeUpdated("/a", null);
+        assertNull(_selector.select("key"));
+    }
+
+    @Test
+    public void testListenerNotifiedOfRingChanges() {
+        final List<ConsistentHashRing<String>> rings = Lists.newArrayList();
+        _selector.addListener(new ConsistentHashSelector.RingListener<String>() {
+            @Override
+            public void onRingChanged(ConsistentHashRing<String> ring) {
+                rings.add(ring);
+            }
+        });
+
+        addNodes(2);
+        _selector.onNodeRemoved("/node-0", "node-0");
+        _selector.onNodeRemoved("/unknown", "unknown");
+
+        assertEquals(3, rings.size());
+        assertEquals(ConsistentHashRing.KeyMovement.Type.REMOVED, rings.get(2).getMovement().getType());
+        assertEquals(rings.get(2), _selector.getRing());
+    }
+
+    private void addNodes(int count) {
+        for (int i = 0; i < count; i++) {
+            _selector.onNodeAdded("/node-" + i, "node-" + i);
+        }
+    }
+
+    private Map<String, String> assignments(int keys) {
+        Map<String, String> assignments = Maps.newHashMap();
+        for (int i = 0; i < keys; i++) {
+            assignments.put("key-" + i, _selector.select("key-" + i));
+        }
+        return assignments;
+    }
+}
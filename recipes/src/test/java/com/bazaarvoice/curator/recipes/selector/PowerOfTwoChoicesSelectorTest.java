@@ -0,0 +1,58 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PowerOfTwoChoicesSelectorTest {
+    /** The load of a node is its value. */
+    private static final PowerOfTwoChoicesSelector.LoadSignal<Integer> IDENTITY =
+            new PowerOfTwoChoicesSelector.LoadSignal<Integer>() {
+                @Override
+                public double getLoad(Integer node) {
+                    return node;
+                }
+            };
+
+    private final PowerOfTwoChoicesSelector<Integer> _selector = new PowerOfTwoChoicesSelector<Integer>(IDENTITY);
+
+    @Test(expected = NullPointerException.class)
+    public void testNullLoadSignal() {
+        new PowerOfTwoChoicesSelector<Integer>(null);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testSingleNode() {
+        _selector.onNodeAdded("/a", 5);
+        assertEquals(5, (int) _selector.select());
+    }
+
+    @Test
+    public void testSelectsLessLoadedOfTwo() {
+        _selector.onNodeAdded("/a", 5);
+        _selector.onNodeAdded("/b", 1);
+
+        // With two nodes both are always compared, so the less loaded one always wins.
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, (int) _selector.select());
+        }
+    }
+
+    @Test
+    public void testMostLoadedNeverSelected() {
+        for (int i = 0; i < 10; i++) {
+            _selector.onNodeAdded("/" + i, i);
+        }
+
+        // The two choices are always distinct, so the most loaded node always loses.
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(true, _selector.select() != 9);
+        }
+    }
+}
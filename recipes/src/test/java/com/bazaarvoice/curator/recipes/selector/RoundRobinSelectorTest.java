@@ -0,0 +1,81 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RoundRobinSelectorTest {
+    private final RoundRobinSelector<String> _selector = new RoundRobinSelector<String>();
+
+    @Test
+    public void testEmpty() {
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testSelectsEveryNodeInTurn() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeAdded("/b", "b");
+        _selector.onNodeAdded("/c", "c");
+
+        Set<String> selected = Sets.newHashSet();
+        for (int i = 0; i < 3; i++) {
+            selected.add(_selector.select());
+        }
+        assertEquals(ImmutableSet.of("a", "b", "c"), selected);
+    }
+
+    @Test
+    public void testRemovedNodeNotSelected() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeAdded("/b", "b");
+        _selector.onNodeAdded("/c", "c");
+        _selector.onNodeRemoved("/a", "a");
+
+        assertEquals(2, _selector.getSnapshot().size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(true, ImmutableSet.of("b", "c").contains(_selector.select()));
+        }
+    }
+
+    @Test
+    public void testUpdatedNodeSelected() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeUpdated("/a", "a2");
+
+        assertEquals(1, _selector.getSnapshot().size());
+        assertEquals("a2", _selector.select());
+    }
+
+    @Test
+    public void testNullNodeNotSelected() {
+        _selector.onNodeAdded("/a", null);
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testUpdateToNullRemovesNode() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeUpdated("/a", null);
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testUpdateFromNullAddsNode() {
+        _selector.onNodeAdded("/a", null);
+        _selector.onNodeUpdated("/a", "a");
+        assertEquals("a", _selector.select());
+    }
+
+    @Test
+    public void testRemoveUnknownNode() {
+        _selector.onNodeAdded("/a", "a");
+        _selector.onNodeRemoved("/b", "b");
+        assertEquals(1, _selector.getSnapshot().size());
+    }
+}
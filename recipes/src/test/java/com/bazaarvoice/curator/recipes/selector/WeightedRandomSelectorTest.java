@@ -0,0 +1,129 @@
+package com.bazaarvoice.curator.recipes.selector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WeightedRandomSelectorTest {
+    private static final WeightedRandomSelector.Weigher<Integer> IDENTITY = new WeightedRandomSelector.Weigher<Integer>() {
+        @Override
+        public double getWeight(Integer node) {
+            return node;
+        }
+    };
+
+    private final WeightedRandomSelector<Integer> _selector = new WeightedRandomSelector<Integer>(IDENTITY);
+
+    @Test(expected = NullPointerException.class)
+    public void testNullWeigher() {
+        new WeightedRandomSelector<Integer>(null);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testAllZeroWeights() {
+        _selector.onNodeAdded("/a", 0);
+        assertNull(_selector.select());
+    }
+
+    @Test
+    public void testZeroWeightNeverSelected() {
+        _selector.onNodeAdded("/a", 0);
+        _selector.onNodeAdded("/b", 1);
+        _selector.onNodeAdded("/c", 0);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, (int) _selector.select());
+        }
+    }
+
+    @Test
+    public void testZeroWeightNeverSelectedAmongUnevenWeights() {
+        // Uneven weights leave rounding error in the alias table; none of it may reach the zero-weight nodes.
+        for (int i = 0; i < 30; i++) {
+            _selector.onNodeAdded("/node-" + i, (i % 3 == 0) ? 0 : i);
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            int selected = _selector.select();
+            assertTrue("Selected: " + selected, selected % 3 != 0);
+        }
+    }
+
+    @Test
+    public void testSelectsInProportionToWeight() {
+        _selector.onNodeAdded("/a", 1);
+        _selector.onNodeAdded("/b", 3);
+
+        int selectedB = 0;
+        int trials = 100000;
+        for (int i = 0; i < trials; i++) {
+            if (_selector.select() == 3) {
+                selectedB++;
+            }
+        }
+        double fraction = (double) selectedB / trials;
+        assertTrue("Fraction: " + fraction, fraction > 0.72 && fraction < 0.78);
+    }
+
+    @Test
+    public void testRemovedNodeNotSelected() {
+        _selector.onNodeAdded("/a", 1);
+        _selector.onNodeAdded("/b", 3);
+        _selector.onNodeRemoved("/b", 3);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, (int) _selector.select());
+        }
+    }
+
+    @Test
+    public void testInvalidWeightsNeverSelected() {
+        for (double weight : new double[] {-1, Double.NaN, Double.POSITIVE_INFINITY}) {
+            WeightedRandomSelector<Double> selector = new WeightedRandomSelector<Double>(
+                    new WeightedRandomSelector.Weigher<Double>() {
+                        @Override
+                        public double getWeight(Double node) {
+                            return node;
+                        }
+                    });
+            selector.onNodeAdded("/bad", weight);
+            selector.onNodeAdded("/good", 1.0);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(1.0, selector.select(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testWeigherFailureNeverSelected() {
+        WeightedRandomSelector<Integer> selector = new WeightedRandomSelector<Integer>(
+                new WeightedRandomSelector.Weigher<Integer>() {
+                    @Override
+                    public double getWeight(Integer node) {
+                        if (node < 0) {
+                            throw new IllegalArgumentException("bad payload");
+                        }
+                        return node;
+                    }
+                });
+        selector.onNodeAdded("/bad", -1);
+        selector.onNodeAdded("/good", 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, (int) selector.select());
+        }
+    }
+
+    @Test
+    public void testInvalidWeightDoesNotStopLaterChanges() {
+        _selector.onNodeAdded("/a", -1);
+        _selector.onNodeAdded("/b", 2);
+        assertEquals(2, (int) _selector.select());
+    }
+}